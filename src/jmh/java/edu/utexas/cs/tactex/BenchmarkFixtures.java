@@ -0,0 +1,218 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu               
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.powertac.common.Broker;
+import org.powertac.common.Competition;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.Rate;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.TimeService;
+import org.powertac.common.enumerations.PowerType;
+import org.powertac.common.repo.TariffRepo;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import edu.utexas.cs.tactex.core.PowerTacBroker;
+import edu.utexas.cs.tactex.interfaces.CostCurvesPredictor;
+import edu.utexas.cs.tactex.shiftingpredictors.ShiftingPredictorNoShifts;
+import edu.utexas.cs.tactex.utils.BrokerUtils.ShiftedEnergyData;
+
+/**
+ * Game state shared by the benchmarks, built the way the unit tests
+ * build it (TestHelperUtils, MarketManagerTest/CostCurvesTest setups).
+ * Values are pseudo-random with a fixed seed so runs are comparable.
+ *
+ * @author urieli
+ */
+public class BenchmarkFixtures {
+
+  static final int RECORD_LENGTH = 7 * 24;
+  static final int BOOTSTRAP_DISCARDED_TIMESLOTS = 24;
+  static final int FIRST_GAME_TIMESLOT = 360;
+  static final int CUSTOMER_POPULATION = 1000;
+
+  final Broker me = new Broker("benchmarkBroker");
+  final Broker competitor = new Broker("competitor");
+  final TimeService timeService = new TimeService();
+  final TariffRepo tariffRepo = new TariffRepo();
+  final TariffRepoMgrService tariffRepoMgrService = new TariffRepoMgrService();
+
+  TariffSpecification defaultSpec;
+  TariffSpecification mySpec;
+  // all tariffs: default, competitors' and mine
+  List<TariffSpecification> specs;
+  List<TariffSpecification> competingSpecs;
+
+  List<CustomerInfo> customers;
+  HashMap<CustomerInfo, ArrayRealVector> customer2energy;
+  HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> tariffSubscriptions;
+  HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictedSubscriptions;
+  HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> customer2ShiftedEnergy;
+
+  private long seed = 42;
+
+
+  /**
+   * Creates numCustomers consumers and numCompetingTariffs competing
+   * tariffs (every other one is time-of-use), plus a default tariff and
+   * a candidate tariff of mine.
+   */
+  BenchmarkFixtures(int numCustomers, int numCompetingTariffs) {
+    timeService.setCurrentTime(new DateTime(2011, 2, 1, 0, 0, 0, 0, DateTimeZone.UTC).toInstant());
+    ReflectionTestUtils.setField(tariffRepoMgrService, "tariffRepo", tariffRepo);
+
+    specs = new ArrayList<TariffSpecification>();
+    competingSpecs = new ArrayList<TariffSpecification>();
+    defaultSpec = createSpec(competitor, -0.5, false);
+    specs.add(defaultSpec);
+    for (int i = 0; i < numCompetingTariffs; ++i) {
+      TariffSpecification spec = createSpec(competitor, -0.05 - 0.1 * nextDouble(), i % 2 == 1);
+      specs.add(spec);
+      competingSpecs.add(spec);
+    }
+    mySpec = createSpec(me, -0.1, false);
+    specs.add(mySpec);
+
+    customers = new ArrayList<CustomerInfo>();
+    customer2energy = new HashMap<CustomerInfo, ArrayRealVector>();
+    for (int i = 0; i < numCustomers; ++i) {
+      CustomerInfo customer = new CustomerInfo("customer" + i, CUSTOMER_POPULATION).withPowerType(PowerType.CONSUMPTION);
+      customers.add(customer);
+      double[] energy = new double[RECORD_LENGTH];
+      for (int j = 0; j < RECORD_LENGTH; ++j) {
+        // daily pattern plus noise, per person
+        energy[j] = 1 + Math.sin(2 * Math.PI * (j % 24) / 24.0) * 0.5 + 0.2 * nextDouble();
+      }
+      customer2energy.put(customer, new ArrayRealVector(energy));
+    }
+
+    // currently all customers are on the default tariff; predictions
+    // spread them evenly
+    tariffSubscriptions = new HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>>();
+    predictedSubscriptions = new HashMap<TariffSpecification, HashMap<CustomerInfo, Double>>();
+    HashMap<CustomerInfo, Integer> defaultSubs = new HashMap<CustomerInfo, Integer>();
+    for (CustomerInfo customer : customers) {
+      defaultSubs.put(customer, customer.getPopulation());
+    }
+    tariffSubscriptions.put(defaultSpec, defaultSubs);
+    for (TariffSpecification spec : specs) {
+      HashMap<CustomerInfo, Double> subs = new HashMap<CustomerInfo, Double>();
+      for (CustomerInfo customer : customers) {
+        subs.put(customer, customer.getPopulation() / (double)specs.size());
+      }
+      predictedSubscriptions.put(spec, subs);
+    }
+
+    customer2ShiftedEnergy =
+        new ShiftingPredictorNoShifts().updateEstimatedEnergyWithShifting(
+            customer2energy, predictedSubscriptions, FIRST_GAME_TIMESLOT);
+  }
+
+
+  /**
+   * A competition whose bootstrap period is discardedTimeslots long,
+   * set as the current competition.
+   */
+  static Competition setCurrentCompetition(int discardedTimeslots) {
+    Competition competition = mock(Competition.class);
+    when(competition.getBootstrapDiscardedTimeslots()).thenReturn(discardedTimeslots);
+    Competition.setCurrent(competition);
+    return competition;
+  }
+
+
+  static ConfiguratorFactoryService createConfiguratorFactoryService(int usageRecordLength) {
+    ConfiguratorFactoryService configuratorFactoryService = new ConfiguratorFactoryService();
+    ConfiguratorFactoryService.GlobalConstants constants = configuratorFactoryService.new GlobalConstants();
+    ReflectionTestUtils.setField(constants, "USAGE_RECORD_LENGTH", usageRecordLength);
+    ReflectionTestUtils.setField(configuratorFactoryService, "CONSTANTS", constants);
+    return configuratorFactoryService;
+  }
+
+
+  PowerTacBroker createBrokerContext() {
+    PowerTacBroker brokerContext = mock(PowerTacBroker.class);
+    when(brokerContext.getBroker()).thenReturn(me);
+    when(brokerContext.getBrokerUsername()).thenReturn(me.getUsername());
+    return brokerContext;
+  }
+
+
+  /**
+   * cost curve with a fixed unit cost, so utility benchmarks measure
+   * the utility computation and not the regression
+   */
+  static CostCurvesPredictor createFixedCostCurve(final double unitCostKwh) {
+    return new CostCurvesPredictor() {
+
+      @Override
+      public double predictUnitCostMwh(int currentTimeslot, int futureTimeslot, double neededMwh, double competitorMwh) {
+        return unitCostKwh * 1000;
+      }
+
+      @Override
+      public double predictUnitCostKwh(int currentTimeslot, int futureTimeslot, double neededKwh, double competitorKwh) {
+        return unitCostKwh;
+      }
+
+      @Override
+      public void predictUnitCostKwh(int currentTimeslot, int firstFutureTimeslot, double[] neededKwh, double[] competitorKwh, double[] unitCostsKwh) {
+        for (int i = 0; i < unitCostsKwh.length; ++i) {
+          unitCostsKwh[i] = unitCostKwh;
+        }
+      }
+
+      @Override
+      public double getFudgeFactorKwh(int currentTimeslot) {
+        return 0;
+      }
+    };
+  }
+
+
+  double nextDouble() {
+    // fixed-seed LCG, independent of the JDK's Random implementation
+    seed = (seed * 6364136223846793005L + 1442695040888963407L);
+    return (seed >>> 11) / (double)(1L << 53);
+  }
+
+
+  private TariffSpecification createSpec(Broker broker, double price, boolean timeOfUse) {
+    TariffSpecification spec = new TariffSpecification(broker, PowerType.CONSUMPTION);
+    if (timeOfUse) {
+      spec.addRate(new Rate().withValue(price).withDailyBegin(7).withDailyEnd(18));
+      spec.addRate(new Rate().withValue(price * 1.5).withDailyBegin(19).withDailyEnd(6));
+    }
+    else {
+      spec.addRate(new Rate().withValue(price));
+    }
+    TestHelperUtils.addToRepo(spec, tariffRepo, timeService);
+    return spec;
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu               
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.powertac.common.msg.MarketBootstrapData;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import edu.utexas.cs.tactex.costcurve.CostCurvesDataProcessorCons2Avgprice;
+import edu.utexas.cs.tactex.utils.RegressionUtils;
+import edu.utexas.cs.tactex.utils.BrokerUtils.PriceMwhPair;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Cost-curve predictions (queried for each of the 168 predicted
+ * timeslots of every utility estimation) and the regularization search
+ * behind the regression models, after gameLength timeslots of data.
+ *
+ * @author urieli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CostCurvesBenchmark {
+
+  @Param({"168", "1440"})
+  int gameLength;
+
+  private CostCurvesPredictorService costCurves;
+  private int currentTimeslot;
+  private double[] neededKwh;
+  private double[] competitorKwh;
+  private double[] unitCostsKwh;
+  // alternates, so that each invocation refits the model
+  private int refitOffset;
+
+  private Instances Xy;
+  private ArrayList<Double> candidateLambdas;
+
+
+  @SuppressWarnings("unchecked")
+  @Setup
+  public void setUp() {
+    BenchmarkFixtures fixtures = new BenchmarkFixtures(0, 0);
+    BenchmarkFixtures.setCurrentCompetition(BenchmarkFixtures.BOOTSTRAP_DISCARDED_TIMESLOTS);
+
+    costCurves = new CostCurvesPredictorService();
+    ReflectionTestUtils.setField(costCurves, "configuratorFactoryService",
+        BenchmarkFixtures.createConfiguratorFactoryService(BenchmarkFixtures.RECORD_LENGTH));
+    costCurves.initialize(fixtures.createBrokerContext());
+
+    double[] mwh = new double[BenchmarkFixtures.RECORD_LENGTH];
+    double[] price = new double[BenchmarkFixtures.RECORD_LENGTH];
+    for (int i = 0; i < mwh.length; ++i) {
+      mwh[i] = 50 + 20 * fixtures.nextDouble();
+      price[i] = -(30 + 20 * fixtures.nextDouble());
+    }
+    costCurves.handleMessage(new MarketBootstrapData(mwh, price));
+
+    // my wholesale transactions, my consumption and total consumption
+    // of each game timeslot
+    HashMap<Integer, ArrayList<PriceMwhPair>> ts2mtx =
+        (HashMap<Integer, ArrayList<PriceMwhPair>>) ReflectionTestUtils.getField(costCurves, "ts2mtx");
+    HashMap<Integer, Double> ts2mycons =
+        (HashMap<Integer, Double>) ReflectionTestUtils.getField(costCurves, "ts2mycons");
+    HashMap<Integer, Double> ts2totalcons =
+        (HashMap<Integer, Double>) ReflectionTestUtils.getField(costCurves, "ts2totalcons");
+    currentTimeslot = BenchmarkFixtures.FIRST_GAME_TIMESLOT + gameLength;
+    for (int ts = BenchmarkFixtures.FIRST_GAME_TIMESLOT; ts < currentTimeslot; ++ts) {
+      double mycons = 5 + 10 * fixtures.nextDouble();
+      double totalcons = mycons + 40 + 20 * fixtures.nextDouble();
+      for (int i = 0; i < 4; ++i) {
+        costCurves.recordWholesaleTx(ts2mtx, ts, mycons / 4, -(20 + totalcons / 4 + 5 * fixtures.nextDouble()));
+      }
+      ts2mycons.put(ts, mycons);
+      ts2totalcons.put(ts, totalcons);
+    }
+
+    neededKwh = new double[BenchmarkFixtures.RECORD_LENGTH];
+    competitorKwh = new double[BenchmarkFixtures.RECORD_LENGTH];
+    unitCostsKwh = new double[BenchmarkFixtures.RECORD_LENGTH];
+    for (int i = 0; i < neededKwh.length; ++i) {
+      neededKwh[i] = 5000 + 10000 * fixtures.nextDouble();
+      competitorKwh[i] = 40000 + 20000 * fixtures.nextDouble();
+    }
+
+    // regression data of the same size, as created by the data processor
+    ArrayList<Instance> instances = new ArrayList<Instance>();
+    Double[] y = new Double[gameLength];
+    for (int i = 0; i < gameLength; ++i) {
+      double mycons = 5 + 10 * fixtures.nextDouble();
+      double totalcons = mycons + 40 + 20 * fixtures.nextDouble();
+      instances.add(RegressionUtils.createInstance(
+          RegressionUtils.createRawFeatures(new double[] {mycons, totalcons})));
+      y[i] = -(20 + totalcons / 4 + 5 * fixtures.nextDouble());
+    }
+    CostCurvesDataProcessorCons2Avgprice processor = new CostCurvesDataProcessorCons2Avgprice();
+    Instances X = RegressionUtils.createInstances(instances, processor.getFeatureNames());
+    Xy = RegressionUtils.addYforWeka(X, y);
+    candidateLambdas = processor.getCandidateLambdas();
+  }
+
+
+  /**
+   * predictions of one utility estimation, one query per timeslot,
+   * with the model of the current timeslot already fitted
+   */
+  @Benchmark
+  public void predictUnitCostKwh(Blackhole blackhole) {
+    for (int i = 0; i < neededKwh.length; ++i) {
+      blackhole.consume(costCurves.predictUnitCostKwh(currentTimeslot, currentTimeslot + i, neededKwh[i], competitorKwh[i]));
+    }
+  }
+
+
+  /**
+   * same, through the batch interface
+   */
+  @Benchmark
+  public double[] predictUnitCostKwhBatch() {
+    costCurves.predictUnitCostKwh(currentTimeslot, currentTimeslot, neededKwh, competitorKwh, unitCostsKwh);
+    return unitCostsKwh;
+  }
+
+
+  /**
+   * the first prediction of a timeslot, which refits the model
+   */
+  @Benchmark
+  public double predictUnitCostKwhWithRefit() {
+    refitOffset = 1 - refitOffset;
+    int timeslot = currentTimeslot - refitOffset;
+    return costCurves.predictUnitCostKwh(timeslot, timeslot, neededKwh[0], competitorKwh[0]);
+  }
+
+
+  @Benchmark
+  public Double findBestRegularizationParameter() {
+    return RegressionUtils.findBestRegularizationParameter(Xy, candidateLambdas);
+  }
+}
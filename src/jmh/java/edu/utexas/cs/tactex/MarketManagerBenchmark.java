@@ -0,0 +1,142 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu               
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Instant;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.powertac.common.BalancingTransaction;
+import org.powertac.common.ClearedTrade;
+import org.powertac.common.Orderbook;
+import org.powertac.common.OrderbookOrder;
+import org.powertac.common.TimeService;
+import org.powertac.common.msg.MarketBootstrapData;
+import org.powertac.common.repo.TimeslotRepo;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import edu.utexas.cs.tactex.core.PowerTacBroker;
+
+/**
+ * Wholesale bidding DPs, run for each of the 24 open timeslots in every
+ * timeslot, after gameLength timeslots of market history.
+ *
+ * @author urieli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MarketManagerBenchmark {
+
+  private static final int NUM_OPEN_TIMESLOTS = 24;
+
+  @Param({"168", "1440"})
+  int gameLength;
+
+  private MarketManagerService marketManagerService;
+  private int currentTimeslot;
+
+
+  @Setup
+  public void setUp() {
+    BenchmarkFixtures fixtures = new BenchmarkFixtures(0, 0);
+    BenchmarkFixtures.setCurrentCompetition(BenchmarkFixtures.BOOTSTRAP_DISCARDED_TIMESLOTS);
+
+    marketManagerService = new MarketManagerService();
+    ReflectionTestUtils.setField(marketManagerService, "configuratorFactoryService",
+        BenchmarkFixtures.createConfiguratorFactoryService(BenchmarkFixtures.RECORD_LENGTH));
+    ReflectionTestUtils.setField(marketManagerService, "portfolioManager", mock(PortfolioManagerService.class));
+    TimeslotRepo timeslotRepo = mock(TimeslotRepo.class);
+    when(timeslotRepo.getTimeslotIndex(any(Instant.class))).thenAnswer(new Answer<Integer>() {
+      @Override
+      public Integer answer(InvocationOnMock invocation) {
+        Instant time = (Instant) invocation.getArguments()[0];
+        return (int)(time.getMillis() / TimeService.HOUR);
+      }
+    });
+    ReflectionTestUtils.setField(marketManagerService, "timeslotRepo", timeslotRepo);
+
+    PowerTacBroker brokerContext = fixtures.createBrokerContext();
+    marketManagerService.initialize(brokerContext);
+
+    double[] mwh = new double[BenchmarkFixtures.RECORD_LENGTH];
+    double[] price = new double[BenchmarkFixtures.RECORD_LENGTH];
+    for (int i = 0; i < mwh.length; ++i) {
+      mwh[i] = 50 + 20 * fixtures.nextDouble();
+      price[i] = -(30 + 20 * fixtures.nextDouble());
+    }
+    marketManagerService.handleMessage(new MarketBootstrapData(mwh, price));
+
+    // game history: trades for all open timeslots, balancing and the
+    // orderbooks of the last cleared auctions
+    currentTimeslot = BenchmarkFixtures.FIRST_GAME_TIMESLOT + gameLength;
+    for (int ts = BenchmarkFixtures.FIRST_GAME_TIMESLOT; ts < currentTimeslot; ++ts) {
+      Instant executed = new Instant(ts * TimeService.HOUR);
+      for (int ahead = 1; ahead <= NUM_OPEN_TIMESLOTS; ++ahead) {
+        double tradePrice = 20 + ahead * 0.5 + 10 * fixtures.nextDouble();
+        marketManagerService.handleMessage(new ClearedTrade(ts + ahead, 1 + 5 * fixtures.nextDouble(), tradePrice, executed));
+        Orderbook orderbook = new Orderbook(ts + ahead, tradePrice, executed);
+        orderbook.addAsk(new OrderbookOrder(-1.0, tradePrice + 2 * fixtures.nextDouble()));
+        marketManagerService.handleMessage(orderbook);
+      }
+      marketManagerService.handleMessage(
+          new BalancingTransaction(fixtures.me, ts, -1000 * fixtures.nextDouble(), -40 * fixtures.nextDouble()));
+    }
+  }
+
+
+  /**
+   * the 2014 DP, once for each open timeslot
+   */
+  @Benchmark
+  public void runDP2014(Blackhole blackhole) {
+    for (int ahead = 1; ahead <= NUM_OPEN_TIMESLOTS; ++ahead) {
+      blackhole.consume(marketManagerService.runDP2014(currentTimeslot + ahead, 10.0, currentTimeslot));
+    }
+  }
+
+
+  /**
+   * the 2013 DP, which solves all open timeslots at once
+   */
+  @Benchmark
+  public void runDP2013() {
+    marketManagerService.runDP2013(10.0, currentTimeslot);
+  }
+}
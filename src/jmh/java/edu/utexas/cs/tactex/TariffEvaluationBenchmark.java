@@ -0,0 +1,160 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu               
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.TariffSpecification;
+
+import edu.utexas.cs.tactex.interfaces.ContextManager;
+import edu.utexas.cs.tactex.interfaces.CostCurvesPredictor;
+import edu.utexas.cs.tactex.interfaces.CustomerPredictionManager;
+import edu.utexas.cs.tactex.interfaces.MarketPredictionManager;
+import edu.utexas.cs.tactex.subscriptionspredictors.ServerBasedTariffEvaluator;
+import edu.utexas.cs.tactex.subscriptionspredictors.ServerCustomerModelAccessor;
+import edu.utexas.cs.tactex.utilityestimation.UtilityEstimatorDefaultForConsumption;
+import edu.utexas.cs.tactex.utils.ChargeEstimatorDefault;
+
+/**
+ * Tariff-market hot paths, run for every candidate tariff in every
+ * tariff publication cycle: charge estimation, utility estimation and
+ * server-based subscription prediction.
+ *
+ * @author urieli
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TariffEvaluationBenchmark {
+
+  @Param({"10", "100"})
+  int numCustomers;
+
+  @Param({"5", "20"})
+  int numTariffs;
+
+  private BenchmarkFixtures fixtures;
+  private ChargeEstimatorDefault chargeEstimator;
+  private UtilityEstimatorDefaultForConsumption utilityEstimator;
+  private CostCurvesPredictor costCurvesPredictor;
+  private MarketPredictionManager marketPredictionManager;
+  private HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2charges;
+  private List<ServerBasedTariffEvaluator> evaluators;
+  private double[][] customerEnergy;
+
+
+  @Setup
+  public void setUp() {
+    fixtures = new BenchmarkFixtures(numCustomers, numTariffs);
+
+    chargeEstimator = new ChargeEstimatorDefault(fixtures.tariffRepoMgrService, fixtures.timeService);
+    customer2charges = chargeEstimator.estimateRelevantTariffCharges(fixtures.specs, fixtures.customer2ShiftedEnergy);
+    customerEnergy = new double[fixtures.customers.size()][];
+    for (int i = 0; i < customerEnergy.length; ++i) {
+      customerEnergy[i] = fixtures.customer2energy.get(fixtures.customers.get(i)).toArray();
+    }
+
+    ContextManager contextManager = mock(ContextManager.class);
+    when(contextManager.getDistributionFee()).thenReturn(-0.01);
+    when(contextManager.getPublicationFee()).thenReturn(-500.0);
+    ConfiguratorFactoryService configuratorFactoryService = mock(ConfiguratorFactoryService.class);
+    when(configuratorFactoryService.isUseCostCurves()).thenReturn(true);
+    utilityEstimator = new UtilityEstimatorDefaultForConsumption(
+        contextManager, mock(CustomerPredictionManager.class), configuratorFactoryService);
+    costCurvesPredictor = BenchmarkFixtures.createFixedCostCurve(-0.05);
+    marketPredictionManager = mock(MarketPredictionManager.class);
+
+    evaluators = new ArrayList<ServerBasedTariffEvaluator>();
+    for (CustomerInfo customer : fixtures.customers) {
+      ServerBasedTariffEvaluator evaluator =
+          new ServerBasedTariffEvaluator(new ServerCustomerModelAccessor(customer), fixtures.tariffRepoMgrService)
+              .withChunkSize(Math.max(1, customer.getPopulation() / 1000))
+              .withRationality(0.9)
+              .withInconvenienceWeight(0.2);
+      evaluator.initializeCostFactors(0.6, 0.4, 0.0, 10000.0);
+      evaluator.initializeInconvenienceFactors(0.2, 0.1, 0.1, 0.2);
+      evaluators.add(evaluator);
+    }
+  }
+
+
+  @Benchmark
+  public HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> estimateRelevantTariffCharges() {
+    return chargeEstimator.estimateRelevantTariffCharges(fixtures.specs, fixtures.customer2ShiftedEnergy);
+  }
+
+
+  @Benchmark
+  public double[][] estimateCharges() {
+    return chargeEstimator.estimateCharges(customerEnergy, fixtures.specs);
+  }
+
+
+  @Benchmark
+  public double estimateUtility() {
+    return utilityEstimator.estimateUtility(
+        fixtures.tariffSubscriptions,
+        fixtures.predictedSubscriptions,
+        customer2charges,
+        fixtures.customer2ShiftedEnergy,
+        fixtures.customer2energy,
+        marketPredictionManager,
+        costCurvesPredictor,
+        BenchmarkFixtures.FIRST_GAME_TIMESLOT);
+  }
+
+
+  @Benchmark
+  public void evaluateTariffs(Blackhole blackhole) {
+    for (int i = 0; i < evaluators.size(); ++i) {
+      CustomerInfo customer = fixtures.customers.get(i);
+      HashMap<TariffSpecification, Integer> subscriptions = new HashMap<TariffSpecification, Integer>();
+      subscriptions.put(fixtures.defaultSpec, customer.getPopulation());
+      blackhole.consume(evaluators.get(i).evaluateTariffs(
+          subscriptions,
+          fixtures.defaultSpec,
+          customer2charges.get(customer),
+          fixtures.competingSpecs,
+          customer,
+          fixtures.mySpec));
+    }
+  }
+}
@@ -24,6 +24,9 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
@@ -75,6 +78,8 @@ import edu.utexas.cs.tactex.tariffoptimization.OptimizerWrapperApacheBOBYQA;
 import edu.utexas.cs.tactex.tariffoptimization.OptimizerWrapperApachePowell;
 import edu.utexas.cs.tactex.tariffoptimization.OptimizerWrapperCoordinateAscent;
 import edu.utexas.cs.tactex.tariffoptimization.OptimizerWrapperGradientAscent;
+import edu.utexas.cs.tactex.tariffoptimization.OptimizerWrapperLBFGS;
+import edu.utexas.cs.tactex.tariffoptimization.ParallelPointEvaluator;
 import edu.utexas.cs.tactex.tariffoptimization.ProductionTariffRevokeSuggestionMaker;
 import edu.utexas.cs.tactex.tariffoptimization.ProductionTariffSuggestionMakerFixedRates;
 import edu.utexas.cs.tactex.tariffoptimization.TariffOptimizerBinaryOneShot;
@@ -331,12 +336,24 @@ implements Initializable
   //
   // (for controlled testing) whether to use our utility architrecture, or just a baseline undercutting tariff strategy
   private boolean useUtilityArch    = true; // true;
+  //
+  // number of threads estimating the utilities of candidate tariffs (1 => sequential)
+  private int     utilityThreads    = Runtime.getRuntime().availableProcessors();
+  //
+  // number of threads evaluating independent points of the TOU tariff optimizers (1 => sequential)
+  private int     optimizerThreads  = Runtime.getRuntime().availableProcessors();
   //////////////////////////////////////////////
 
 
 
   private boolean shouldRandomizeSpecs = false; //true;
 
+  // evaluates independent points for the TOU optimizers; one pool for all
+  private ParallelPointEvaluator optimizerPointEvaluator;
+
+  // estimates candidates' utilities concurrently (null => sequential)
+  private ExecutorService utilityExecutor;
+
 
     
   public ConfiguratorFactoryService() {
@@ -456,6 +473,12 @@ implements Initializable
           if (param.equals("useutilityarch")) {
             useUtilityArch = Boolean.parseBoolean(value);		    	
           }
+          if (param.equals("utilitythreads")) {
+            utilityThreads = Integer.parseInt(value);
+          }
+          if (param.equals("optimizerthreads")) {
+            optimizerThreads = Integer.parseInt(value);
+          }
         }
         bufRead.close();
       } catch (FileNotFoundException e) {
@@ -492,6 +515,8 @@ implements Initializable
     //System.out.println("usedp14: " + useDP14);
     System.out.println("useinitialtariffs: " + useInitialTariffs);
     System.out.println("useutilityarch: " + useUtilityArch);
+    System.out.println("utilitythreads: " + utilityThreads);
+    System.out.println("optimizerthreads: " + optimizerThreads);
     
     log.info("coopmaxbrkrs: " + coopMaxBrkrs);
     log.info("useopppred: " + useOppPred);
@@ -517,6 +542,8 @@ implements Initializable
     //log.info("usedp14: " + useDP14);
     log.info("useinitialtariffs: " + useInitialTariffs);
     log.info("useutilityarch: " + useUtilityArch);
+    log.info("utilitythreads: " + utilityThreads);
+    log.info("optimizerthreads: " + optimizerThreads);
 
     // Here we allocate polymorphic types, configure the broker
     // parameters. 
@@ -533,7 +560,7 @@ implements Initializable
     TariffSuggestionMaker consumptionTariffRevokeSuggestionMaker = new ConsumptionTariffRevokeSuggestionMaker();
     TariffSuggestionMaker productionTariffRevokeSuggestionMaker = new ProductionTariffRevokeSuggestionMaker();
     
-    chargeEstimator = new ChargeEstimatorDefault(tariffRepoMgr);
+    chargeEstimator = new ChargeEstimatorDefault(tariffRepoMgr, timeService);
 
     
     // consumption shifting predictor
@@ -551,6 +578,18 @@ implements Initializable
 
     WithdrawFeesOptimizer withdrawFeesOptimizer = new WithdrawFeesOptimizerHalfAvgCharge();
 
+    // one pool for the optimizers, replacing the previous game's
+    if (null != optimizerPointEvaluator) {
+      optimizerPointEvaluator.shutdown();
+    }
+    optimizerPointEvaluator = new ParallelPointEvaluator(optimizerThreads);
+
+    // same for the utility estimator's pool
+    if (null != utilityExecutor) {
+      utilityExecutor.shutdown();
+    }
+    utilityExecutor = createUtilityExecutor(utilityThreads);
+
     
     /////////////////////////////////////////////////////////////////////////
     // 
@@ -576,10 +615,13 @@ implements Initializable
     TariffOptimizer tariffOptimizerPowell = new TariffOptimizerIncremental(withdrawFeesOptimizer, tariffRepoMgr, chargeEstimator, shiftingPredictor, tariffOptimizerBinaryOneShot, new OptimizerWrapperApachePowell(), utilityEstimator, marketPredictionManager, this);
     // Coordinate-Ascent
     // =============================
-    TariffOptimizer tariffOptimizerCoordinateAscent = new TariffOptimizerIncremental(withdrawFeesOptimizer, tariffRepoMgr, chargeEstimator, shiftingPredictor, tariffOptimizerBinaryOneShot, new OptimizerWrapperCoordinateAscent(), utilityEstimator, marketPredictionManager, this);
+    TariffOptimizer tariffOptimizerCoordinateAscent = new TariffOptimizerIncremental(withdrawFeesOptimizer, tariffRepoMgr, chargeEstimator, shiftingPredictor, tariffOptimizerBinaryOneShot, new OptimizerWrapperCoordinateAscent(optimizerPointEvaluator), utilityEstimator, marketPredictionManager, this);
     // Gradient-Ascent
     // =============================
-    TariffOptimizer tariffOptimizerGradientAscent = new TariffOptimizerIncremental(withdrawFeesOptimizer, tariffRepoMgr, chargeEstimator, shiftingPredictor, tariffOptimizerBinaryOneShot, new OptimizerWrapperGradientAscent() , utilityEstimator, marketPredictionManager, this);
+    TariffOptimizer tariffOptimizerGradientAscent = new TariffOptimizerIncremental(withdrawFeesOptimizer, tariffRepoMgr, chargeEstimator, shiftingPredictor, tariffOptimizerBinaryOneShot, new OptimizerWrapperGradientAscent(optimizerPointEvaluator), utilityEstimator, marketPredictionManager, this);
+    // L-BFGS (on estimated gradients)
+    // =============================
+    TariffOptimizer tariffOptimizerLBFGS = new TariffOptimizerIncremental(withdrawFeesOptimizer, tariffRepoMgr, chargeEstimator, shiftingPredictor, tariffOptimizerBinaryOneShot, new OptimizerWrapperLBFGS(), utilityEstimator, marketPredictionManager, this);
     // Composites
     // ==========
     TariffOptimizerFirstTimeDifferent tariffOptimizerFirstTimeDifferentOneShotAndBinaryOneShot = new TariffOptimizerFirstTimeDifferent(tariffOptimizerOneShot, tariffOptimizerBinaryOneShot);
@@ -595,6 +637,7 @@ implements Initializable
     //TariffOptimizer tariffOptimizer = tariffOptimizerPowell;
     //TariffOptimizer tariffOptimizer = tariffOptimizerGradientAscent;
     //TariffOptimizer tariffOptimizer = tariffOptimizerGradientAscent;
+    //TariffOptimizer tariffOptimizer = tariffOptimizerLBFGS;
     // TariffOptimizer tariffOptimizer = tariffOptimizerFirstTimeDifferentOneShotAndBinaryOneShot;
     // --- This is TOU's tariff optimizer (from AAAI'16)
     // TariffOptimizer tariffOptimizer = tariffOptimizerFirstTimeDifferentOneShotAndGradientAscent;
@@ -887,8 +930,50 @@ implements Initializable
   public boolean isUseUtilityArch() {
     return useUtilityArch;
   } 
+  
+  public int getUtilityThreads() {
+    return utilityThreads;
+  } 
+  
+  public ExecutorService getUtilityExecutor() {
+    return utilityExecutor;
+  } 
+  
+  public int getOptimizerThreads() {
+    return optimizerThreads;
+  } 
 
   public boolean randomizeSpecs() {
     return shouldRandomizeSpecs;
   }
+
+  /**
+   * Stops the optimizers' and utility estimator's worker threads, when
+   * the broker stops.
+   */
+  public void shutdown() {
+    if (null != optimizerPointEvaluator) {
+      optimizerPointEvaluator.shutdown();
+    }
+    if (null != utilityExecutor) {
+      utilityExecutor.shutdown();
+      utilityExecutor = null;
+    }
+  }
+
+  private static ExecutorService createUtilityExecutor(int numThreads) {
+    if (numThreads <= 1) {
+      return null;
+    }
+    return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      private int count = 0;
+      @Override
+      public synchronized Thread newThread (Runnable r)
+      {
+        Thread thread = new Thread(r, "utility-" + (count++));
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
 }
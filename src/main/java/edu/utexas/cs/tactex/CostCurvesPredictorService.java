@@ -43,15 +43,12 @@ import org.springframework.stereotype.Service;
 
 import edu.utexas.cs.tactex.interfaces.Activatable;
 import edu.utexas.cs.tactex.interfaces.BrokerContext;
+import edu.utexas.cs.tactex.interfaces.CostCurvesDataProcessor;
 import edu.utexas.cs.tactex.interfaces.CostCurvesPredictor;
 import edu.utexas.cs.tactex.interfaces.Initializable;
-import edu.utexas.cs.tactex.utils.RegressionUtils;
+import edu.utexas.cs.tactex.utils.CompiledLinRegModel;
+import edu.utexas.cs.tactex.utils.SlidingWindowLinReg;
 import edu.utexas.cs.tactex.utils.BrokerUtils.PriceMwhPair;
-import edu.utexas.cs.tactex.utils.RegressionUtils.WekaLinRegData;
-import edu.utexas.cs.tactex.utils.RegressionUtils.WekaXYLambdas;
-import edu.utexas.cs.tactex.utils.RegressionUtils.XYForRegression;
-import weka.core.Instance;
-import weka.core.Instances;
 
 /**
 * Handles cost curves estimation
@@ -78,7 +75,11 @@ implements CostCurvesPredictor, Initializable, Activatable
   // local state
 
   // should start as null
-  private WekaLinRegData wekaData;
+  private CompiledLinRegModel costCurveModel;
+  private int costCurveModelTimeslot;
+
+  // per-thread scratch array for the features of a single prediction
+  private final ThreadLocal<double[]> featureBuffers = new ThreadLocal<double[]>();
 
   // constants, for polynomial regression
   
@@ -107,6 +108,10 @@ implements CostCurvesPredictor, Initializable, Activatable
   private HashMap<Integer, Double> ts2wholesaleBasedCostPrediction;
   private HashMap<Integer, Double> ts2consumptionBasedCostPrediction;
   private HashMap<Integer, Double> ts2actualCost;
+  // regression state, updated incrementally as timeslots enter and 
+  // leave the MEMORY_LENGTH window
+  private SlidingWindowLinReg costCurveRegression;
+  private boolean bootExamplesAdded;
   
 
   public CostCurvesPredictorService ()
@@ -136,6 +141,8 @@ implements CostCurvesPredictor, Initializable, Activatable
     this.ts2wholesaleBasedCostPrediction = new HashMap<Integer, Double>();
     this.ts2consumptionBasedCostPrediction = new HashMap<Integer, Double>();
     this.ts2actualCost = new HashMap<Integer, Double>();
+    this.costCurveRegression = new SlidingWindowLinReg(MEMORY_LENGTH);
+    this.bootExamplesAdded = false;
   }
 
   /**
@@ -148,7 +155,7 @@ implements CostCurvesPredictor, Initializable, Activatable
 
       log.info("activate, ts " + currentTimeslot);
 
-      // use most updated wekaData to get predicted vs actual
+      // use most updated model to get predicted vs actual
       // for the recent timeslot
 
       int predictionTimeslot = currentTimeslot - 1;
@@ -157,16 +164,16 @@ implements CostCurvesPredictor, Initializable, Activatable
       Double myConsMwh = ts2mycons.get(predictionTimeslot);
       Double totalConsMwh = ts2totalcons.get(predictionTimeslot);
 
-      if (wekaData != null && mtx != null && trades != null && myConsMwh != null && totalConsMwh != null) {
+      if (costCurveModel != null && mtx != null && trades != null && myConsMwh != null && totalConsMwh != null) {
         double myWholesaleMwh = computeTotalMwh(mtx);
         double totalTradeMwh = computeTotalMwh(trades); 
         // Needs improvement since 
         // 1) trade is not 'total energy baught' 
         // 2) assumes that using <my-mtx, trades>  as x-before-features
         double competitorMwh = totalTradeMwh - myWholesaleMwh; 
-        double wholesaleBasedPrediction = makeMwhPrediction(wekaData, predictionTimeslot, myWholesaleMwh, competitorMwh);
+        double wholesaleBasedPrediction = makeMwhPrediction(costCurveModel, myWholesaleMwh, competitorMwh);
         double competitorConsumptionMwh = totalConsMwh - myConsMwh;
-        double consumptionBasedPrediction = makeMwhPrediction(wekaData, predictionTimeslot, myConsMwh, competitorConsumptionMwh);
+        double consumptionBasedPrediction = makeMwhPrediction(costCurveModel, myConsMwh, competitorConsumptionMwh);
         double actual = computeAvgPrice(mtx);
         log.info("cost-curve wholesaleBasedPrediction: " + wholesaleBasedPrediction + " actual: " + actual);
         log.info("cost-curve consumptionBasedPrediction: " + consumptionBasedPrediction + " actual: " + actual);
@@ -259,12 +266,12 @@ implements CostCurvesPredictor, Initializable, Activatable
   
   @Override
   public double predictUnitCostMwh(int currentTimeslot, int futureTimeslot, double myMwh, double competitorMwh) {
-    WekaLinRegData wekaData = retrieveOrCreateWekaData(currentTimeslot);
-    if (null == wekaData) {
-      log.error("Failed to get wekaData, falling back to avg data from array");
+    CompiledLinRegModel model = retrieveOrCreateCostCurveModel(currentTimeslot);
+    if (null == model) {
+      log.error("Failed to get cost-curve model, falling back to avg data from array");
       return getAvgBootstrapPricePerMwh(futureTimeslot);
     }
-    return makeMwhPrediction(wekaData, futureTimeslot, myMwh, competitorMwh); 
+    return makeMwhPrediction(model, myMwh, competitorMwh); 
   }
 
 
@@ -278,6 +285,25 @@ implements CostCurvesPredictor, Initializable, Activatable
   }
 
 
+  @Override
+  public void predictUnitCostKwh(int currentTimeslot, int firstFutureTimeslot,
+      double[] myKwh, double[] competitorKwh, double[] unitCostsKwh) {
+    // the model is retrieved once for the whole batch
+    CompiledLinRegModel model = retrieveOrCreateCostCurveModel(currentTimeslot);
+    if (null == model) {
+      log.error("Failed to get cost-curve model, falling back to avg data from array");
+    }
+    for (int i = 0; i < unitCostsKwh.length; ++i) {
+      int futureTimeslot = firstFutureTimeslot + i;
+      double unitCostPerMwh = 
+          null == model ? 
+            getAvgBootstrapPricePerMwh(futureTimeslot) :
+            makeMwhPrediction(model, myKwh[i] / 1000.0, competitorKwh[i] / 1000.0);
+      unitCostsKwh[i] = unitCostPerMwh / 1000.0;
+    }
+  }
+
+
   @Override
   public double getFudgeFactorKwh(int currentTimeslot) {
     // compute avg correction
@@ -384,53 +410,77 @@ implements CostCurvesPredictor, Initializable, Activatable
   }
 
 
-  private double makeMwhPrediction(WekaLinRegData wekaData, int futureTimeslot,
+  private double makeMwhPrediction(CompiledLinRegModel model,
       double myMwh, double competitorMwh) {
-    // predict
-    ArrayList<Double> features = configuratorFactoryService.getCostCurvesDataProcessor().extractFeatures(myMwh, competitorMwh);
-    Instance inst = RegressionUtils.createInstance(features);
-    ArrayList<Instance> instArr = new ArrayList<Instance>();
-    instArr.add(inst);
-    ArrayList<String> attrNames = configuratorFactoryService.getCostCurvesDataProcessor().getFeatureNames();
-    Instances x0_features = RegressionUtils.createInstances(instArr, attrNames);
-    
-    Instances x0_featuresNorm = RegressionUtils.featureNormalize(x0_features, wekaData.getStandardize());
-    Instances x0_final = RegressionUtils.addYforWeka(x0_featuresNorm); // no yvals, missing values 
-    double prediction = 0;
-    try {
-      prediction = wekaData.getLinearRegression().classifyInstance(x0_final.instance(0));
-    } catch (Exception e) {
-      log.error("passed CV but cannot predict on new point. falling back to array");
-      log.error("Exception is", e);
-      return getAvgBootstrapPricePerMwh(futureTimeslot);
+    double[] features = getFeatureBuffer(model.getNumFeatures());
+    configuratorFactoryService.getCostCurvesDataProcessor().extractFeatures(myMwh, competitorMwh, features);
+    return model.predict(features);
+  }
+
+
+  private double[] getFeatureBuffer(int numFeatures) {
+    double[] features = featureBuffers.get();
+    if (null == features || features.length != numFeatures) {
+      features = new double[numFeatures];
+      featureBuffers.set(features);
     }
-    return prediction;
+    return features;
   }
 
 
-  private WekaLinRegData retrieveOrCreateWekaData(int currentTimeslot) {
-    if (null == wekaData || wekaData.getTimeslot() != currentTimeslot) {
+  /**
+   * Refits (at most once per timeslot) from the sliding-window 
+   * statistics, which are first brought up to date. 
+   * Synchronized with the message handlers that fill the containers.
+   */
+  private synchronized CompiledLinRegModel retrieveOrCreateCostCurveModel(int currentTimeslot) {
+    if (null == costCurveModel || costCurveModelTimeslot != currentTimeslot) {
       // remove old examples from training set
-      //forgetData(currentTimeslot);
-      
-      WekaXYLambdas xylambdas = configuratorFactoryService.getCostCurvesDataProcessor().
-          createWekaRegressionInput(
-            currentTimeslot,
-            ts2boot,
-            ts2mtx,
-            ts2trade,
-            ts2mycons,
-            ts2totalcons
-          );
+      forgetData(currentTimeslot);
       
       try {
-        wekaData = RegressionUtils.createWekaLinRegData(currentTimeslot, xylambdas.getX(), xylambdas.getY(), xylambdas.getLambdas());
+        updateCostCurveRegression(currentTimeslot);
+        costCurveModel = costCurveRegression.fit(configuratorFactoryService.getCostCurvesDataProcessor().getCandidateLambdas());
       } catch (Exception e) {
-        log.error("Exception while trying to get Weka Data ", e);
-        wekaData = null;
+        log.error("Exception while trying to fit cost-curve model ", e);
+        costCurveModel = null;
+      }
+      costCurveModelTimeslot = currentTimeslot;
+    }
+    return costCurveModel; 
+  }
+
+
+  /**
+   * Bootstrap examples are added once and never leave the regression. 
+   * Game examples are added when their timeslot is over (in the coming 
+   * 24 timeslots there is only partial trade data since trading is still
+   * ongoing), and leave after MEMORY_LENGTH timeslots.
+   */
+  private void updateCostCurveRegression(int currentTimeslot) {
+    CostCurvesDataProcessor processor = configuratorFactoryService.getCostCurvesDataProcessor();
+    double[] features = new double[processor.getFeatureNames().size()];
+
+    if (!bootExamplesAdded && !ts2boot.isEmpty()) {
+      for (ArrayList<PriceMwhPair> transactions : ts2boot.values()) {
+        Double y = processor.extractBootExample(transactions, features);
+        if (null != y) {
+          costCurveRegression.addPermanentExample(features, y);
+        }
+      }
+      bootExamplesAdded = true;
+    }
+
+    int oldestTimeslot = currentTimeslot - MEMORY_LENGTH;
+    costCurveRegression.forgetBefore(oldestTimeslot);
+    for (int timeslot = oldestTimeslot; timeslot < currentTimeslot; ++timeslot) {
+      if (!costCurveRegression.containsExample(timeslot)) {
+        Double y = processor.extractGameExample(timeslot, ts2mtx, ts2trade, ts2mycons, ts2totalcons, features);
+        if (null != y) {
+          costCurveRegression.addExample(timeslot, features, y);
+        }
       }
     }
-    return wekaData; 
   }
 
 
@@ -439,11 +489,15 @@ implements CostCurvesPredictor, Initializable, Activatable
    * that collects data for regression should be here
    */
   private void forgetData(int currentTimeslot) {
-    forgetDataFromContainer(currentTimeslot, ts2boot); // comment out when use boot-curve
+    //forgetDataFromContainer(currentTimeslot, ts2boot); // comment out when use boot-curve
     forgetDataFromContainer(currentTimeslot, ts2mtx);
     forgetDataFromContainer(currentTimeslot, ts2trade);
     forgetDataFromContainer(currentTimeslot, ts2mycons);
     forgetDataFromContainer(currentTimeslot, ts2totalcons);
+    // predicted vs. actual tracking
+    forgetDataFromContainer(currentTimeslot, ts2wholesaleBasedCostPrediction);
+    forgetDataFromContainer(currentTimeslot, ts2consumptionBasedCostPrediction);
+    forgetDataFromContainer(currentTimeslot, ts2actualCost);
   }
 
 
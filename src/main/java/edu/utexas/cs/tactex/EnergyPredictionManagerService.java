@@ -202,6 +202,21 @@ implements Initializable, Activatable, EnergyPredictionManager
     return -populationEnergy; // '-' since need it from broker's perspective 
   }
 
+  @Override
+  public void addShiftedUsageFromBrokerPerspective(TariffSpecification spec, CustomerInfo cust,
+      int subscribedPopulation, int firstTargetTimeslot, int currentTimeslot, 
+      HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> tariffSubscriptions,
+      double[] result) {
+    ArrayRealVector shiftedEnergyRecord = getShiftedEnergyRecord(currentTimeslot, spec, cust, tariffSubscriptions);
+    int    startTimeslot      = currentTimeslot + 1;
+    int    firstRecordIndex   = firstTargetTimeslot - startTimeslot;
+    for (int i = 0; i < result.length; ++i) {
+      double singleMemberEnergy = shiftedEnergyRecord.getEntry(firstRecordIndex + i);
+      double populationEnergy   = singleMemberEnergy * subscribedPopulation;
+      result[i] += -populationEnergy; // '-' since need it from broker's perspective 
+    }
+  }
+
   /**
    * get (compute if missing) energy prediction
    * for a customer under a certain tariff, starting
@@ -38,11 +38,8 @@ package edu.utexas.cs.tactex;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.Random;
-import java.util.SortedSet;
 import java.util.TreeMap;
 
 import org.apache.commons.math3.linear.ArrayRealVector;
@@ -57,7 +54,6 @@ import org.powertac.common.MarketPosition;
 import org.powertac.common.MarketTransaction;
 import org.powertac.common.Order;
 import org.powertac.common.Orderbook;
-import org.powertac.common.OrderbookOrder;
 import org.powertac.common.TariffTransaction;
 import org.powertac.common.Timeslot;
 import org.powertac.common.WeatherForecast;
@@ -74,7 +70,10 @@ import edu.utexas.cs.tactex.interfaces.BrokerContext;
 import edu.utexas.cs.tactex.interfaces.Initializable;
 import edu.utexas.cs.tactex.interfaces.MarketManager;
 import edu.utexas.cs.tactex.interfaces.PortfolioManager;
-import edu.utexas.cs.tactex.utils.BrokerUtils;
+import edu.utexas.cs.tactex.interfaces.QueuedMessageHandler;
+import edu.utexas.cs.tactex.utils.BidGroup;
+import edu.utexas.cs.tactex.utils.IncrementalDPEngine;
+import edu.utexas.cs.tactex.utils.WholesaleHistoryStore;
 import edu.utexas.cs.tactex.utils.BrokerUtils.PriceMwhPair;
 
 /**
@@ -83,7 +82,7 @@ import edu.utexas.cs.tactex.utils.BrokerUtils.PriceMwhPair;
  */
 @Service
 public class MarketManagerService 
-implements MarketManager, Initializable, Activatable
+implements MarketManager, Initializable, Activatable, QueuedMessageHandler
 {
   static private Logger log = Logger.getLogger(MarketManagerService.class);
   
@@ -127,19 +126,20 @@ implements MarketManager, Initializable, Activatable
   private double[] marketMWh;
   private double[] marketPayments;
 
-  // record usage predictions: diff \in [1,24] => (future-ts => usage)
-  private double[][] predictedUsage;
-  private double[] actualUsage;
-
-  private HashMap<Integer, Orderbook> orderbooks;
+  // usage predictions (diff \in [1,24]), actual usage, orderbooks and 
+  // cleared trades of recent timeslots
+  private WholesaleHistoryStore wholesaleHistory;
 
   private double maxTradePrice;
   private double minTradePrice;
 
-  private TreeMap<Integer,ArrayList<PriceMwhPair>> supportingBidGroups;
+  private TreeMap<Integer,BidGroup> supportingBidGroups;
 
   private DPCache dpCache2013;
 
+  // solves DP stages incrementally, shared between DP sweeps
+  private IncrementalDPEngine dpEngine;
+
   private ArrayList<ChargeMwhPair> shortBalanceTransactionsData;
   private ArrayList<ChargeMwhPair> surplusBalanceTransactionsData;
 
@@ -174,13 +174,13 @@ implements MarketManager, Initializable, Activatable
     marketMWh = new double[configuratorFactoryService.CONSTANTS.USAGE_RECORD_LENGTH()];
     Arrays.fill(marketMWh, 1e-9); // to avoid 0-division
     marketPayments = new double[configuratorFactoryService.CONSTANTS.USAGE_RECORD_LENGTH()];
-    predictedUsage = new double[24][2500];
-    actualUsage = new double[2500];
-    orderbooks = new HashMap<Integer, Orderbook>();
+    wholesaleHistory = new WholesaleHistoryStore(
+        configuratorFactoryService.CONSTANTS.USAGE_RECORD_LENGTH(), 24);
     maxTradePrice = -Double.MAX_VALUE;
     minTradePrice = Double.MAX_VALUE;
-    supportingBidGroups = new TreeMap<Integer, ArrayList<PriceMwhPair>>();
+    supportingBidGroups = new TreeMap<Integer, BidGroup>();
     dpCache2013 = new DPCache();
+    dpEngine = new IncrementalDPEngine();
     shortBalanceTransactionsData = new ArrayList<ChargeMwhPair>();
     surplusBalanceTransactionsData = new ArrayList<ChargeMwhPair>();
   }
@@ -240,6 +240,7 @@ implements MarketManager, Initializable, Activatable
     }
     updateLowHighTradePrices(price);
     recordTradeResult(tradeCreationTimeslot, timeslot, price, mwh);    
+    wholesaleHistory.addClearedTrade(timeslot, price, mwh);
   }
 
 
@@ -321,7 +322,8 @@ implements MarketManager, Initializable, Activatable
    */
   public synchronized void handleMessage (Orderbook orderbook)
   {
-    orderbooks.put(orderbook.getTimeslotIndex(), orderbook);
+    wholesaleHistory.recordOrderbook(orderbook.getTimeslotIndex(), 
+        orderbook.getAsks(), orderbook.getBids());
   }
   
 
@@ -351,14 +353,27 @@ implements MarketManager, Initializable, Activatable
       
       double kwh = ttx.getKWh();
       int postedTimeslotIndex = ttx.getPostedTimeslotIndex();
-      double oldKwh = actualUsage[postedTimeslotIndex];        
-      actualUsage[postedTimeslotIndex] = oldKwh + kwh;        
+      wholesaleHistory.addActualUsage(postedTimeslotIndex, kwh);
 
     }
   }
 
 
   // ----------- per-timeslot activation ---------------
+
+  /**
+   * Nothing to publish. With queued ingestion, market records are written
+   * only while the queued messages are applied, so readers (e.g. of the
+   * mean market prices) see them unchanged during activation. In the
+   * default immediate mode, messages are handled (under this service's
+   * lock) while services activate, so such readers may see records
+   * change during activation.
+   */
+  @Override
+  public void messagesApplied (int timeslot)
+  {
+  }
+
   
   /* (non-Javadoc)
    * @see edu.utexas.cs.tactex.MarketManager#activate()
@@ -386,10 +401,11 @@ implements MarketManager, Initializable, Activatable
 
         // this code fragment is just for debugging
         int prevTimeslot = currentTimeslotIndex - 1;    
-        String errors = " ee " + prevTimeslot + " a: " + String.format("%.2f", actualUsage[prevTimeslot]) + " p: ";
-        for (double[] p : predictedUsage) {  
-          errors += String.format("%.2f", p[prevTimeslot]) + " ";
+        String errors = " ee " + prevTimeslot + " a: " + String.format("%.2f", wholesaleHistory.getActualUsage(prevTimeslot)) + " p: ";
+        for (int i = 0; i < wholesaleHistory.getNumPredictionIndices(); ++i) {  
+          errors += String.format("%.2f", wholesaleHistory.getPredictedUsage(prevTimeslot, i)) + " ";
         }
+        errors += "c: " + String.format("%.2f", wholesaleHistory.getClearedMwh(prevTimeslot));
         log.info(errors);
 
       } catch (Exception e) {
@@ -400,6 +416,24 @@ implements MarketManager, Initializable, Activatable
       double neededKWh = 0.0;
       TreeMap<Integer, Double> dayAheadPredictions = new TreeMap<Integer, Double>();
 
+      // shifted usage predictions for all enabled timeslots, in one pass
+      // over the portfolio 
+      int firstEnabled = Integer.MAX_VALUE;
+      int lastEnabled = Integer.MIN_VALUE;
+      for (Timeslot timeslot : enabledTimeslots) {
+        firstEnabled = Math.min(firstEnabled, timeslot.getSerialNumber());
+        lastEnabled = Math.max(lastEnabled, timeslot.getSerialNumber());
+      }
+      double[] shiftedUsage = null;
+      if (configuratorFactoryService.isUseShiftPredMkt() && ! enabledTimeslots.isEmpty()) {
+        try {
+          shiftedUsage = portfolioManager.collectShiftedUsage(firstEnabled, lastEnabled - firstEnabled + 1, currentTimeslotIndex);
+        } catch (Exception e) {
+          // predicted per timeslot below
+          log.error("caught exception from collectShiftedUsage(), predicting per timeslot: ", e);
+        }
+      }
+
 
       //+++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
       //+++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
@@ -421,7 +455,12 @@ implements MarketManager, Initializable, Activatable
           int targetTimeslot = timeslot.getSerialNumber();
           int index = targetTimeslot % configuratorFactoryService.CONSTANTS.USAGE_RECORD_LENGTH();
           if (configuratorFactoryService.isUseShiftPredMkt()) {
-            neededKWh = portfolioManager.collectShiftedUsage(targetTimeslot, currentTimeslotIndex);
+            if (null != shiftedUsage) {
+              neededKWh = shiftedUsage[targetTimeslot - firstEnabled];
+            }
+            else {
+              neededKWh = collectShiftedUsageOrUsage(targetTimeslot, index, currentTimeslotIndex);
+            }
           }
           else {
             neededKWh = portfolioManager.collectUsage(index);
@@ -457,6 +496,21 @@ implements MarketManager, Initializable, Activatable
 
 
   // ----------------- data access and other subroutines -------------------
+  /**
+   * Fallback when the batched shifted-usage prediction failed: the
+   * timeslot's shifted usage, or its unshifted usage if that fails too
+   */
+  private double collectShiftedUsageOrUsage (int targetTimeslot, int index, int currentTimeslotIndex)
+  {
+    try {
+      return portfolioManager.collectShiftedUsage(targetTimeslot, currentTimeslotIndex);
+    } catch (Exception e) {
+      log.error("caught exception from collectShiftedUsage(), using unshifted usage: ", e);
+      return portfolioManager.collectUsage(index);
+    }
+  }
+
+
   /**
    * Returns the mean price observed in the market, per MWH
    */
@@ -525,28 +579,15 @@ implements MarketManager, Initializable, Activatable
    * @param mwh
    */
   private void addTradeToGroup(int index, double bidPrice, double mwh) {
-    ArrayList<PriceMwhPair> bidGroup = getBidGroup(index);
-    PriceMwhPair trade = new PriceMwhPair(bidPrice, mwh);
-    // if trade exists in group, merge
-    boolean exists = false;
-    for (PriceMwhPair item : bidGroup) {
-      if (item.getPricePerMwh() == trade.getPricePerMwh()) {
-        item.addMwh(trade.getMwh());
-        exists = true;
-        break;
-      }
-    } 
-    // otherwise, add sorted
-    if ( ! exists ) {
-      BrokerUtils.insertToSortedArrayList(bidGroup, trade);
-    }
+    // merged with an existing trade of the same price, otherwise added sorted
+    getBidGroup(index).addTrade(bidPrice, mwh);
   }
 
 
-  private ArrayList<PriceMwhPair> getBidGroup(int bidGroupIndex) {
-    ArrayList<PriceMwhPair> group = supportingBidGroups.get(bidGroupIndex);
+  private BidGroup getBidGroup(int bidGroupIndex) {
+    BidGroup group = supportingBidGroups.get(bidGroupIndex);
     if (null == group) {
-      group = new ArrayList<PriceMwhPair>();
+      group = new BidGroup();
       supportingBidGroups.put(bidGroupIndex, group);
     }
     return group;
@@ -626,7 +667,7 @@ implements MarketManager, Initializable, Activatable
   private void recordTotalUsagePrediction(double neededKWh, int futureTimeslot, int currentTimeslotIndex) {
     int predictionsIndex = indexToPredictionsArray(futureTimeslot, currentTimeslotIndex);
     log.info("trying [" + predictionsIndex + "][" + futureTimeslot + "]");
-    predictedUsage[predictionsIndex][futureTimeslot] = neededKWh;
+    wholesaleHistory.recordPredictedUsage(futureTimeslot, predictionsIndex, neededKWh);
   }
 
 
@@ -900,8 +941,8 @@ implements MarketManager, Initializable, Activatable
       log.info("new order for " + o.getMWh() + " at " + o.getLimitPrice() +
                " in targetTimeslot " + o.getTimeslotIndex());
       lastOrder.put(targetTimeslot, o);
-      brokerContext.sendMessage(o);
     }
+    brokerContext.sendMessages(orders);
   }
 
 
@@ -921,14 +962,10 @@ implements MarketManager, Initializable, Activatable
 
     
     boolean isBuying = neededMwh > 0.0;
-    SortedSet<OrderbookOrder> 
-        outstandingOrders = 
-            getOutstandingOrdersIfExist(timeslot, isBuying);
-    // TODO temporary code, as long as they could be null
-    // later they should be of length 0
+    // TODO temporary code, as long as there could be no orderbook
     double upperlimit = 
-      outstandingOrders != null ? 
-        bestPossiblePrice(neededMwh, outstandingOrders)
+      wholesaleHistory.hasOrderbook(timeslot) ? 
+        bestPossiblePrice(neededMwh, timeslot, isBuying)
         :
         orderIndependentUpperLimit(isBuying);    
 
@@ -938,24 +975,6 @@ implements MarketManager, Initializable, Activatable
   }
 
 
-  /**
-   * @param timeslot
-   * @param isBuying
-   * @return
-   */
-  private SortedSet<OrderbookOrder> getOutstandingOrdersIfExist(int timeslot,
-      boolean isBuying) {
-    Orderbook o = orderbooks.get(timeslot);
-    if ( o == null) {
-      return null;    
-    }
-    else {   
-      // if buying, we want other asks, if selling we want other bids
-      return isBuying ? o.getAsks() : o.getBids();  
-    }    
-  }
-
-
   /**
    * Make sure we have a large enough sample of historic 
    * clearing prices, and balancingTx for each future auction
@@ -1024,13 +1043,7 @@ implements MarketManager, Initializable, Activatable
     // support bids, and then the next lines would have to be revised
     // if there are outstanding asks, we will ignore all lower bid candidates
     //int targetTimeslot = currentTimeslot + index;
-    SortedSet<OrderbookOrder> 
-        outstandingOrders = 
-            getOutstandingOrdersIfExist(targetTimeslot, isBuying); 
-    double lowestAskPrice = 
-        outstandingOrders != null ?
-        lowestAsk(outstandingOrders) 
-        : 0; 
+    double lowestAskPrice = lowestAsk(targetTimeslot, isBuying); 
 
     // step-0 value: any amount that was not purchased is balanced
     double valueOfStep0 = meanOfBalancingPrices(shortBalanceTransactionsData);
@@ -1042,42 +1055,14 @@ implements MarketManager, Initializable, Activatable
     // DP back sweep
     //for (int index = 1; index <= supportingBidGroups.size(); ++index) {
     for (int index = 1; index <= currentMDPState; ++index) {
-      ArrayList<PriceMwhPair> currentGroup = getBidGroup(index);
-      double totalEnergyInCurrentGroup = sumTotalEnergy(currentGroup);
-
-      // scan action values and choose the best
-
-      // seed with no-op (bid 0) => value of next state
+      // scan action values and choose the best; stages that were already
+      // solved with the same inputs (e.g. for another target timeslot) are
+      // reused by the engine
       int indexOfNextState = index - 1;
-      double bestActionValue = stateValues.get(indexOfNextState);
-      double bestPrice = -0.0;
-      double acumulatedEnergy = 0;
-      for (PriceMwhPair c : currentGroup) {
-        if (c.getPricePerMwh() < lowestAskPrice) {
-          // skip
-          totalEnergyInCurrentGroup -= c.getMwh();// <= Is this a bayesian monty-hall? if yes - should improve!  
-        }
-        else {
-          //// log.info(" dp i=" + i);
-          acumulatedEnergy += c.getMwh();
-          double Psuccess = acumulatedEnergy / totalEnergyInCurrentGroup;
-          double Pfail = 1 - Psuccess;
-          double bidPrice = -c.getPricePerMwh(); // trades are positive, bids are negative
-          //// log.info(" dp action=" + bidPrice + " Psuccess=" + Psuccess);
-          double nextStateValue = stateValues.get(indexOfNextState);
-          double actionValue = Psuccess * bidPrice + Pfail * nextStateValue; 
-          //// log.info(" dp actionValue=" + actionValue);
-          if (actionValue > bestActionValue) { 
-            bestActionValue = actionValue;
-            bestPrice = bidPrice; 
-            //// log.info(" dp update bestActionValue=" + bestActionValue);
-            //// log.info(" dp update bestPrice=" + bidPrice);
-          }        
-        }
-      }
-      stateValues.add(bestActionValue);
-      bestActions.add(bestPrice);
-      //// log.info(" dp added bestPrice=" + bestPrice + " bestActionValue=" + bestActionValue);
+      double nextStateValue = stateValues.get(indexOfNextState);
+      dpEngine.solveStage(index, getBidGroup(index), lowestAskPrice, nextStateValue);
+      stateValues.add(dpEngine.getStageValue());
+      bestActions.add(dpEngine.getStageAction());
     }     
     return new DPResult(currentMDPState, bestActions, stateValues);
   }
@@ -1217,70 +1202,35 @@ implements MarketManager, Initializable, Activatable
     // DP back sweep
     for (int index = 1; index <= supportingBidGroups.size(); ++index) {
       
-      ArrayList<PriceMwhPair> currentGroup = getBidGroup(index);
-      double totalEnergyInCurrentGroup = sumTotalEnergy(currentGroup);
+      BidGroup currentGroup = getBidGroup(index);
 
       int targetTimeslot = currentTimeslot + index;
-      SortedSet<OrderbookOrder> 
-          outstandingOrders = 
-              getOutstandingOrdersIfExist(targetTimeslot, isBuying); 
-      double lowestAskPrice = 
-          outstandingOrders != null ?
-          lowestAsk(outstandingOrders) 
-          : 0; 
+      double lowestAskPrice = lowestAsk(targetTimeslot, isBuying); 
       
-      // scan action values and choose the best
-      double bestActionValue = stateValues.get(stateValues.size() - 1);
-      double bestPrice = -0.0;
-      double acumulatedEnergy = 0;
-      for (PriceMwhPair c : currentGroup) {
-        if (c.getPricePerMwh() < lowestAskPrice) {
-          totalEnergyInCurrentGroup -= c.getMwh();
-        }
-        else {
-          acumulatedEnergy += c.getMwh();
-          double Psuccess = acumulatedEnergy / totalEnergyInCurrentGroup;
-          double Pfail = 1 - Psuccess;
-          double bidPrice = -c.getPricePerMwh(); // trades are positive, bids are negative
-          double nextStateValue = stateValues.get(stateValues.size() - 1);
-          double actionValue = Psuccess * bidPrice + Pfail * nextStateValue; 
-          if (actionValue > bestActionValue) { 
-            bestActionValue = actionValue;
-            bestPrice = bidPrice; 
-          }        
-        }
-      }
-      stateValues.add(bestActionValue);
-      bestActions.add(bestPrice);
-    }
+      // scan action values and choose the best (only re-solved if the
+      // group, the lowest ask or the next state value changed)
+      double nextStateValue = stateValues.get(stateValues.size() - 1);
+      dpEngine.solveStage(index, currentGroup, lowestAskPrice, nextStateValue);
+      stateValues.add(dpEngine.getStageValue());
+      bestActions.add(dpEngine.getStageAction());
+    }
+    dpEngine.logStatistics();
     
     dpCache2013.setValid(currentTimeslot);
   }
 
 
-  private double lowestAsk(SortedSet<OrderbookOrder> outstandingOrders) {
-    if( null == outstandingOrders )
-      return 0;
-    double lowestAsk = Double.MAX_VALUE;
-    for (OrderbookOrder ask : outstandingOrders) {
-      if (ask != null) {
-        lowestAsk = Math.min(lowestAsk, ask.getLimitPrice());            
-      }
-    }
-    return lowestAsk < Double.MAX_VALUE ? lowestAsk : 0;
-  }
-
-
   /**
-   * @param currentGroup
-   * @return
+   * @return lowest outstanding order price (if buying, other asks, if
+   * selling, other bids), 0 if none
    */
-  private double sumTotalEnergy(ArrayList<PriceMwhPair> currentGroup) {
-    double totalEnergyInCurrentGroup = 0;
-    for (PriceMwhPair c : currentGroup) {
-      totalEnergyInCurrentGroup += c.getMwh();
+  private double lowestAsk(int timeslot, boolean isBuying) {
+    double lowestAsk = Double.MAX_VALUE;
+    int numQuotes = wholesaleHistory.getNumQuotes(timeslot, isBuying);
+    for (int i = 0; i < numQuotes; ++i) {
+      lowestAsk = Math.min(lowestAsk, wholesaleHistory.getQuotePrice(timeslot, isBuying, i));            
     }
-    return totalEnergyInCurrentGroup;
+    return lowestAsk < Double.MAX_VALUE ? lowestAsk : 0;
   }
 
 
@@ -1422,20 +1372,22 @@ implements MarketManager, Initializable, Activatable
 
   /**
    * @param neededMwh
-   * @param outstandingOrders
+   * @param timeslot
+   * @param isBuying if buying, we want other asks, if selling other bids
    * @return
    */
   private double bestPossiblePrice(double neededMwh,
-      SortedSet<OrderbookOrder> outstandingOrders) {    
+      int timeslot, boolean isBuying) {    
     double totalMwh = 0.0;
     double bestPossiblePrice = -Double.MAX_VALUE;      
     // Note: Assuming orders are sorted by price - this should be the case
-    for (OrderbookOrder order : outstandingOrders) {        
-      if (null == order) 
-        continue;
-      totalMwh += -order.getMWh(); // they sell, I buy        
-      bestPossiblePrice = Math.max(bestPossiblePrice, order.getLimitPrice());
-      log.info(" mk adding order mwh " + order.getMWh() + " limit " + order.getLimitPrice());
+    int numQuotes = wholesaleHistory.getNumQuotes(timeslot, isBuying);
+    for (int i = 0; i < numQuotes; ++i) {        
+      double orderMwh = wholesaleHistory.getQuoteMwh(timeslot, isBuying, i);
+      double orderLimitPrice = wholesaleHistory.getQuotePrice(timeslot, isBuying, i);
+      totalMwh += -orderMwh; // they sell, I buy        
+      bestPossiblePrice = Math.max(bestPossiblePrice, orderLimitPrice);
+      log.info(" mk adding order mwh " + orderMwh + " limit " + orderLimitPrice);
       if (Math.abs(totalMwh) > Math.abs(neededMwh)) {
         break;
       }
@@ -1448,14 +1400,14 @@ implements MarketManager, Initializable, Activatable
 
 
   private void cleanOrderBooks(List<Timeslot> enabledTimeslots) {
-    
-    for(Iterator<Entry<Integer, Orderbook>> it = orderbooks.entrySet().iterator(); it.hasNext(); ) {
-      Entry<Integer, Orderbook> entry = it.next();      
-      Integer timeslot = entry.getKey();
-      if( ! timeslotIsEnabled(enabledTimeslots, timeslot)){    
-        // meaning this timeslot is history
-        it.remove();
-      }
+    // enabled timeslots are consecutive, so timeslots before the first 
+    // one are history
+    int firstEnabled = Integer.MAX_VALUE;
+    for (Timeslot t : enabledTimeslots) {
+      firstEnabled = Math.min(firstEnabled, t.getSerialNumber());
+    }
+    if (firstEnabled < Integer.MAX_VALUE) {
+      wholesaleHistory.pruneOrderbooks(firstEnabled);
     }
   }
 
@@ -36,7 +36,6 @@
 package edu.utexas.cs.tactex;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -71,23 +70,31 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import edu.utexas.cs.tactex.interfaces.Activatable;
+import edu.utexas.cs.tactex.interfaces.ActivateAfter;
 import edu.utexas.cs.tactex.interfaces.BrokerContext;
 import edu.utexas.cs.tactex.interfaces.CostCurvesPredictor;
 import edu.utexas.cs.tactex.interfaces.EnergyPredictionManager;
 import edu.utexas.cs.tactex.interfaces.Initializable;
 import edu.utexas.cs.tactex.interfaces.MarketManager;
 import edu.utexas.cs.tactex.interfaces.PortfolioManager;
+import edu.utexas.cs.tactex.interfaces.QueuedMessageHandler;
 import edu.utexas.cs.tactex.interfaces.TariffRepoMgr;
 import edu.utexas.cs.tactex.utils.BrokerUtils;
 import edu.utexas.cs.tactex.utils.MsgVerification;
+import edu.utexas.cs.tactex.utils.PortfolioRecordStore;
 
 /**
  * Handles portfolio-management responsibilities for the broker. 
+ * Activated after the services whose state it uses when 
+ * optimizing tariffs.
  * @author John Collins
  */
 @Service
+@ActivateAfter({MarketManagerService.class,
+                CostCurvesPredictorService.class,
+                OpponentPredictorService.class})
 public class PortfolioManagerService 
-implements PortfolioManager, Initializable, Activatable
+implements PortfolioManager, Initializable, Activatable, QueuedMessageHandler
 {
   static private Logger log = Logger.getLogger(PortfolioManagerService.class);
   
@@ -128,6 +135,9 @@ implements PortfolioManager, Initializable, Activatable
   private static final double FIXED_PER_KWH = -0.06; // 2 * max-distribution-fee = 2 * -0.030
   private static final double DEFAULT_PERIODIC_PAYMENT = -1.0;
 
+  // exponential smoothing of customer records' usage
+  private static final double CUSTOMER_RECORD_ALPHA = 0.3;
+
   
   // ///////////////////////////////////////////////////
   // FIELDS THAT NEED TO BE INITIALIZED IN initialize()
@@ -135,14 +145,13 @@ implements PortfolioManager, Initializable, Activatable
   // ///////////////////////////////////////////////////
   
   // ---- Portfolio records -----
-  private HashMap<CustomerInfo, CustomerRecord> customerProfiles;
-  // Customer records indexed by power type and by tariff. Note that the
-  // CustomerRecord instances are NOT shared between these structures, because
-  // we need to keep track of subscriptions by tariff.
-  private HashMap<PowerType,
-                  HashMap<CustomerInfo, CustomerRecord>> customerProfilesByPowerType;
-  private HashMap<TariffSpecification, 
-                  HashMap<CustomerInfo, CustomerRecord>> customerSubscriptions;
+  // General customer records, and customer records by power type and by
+  // tariff. Note that records are NOT shared between these, because we
+  // need to keep track of subscriptions by tariff.
+  private PortfolioRecordStore customerRecords;
+  // subscriptions at the start of the timeslot's activation; published
+  // as a whole and not modified afterwards, so readers take no lock
+  private volatile HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> subscriptionsSnapshot;
   private HashMap<PowerType, List<TariffSpecification>> competingTariffs;
 
   int bootstrapTimeSlotNum; 
@@ -188,11 +197,10 @@ implements PortfolioManager, Initializable, Activatable
 
 
     this.brokerContext = brokerContext;
-    customerProfiles = new HashMap<CustomerInfo, CustomerRecord>();
-    customerProfilesByPowerType = new HashMap<PowerType,
-        HashMap<CustomerInfo, CustomerRecord>>();
-    customerSubscriptions = new HashMap<TariffSpecification,
-        HashMap<CustomerInfo, CustomerRecord>>();
+    customerRecords = new PortfolioRecordStore(
+        configuratorFactoryService.CONSTANTS.USAGE_RECORD_LENGTH(),
+        CUSTOMER_RECORD_ALPHA);
+    subscriptionsSnapshot = new HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>>();
     competingTariffs = new HashMap<PowerType, List<TariffSpecification>>();
     bootstrapTimeSlotNum = -1; 
     gameStart = true;
@@ -264,7 +272,7 @@ implements PortfolioManager, Initializable, Activatable
           remove(revokedTariffSpec);
     }
     else {
-      customerSubscriptions.remove(revokedTariffSpec);
+      customerRecords.removeTariff(revokedTariffSpec);
     }
   }
 
@@ -421,94 +429,83 @@ implements PortfolioManager, Initializable, Activatable
   @Override
   public synchronized double collectUsage (int index)
   {
-    double result = 0.0;
-    for (HashMap<CustomerInfo, CustomerRecord> customerMap : customerSubscriptions.values()) {
-      for (CustomerRecord record : customerMap.values()) {
-        result += record.getUsage(index, false);
-      }
+    if (index < 0) {
+      log.warn("usage requested for negative index " + index);
+      index = 0;
     }
+    double result = customerRecords.collectUsage(index);
     return -result; // convert to needed energy account balance
   }
   
 
   /**
-   * Note: not synchronized (since might take time) but calls
-   * synchronized methods to access potentially shared. Look
-   * for *sync* below
+   * Note: not synchronized (since might take time); reads the
+   * subscriptions snapshot published by messagesApplied()
    */
   @Override
   public double collectShiftedUsage(int targetTimeslot, int currentTimeslotIndex) {
-    double result = 0.0;
-    // *sync*: the following two lines call synchronized methods
-    HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> tariffSubscriptions = BrokerUtils.revertKeyMapping(BrokerUtils.initializePredictedFromCurrentSubscriptions(BrokerUtils.revertKeyMapping(getCustomerSubscriptions())));
-    for (Entry<TariffSpecification, HashMap<CustomerInfo, Integer>> entry : getCustomerSubscriptions().entrySet()) {
+    return collectShiftedUsage(targetTimeslot, 1, currentTimeslotIndex)[0];
+  }        
+
+
+  @Override
+  public double[] collectShiftedUsage(int firstTargetTimeslot, int numTimeslots, int currentTimeslotIndex) {
+    double[] result = new double[numTimeslots];
+    // no *sync*: all target timeslots use the timeslot's snapshot
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> subscriptions = subscriptionsSnapshot;
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> tariffSubscriptions = BrokerUtils.revertKeyMapping(BrokerUtils.initializePredictedFromCurrentSubscriptions(BrokerUtils.revertKeyMapping(subscriptions)));
+    for (Entry<TariffSpecification, HashMap<CustomerInfo, Integer>> entry : subscriptions.entrySet()) {
       TariffSpecification spec = entry.getKey();
       for (Entry<CustomerInfo, Integer> custInfo2subs : entry.getValue().entrySet()) {
         CustomerInfo cust = custInfo2subs.getKey();
         Integer subs = custInfo2subs.getValue();
-        double custSpecSubsShiftedUsage = energyPredictionManager.getShiftedUsageFromBrokerPerspective(
+        energyPredictionManager.addShiftedUsageFromBrokerPerspective(
             // <spec,cust> => subs
             spec, cust, subs,
-            // current-time => target-time
-            targetTimeslot, currentTimeslotIndex,
-            tariffSubscriptions);
-        result += custSpecSubsShiftedUsage;
+            // current-time => target-times
+            firstTargetTimeslot, currentTimeslotIndex,
+            tariffSubscriptions, result);
       }
     }
-    return -result; // convert to needed energy account balance
-  }        
+    for (int i = 0; i < numTimeslots; ++i) {
+      result[i] = -result[i]; // convert to needed energy account balance
+    }
+    return result;
+  }
   
 
-  private synchronized HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> getCustomerSubscriptions() {
-    HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> result = 
-        new HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>>();
-
-    for (Entry<TariffSpecification, 
-        HashMap<CustomerInfo, CustomerRecord>> entry : customerSubscriptions.entrySet()) {
-
-      TariffSpecification spec = entry.getKey();
-      HashMap<CustomerInfo, CustomerRecord> oldValue = entry.getValue();
-
-      //if (spec.getPowerType().getGenericType() == genericPowerType) {
-      //if (spec.getPowerType() == powerType) {
-
-      // create new map for new tariff spec
-      HashMap<CustomerInfo, Integer> newValue = new HashMap<CustomerInfo, Integer>();
+  /**
+   * Publishes the subscriptions snapshot read during activation
+   */
+  @Override
+  public void messagesApplied(int timeslot) {
+    subscriptionsSnapshot = getCustomerSubscriptions();
+  }
 
-      for (Entry<CustomerInfo, CustomerRecord> e : oldValue.entrySet()) {
-        // extract subscribed population from record and put it in new value
-        newValue.put(e.getKey(), e.getValue().getSubscribedPopulation());        
-      }
 
-      result.put(spec, newValue);
-      //}
+  /**
+   * @return a copy of the subscriptions snapshot, which callers may
+   * modify; no *sync*, like collectShiftedUsage()
+   */
+  private HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> copySubscriptionsSnapshot() {
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> subscriptions = subscriptionsSnapshot;
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> result =
+        new HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>>();
+    for (Entry<TariffSpecification, HashMap<CustomerInfo, Integer>> entry : subscriptions.entrySet()) {
+      result.put(entry.getKey(), new HashMap<CustomerInfo, Integer>(entry.getValue()));
     }
     return result;
   }
 
 
+  private synchronized HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> getCustomerSubscriptions() {
+    return customerRecords.getSubscriptions(null);
+  }
+
+
   @Override
   public HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> getCustomerSubscriptions(PowerType powerType) {
-    HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> result = 
-        new HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>>();
-    
-    for (Entry<TariffSpecification, 
-            HashMap<CustomerInfo, CustomerRecord>> entry : customerSubscriptions.entrySet()) {
-      
-      TariffSpecification spec = entry.getKey();
-      HashMap<CustomerInfo, CustomerRecord> oldValue = entry.getValue();
-      //if (spec.getPowerType().getGenericType() == genericPowerType) {
-      if (spec.getPowerType() == powerType) {
-        // create new map for new tariff spec
-        HashMap<CustomerInfo, Integer> newValue = new HashMap<CustomerInfo, Integer>();
-        for (Entry<CustomerInfo, CustomerRecord> e : oldValue.entrySet()) {
-          // extract subscribed population from record and put it in new value
-          newValue.put(e.getKey(), e.getValue().getSubscribedPopulation());        
-        } 
-        result.put(spec, newValue);
-      }
-    }
-    return result;
+    return customerRecords.getSubscriptions(powerType);
   }
 
 
@@ -568,12 +565,7 @@ implements PortfolioManager, Initializable, Activatable
     if (customer == null) {
       log.error("getCustomerGeneralRecord() called with null key");
     }
-    CustomerRecord record = customerProfiles.get(customer);
-    if (record == null) {
-      record = new CustomerRecord(customer);
-      customerProfiles.put(customer, record);
-    }
-    return record;
+    return new CustomerRecord(customerRecords.getGeneralRow(customer));
   }
 
   
@@ -588,18 +580,12 @@ implements PortfolioManager, Initializable, Activatable
       log.error("getCustomerRecordByPowerType() called with null key");
     }
 
-    HashMap<CustomerInfo, CustomerRecord> customerMap =
-        customerProfilesByPowerType.get(type);
-    if (customerMap == null) {
-      customerMap = new HashMap<CustomerInfo, CustomerRecord>();
-      customerProfilesByPowerType.put(type, customerMap);
-    }
-    CustomerRecord record = customerMap.get(customer);
-    if (record == null) {
-      record = new CustomerRecord(getCustomerGeneralRecord(customer));
-      customerMap.put(customer, record);
+    int row = customerRecords.findPowerTypeRow(type, customer);
+    if (row < 0) {
+      row = customerRecords.getPowerTypeRow(type, customer,
+          customerRecords.getGeneralRow(customer));
     }
-    return record;
+    return new CustomerRecord(row);
   }
 
 
@@ -614,21 +600,13 @@ implements PortfolioManager, Initializable, Activatable
       log.error("getCustomerRecordByTariff() called with null key");
     }
 
-    HashMap<CustomerInfo, CustomerRecord> customerMap =
-        customerSubscriptions.get(spec);
-    if (customerMap == null) {
-      customerMap = new HashMap<CustomerInfo, CustomerRecord>();
-      customerSubscriptions.put(spec, customerMap);
-    }
-    CustomerRecord record = customerMap.get(customer);
-    if (record == null) {
+    int row = customerRecords.findTariffRow(spec, customer);
+    if (row < 0) {
       // seed with the generic record for this customer
-      record =
-          new CustomerRecord(getCustomerRecordByPowerType(spec.getPowerType(),
-                                                          customer));
-      customerMap.put(customer, record);
+      row = customerRecords.getTariffRow(spec, customer,
+          getCustomerRecordByPowerType(spec.getPowerType(), customer).row);
     }
-    return record;
+    return new CustomerRecord(row);
   }
 
 
@@ -981,7 +959,7 @@ implements PortfolioManager, Initializable, Activatable
 
         // CHANGESOLAR
         HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> 
-          tariffSubscriptions = getCustomerSubscriptions(/*PowerType.CONSUMPTION*/);    
+          tariffSubscriptions = copySubscriptionsSnapshot(/*PowerType.CONSUMPTION*/);    
 
 
 
@@ -1281,7 +1259,7 @@ implements PortfolioManager, Initializable, Activatable
 
       // CHANGESOLAR
       HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> 
-        tariffSubscriptions = getCustomerSubscriptions(/*PowerType.CONSUMPTION*/);    
+        tariffSubscriptions = copySubscriptionsSnapshot(/*PowerType.CONSUMPTION*/);    
 
       //+++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
       //+++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
@@ -1667,10 +1645,10 @@ implements PortfolioManager, Initializable, Activatable
   HashMap<PowerType, double[]> getRawUsageForCustomerByPowerType (CustomerInfo customer)
   {
     HashMap<PowerType, double[]> result = new HashMap<PowerType, double[]>();
-    for (PowerType type : customerProfilesByPowerType.keySet()) {
-      CustomerRecord record = customerProfilesByPowerType.get(type).get(customer);
-      if (record != null) {
-        result.put(type, record.usage);
+    for (PowerType type : customerRecords.getPowerTypes()) {
+      int row = customerRecords.findPowerTypeRow(type, customer);
+      if (row >= 0) {
+        result.put(type, customerRecords.getUsageArray(row, false));
       }
     }
     return result;
@@ -1687,11 +1665,11 @@ implements PortfolioManager, Initializable, Activatable
   HashMap<String, Integer> getCustomerCounts()
   {
     HashMap<String, Integer> result = new HashMap<String, Integer>();
-    for (TariffSpecification spec : customerSubscriptions.keySet()) {
-      HashMap<CustomerInfo, CustomerRecord> customerMap = customerSubscriptions.get(spec);
-      for (CustomerRecord record : customerMap.values()) {
-        result.put(record.customer.getName() + spec.getPowerType(), 
-                    record.getSubscribedPopulation());
+    for (Entry<TariffSpecification, HashMap<CustomerInfo, Integer>> entry :
+           customerRecords.getSubscriptions(null).entrySet()) {
+      TariffSpecification spec = entry.getKey();
+      for (Entry<CustomerInfo, Integer> e : entry.getValue().entrySet()) {
+        result.put(e.getKey().getName() + spec.getPowerType(), e.getValue());
       }
     }
     return result;
@@ -1704,72 +1682,49 @@ implements PortfolioManager, Initializable, Activatable
    * per-customer-unit, but reported as the product of the per-customer
    * quantity and the subscribed population. This allows the broker to use
    * historical usage data as the subscribed population shifts.
+   *
+   * A record is a view of a row of customerRecords; once its tariff is
+   * removed (and the row may be reused), using it throws an
+   * IllegalStateException.
    */
   public class CustomerRecord
   {
-    private CustomerInfo customer;
-    private int subscribedPopulation = 0;
-    private double[] usage;
-    private double[] fixedusage;
-    private double alpha = 0.3;
-    
-    /**
-     * Creates an empty record
-     */
-    CustomerRecord (CustomerInfo customer)
-    {
-      super();
-      this.customer = customer;
-      this.usage = new double[configuratorFactoryService.CONSTANTS.USAGE_RECORD_LENGTH()];
-      this.fixedusage = new double[configuratorFactoryService.CONSTANTS.USAGE_RECORD_LENGTH()];
-    }
+    private final int row;
+    private final int generation;
     
-    CustomerRecord (CustomerRecord oldRecord)
+    CustomerRecord (int row)
     {
       super();
-      this.customer = oldRecord.customer;
-      this.usage = Arrays.copyOf(oldRecord.usage, configuratorFactoryService.CONSTANTS.USAGE_RECORD_LENGTH());
-      this.fixedusage = Arrays.copyOf(oldRecord.fixedusage, configuratorFactoryService.CONSTANTS.USAGE_RECORD_LENGTH());
+      this.row = row;
+      this.generation = customerRecords.getGeneration(row);
     }
     
     // Returns the CustomerInfo for this record
     CustomerInfo getCustomerInfo ()
     {
-      return customer;
+      customerRecords.checkGeneration(row, generation);
+      return customerRecords.getCustomer(row);
     }
 
     ArrayRealVector getUsageArray(boolean fixed) {
-      if (fixed)
-        return new ArrayRealVector(fixedusage);
-      else
-        return new ArrayRealVector(usage);
+      customerRecords.checkGeneration(row, generation);
+      return new ArrayRealVector(customerRecords.getUsageArray(row, fixed), false);
     }
     
     // Adds new individuals to the count
     void signup (int population)
     {
-      subscribedPopulation = Math.min(customer.getPopulation(),
-                                      subscribedPopulation + population);
+      customerRecords.checkGeneration(row, generation);
+      customerRecords.signup(row, population);
     }
     
     // Removes individuals from the count
     void withdraw (int population)
     {
-      subscribedPopulation -= population;
-      if (subscribedPopulation < 0) {
-        log.error("subscribed population < 0: " + subscribedPopulation + ", resetting to 0");
-        subscribedPopulation = 0;
-      }
+      customerRecords.checkGeneration(row, generation);
+      customerRecords.withdraw(row, population);
     }
     
-    // Customer produces or consumes power. We assume the kwh value is negative
-    // for production, positive for consumption
-    //void produceConsume (double kwh, int population, Instant when)
-    //{
-    //  int index = getIndex(when);
-    //  produceConsume(kwh, population, index);
-    //}
-    
     // The usage length is one week: 7*24, so the second week enters into
     // similar slots as the first week, and a slot is updated using an
     // exponential smoothing
@@ -1778,28 +1733,8 @@ implements PortfolioManager, Initializable, Activatable
     void produceConsume (double kwh, int population, int rawIndex, boolean fixed)
     {
       log.debug("produce consume is averaging regardless of the number of customers");
-      int index = getIndex(rawIndex);
-      double kwhPerCustomer = kwh / (double)population;
-      double oldUsage = usage[index];
-      if (oldUsage == 0.0) {
-        // assume this is the first time
-        usage[index] = kwhPerCustomer;
-      }
-      else {
-        // exponential smoothing
-        usage[index] = alpha * kwhPerCustomer + (1.0 - alpha) * oldUsage;
-      }
-      if (fixed) {
-        double oldUsage1 = fixedusage[index];
-        if (oldUsage1 == 0.0) {
-          // assume this is the first time
-          fixedusage[index] = kwhPerCustomer;
-        }
-        else {
-          // exponential smoothing
-          fixedusage[index] = alpha * kwhPerCustomer + (1.0 - alpha) * oldUsage1;
-        }
-      }
+      customerRecords.checkGeneration(row, generation);
+      customerRecords.produceConsume(row, kwh, population, rawIndex, fixed);
     }
 
     
@@ -1809,10 +1744,8 @@ implements PortfolioManager, Initializable, Activatable
         log.warn("usage requested for negative index " + index);
         index = 0;
       }
-      if (fixed)
-        return (fixedusage[getIndex(index)] * (double)subscribedPopulation);
-      else 
-        return (usage[getIndex(index)] * (double)subscribedPopulation);
+      customerRecords.checkGeneration(row, generation);
+      return customerRecords.getUsage(row, index, fixed);
     }
     
 
@@ -1824,16 +1757,11 @@ implements PortfolioManager, Initializable, Activatable
                          (Competition.currentCompetition().getTimeslotDuration()));
       return result;
     }
-    
-
-    private int getIndex (int rawIndex)
-    {
-      return rawIndex % usage.length;
-    }
 
 
     public int getSubscribedPopulation() {
-      return subscribedPopulation;
+      customerRecords.checkGeneration(row, generation);
+      return customerRecords.getSubscribedPopulation(row);
     }
   }  
 }
@@ -22,6 +22,8 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.log4j.Logger;
 import org.powertac.common.Broker;
 import org.powertac.common.Tariff;
@@ -39,7 +41,9 @@ import edu.utexas.cs.tactex.interfaces.TariffRepoMgr;
 
 
 /**
- * A wrapper around TariffRepo
+ * A wrapper around TariffRepo. Access is synchronized, since concurrent
+ * tariff evaluations temporarily add (and remove) their specs; see
+ * getTmpSpecsLock() for keeping them out of each other's predictions.
  * @author urieli
  */
 @Service
@@ -56,6 +60,10 @@ implements TariffRepoMgr, Initializable
   
   //@Autowired 
   //private TimeslotRepo timeslotRepo;
+
+  // not re-created in initialize(), since it may be held across it; fair,
+  // so that migration predictions are not starved by shorter sections
+  private final ReadWriteLock tmpSpecsLock = new ReentrantReadWriteLock(true);
   
 
 
@@ -94,7 +102,7 @@ implements TariffRepoMgr, Initializable
    * @see edu.utexas.cs.tactex.interfaces.TariffRepoMgr#addToRepo(org.powertac.common.TariffSpecification)
    */
   @Override
-  public boolean addToRepo(TariffSpecification spec) {
+  public synchronized boolean addToRepo(TariffSpecification spec) {
     // defensive programming
     if (null == spec || null == tariffRepo) {
       log.error("Cannot add spec to repo using null parameters");      
@@ -124,7 +132,7 @@ implements TariffRepoMgr, Initializable
 
 
   @Override
-  public void removeRevokedSpec(TariffSpecification spec) {
+  public synchronized void removeRevokedSpec(TariffSpecification spec) {
     // remove spec and tariff from repo
     long id = spec.getId();
     //tariffRepo.removeSpecification(id); // called from removeTariff() below
@@ -150,14 +158,14 @@ implements TariffRepoMgr, Initializable
    * 
    */
   @Override
-  public void removeTmpSpecsFromRepo(HashSet<TariffSpecification> specsToRemove) {
+  public synchronized void removeTmpSpecsFromRepo(HashSet<TariffSpecification> specsToRemove) {
     for (TariffSpecification spec : specsToRemove) {
       removeTmpSpecFromRepo(spec);
     } 
   }
 
   @Override
-  public void removeTmpSpecFromRepo(TariffSpecification spec) {
+  public synchronized void removeTmpSpecFromRepo(TariffSpecification spec) {
     Tariff tariff = tariffRepo.findTariffById(spec.getId());
     tariff.setState(State.KILLED); 
     tariffRepo.deleteTariff(tariff);
@@ -168,7 +176,7 @@ implements TariffRepoMgr, Initializable
    * @see edu.utexas.cs.tactex.interfaces.TariffRepoMgr#findSpecificationById(long)
    */
   @Override
-  public TariffSpecification findSpecificationById(long id) {
+  public synchronized TariffSpecification findSpecificationById(long id) {
     return tariffRepo.findSpecificationById(id);
   }
 
@@ -177,7 +185,7 @@ implements TariffRepoMgr, Initializable
    * @see edu.utexas.cs.tactex.interfaces.TariffRepoMgr#findTariffById(long)
    */
   @Override
-  public Tariff findTariffById(long id) {
+  public synchronized Tariff findTariffById(long id) {
     return tariffRepo.findTariffById(id);
   }
 
@@ -185,24 +193,30 @@ implements TariffRepoMgr, Initializable
    * @see edu.utexas.cs.tactex.interfaces.TariffRepoMgr#findTariffSpecificationsByPowerType(org.powertac.common.enumerations.PowerType)
    */
   @Override
-  public List<TariffSpecification> findTariffSpecificationsByPowerType(PowerType pt) {
+  public synchronized List<TariffSpecification> findTariffSpecificationsByPowerType(PowerType pt) {
     return tariffRepo.findTariffSpecificationsByPowerType(pt);
   }
 
   @Override
-  public List<TariffSpecification> findTariffSpecificationsByBroker(
+  public synchronized List<TariffSpecification> findTariffSpecificationsByBroker(
       Broker broker) {
     return tariffRepo.findTariffSpecificationsByBroker(broker);
   }
 
 
   @Override
-  public List<Tariff> findRecentActiveTariffs(
+  public synchronized List<Tariff> findRecentActiveTariffs(
       int tariffEvalDepth, PowerType powerType) {
     return tariffRepo.findRecentActiveTariffs(tariffEvalDepth, powerType);
   }
 
 
+  @Override
+  public ReadWriteLock getTmpSpecsLock() {
+    return tmpSpecsLock;
+  }
+
+
   boolean isRemoved(TariffSpecification spec) {
     return deletedTariffs.contains(spec.getId());
   }
@@ -0,0 +1,327 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import edu.utexas.cs.tactex.interfaces.ActivateAfter;
+import edu.utexas.cs.tactex.interfaces.Activatable;
+
+/**
+ * Activates the Activatable services once per timeslot. Each service is
+ * started as soon as the services it declares (@ActivateAfter) have
+ * completed, so independent services run concurrently. Services that
+ * would start after the timeslot is over are skipped, like the
+ * sequential loop used to do. Per-service wall times and deadline
+ * misses are recorded.
+ *
+ * @author urieli
+ */
+public class ActivationScheduler
+{
+  static private Logger log = Logger.getLogger(ActivationScheduler.class);
+
+  /**
+   * Tells whether the server already moved past a timeslot.
+   */
+  public interface TimeslotClock
+  {
+    public boolean isTimeslotOver (int timeslotIndex);
+  }
+
+  // services in a dependency-respecting order
+  private Activatable[] services;
+  // indexes (into services) of each service's prerequisites
+  private int[][] prerequisites;
+  private ActivationStats[] stats;
+  private ExecutorService executor;
+
+
+  public ActivationScheduler (List<Activatable> services)
+  {
+    super();
+    createPlan(services);
+    // a thread per service: a task may wait for its prerequisites
+    // without starving them
+    executor = Executors.newFixedThreadPool(Math.max(1, this.services.length),
+                                            new ThreadFactory() {
+      private int count = 0;
+      @Override
+      public synchronized Thread newThread (Runnable r)
+      {
+        Thread thread = new Thread(r, "activation-" + (count++));
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Activates all services for a timeslot, and returns when all are done.
+   *
+   * @param deadline wall-clock time (msec) by which activations should
+   *        be done; late services are logged, not interrupted
+   */
+  public void activate (final int timeslotIndex, long deadline,
+                        final TimeslotClock clock)
+  {
+    final Future<?>[] futures = new Future<?>[services.length];
+    for (int i = 0; i < services.length; ++i) {
+      final int index = i;
+      // prerequisites precede i, so their futures are set
+      final Future<?>[] waitFor = new Future<?>[prerequisites[i].length];
+      for (int j = 0; j < waitFor.length; ++j) {
+        waitFor[j] = futures[prerequisites[i][j]];
+      }
+      futures[i] = executor.submit(new Runnable() {
+        @Override
+        public void run ()
+        {
+          for (Future<?> prerequisite : waitFor) {
+            awaitQuietly(prerequisite);
+          }
+          activateService(index, timeslotIndex, clock);
+        }
+      });
+    }
+
+    for (int i = 0; i < services.length; ++i) {
+      long remaining = deadline - System.currentTimeMillis();
+      try {
+        futures[i].get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+      }
+      catch (TimeoutException e) {
+        stats[i].deadlineMisses++;
+        log.warn(serviceName(i) + " missed activation deadline at ts "
+                 + timeslotIndex);
+        awaitQuietly(futures[i]);
+      }
+      catch (InterruptedException e) {
+        log.warn("activation interrupted: " + e);
+        Thread.currentThread().interrupt();
+        return;
+      }
+      catch (ExecutionException e) {
+        log.error("activation of " + serviceName(i) + " failed", e.getCause());
+      }
+    }
+    if (log.isDebugEnabled()) {
+      StringBuilder sb = new StringBuilder("activation times (ms) ts " + timeslotIndex + ":");
+      for (int i = 0; i < services.length; ++i) {
+        sb.append(" ").append(serviceName(i)).append("=")
+          .append(stats[i].lastNanos / 1000000);
+      }
+      log.debug(sb.toString());
+    }
+  }
+
+  public void logStatistics ()
+  {
+    for (int i = 0; i < services.length; ++i) {
+      log.info("activation " + serviceName(i) + ": " + stats[i]);
+    }
+  }
+
+  public void shutdown ()
+  {
+    executor.shutdownNow();
+  }
+
+  // test-support
+  List<Activatable> getActivationOrder ()
+  {
+    ArrayList<Activatable> result = new ArrayList<Activatable>();
+    for (Activatable svc : services) {
+      result.add(svc);
+    }
+    return result;
+  }
+
+  // test-support
+  ActivationStats getStats (Activatable service)
+  {
+    for (int i = 0; i < services.length; ++i) {
+      if (services[i] == service) {
+        return stats[i];
+      }
+    }
+    return null;
+  }
+
+  private void activateService (int index, int timeslotIndex,
+                                TimeslotClock clock)
+  {
+    if (clock.isTimeslotOver(timeslotIndex)) {
+      stats[index].skipped++;
+      log.warn("broker late, skipping " + serviceName(index) + " at ts="
+               + timeslotIndex);
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      services[index].activate(timeslotIndex);
+    }
+    finally {
+      stats[index].record(System.nanoTime() - start);
+    }
+  }
+
+  private void awaitQuietly (Future<?> future)
+  {
+    try {
+      future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    catch (ExecutionException e) {
+      // reported by the activating thread
+    }
+  }
+
+  /**
+   * Topological order of the services (stable w.r.t. the given order).
+   * Falls back to the given order if dependencies are cyclic.
+   */
+  private void createPlan (List<Activatable> given)
+  {
+    int n = given.size();
+    boolean[][] dependsOn = new boolean[n][n];
+    for (int i = 0; i < n; ++i) {
+      ActivateAfter after =
+          given.get(i).getClass().getAnnotation(ActivateAfter.class);
+      if (null == after) {
+        continue;
+      }
+      for (Class<? extends Activatable> prerequisite : after.value()) {
+        for (int j = 0; j < n; ++j) {
+          if (j != i && prerequisite.isInstance(given.get(j))) {
+            dependsOn[i][j] = true;
+          }
+        }
+      }
+    }
+
+    int[] order = new int[n];
+    boolean[] placed = new boolean[n];
+    int numPlaced = 0;
+    while (numPlaced < n) {
+      int next = -1;
+      for (int i = 0; i < n && next == -1; ++i) {
+        if (placed[i]) {
+          continue;
+        }
+        boolean ready = true;
+        for (int j = 0; j < n; ++j) {
+          if (dependsOn[i][j] && !placed[j]) {
+            ready = false;
+          }
+        }
+        if (ready) {
+          next = i;
+        }
+      }
+      if (next == -1) {
+        log.error("cyclic activation dependencies, activating sequentially");
+        for (int i = 0; i < n; ++i) {
+          order[i] = i;
+          for (int j = 0; j < n; ++j) {
+            // each service waits for its predecessor
+            dependsOn[i][j] = (j == i - 1);
+          }
+        }
+        break;
+      }
+      order[numPlaced++] = next;
+      placed[next] = true;
+    }
+
+    int[] position = new int[n];
+    for (int k = 0; k < n; ++k) {
+      position[order[k]] = k;
+    }
+    services = new Activatable[n];
+    prerequisites = new int[n][];
+    stats = new ActivationStats[n];
+    for (int k = 0; k < n; ++k) {
+      int i = order[k];
+      services[k] = given.get(i);
+      stats[k] = new ActivationStats();
+      ArrayList<Integer> prereqs = new ArrayList<Integer>();
+      for (int j = 0; j < n; ++j) {
+        if (dependsOn[i][j]) {
+          prereqs.add(position[j]);
+        }
+      }
+      prerequisites[k] = new int[prereqs.size()];
+      for (int m = 0; m < prereqs.size(); ++m) {
+        prerequisites[k][m] = prereqs.get(m);
+      }
+      log.info("activation plan: " + serviceName(k) + " after " + prereqs);
+    }
+  }
+
+  private String serviceName (int index)
+  {
+    return services[index].getClass().getSimpleName();
+  }
+
+  /**
+   * Wall-time statistics of a service's activations.
+   */
+  static class ActivationStats
+  {
+    // written by the activating thread, read by the scheduler
+    // thread after the activation completed
+    volatile long lastNanos;
+    volatile long totalNanos;
+    volatile long maxNanos;
+    volatile int count;
+    volatile int skipped;
+    volatile int deadlineMisses;
+
+    void record (long nanos)
+    {
+      lastNanos = nanos;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+      count++;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return "count " + count
+             + " avg(ms) " + (count == 0 ? 0 : totalNanos / count / 1000000)
+             + " max(ms) " + maxNanos / 1000000
+             + " skipped " + skipped
+             + " deadline-misses " + deadlineMisses;
+    }
+  }
+}
@@ -41,7 +41,6 @@ import javax.jms.MessageListener;
 import javax.jms.TextMessage;
 
 import org.apache.log4j.Logger;
-import org.powertac.common.XMLMessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -54,12 +53,12 @@ public class BrokerMessageReceiver implements MessageListener
 {
   static private Logger log = Logger.getLogger(BrokerMessageReceiver.class);
   
-  @Autowired
-  XMLMessageConverter converter;
-  
   @Autowired 
   MessageDispatcher messageDispatcher;
 
+  @Autowired
+  StreamingMessageDecoder decoder;
+
   @Override
   public void onMessage (Message message)
   {
@@ -74,9 +73,21 @@ public class BrokerMessageReceiver implements MessageListener
   }
 
   private void onMessage (String xml) {
-    log.info("onMessage(String) - received message:\n" + xml);
-    Object message = converter.fromXML(xml);
+    if (log.isDebugEnabled()) {
+      log.debug("onMessage(String) - received message:\n" + xml);
+    }
+    // falls back to the converter for types it does not stream
+    Object message = decoder.decode(xml);
+    if (null == message) {
+      log.warn("onMessage(String) - cannot decode message");
+      return;
+    }
     log.debug("onMessage(String) - received message of type " + message.getClass().getSimpleName());
     messageDispatcher.routeMessage(message);
   }
+
+  public void logStatistics ()
+  {
+    decoder.logStatistics();
+  }
 }
@@ -35,26 +35,41 @@
  */
 package edu.utexas.cs.tactex.core;
 
-import static org.powertac.util.MessageDispatcher.dispatch;
-
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.jms.JMSException;
-import javax.jms.Message;
+import javax.jms.MessageProducer;
 import javax.jms.Session;
-import javax.jms.TextMessage;
 
 import org.apache.log4j.Logger;
 import org.powertac.common.IdGenerator;
 import org.powertac.common.XMLMessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jms.JmsException;
 import org.springframework.jms.core.JmsTemplate;
-import org.springframework.jms.core.MessageCreator;
+import org.springframework.jms.core.SessionCallback;
 import org.springframework.stereotype.Service;
 
+import edu.utexas.cs.tactex.interfaces.QueuedMessageHandler;
+
 /**
  * Routes incoming messages to broker components, and outgoing messages
  * to the server. 
@@ -62,6 +77,22 @@ import org.springframework.stereotype.Service;
  * which passes the registrations to this router. For this to work, 
  * registered components must implement a handleMessage(msg) method that
  * takes the specified type as its single argument.
+ * 
+ * The handleMessage() method of each registration is resolved once, when
+ * registering. Messages are routed to handlers registered for their class
+ * or for any of its superclasses/interfaces (the most specific
+ * registration of each handler wins); the resulting route is computed on
+ * the first message of each class. Registrations and routes are immutable
+ * tables replaced on write, so routing (from JMS threads) takes no locks.
+ * 
+ * In queued-ingestion mode, messages for QueuedMessageHandler components
+ * are not handled on the routing thread: they are appended to a lock-free
+ * inbox per component, and handled in arrival order when the inboxes
+ * are drained (by the activation thread, before each activation).
+ * 
+ * Outgoing messages are serialized by the caller and queued; a sender
+ * thread drains the queue through one JMS session and producer, so
+ * callers (e.g. the activation thread) do not wait for JMS.
  * @author John Collins
  */
 @Service
@@ -78,16 +109,40 @@ public class MessageDispatcher
   @Autowired
   private JmsManagementService jmsManagementService; 
 
-  private HashMap<Class<?>, Set<Object>> registrations;
+  // copy-on-write tables: registered type => handlers, and
+  // message class => route (cleared when registrations change)
+  private volatile Map<Class<?>, Handler[]> registrations;
+  private volatile Map<Class<?>, Route> routes;
+  // queued ingestion: handler object => inbox (copy-on-write)
+  private volatile boolean queuedIngestion = false;
+  private volatile Map<Object, Inbox> inboxes;
   String key = ""; // server registration secret
 
+  // outgoing messages (serialized), sent by a single sender thread
+  static final int OUTGOING_CAPACITY = 1024;
+  private static final long SHUTDOWN_TIMEOUT = 5000; // msec
+  private static final long RECONNECT_DELAY = 100; // msec
+  private static final long ENQUEUE_TIMEOUT = 1000; // msec
+  // identity-compared end-of-stream marker
+  private static final String STOP = new String("stop");
+  private final BlockingQueue<String> outgoing =
+      new LinkedBlockingQueue<String>(OUTGOING_CAPACITY);
+  private Thread sender;
+  private final AtomicLong numSent = new AtomicLong();
+  private final AtomicLong numFailed = new AtomicLong();
+  private final AtomicLong numDropped = new AtomicLong();
+  private final ConcurrentHashMap<Class<?>, IdAccessor> idAccessors =
+      new ConcurrentHashMap<Class<?>, IdAccessor>();
+
   /**
    * Default constructor
    */
   public MessageDispatcher ()
   {
     super();
-    registrations = new HashMap<Class<?>, Set<Object>>();
+    registrations = new HashMap<Class<?>, Handler[]>();
+    routes = new HashMap<Class<?>, Route>();
+    inboxes = new IdentityHashMap<Object, Inbox>();
   }
   
   void setKey (String key)
@@ -99,14 +154,32 @@ public class MessageDispatcher
   /**
    * Sets up handlers for incoming messages by message type.
    */
-  public void registerMessageHandler (Object handler, Class<?> messageType)
+  public synchronized void registerMessageHandler (Object handler, Class<?> messageType)
   {
-    Set<Object> reg = registrations.get(messageType);
-    if (reg == null) {
-      reg = new HashSet<Object>();
-      registrations.put(messageType, reg);
+    Handler[] current = registrations.get(messageType);
+    if (null == current) {
+      current = new Handler[0];
+    }
+    for (Handler h : current) {
+      if (h.target == handler) {
+        return; // already registered
+      }
+    }
+    if (handler instanceof QueuedMessageHandler && !inboxes.containsKey(handler)) {
+      IdentityHashMap<Object, Inbox> newInboxes =
+          new IdentityHashMap<Object, Inbox>(inboxes);
+      newInboxes.put(handler, new Inbox());
+      inboxes = newInboxes;
     }
-    reg.add(handler);
+    Handler[] updated = Arrays.copyOf(current, current.length + 1);
+    updated[current.length] = new Handler(handler, messageType);
+    
+    HashMap<Class<?>, Handler[]> newRegistrations =
+        new HashMap<Class<?>, Handler[]>(registrations);
+    newRegistrations.put(messageType, updated);
+    registrations = newRegistrations;
+    // routes are recomputed on demand
+    routes = new HashMap<Class<?>, Route>();
   }
   
   /**
@@ -116,47 +189,366 @@ public class MessageDispatcher
   {
     Class<?> clazz = message.getClass();
     log.debug("Route " + clazz.getName());
-    Set<Object> targets = registrations.get(clazz);
-    if (targets == null) {
+    Route route = getRoute(clazz);
+    if (route.handlers.length == 0) {
       log.warn("no targets for message of type " + clazz.getName());
       return;
     }
-    for (Object target: targets) {
-      try {
-        dispatch(target, "handleMessage", message);
-      } catch (Throwable e) {
-        log.error("caught exception from handleMessage(): ", e);
+    long start = System.nanoTime();
+    for (int i = 0; i < route.handlers.length; ++i) {
+      if (null == route.inboxes[i]) {
+        route.handlers[i].invoke(message);
+      }
+      else {
+        route.inboxes[i].offer(route.handlers[i], message);
+      }
+    }
+    route.stats.record(System.nanoTime() - start);
+  }
+
+  /**
+   * Turns queued ingestion on/off; should be set before messages arrive,
+   * since turning it off leaves already-queued messages to be drained.
+   */
+  public synchronized void setQueuedIngestion (boolean queuedIngestion)
+  {
+    this.queuedIngestion = queuedIngestion;
+    // routes are recomputed on demand
+    routes = new HashMap<Class<?>, Route>();
+  }
+
+  public boolean isQueuedIngestion ()
+  {
+    return queuedIngestion;
+  }
+
+  /**
+   * Handles the queued messages of all components, on the calling
+   * thread. A component's inbox is drained by one thread at a time.
+   * 
+   * @return number of messages handled
+   */
+  public int drainQueuedMessages ()
+  {
+    int result = 0;
+    for (Inbox inbox : inboxes.values()) {
+      result += inbox.drain();
+    }
+    return result;
+  }
+
+  // test-support
+  int getNumQueuedMessages ()
+  {
+    int result = 0;
+    for (Inbox inbox : inboxes.values()) {
+      result += inbox.size();
+    }
+    return result;
+  }
+
+  /**
+   * @return dispatch statistics of a message class, or null if no
+   * message of this class was routed
+   */
+  public DispatchStats getDispatchStats (Class<?> messageClass)
+  {
+    Route route = routes.get(messageClass);
+    return null == route ? null : route.stats;
+  }
+
+  public void logDispatchStatistics ()
+  {
+    for (Map.Entry<Class<?>, Route> entry : routes.entrySet()) {
+      log.info("dispatch " + entry.getKey().getSimpleName() + ": "
+               + entry.getValue().stats);
+    }
+  }
+
+  private Route getRoute (Class<?> clazz)
+  {
+    Route route = routes.get(clazz);
+    if (null == route) {
+      route = createRoute(clazz);
+    }
+    return route;
+  }
+
+  private synchronized Route createRoute (Class<?> clazz)
+  {
+    Route route = routes.get(clazz);
+    if (null != route) {
+      return route; // created by another thread
+    }
+    // for each handler object, its most specific registration
+    // that accepts this message class
+    ArrayList<Handler> selected = new ArrayList<Handler>();
+    for (Handler[] handlers : registrations.values()) {
+      for (Handler candidate : handlers) {
+        if (!candidate.messageType.isAssignableFrom(clazz)) {
+          continue;
+        }
+        int found = -1;
+        for (int i = 0; i < selected.size(); ++i) {
+          if (selected.get(i).target == candidate.target) {
+            found = i;
+          }
+        }
+        if (-1 == found) {
+          selected.add(candidate);
+        }
+        else if (selected.get(found).messageType.isAssignableFrom(candidate.messageType)) {
+          selected.set(found, candidate); // more specific
+        }
+      }
+    }
+    Handler[] handlers = selected.toArray(new Handler[selected.size()]);
+    Inbox[] routeInboxes = new Inbox[handlers.length];
+    if (queuedIngestion) {
+      for (int i = 0; i < handlers.length; ++i) {
+        routeInboxes[i] = inboxes.get(handlers[i].target);
       }
     }
+    route = new Route(handlers, routeInboxes);
+    HashMap<Class<?>, Route> newRoutes = new HashMap<Class<?>, Route>(routes);
+    newRoutes.put(clazz, route);
+    routes = newRoutes;
+    return route;
   }
 
   // ------------------ Outgoing messages ------------------
   /**
-   * Sends outgoing messages to the server
+   * Sends an outgoing message to the server. The message is serialized
+   * by the caller and sent by the sender thread, so the caller does not
+   * wait for JMS.
    */
-  public void sendMessage(Object message)
+  public void sendMessage (Object message)
   {
-    if (!validateId(message))
+    String text = serialize(message);
+    if (null != text) {
+      ensureSender();
+      enqueue(text);
+    }
+  }
+
+  /**
+   * Sends a batch of outgoing messages (e.g. the orders of a timeslot),
+   * in order.
+   */
+  public void sendMessages (List<?> messages)
+  {
+    ArrayList<String> texts = new ArrayList<String>(messages.size());
+    for (Object message : messages) {
+      String text = serialize(message);
+      if (null != text) {
+        texts.add(text);
+      }
+    }
+    ensureSender();
+    for (String text : texts) {
+      enqueue(text);
+    }
+  }
+
+  /**
+   * Sends the pending messages and stops the sender thread.
+   */
+  public void shutdown ()
+  {
+    Thread thread;
+    synchronized (this) {
+      thread = sender;
+      sender = null;
+    }
+    if (null == thread) {
       return;
-    final String text = key + converter.toXML(message);
-    log.info("sending text: \n" + text);
+    }
+    if (thread.isAlive()) {
+      enqueue(STOP);
+    }
+    try {
+      thread.join(SHUTDOWN_TIMEOUT);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (thread.isAlive()) {
+      log.warn("sender did not finish, " + outgoing.size() + " messages not sent");
+      thread.interrupt();
+    }
+    log.info("sent " + numSent.get() + " messages, " + numFailed.get()
+             + " failed, " + numDropped.get() + " dropped");
+  }
+
+  private String serialize (Object message)
+  {
+    if (!validateId(message))
+      return null;
+    String text = key + converter.toXML(message);
+    if (log.isDebugEnabled()) {
+      log.debug("sending text: \n" + text);
+    }
+    return text;
+  }
 
-    template.send(jmsManagementService.getServerQueueName(),
-                  new MessageCreator() {
-      @Override
-      public Message createMessage (Session session) throws JMSException
-      {
-        TextMessage message = session.createTextMessage(text);
-        return message;
+  private void enqueue (String text)
+  {
+    if (!outgoing.offer(text)) {
+      // the sender is far behind, better wait than drop messages, but
+      // not forever: the caller is typically the activation thread
+      log.warn("outgoing queue full, waiting for sender");
+      try {
+        if (!outgoing.offer(text, ENQUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+          numDropped.incrementAndGet();
+          log.error("outgoing queue still full, message dropped ("
+                    + numDropped.get() + " so far): " + text);
+        }
       }
-    });
+      catch (InterruptedException e) {
+        numDropped.incrementAndGet();
+        log.error("interrupted, message not sent: " + text);
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private synchronized void ensureSender ()
+  {
+    if (null != sender && !sender.isAlive()) {
+      log.error("sender thread died, restarting it");
+      sender = null;
+    }
+    if (null == sender) {
+      sender = new Thread(new Sender(), "message-sender");
+      sender.setDaemon(true);
+      sender.start();
+    }
+  }
+
+  /**
+   * Drains the outgoing queue through a single JMS session and producer,
+   * re-created only after a failure (JMS or other).
+   */
+  private class Sender implements Runnable
+  {
+    private volatile boolean stopped = false;
+
+    // taken from the queue and not yet sent; kept across a reconnect, so
+    // that a failure never needs room in the (bounded) queue
+    private final ArrayList<String> batch = new ArrayList<String>();
+
+    @Override
+    public void run ()
+    {
+      while (!stopped && !Thread.currentThread().isInterrupted()) {
+        try {
+          template.execute(new SessionCallback<Object>() {
+            @Override
+            public Object doInJms (Session session) throws JMSException
+            {
+              MessageProducer producer =
+                  session.createProducer(session.createQueue(jmsManagementService.getServerQueueName()));
+              try {
+                drain(session, producer);
+              }
+              finally {
+                producer.close();
+              }
+              return null;
+            }
+          }, true);
+        }
+        catch (JmsException e) {
+          log.error("failed to send, reconnecting: " + e.getMessage());
+          if (!backOff()) {
+            return;
+          }
+        }
+        catch (RuntimeException e) {
+          // e.g. from the template or the message converter; should not
+          // cost the sender thread
+          log.error("unexpected failure to send, reconnecting", e);
+          if (!backOff()) {
+            return;
+          }
+        }
+        catch (Error e) {
+          // the next send restarts the thread
+          log.error("sender failed, " + batch.size() + " messages not sent", e);
+          throw e;
+        }
+      }
+    }
+
+    /**
+     * @return false if interrupted while waiting to reconnect
+     */
+    private boolean backOff ()
+    {
+      try {
+        Thread.sleep(RECONNECT_DELAY);
+        return true;
+      }
+      catch (InterruptedException e) {
+        return false;
+      }
+    }
+
+    private void drain (Session session, MessageProducer producer)
+      throws JMSException
+    {
+      while (true) {
+        if (batch.isEmpty()) {
+          try {
+            batch.add(outgoing.take());
+          }
+          catch (InterruptedException e) {
+            stopped = true;
+            return;
+          }
+          outgoing.drainTo(batch);
+        }
+        for (int i = 0; i < batch.size(); ++i) {
+          String text = batch.get(i);
+          if (text == STOP) {
+            stopped = true;
+            return;
+          }
+          try {
+            producer.send(session.createTextMessage(text));
+            numSent.incrementAndGet();
+          }
+          catch (JMSException e) {
+            // the failed message is dropped, as a failed synchronous
+            // send would be; the rest of the batch goes first on the
+            // next session
+            numFailed.incrementAndGet();
+            log.error("failed to send: " + text);
+            batch.subList(0, i + 1).clear();
+            throw e;
+          }
+          catch (RuntimeException e) {
+            // same, so that a message that can't be sent is not retried
+            // forever
+            numFailed.incrementAndGet();
+            log.error("failed to send: " + text);
+            batch.subList(0, i + 1).clear();
+            throw e;
+          }
+        }
+        batch.clear();
+      }
+    }
   }
 
   private boolean validateId (Object thing)
   {
+    Field idField = getIdField(thing.getClass());
+    if (null == idField) {
+      // no id field, OK to send
+      return true;
+    }
     try {
-      Field idField = thing.getClass().getDeclaredField("id");
-      idField.setAccessible(true);
       long value = idField.getLong(thing);
       if (IdGenerator.getPrefix() != IdGenerator.extractPrefix(value)) {
         log.error("Invalid id value " + value + " in message "
@@ -164,14 +556,6 @@ public class MessageDispatcher
         return false;
       }
     }
-    catch (NoSuchFieldException e) {
-      // no id field, OK to send
-      return true;
-    }
-    catch (SecurityException e) {
-      // Should not happen
-      log.error("Exception accessing id field: " + e.toString());
-    }
     catch (IllegalArgumentException e) {
       // Should not happen
       log.error("Exception reading id field: " + e.toString());
@@ -183,9 +567,254 @@ public class MessageDispatcher
     return true;
   }
 
+  /**
+   * @return the accessible id field of a message class, or null if it
+   * has none; resolved once per class
+   */
+  private Field getIdField (Class<?> clazz)
+  {
+    IdAccessor accessor = idAccessors.get(clazz);
+    if (null == accessor) {
+      Field field = null;
+      try {
+        field = clazz.getDeclaredField("id");
+        field.setAccessible(true);
+      }
+      catch (NoSuchFieldException e) {
+        // no id field
+      }
+      catch (SecurityException e) {
+        // Should not happen
+        log.error("Exception accessing id field: " + e.toString());
+        field = null;
+      }
+      accessor = new IdAccessor(field);
+      idAccessors.put(clazz, accessor);
+    }
+    return accessor.field;
+  }
+
+  // test-support
+  int getNumPendingMessages ()
+  {
+    return outgoing.size();
+  }
+
+  // test-support
+  long getNumSentMessages ()
+  {
+    return numSent.get();
+  }
+
+  /**
+   * Cached id field of a message class (field is null if there is none).
+   */
+  private static class IdAccessor
+  {
+    final Field field;
+
+    IdAccessor (Field field)
+    {
+      this.field = field;
+    }
+  }
+
   // test-support
   Set<Object> getRegistrations (Class<?> messageType)
   {
-    return registrations.get(messageType);
+    Handler[] handlers = registrations.get(messageType);
+    if (null == handlers) {
+      return null;
+    }
+    Set<Object> result = new LinkedHashSet<Object>();
+    for (Handler handler : handlers) {
+      result.add(handler.target);
+    }
+    return result;
+  }
+
+  /**
+   * A registration, with its handleMessage() method resolved.
+   */
+  private static class Handler
+  {
+    final Object target;
+    final Class<?> messageType;
+    // null if the target has no such method
+    final Method method;
+
+    Handler (Object target, Class<?> messageType)
+    {
+      this.target = target;
+      this.messageType = messageType;
+      this.method = resolveMethod(target.getClass(), messageType);
+    }
+
+    void invoke (Object message)
+    {
+      if (null == method) {
+        log.error("no handleMessage(" + messageType.getName() + ") in "
+                  + target.getClass().getName());
+        return;
+      }
+      try {
+        method.invoke(target, message);
+      } catch (InvocationTargetException e) {
+        log.error("caught exception from handleMessage(): ", e.getCause());
+      } catch (Throwable e) {
+        log.error("caught exception from handleMessage(): ", e);
+      }
+    }
+
+    private static Method resolveMethod (Class<?> targetClass, Class<?> messageType)
+    {
+      try {
+        Method method = targetClass.getMethod("handleMessage", messageType);
+        try {
+          // non-public handler classes
+          method.setAccessible(true);
+        } catch (SecurityException e) {
+          log.warn("cannot make accessible " + method);
+        }
+        return method;
+      } catch (NoSuchMethodException e) {
+        log.warn("registered without handleMessage(" + messageType.getName()
+                 + ") in " + targetClass.getName());
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Handlers of a message class, and their statistics. A handler with
+   * an inbox is queued rather than invoked.
+   */
+  private static class Route
+  {
+    final Handler[] handlers;
+    final Inbox[] inboxes;
+    final DispatchStats stats = new DispatchStats();
+
+    Route (Handler[] handlers, Inbox[] inboxes)
+    {
+      this.handlers = handlers;
+      this.inboxes = inboxes;
+    }
+  }
+
+  /**
+   * Messages queued for a handler object, in arrival order. Any thread
+   * may offer; a single thread at a time drains.
+   */
+  private static class Inbox
+  {
+    private final ConcurrentLinkedQueue<Delivery> queue =
+        new ConcurrentLinkedQueue<Delivery>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    void offer (Handler handler, Object message)
+    {
+      queue.offer(new Delivery(handler, message));
+    }
+
+    /**
+     * @return number of messages handled, 0 if another thread is
+     * draining
+     */
+    int drain ()
+    {
+      if (!draining.compareAndSet(false, true)) {
+        return 0;
+      }
+      int result = 0;
+      try {
+        Delivery delivery;
+        while (null != (delivery = queue.poll())) {
+          delivery.handler.invoke(delivery.message);
+          ++result;
+        }
+      }
+      finally {
+        draining.set(false);
+      }
+      return result;
+    }
+
+    int size ()
+    {
+      return queue.size();
+    }
+  }
+
+  /**
+   * A queued message and its handler.
+   */
+  private static class Delivery
+  {
+    final Handler handler;
+    final Object message;
+
+    Delivery (Handler handler, Object message)
+    {
+      this.handler = handler;
+      this.message = message;
+    }
+  }
+
+  /**
+   * Dispatch count and latency of a message class; latencies are 
+   * also kept as a histogram of power-of-2 microsecond buckets.
+   */
+  public static class DispatchStats
+  {
+    public static final int NUM_BUCKETS = 24;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    // bucket i: latency < 2^i microseconds (last bucket: the rest)
+    private final AtomicLongArray histogram = new AtomicLongArray(NUM_BUCKETS);
+
+    void record (long nanos)
+    {
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+        max = maxNanos.get();
+      }
+      long micros = nanos / 1000;
+      int bucket = 64 - Long.numberOfLeadingZeros(micros);
+      histogram.incrementAndGet(Math.min(bucket, NUM_BUCKETS - 1));
+    }
+
+    public long getCount ()
+    {
+      return count.get();
+    }
+
+    public long getTotalNanos ()
+    {
+      return totalNanos.get();
+    }
+
+    public long getMaxNanos ()
+    {
+      return maxNanos.get();
+    }
+
+    public long getHistogramBucket (int i)
+    {
+      return histogram.get(i);
+    }
+
+    @Override
+    public String toString ()
+    {
+      long n = getCount();
+      return "count " + n 
+             + " avg(us) " + (n == 0 ? 0 : getTotalNanos() / n / 1000)
+             + " max(us) " + getMaxNanos() / 1000;
+    }
   }
 }
@@ -42,8 +42,6 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.collections.Predicate;
 import org.apache.log4j.Logger;
 import org.joda.time.Instant;
 import org.powertac.common.Broker;
@@ -69,10 +67,11 @@ import org.powertac.common.spring.SpringApplicationContext;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import edu.utexas.cs.tactex.PortfolioManagerService;
+import edu.utexas.cs.tactex.ConfiguratorFactoryService;
 import edu.utexas.cs.tactex.interfaces.Activatable;
 import edu.utexas.cs.tactex.interfaces.BrokerContext;
 import edu.utexas.cs.tactex.interfaces.Initializable;
+import edu.utexas.cs.tactex.interfaces.QueuedMessageHandler;
 
 /**
  * This is the top-level controller for the broker. It sets up the other
@@ -115,6 +114,9 @@ implements BrokerContext
   @Autowired
   private CustomerRepo customerRepo;
 
+  @Autowired
+  private ConfiguratorFactoryService configuratorFactoryService;
+
   /** parameters */
   // keep in mind that brokers need to deal with two viewpoints. Tariff
   // types take the viewpoint of the customer, while market-related types
@@ -152,11 +154,15 @@ implements BrokerContext
           description = "Authorization token for tournament")
   private String authToken = "";
 
+  @ConfigurableValue(valueType = "Boolean",
+          description = "Queue incoming messages of queued-handler services and apply them before activation")
+  private Boolean queuedIngestion = false;
+
   // Broker keeps its own records
   //private ArrayList<String> brokerNames;
   //private Instant baseTime = null;
   private long quittingTime = 0l;
-  private int currentTimeslot = 0; // index of last started timeslot
+  private volatile int currentTimeslot = 0; // index of last started timeslot
   private int timeslotCompleted = 0; // index of last completed timeslot
   private int pausedAt = 0; // index of current timeslot during pause, else 0
   private boolean running = false; // true to run, false to stop
@@ -236,6 +242,7 @@ implements BrokerContext
 
     // register message handlers for the broker core also
     registerMessageHandlers(this);
+    router.setQueuedIngestion(queuedIngestion);
   }
 
   /**
@@ -312,6 +319,7 @@ implements BrokerContext
       }
     }
     if (!adapter.isEnabled()) {
+        router.shutdown();
         jmsManagementService.shutdown();
       return;
     }
@@ -325,7 +333,9 @@ implements BrokerContext
     catch (InterruptedException ie) {
       log.warn("Interrupted!");
     }
+    router.shutdown();
     jmsManagementService.shutdown();
+    configuratorFactoryService.shutdown();
   }
 
   // ------------- Accessors ----------------
@@ -416,6 +426,12 @@ implements BrokerContext
     }
   }
 
+  @Override
+  public void sendMessages (List<?> messages)
+  {
+    router.sendMessages(messages);
+  }
+
   // -------------------- message handlers ---------------------
   //
   // Note that these arrive in JMS threads; If they share data with the
@@ -545,6 +561,8 @@ implements BrokerContext
   public synchronized void handleMessage (SimEnd se)
   {
     log.info("SimEnd received");
+    router.logDispatchStatistics();
+    brokerMessageReceiver.logStatistics();
     running = false;
     notifyAll();
   }
@@ -641,6 +659,8 @@ implements BrokerContext
   {
     PowerTacBroker parent;
     int timeslotIndex = 0;
+    ActivationScheduler scheduler = null; // created on first activation
+    List<QueuedMessageHandler> queuedHandlers = null;
 
     public AgentRunner (PowerTacBroker parent)
     {
@@ -661,49 +681,56 @@ implements BrokerContext
         timeslotIndex = waitForActivation(timeslotIndex);
         if (!running) {
           log.info("worker thread exits at ts " + timeslotIndex);
+          if (null != scheduler) {
+            scheduler.logStatistics();
+            scheduler.shutdown();
+          }
           return;
         }
 
         Timeslot current = timeslotRepo.currentTimeslot();
         log.info("activate at " + timeService.getCurrentDateTime().toString()
                  + ", timeslot " + current.getSerialNumber());
-        List<Activatable> services =
-            SpringApplicationContext.listBeansOfType(Activatable.class);
-        // TODO hurts generality, improve
-        movePortfolioMgrToEnd(services);
-        for (Activatable svc : services) {
-          if (timeslotIndex < currentTimeslot) {
-            log.warn("broker late, ts="+ timeslotIndex + " current-ts=" + currentTimeslot);
-            break;
-          }
-          svc.activate(timeslotIndex);
+        if (null == scheduler) {
+          // services are singletons, the dependency plan is computed once
+          List<Activatable> services =
+              SpringApplicationContext.listBeansOfType(Activatable.class);
+          scheduler = new ActivationScheduler(services);
+          queuedHandlers =
+              SpringApplicationContext.listBeansOfType(QueuedMessageHandler.class);
+        }
+        // single writer: apply queued messages before activations start
+        int numApplied = router.drainQueuedMessages();
+        log.debug("applied " + numApplied + " queued messages");
+        for (QueuedMessageHandler handler : queuedHandlers) {
+          handler.messagesApplied(timeslotIndex);
         }
+        scheduler.activate(timeslotIndex, computeActivationDeadline(),
+                           new ActivationScheduler.TimeslotClock() {
+          @Override
+          public boolean isTimeslotOver (int timeslotIndex)
+          {
+            return timeslotIndex < currentTimeslot;
+          }
+        });
         if (timeslotIndex < currentTimeslot) {
           log.warn("broker finished late, ts="+ timeslotIndex + " current-ts=" + currentTimeslot);
         }
       }
     }
 
-    private void movePortfolioMgrToEnd(List<Activatable> services) {
-      log.debug("before reordering services");
-      for (Activatable svc : services) {
-        log.debug(svc.getClass().getName());
-      }
-      Activatable portolioMgr =(Activatable) 
-          CollectionUtils.find(services, new Predicate() {
-            @Override
-            public boolean evaluate(Object svc) {
-              return svc.getClass() == PortfolioManagerService.class;
-            }
-          });
-      if (portolioMgr != null) {
-        services.remove(portolioMgr);
-        services.add(portolioMgr);
-      }
-      log.debug("after reordering services");
-      for (Activatable svc : services) {
-        log.debug(svc.getClass().getName());
+    /**
+     * Activations should be done by the end of the timeslot, in
+     * wall-clock time.
+     */
+    private long computeActivationDeadline ()
+    {
+      Competition comp = Competition.currentCompetition();
+      if (null == comp || comp.getSimulationRate() <= 0) {
+        return Long.MAX_VALUE;
       }
+      return System.currentTimeMillis()
+             + comp.getTimeslotDuration() / comp.getSimulationRate();
     }
   }
 
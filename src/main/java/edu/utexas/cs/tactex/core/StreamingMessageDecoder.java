@@ -0,0 +1,835 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.core;
+
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+import org.joda.time.Instant;
+import org.powertac.common.BalancingTransaction;
+import org.powertac.common.Broker;
+import org.powertac.common.ClearedTrade;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.Orderbook;
+import org.powertac.common.OrderbookOrder;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.TariffTransaction;
+import org.powertac.common.XMLMessageConverter;
+import org.powertac.common.enumerations.PowerType;
+import org.powertac.common.msg.CustomerBootstrapData;
+import org.powertac.common.msg.MarketBootstrapData;
+import org.powertac.common.repo.BrokerRepo;
+import org.powertac.common.repo.CustomerRepo;
+import org.powertac.common.repo.TariffRepo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Streaming (StAX) decoder for the high-volume incoming message types:
+ * ClearedTrade, Orderbook, TariffTransaction, BalancingTransaction and the
+ * bootstrap messages. Each has a hand-written reader that builds the
+ * message directly from the XML events; other messages are left to the
+ * XStream converter.
+ *
+ * The readers follow the XStream aliases and field names of powertac-common
+ * (StreamingMessageDecoderTest checks them against the converter). A field
+ * may come as an attribute or as a child element. A reader that meets
+ * content it does not know is disabled, and its messages go back to the
+ * converter; a message whose broker/customer/tariff is not (yet) in the
+ * repos is handed to the converter on its own.
+ *
+ * @author urieli
+ */
+@Service
+public class StreamingMessageDecoder
+{
+  static private Logger log = Logger.getLogger(StreamingMessageDecoder.class);
+
+  // XStream aliases in powertac-common
+  static final String CLEARED_TRADE = "trade";
+  static final String ORDERBOOK = "orderbook";
+  static final String ORDERBOOK_ORDER = "orderbook-order";
+  static final String BALANCING_TRANSACTION = "balance-tx";
+  static final String TARIFF_TRANSACTION = "tariff-tx";
+  static final String MARKET_BOOTSTRAP_DATA = "market-bootstrap-data";
+  static final String CUSTOMER_BOOTSTRAP_DATA = "customer-bootstrap-data";
+
+  @Autowired
+  private XMLMessageConverter converter;
+
+  @Autowired
+  private BrokerRepo brokerRepo;
+
+  @Autowired
+  private CustomerRepo customerRepo;
+
+  @Autowired
+  private TariffRepo tariffRepo;
+
+  private XMLInputFactory inputFactory;
+
+  private Set<String> disabledElements;
+
+  // id fields of the streamed types, which have no id setters
+  private ConcurrentHashMap<Class<?>, Field> idFields;
+
+  private AtomicLong numStreamed = new AtomicLong();
+  private AtomicLong numConverted = new AtomicLong();
+
+
+  public StreamingMessageDecoder ()
+  {
+    super();
+    inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    disabledElements =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    idFields = new ConcurrentHashMap<Class<?>, Field>();
+  }
+
+  /**
+   * Decodes a message, with the streaming readers where possible and
+   * with the XStream converter otherwise.
+   */
+  public Object decode (String xml)
+  {
+    String name = null;
+    try {
+      XMLStreamReader xmlReader =
+          inputFactory.createXMLStreamReader(new StringReader(xml));
+      try {
+        while (xmlReader.hasNext()
+               && xmlReader.next() != XMLStreamConstants.START_ELEMENT) {
+          // skip prolog
+        }
+        if (xmlReader.isStartElement()) {
+          name = xmlReader.getLocalName();
+          if (!disabledElements.contains(name)) {
+            MessageReader reader = createReader(name);
+            if (null != reader) {
+              Object result = reader.read(xmlReader);
+              numStreamed.incrementAndGet();
+              return result;
+            }
+          }
+        }
+      }
+      finally {
+        xmlReader.close();
+      }
+    }
+    catch (UnresolvedReferenceException e) {
+      log.debug("cannot stream <" + name + ">: " + e.getMessage());
+    }
+    catch (UnsupportedContentException e) {
+      disable(name, e.getMessage());
+    }
+    catch (XMLStreamException e) {
+      log.warn("cannot stream message, using converter: " + e.getMessage());
+    }
+    catch (RuntimeException e) {
+      // e.g. an unparsable number
+      disable(name, e.toString());
+    }
+    return convert(xml);
+  }
+
+  public void logStatistics ()
+  {
+    log.info("messages streamed " + numStreamed.get()
+             + " converted " + numConverted.get()
+             + " disabled " + disabledElements);
+  }
+
+  // test-support
+  long getNumStreamed ()
+  {
+    return numStreamed.get();
+  }
+
+  // test-support
+  long getNumConverted ()
+  {
+    return numConverted.get();
+  }
+
+  private Object convert (String xml)
+  {
+    numConverted.incrementAndGet();
+    return converter.fromXML(xml);
+  }
+
+  private void disable (String name, String reason)
+  {
+    if (disabledElements.add(name)) {
+      log.warn("streaming of <" + name + "> disabled: " + reason);
+    }
+  }
+
+  /**
+   * @return a fresh reader for the root element, or null if it is not
+   * streamed
+   */
+  private MessageReader createReader (String name)
+  {
+    if (CLEARED_TRADE.equals(name)) {
+      return new ClearedTradeReader();
+    }
+    if (ORDERBOOK.equals(name)) {
+      return new OrderbookReader();
+    }
+    if (BALANCING_TRANSACTION.equals(name)) {
+      return new BalancingTransactionReader();
+    }
+    if (TARIFF_TRANSACTION.equals(name)) {
+      return new TariffTransactionReader();
+    }
+    if (MARKET_BOOTSTRAP_DATA.equals(name)) {
+      return new MarketBootstrapDataReader();
+    }
+    if (CUSTOMER_BOOTSTRAP_DATA.equals(name)) {
+      return new CustomerBootstrapDataReader();
+    }
+    return null;
+  }
+
+  // ---------- readers ----------
+
+  /**
+   * Reads one element into a message. Scalar fields are handed to
+   * field() whether they come as attributes or as text-only child
+   * elements; structured children are handed to child(). Each reader
+   * instance reads a single element.
+   */
+  private abstract class MessageReader
+  {
+    long id = -1;
+
+    Object read (XMLStreamReader reader)
+      throws XMLStreamException, UnsupportedContentException
+    {
+      for (int i = 0; i < reader.getAttributeCount(); ++i) {
+        String key = reader.getAttributeLocalName(i);
+        if (!field(key, reader.getAttributeValue(i))) {
+          throw new UnsupportedContentException("unknown field " + key);
+        }
+      }
+      while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        String key = reader.getLocalName();
+        if (null != reader.getAttributeValue(null, "reference")) {
+          throw new UnsupportedContentException("reference in " + key);
+        }
+        if (!child(key, reader) && !field(key, readText(reader))) {
+          throw new UnsupportedContentException("unknown field " + key);
+        }
+      }
+      Object result = create();
+      if (id >= 0) {
+        setId(result, id);
+      }
+      return result;
+    }
+
+    /**
+     * @return false if the field is unknown
+     */
+    abstract boolean field (String key, String value)
+      throws UnsupportedContentException;
+
+    /**
+     * Reads a structured child, up to its end tag.
+     *
+     * @return false (having read nothing) if it is not structured
+     */
+    boolean child (String key, XMLStreamReader reader)
+      throws XMLStreamException, UnsupportedContentException
+    {
+      return false;
+    }
+
+    abstract Object create () throws UnsupportedContentException;
+  }
+
+
+  private class ClearedTradeReader extends MessageReader
+  {
+    private int timeslot = -1;
+    private double executionMWh = Double.NaN;
+    private double executionPrice = Double.NaN;
+    private Instant dateExecuted;
+
+    @Override
+    boolean field (String key, String value)
+    {
+      if ("id".equals(key)) {
+        id = Long.parseLong(value);
+      }
+      else if ("timeslot".equals(key) || "timeslotIndex".equals(key)) {
+        timeslot = Integer.parseInt(value);
+      }
+      else if ("executionMWh".equals(key)) {
+        executionMWh = Double.parseDouble(value);
+      }
+      else if ("executionPrice".equals(key)) {
+        executionPrice = Double.parseDouble(value);
+      }
+      else if ("dateExecuted".equals(key)) {
+        dateExecuted = parseInstant(value);
+      }
+      else {
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    Object create () throws UnsupportedContentException
+    {
+      require(timeslot >= 0, "timeslot");
+      require(!Double.isNaN(executionMWh), "executionMWh");
+      require(!Double.isNaN(executionPrice), "executionPrice");
+      return new ClearedTrade(timeslot, executionMWh, executionPrice,
+                              dateExecuted);
+    }
+  }
+
+
+  private class OrderbookReader extends MessageReader
+  {
+    private int timeslot = -1;
+    private Double clearingPrice;
+    private Instant dateExecuted;
+    private List<OrderbookOrder> bids = new ArrayList<OrderbookOrder>();
+    private List<OrderbookOrder> asks = new ArrayList<OrderbookOrder>();
+
+    @Override
+    boolean field (String key, String value)
+    {
+      if ("id".equals(key)) {
+        id = Long.parseLong(value);
+      }
+      else if ("timeslot".equals(key) || "timeslotIndex".equals(key)) {
+        timeslot = Integer.parseInt(value);
+      }
+      else if ("clearingPrice".equals(key)) {
+        clearingPrice = Double.valueOf(value);
+      }
+      else if ("dateExecuted".equals(key)) {
+        dateExecuted = parseInstant(value);
+      }
+      else {
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    boolean child (String key, XMLStreamReader reader)
+      throws XMLStreamException, UnsupportedContentException
+    {
+      // orders come either in a sorted-set container, or one per element
+      if ("bids".equals(key) || "asks".equals(key)) {
+        List<OrderbookOrder> orders = "bids".equals(key) ? bids : asks;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+          String item = reader.getLocalName();
+          if ("no-comparator".equals(item)) {
+            readText(reader);
+          }
+          else if (ORDERBOOK_ORDER.equals(item)) {
+            orders.add(readOrder(reader));
+          }
+          else {
+            throw new UnsupportedContentException("unknown " + key + " item " + item);
+          }
+        }
+        return true;
+      }
+      if ("bid".equals(key)) {
+        bids.add(readOrder(reader));
+        return true;
+      }
+      if ("ask".equals(key)) {
+        asks.add(readOrder(reader));
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    Object create () throws UnsupportedContentException
+    {
+      require(timeslot >= 0, "timeslot");
+      Orderbook result = new Orderbook(timeslot, clearingPrice, dateExecuted);
+      for (OrderbookOrder bid : bids) {
+        result.addBid(bid);
+      }
+      for (OrderbookOrder ask : asks) {
+        result.addAsk(ask);
+      }
+      return result;
+    }
+
+    private OrderbookOrder readOrder (XMLStreamReader reader)
+      throws XMLStreamException, UnsupportedContentException
+    {
+      return (OrderbookOrder) new OrderbookOrderReader().read(reader);
+    }
+  }
+
+
+  private class OrderbookOrderReader extends MessageReader
+  {
+    private double mWh = Double.NaN;
+    private Double limitPrice;
+
+    @Override
+    boolean field (String key, String value)
+    {
+      if ("id".equals(key)) {
+        id = Long.parseLong(value);
+      }
+      else if ("mWh".equals(key)) {
+        mWh = Double.parseDouble(value);
+      }
+      else if ("limitPrice".equals(key)) {
+        limitPrice = Double.valueOf(value);
+      }
+      else {
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    Object create () throws UnsupportedContentException
+    {
+      require(!Double.isNaN(mWh), "mWh");
+      return new OrderbookOrder(mWh, limitPrice);
+    }
+  }
+
+
+  private class BalancingTransactionReader extends MessageReader
+  {
+    private String broker;
+    private int postedTimeslot = -1;
+    private double kWh = Double.NaN;
+    private double charge = Double.NaN;
+
+    @Override
+    boolean field (String key, String value)
+    {
+      if ("id".equals(key)) {
+        id = Long.parseLong(value);
+      }
+      else if ("broker".equals(key)) {
+        broker = value;
+      }
+      else if ("postedTimeslot".equals(key)) {
+        postedTimeslot = Integer.parseInt(value);
+      }
+      else if ("kWh".equals(key)) {
+        kWh = Double.parseDouble(value);
+      }
+      else if ("charge".equals(key)) {
+        charge = Double.parseDouble(value);
+      }
+      else {
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    Object create () throws UnsupportedContentException
+    {
+      require(postedTimeslot >= 0, "postedTimeslot");
+      require(!Double.isNaN(kWh), "kWh");
+      require(!Double.isNaN(charge), "charge");
+      return new BalancingTransaction(findBroker(broker), postedTimeslot,
+                                      kWh, charge);
+    }
+  }
+
+
+  private class TariffTransactionReader extends MessageReader
+  {
+    private String broker;
+    private int postedTimeslot = -1;
+    private TariffTransaction.Type txType;
+    private String tariffSpec;
+    private String customerInfo;
+    private int customerCount;
+    private double kWh;
+    private double charge;
+
+    @Override
+    boolean field (String key, String value)
+    {
+      if ("id".equals(key)) {
+        id = Long.parseLong(value);
+      }
+      else if ("broker".equals(key)) {
+        broker = value;
+      }
+      else if ("postedTimeslot".equals(key)) {
+        postedTimeslot = Integer.parseInt(value);
+      }
+      else if ("txType".equals(key)) {
+        txType = TariffTransaction.Type.valueOf(value);
+      }
+      else if ("tariffSpec".equals(key)) {
+        tariffSpec = value;
+      }
+      else if ("customerInfo".equals(key)) {
+        customerInfo = value;
+      }
+      else if ("customerCount".equals(key)) {
+        customerCount = Integer.parseInt(value);
+      }
+      else if ("kWh".equals(key)) {
+        kWh = Double.parseDouble(value);
+      }
+      else if ("charge".equals(key)) {
+        charge = Double.parseDouble(value);
+      }
+      else {
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    Object create () throws UnsupportedContentException
+    {
+      require(postedTimeslot >= 0, "postedTimeslot");
+      require(null != txType, "txType");
+      TariffSpecification spec = null;
+      if (null != tariffSpec) {
+        spec = tariffRepo.findSpecificationById(Long.parseLong(tariffSpec));
+        if (null == spec) {
+          throw new UnresolvedReferenceException("tariff " + tariffSpec);
+        }
+      }
+      CustomerInfo customer = null;
+      if (null != customerInfo) {
+        customer = customerRepo.findById(Long.parseLong(customerInfo));
+        if (null == customer) {
+          throw new UnresolvedReferenceException("customer " + customerInfo);
+        }
+      }
+      return new TariffTransaction(findBroker(broker), postedTimeslot, txType,
+                                   spec, customer, customerCount, kWh, charge);
+    }
+  }
+
+
+  private class MarketBootstrapDataReader extends MessageReader
+  {
+    private double[] mwh;
+    private double[] marketPrice;
+
+    @Override
+    boolean field (String key, String value)
+    {
+      if ("id".equals(key)) {
+        id = Long.parseLong(value);
+      }
+      else {
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    boolean child (String key, XMLStreamReader reader)
+      throws XMLStreamException, UnsupportedContentException
+    {
+      if ("mwh".equals(key)) {
+        mwh = readDoubles(reader);
+      }
+      else if ("marketPrice".equals(key)) {
+        marketPrice = readDoubles(reader);
+      }
+      else {
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    Object create () throws UnsupportedContentException
+    {
+      require(null != mwh, "mwh");
+      require(null != marketPrice, "marketPrice");
+      return new MarketBootstrapData(mwh, marketPrice);
+    }
+  }
+
+
+  private class CustomerBootstrapDataReader extends MessageReader
+  {
+    private String customerName;
+    private PowerType powerType;
+    private double[] netUsage;
+
+    @Override
+    boolean field (String key, String value)
+    {
+      if ("id".equals(key)) {
+        id = Long.parseLong(value);
+      }
+      else if ("customerName".equals(key)) {
+        customerName = value;
+      }
+      else if ("powerType".equals(key)) {
+        powerType = PowerType.valueOf(value);
+      }
+      else {
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    boolean child (String key, XMLStreamReader reader)
+      throws XMLStreamException, UnsupportedContentException
+    {
+      if ("netUsage".equals(key)) {
+        netUsage = readDoubles(reader);
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    Object create () throws UnsupportedContentException
+    {
+      require(null != customerName, "customerName");
+      require(null != powerType, "powerType");
+      require(null != netUsage, "netUsage");
+      CustomerInfo customer =
+          customerRepo.findByNameAndPowerType(customerName, powerType);
+      if (null == customer) {
+        throw new UnresolvedReferenceException("customer " + customerName);
+      }
+      return new CustomerBootstrapData(customer, powerType, netUsage);
+    }
+  }
+
+  // ---------- helpers ----------
+
+  private Broker findBroker (String username)
+    throws UnsupportedContentException
+  {
+    require(null != username, "broker");
+    Broker broker = brokerRepo.findByUsername(username);
+    if (null == broker) {
+      throw new UnresolvedReferenceException("broker " + username);
+    }
+    return broker;
+  }
+
+  /**
+   * Sets the id the constructor generated to the one in the message, as
+   * the converter would.
+   */
+  private void setId (Object target, long id)
+    throws UnsupportedContentException
+  {
+    Class<?> clazz = target.getClass();
+    Field field = idFields.get(clazz);
+    if (null == field) {
+      for (Class<?> c = clazz; c != null && null == field; c = c.getSuperclass()) {
+        try {
+          field = c.getDeclaredField("id");
+          field.setAccessible(true);
+        }
+        catch (NoSuchFieldException e) {
+          // try the superclass
+        }
+      }
+      if (null == field) {
+        throw new UnsupportedContentException("no id in " + clazz.getSimpleName());
+      }
+      idFields.put(clazz, field);
+    }
+    try {
+      field.setLong(target, id);
+    }
+    catch (IllegalAccessException e) {
+      throw new UnsupportedContentException("cannot set id of " + clazz.getSimpleName());
+    }
+  }
+
+  private static void require (boolean condition, String key)
+    throws UnsupportedContentException
+  {
+    if (!condition) {
+      throw new UnsupportedContentException("missing " + key);
+    }
+  }
+
+  /**
+   * Reads the text of the current element, up to its end tag. A single
+   * nested element is looked through (e.g. an instant as <iMillis>), and
+   * an empty element referring to an object gives the object's id.
+   */
+  private static String readText (XMLStreamReader reader)
+    throws XMLStreamException, UnsupportedContentException
+  {
+    String id = reader.getAttributeValue(null, "id");
+    StringBuilder text = new StringBuilder();
+    String nested = null;
+    while (true) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        if (null != nested) {
+          throw new UnsupportedContentException("structured <"
+                                                + reader.getLocalName() + ">");
+        }
+        nested = readText(reader);
+      }
+      else if (event == XMLStreamConstants.CHARACTERS
+               || event == XMLStreamConstants.CDATA) {
+        text.append(reader.getText());
+      }
+      else if (event == XMLStreamConstants.END_ELEMENT) {
+        break;
+      }
+    }
+    if (null != nested) {
+      return nested;
+    }
+    String result = text.toString().trim();
+    return result.isEmpty() && null != id ? id : result;
+  }
+
+  /**
+   * Reads a double array, given either as item elements (<double>) or as
+   * separated text, up to the end tag of the array element.
+   */
+  private static double[] readDoubles (XMLStreamReader reader)
+    throws XMLStreamException, UnsupportedContentException
+  {
+    if (reader.getAttributeCount() != 0) {
+      throw new UnsupportedContentException("attributes in <"
+                                            + reader.getLocalName() + ">");
+    }
+    // text, or whitespace before the first item
+    int event = reader.next();
+    StringBuilder text = new StringBuilder();
+    while (event == XMLStreamConstants.CHARACTERS
+           || event == XMLStreamConstants.SPACE) {
+      text.append(reader.getText());
+      event = reader.next();
+    }
+    if (event == XMLStreamConstants.END_ELEMENT) {
+      return parseDoubles(text.toString());
+    }
+    if (text.toString().trim().length() > 0) {
+      throw new UnsupportedContentException("mixed content");
+    }
+    double[] result = new double[16];
+    int length = 0;
+    while (event == XMLStreamConstants.START_ELEMENT) {
+      if (length == result.length) {
+        double[] grown = new double[2 * length];
+        System.arraycopy(result, 0, grown, 0, length);
+        result = grown;
+      }
+      result[length++] = Double.parseDouble(reader.getElementText().trim());
+      event = reader.nextTag();
+    }
+    if (length == result.length) {
+      return result;
+    }
+    double[] trimmed = new double[length];
+    System.arraycopy(result, 0, trimmed, 0, length);
+    return trimmed;
+  }
+
+  /**
+   * A double array as separated text.
+   */
+  private static double[] parseDoubles (String text)
+  {
+    String trimmed = text.trim();
+    if (trimmed.isEmpty()) {
+      return new double[0];
+    }
+    String[] items = trimmed.split("[,\\s]+");
+    double[] result = new double[items.length];
+    for (int i = 0; i < items.length; ++i) {
+      result[i] = Double.parseDouble(items[i]);
+    }
+    return result;
+  }
+
+  private static Instant parseInstant (String text)
+  {
+    for (int i = 0; i < text.length(); ++i) {
+      char c = text.charAt(i);
+      if (!Character.isDigit(c) && !(i == 0 && c == '-')) {
+        return Instant.parse(text);
+      }
+    }
+    return new Instant(Long.parseLong(text));
+  }
+
+  /**
+   * Thrown by readers when the XML is not what they expect.
+   */
+  static class UnsupportedContentException extends Exception
+  {
+    private static final long serialVersionUID = 1L;
+
+    UnsupportedContentException (String message)
+    {
+      super(message);
+    }
+  }
+
+  /**
+   * Thrown by readers when a message refers to a broker, customer or
+   * tariff that is not in the repos; only that message is left to the
+   * converter.
+   */
+  static class UnresolvedReferenceException extends UnsupportedContentException
+  {
+    private static final long serialVersionUID = 1L;
+
+    UnresolvedReferenceException (String message)
+    {
+      super(message);
+    }
+  }
+}
@@ -61,6 +61,14 @@ public class CostCurvesDataProcessorCons2Avgprice implements
   }
 
 
+  @Override
+  public void extractFeatures(double neededMwh, double competitorMwh,
+      double[] features) {
+    features[0] = neededMwh;
+    features[1] = neededMwh + competitorMwh;
+  }
+
+
   /* (non-Javadoc)
    * @see edu.utexas.cs.tactex.interfaces.CostCurvesDataProcessor#getFeatureNames()
    */
@@ -106,6 +114,41 @@ public class CostCurvesDataProcessorCons2Avgprice implements
   }
 
 
+  @Override
+  public Double extractBootExample(ArrayList<PriceMwhPair> transactions,
+      double[] features) {
+    // x_1 (missing data => 0), see createXYForCons2Avgprice()
+    features[0] = 0.0;
+    features[1] = computeTotalMwh(transactions);
+    return computeAvgPrice(transactions);
+  }
+
+
+  @Override
+  public Double extractGameExample(int timeslot,
+      HashMap<Integer, ArrayList<PriceMwhPair>> ts2mtx,
+      HashMap<Integer, ArrayList<PriceMwhPair>> ts2trade,
+      HashMap<Integer, Double> ts2mycons,
+      HashMap<Integer, Double> ts2totalcons, 
+      double[] features) {
+    ArrayList<PriceMwhPair> mtx = ts2mtx.get(timeslot);
+    Double mycons = ts2mycons.get(timeslot);
+    Double totalcons = ts2totalcons.get(timeslot);
+    if (null == mtx || null == mycons || null == totalcons) {
+      return null;
+    }
+    features[0] = mycons;
+    features[1] = totalcons;
+    return computeAvgPrice(mtx);
+  }
+
+
+  @Override
+  public ArrayList<Double> getCandidateLambdas() {
+    return candidateLambdas;
+  }
+
+
   // ---------------- private methods -----------------
   private XYForRegression createXYForCons2Avgprice(
       int currentTimeslot, 
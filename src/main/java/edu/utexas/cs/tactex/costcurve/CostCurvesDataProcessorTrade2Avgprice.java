@@ -63,6 +63,14 @@ public class CostCurvesDataProcessorTrade2Avgprice implements
   }
 
 
+  @Override
+  public void extractFeatures(double neededMwh, double competitorMwh,
+      double[] features) {
+    double x = neededMwh + competitorMwh;
+    RegressionUtils.create1DPolyFeatures(x, maxDegree, features);
+  }
+
+
   @Override
   public ArrayList<String> getFeatureNames() {
     if (maxDegree == 1) 
@@ -100,6 +108,36 @@ public class CostCurvesDataProcessorTrade2Avgprice implements
   }
 
 
+  @Override
+  public Double extractBootExample(ArrayList<PriceMwhPair> transactions,
+      double[] features) {
+    double totalMwh = 0;
+    for (PriceMwhPair p : transactions) {
+      totalMwh += p.getMwh();
+    }
+    RegressionUtils.create1DPolyFeatures(totalMwh, maxDegree, features);
+    return computeAvgPrice(transactions);
+  }
+
+
+  @Override
+  public Double extractGameExample(int timeslot,
+      HashMap<Integer, ArrayList<PriceMwhPair>> ts2mtx,
+      HashMap<Integer, ArrayList<PriceMwhPair>> ts2trade,
+      HashMap<Integer, Double> ts2mycons,
+      HashMap<Integer, Double> ts2totalcons, 
+      double[] features) {
+    // only boot data is used, see createXYForTrade2Avgprice()
+    return null;
+  }
+
+
+  @Override
+  public ArrayList<Double> getCandidateLambdas() {
+    return candidateLambdas;
+  }
+
+
   // ---------------- private methods -----------------
 
   /**
@@ -64,6 +64,11 @@ public interface BrokerContext
    */
   public void sendMessage (Object message);
 
+  /**
+   * Sends a batch of outgoing messages, in order.
+   */
+  public void sendMessages (List<?> messages);
+
   //  /**
   //   * Returns the router for outgoing messages.
   //   */
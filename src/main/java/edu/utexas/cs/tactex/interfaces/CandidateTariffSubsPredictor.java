@@ -27,4 +27,14 @@ public interface CandidateTariffSubsPredictor {
   Double predictNumSubs(double candidateEval, TreeMap<Double,Double> e2n,
       CustomerInfo customer, int timeslot);
 
+  /**
+   * Batched version of predictNumSubs(), for all candidates of a customer
+   * at once: the regression is fitted once for all of them.
+   *
+   * @return predictions (null entries where it cannot predict), or null
+   * if it cannot predict at all
+   */
+  Double[] predictNumSubs(double[] candidateEvals, TreeMap<Double,Double> e2n,
+      CustomerInfo customer, int timeslot);
+
 }
@@ -25,6 +25,7 @@ import org.apache.commons.math3.linear.ArrayRealVector;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.TariffSpecification;
 
+import edu.utexas.cs.tactex.utils.TariffChargeMatrix;
 import edu.utexas.cs.tactex.utils.BrokerUtils.ShiftedEnergyData;
 
 public interface ChargeEstimator {
@@ -43,4 +44,36 @@ public interface ChargeEstimator {
   public abstract double estimateCharge(ArrayRealVector customerEnergy,
       TariffSpecification spec);
 
+  /**
+   * Same as estimateRelevantTariffCharges(), but returns an indexed
+   * customers x tariffs matrix
+   * @param tariffSpecs
+   * @param customer2ShiftedEnergy
+   * @return
+   */
+  public abstract TariffChargeMatrix estimateRelevantTariffChargeMatrix(
+      List<TariffSpecification> tariffSpecs, HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> customer2ShiftedEnergy);
+
+  /**
+   * Batch version of estimateCharge(): charges[i][j] is the charge
+   * of customerEnergy[i] under tariffSpecs.get(j)
+   * @param customerEnergy customers x hours
+   * @param tariffSpecs
+   * @return customers x tariffs
+   */
+  public abstract double[][] estimateCharges(double[][] customerEnergy,
+      List<TariffSpecification> tariffSpecs);
+
+  /**
+   * Derivative of estimateCharge() w.r.t. the values of a TOU tariff's
+   * rates, for numRates equal-length rates that repeat daily (rate 0
+   * starting at midnight). Since the usage charge is linear in the rates,
+   * this is the usage during each rate's hours.
+   * @param customerEnergy
+   * @param numRates
+   * @return gradient, indexed by rate
+   */
+  public abstract double[] estimateRateGradient(ArrayRealVector customerEnergy,
+      int numRates);
+
 }
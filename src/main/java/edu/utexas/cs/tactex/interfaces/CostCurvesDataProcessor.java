@@ -41,6 +41,12 @@ public interface CostCurvesDataProcessor {
   
   
   public ArrayList<Double> extractFeatures(double neededMwh, double competitorMwh); 
+
+  /**
+   * allocation-free version of extractFeatures(): writes the features 
+   * into the given array, whose length is getFeatureNames().size()
+   */
+  public void extractFeatures(double neededMwh, double competitorMwh, double[] features);
   
   /**
    * 
@@ -58,4 +64,28 @@ public interface CostCurvesDataProcessor {
       HashMap<Integer, ArrayList<PriceMwhPair>> ts2trade,
       HashMap<Integer, Double> ts2mycons, HashMap<Integer, Double> ts2totalcons);
 
+
+  /**
+   * Incremental version of createWekaRegressionInput(): the training 
+   * example of one bootstrap timeslot. Writes its features into the given
+   * array and returns its y value, or null if it has no example.
+   */
+  public Double extractBootExample(ArrayList<PriceMwhPair> transactions, double[] features);
+
+  /**
+   * Incremental version of createWekaRegressionInput(): the training 
+   * example of one (past) game timeslot. Writes its features into the 
+   * given array and returns its y value, or null if it has no example.
+   */
+  public Double extractGameExample(int timeslot,
+      HashMap<Integer, ArrayList<PriceMwhPair>> ts2mtx,
+      HashMap<Integer, ArrayList<PriceMwhPair>> ts2trade,
+      HashMap<Integer, Double> ts2mycons, HashMap<Integer, Double> ts2totalcons,
+      double[] features);
+
+  /**
+   * candidate regularization parameters
+   */
+  public ArrayList<Double> getCandidateLambdas();
+
 }
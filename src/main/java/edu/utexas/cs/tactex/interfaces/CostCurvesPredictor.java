@@ -35,6 +35,13 @@ public interface CostCurvesPredictor {
 
   double predictUnitCostKwh(int currentTimeslot, int futureTimeslot, double neededKwh, double competitorKwh);
 
+  /**
+   * Batch version of predictUnitCostKwh(), for consecutive future 
+   * timeslots: unitCostsKwh[i] is the prediction for 
+   * firstFutureTimeslot + i, given neededKwh[i] and competitorKwh[i].
+   */
+  void predictUnitCostKwh(int currentTimeslot, int firstFutureTimeslot, double[] neededKwh, double[] competitorKwh, double[] unitCostsKwh);
+
   double getFudgeFactorKwh(int currentTimeslot);
 
 }
@@ -70,6 +70,27 @@ public interface EnergyPredictionManager {
       int targetTimeslot,
       int currentTimeslot,
       HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> tariffSubscriptions);
+
+  /**
+   * adds the usage predictions of getShiftedUsageFromBrokerPerspective()
+   * for the target timeslots firstTargetTimeslot, ..., 
+   * firstTargetTimeslot + result.length - 1 to result
+   * @param spec
+   * @param cust
+   * @param subscribedPopulation
+   * @param firstTargetTimeslot
+   * @param currentTimeslot
+   * @param tariffSubscriptions
+   * @param result
+   */
+  void addShiftedUsageFromBrokerPerspective(
+      TariffSpecification spec,
+      CustomerInfo cust,
+      int subscribedPopulation,
+      int firstTargetTimeslot,
+      int currentTimeslot,
+      HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> tariffSubscriptions,
+      double[] result);
   
 
 
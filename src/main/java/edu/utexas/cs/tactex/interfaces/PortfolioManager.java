@@ -60,6 +60,13 @@ public interface PortfolioManager
    */
   public double collectShiftedUsage(int targetTimeslot, int currentTimeslotIndex);
 
+  /**
+   * Returns total net expected shifted usage across all subscriptions for
+   * numTimeslots consecutive target timeslots, starting at
+   * firstTargetTimeslot, in a single pass over the subscriptions
+   */
+  public double[] collectShiftedUsage(int firstTargetTimeslot, int numTimeslots, int currentTimeslotIndex);
+
   /**
    * returns the usage record for a customer which 
    * summarizes all its energy (regardless of tariff, or powerType)
@@ -0,0 +1,38 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.interfaces;
+
+/**
+ * Services whose incoming messages may be queued, rather than handled on
+ * the JMS threads. When the broker runs in queued-ingestion mode, the
+ * MessageDispatcher only enqueues their messages, and the activation
+ * thread applies them (as the single writer of the service's state)
+ * before activating the services of a timeslot.
+ *
+ * @author urieli
+ */
+public interface QueuedMessageHandler
+{
+  /**
+   * Called once/timeslot, after the messages received so far have been
+   * handled and before any service is activated; a place to publish
+   * immutable snapshots for readers running during activation.
+   */
+  public void messagesApplied(int timeslot);
+}
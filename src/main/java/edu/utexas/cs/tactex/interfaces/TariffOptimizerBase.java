@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.log4j.Logger;
@@ -44,7 +45,7 @@ implements TariffOptimizer {
 
   private static Logger log = Logger.getLogger(TariffOptimizerBase.class);
 
-  private ShiftingPredictor shiftingPredictor;
+  protected ShiftingPredictor shiftingPredictor;
   
   protected WithdrawFeesOptimizer withdrawFeesOptimizer;
   protected TariffRepoMgr tariffRepoMgr;
@@ -116,20 +117,29 @@ implements TariffOptimizer {
    */
   protected HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> estimateRelevantTariffCharges(List<TariffSpecification> suggestedSpecs, HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> tariffSubscriptions,
       List<TariffSpecification> competingTariffs, HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> customer2ShiftedEnergy) {
-        addSuggestedSpecsToRepo(suggestedSpecs);
-      
-        List<TariffSpecification> relevantTariffs = 
-            new ArrayList<TariffSpecification>(tariffSubscriptions.keySet());
-        relevantTariffs.addAll(competingTariffs);
-        relevantTariffs.addAll(suggestedSpecs);
-        HashMap<CustomerInfo,HashMap<TariffSpecification, Double >>
-          customer2estimatedTariffCharges = 
-              chargeEstimator.estimateRelevantTariffCharges(
-                  relevantTariffs, customer2ShiftedEnergy);
+        // concurrent charge estimations may share the repo (tariffs are only
+        // looked up by id), but migration predictions must not see our specs
+        Lock tmpSpecsLock = tariffRepoMgr.getTmpSpecsLock().readLock();
+        tmpSpecsLock.lock();
+        try {
+          addSuggestedSpecsToRepo(suggestedSpecs);
         
-        removeTmpSpecsFromRepo(suggestedSpecs);
-        
-        return customer2estimatedTariffCharges;
+          List<TariffSpecification> relevantTariffs = 
+              new ArrayList<TariffSpecification>(tariffSubscriptions.keySet());
+          relevantTariffs.addAll(competingTariffs);
+          relevantTariffs.addAll(suggestedSpecs);
+          HashMap<CustomerInfo,HashMap<TariffSpecification, Double >>
+            customer2estimatedTariffCharges = 
+                chargeEstimator.estimateRelevantTariffCharges(
+                    relevantTariffs, customer2ShiftedEnergy);
+          
+          removeTmpSpecsFromRepo(suggestedSpecs);
+          
+          return customer2estimatedTariffCharges;
+        }
+        finally {
+          tmpSpecsLock.unlock();
+        }
       }
 
   /**
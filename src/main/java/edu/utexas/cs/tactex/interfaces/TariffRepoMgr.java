@@ -21,6 +21,7 @@ package edu.utexas.cs.tactex.interfaces;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import org.powertac.common.Broker;
 import org.powertac.common.Tariff;
@@ -48,6 +49,14 @@ public interface TariffRepoMgr {
 
   List<TariffSpecification> findTariffSpecificationsByBroker(Broker broker);
 
+  /**
+   * Guards temporary specs. Code that adds temporary specs and looks
+   * tariffs up only by id holds the read lock; code that enumerates the
+   * repo's active tariffs (migration predictions) holds the write lock, so
+   * it never sees another evaluation's temporary specs.
+   */
+  ReadWriteLock getTmpSpecsLock();
+
   //Integer getPublicationTime(TariffSpecification spec);
 
 }
@@ -33,6 +33,11 @@ import org.powertac.common.TariffSpecification;
 public interface TariffUtilityEstimate {
   
   public double value(double[] point);
+
+  /**
+   * @return the gradient of value() at point (estimated)
+   */
+  public double[] gradient(double[] point);
   
   //public TariffSpecification convertPointToSpec(double[] point);
 
@@ -68,4 +68,44 @@ public interface UtilityEstimator {
       HashMap<CustomerInfo, ArrayRealVector> customer2estimatedEnergy,
       MarketPredictionManager marketPredictionManager,
       CostCurvesPredictor costCurvesPredictor, int currentTimeslot, Broker me);  
+
+  /**
+   * predicts customer subscriptions after publishing a spec, i.e. the
+   * migration that estimateUtilities() assumes for it
+   * @param spec: the published spec
+   * @param customer2RelevantTariffCharges: computed charges, including spec's
+   * @param tariffSubscriptions: customer subscriptions by tariff    
+   * @param competingTariffs: a list of tariffs published by other brokers
+   * @param currentTimeslot: down propagating the current time
+   * @return predicted subscribed population, by tariff and customer
+   */
+  HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictCustomerSubscriptions(
+      TariffSpecification spec,
+      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2RelevantTariffCharges,
+      HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> tariffSubscriptions,
+      List<TariffSpecification> competingTariffs,
+      int currentTimeslot);
+
+  /**
+   * estimates the utility of given predicted subscriptions, i.e. what
+   * estimateUtilities() computes for a spec once its migration is
+   * predicted, excluding the publication fee
+   * @param tariffSubscriptions: current customer subscriptions by tariff    
+   * @param predictedCustomerSubscriptions: e.g. from predictCustomerSubscriptions()
+   * @param customer2estimatedTariffCharges: computed charges, including the predicted tariffs'
+   * @param customerTariff2ShiftedEnergy: shifted energy, including the predicted tariffs'
+   * @param customer2NonShiftedEnergy: predicted energy consumption of each (single) customer
+   * @param marketPredictionManager: market (flat) cost predictions for the coming week
+   * @param costCurvesPredictor: a service class that predicts unit cost curves
+   * @param currentTimeslot: down propagating the current time
+   * @return estimated utility
+   */
+  double estimateUtility(
+      HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> tariffSubscriptions,
+      HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictedCustomerSubscriptions,
+      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2estimatedTariffCharges,
+      HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> customerTariff2ShiftedEnergy,
+      HashMap<CustomerInfo, ArrayRealVector> customer2NonShiftedEnergy,
+      MarketPredictionManager marketPredictionManager,
+      CostCurvesPredictor costCurvesPredictor, int currentTimeslot);
 }
@@ -36,12 +36,17 @@
 package edu.utexas.cs.tactex.servercustomers.common.repo;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.HashMap;
+import java.util.Map.Entry;
 
 import org.apache.log4j.Logger;
 import org.powertac.common.repo.DomainRepo;
@@ -168,6 +173,41 @@ public class RandomSeedRepo implements DomainRepo
     return buf.toString();
   }
   
+  // added: copying, for forks of the factored customers
+  /**
+   * Returns a repo with copies of this repo's seeds, in their current
+   * state: their random sequences continue like the originals' ones.
+   */
+  public RandomSeedRepo copy ()
+  {
+    RandomSeedRepo result = new RandomSeedRepo();
+    result.pendingSeedMap.putAll(pendingSeedMap);
+    for (Entry<String, RandomSeed> entry : seedMap.entrySet()) {
+      result.seedMap.put(entry.getKey(), copySeed(entry.getValue()));
+    }
+    return result;
+  }
+
+  private RandomSeed copySeed (RandomSeed seed)
+  {
+    // Random's state is private, but serialized
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(seed);
+      out.close();
+      ObjectInputStream in =
+          new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+      return (RandomSeed) in.readObject();
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("cannot copy seed " + seed.getId(), e);
+    }
+    catch (ClassNotFoundException e) {
+      throw new IllegalStateException("cannot copy seed " + seed.getId(), e);
+    }
+  }
+  
   public void recycle ()
   {
     seedMap.clear();
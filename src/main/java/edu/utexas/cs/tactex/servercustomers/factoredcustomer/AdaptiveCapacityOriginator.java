@@ -95,12 +95,13 @@ final class AdaptiveCapacityOriginator extends DefaultCapacityOriginator
 
         optimizerStructure = getParentBundle().getOptimizerStructure();
 
+        // the seed is set to its value, like a new Random(value), and its
+        // state is in the repo (copied by forks)
         recommendationHandler =
-                new Random(service.getRandomSeedRepo()
+                service.getRandomSeedRepo()
                            .getRandomSeed("factoredcustomer.AdaptiveCapacityOriginator", 
                                           SeedIdGenerator.getId(),
-                                          "RecommendationHandler")
-                                          .getValue());
+                                          "RecommendationHandler");
         
         forecastCapacitiesPerSub = new HashMap<TariffSubscription, Map<Integer,Double>>();
         tariff2inconv = new HashMap<Tariff, Double>();
@@ -231,6 +231,12 @@ class DefaultCapacityOriginator implements CapacityOriginator
     return ret;
   }
 
+  // test-support
+  double getBaseCapacityForTimeslot (int timeslot)
+  {
+    return getBaseCapacity(timeslot);
+  }
+
   private double drawBaseCapacitySample (int timeslot)
   {
     double baseCapacity = 0.0;
@@ -731,6 +737,26 @@ class DefaultCapacityOriginator implements CapacityOriginator
     // no such data here currently
   }
 
+  @Override
+  public void copyStateFrom(CapacityOriginator original) {
+    DefaultCapacityOriginator source = (DefaultCapacityOriginator) original;
+    baseCapacities.putAll(source.baseCapacities);
+    forecastCapacities.putAll(source.forecastCapacities);
+    actualCapacities.putAll(source.actualCapacities);
+    curtailedCapacities.putAll(source.curtailedCapacities);
+    shiftedCurtailments.putAll(source.shiftedCurtailments);
+    if (null != tsGenerator) {
+      tsGenerator.copyStateFrom(source.tsGenerator);
+    }
+    // seeded alike, since the seeds are copied
+    if (null != capacityStructure.basePopulationCapacity) {
+      capacityStructure.basePopulationCapacity.skipTo(source.capacityStructure.basePopulationCapacity);
+    }
+    if (null != capacityStructure.baseIndividualCapacity) {
+      capacityStructure.baseIndividualCapacity.skipTo(source.capacityStructure.baseIndividualCapacity);
+    }
+  }
+
   private WeatherReport getCurrentWeatherReport(int currentTimeslot) {
     // we don't want to run into sync issues
     // currentWeatherReport = service.getWeatherReportRepo().currentWeatherReport();
@@ -57,6 +57,8 @@ import edu.utexas.cs.tactex.servercustomers.common.repo.ServerBasedWeatherForeca
 import edu.utexas.cs.tactex.servercustomers.common.repo.ServerBasedWeatherReportRepo;
 import edu.utexas.cs.tactex.servercustomers.common.repo.TariffSubscriptionRepo;
 import edu.utexas.cs.tactex.servercustomers.factoredcustomer.CustomerFactory.CustomerCreator;
+import edu.utexas.cs.tactex.servercustomers.factoredcustomer.interfaces.CapacityBundle;
+import edu.utexas.cs.tactex.servercustomers.factoredcustomer.interfaces.CapacityOriginator;
 import edu.utexas.cs.tactex.servercustomers.factoredcustomer.interfaces.FactoredCustomer;
 import edu.utexas.cs.tactex.servercustomers.factoredcustomer.utils.SeedIdGenerator;
 import edu.utexas.cs.tactex.utils.BrokerUtils;
@@ -161,7 +163,6 @@ public class FactoredCustomerService //extends TimeslotPhaseProcessor
 
         customerStructures.clear();
         customers.clear();
-        SeedIdGenerator.reset();
         
         
         // sending our (common) repo to here
@@ -181,17 +182,68 @@ public class FactoredCustomerService //extends TimeslotPhaseProcessor
 //    
         loadCustomerStructures(configResource);
     
-        log.info("Creating factored customers from configuration structures...");
-        for (CustomerStructure customerStructure: customerStructures) { 
-            FactoredCustomer customer = customerFactory.processStructure(customerStructure);
-            if (customer != null) {
-                customer.initialize(this, customerStructure);
-                customers.add(customer);
-            } else throw new Error("Could not create factored customer for structure: " + customerStructure.name);
-        }
-        log.info("Successfully initialized " + customers.size() + " factored customers from " + customerStructures.size() + " structures");     
+        createCustomers();
         return "FactoredCustomer";
   }
+
+  // added: forking, for running predictions concurrently
+  /**
+   * @return an independent copy of this service's customers, e.g. for
+   * running shifting predictions concurrently. The customer structures
+   * and the environment's repos (time, timeslots, weather) are shared
+   * and only read; customers, their subscriptions and their (per
+   * subscription) forecasts are the copy's own. The copy continues the
+   * original's random sequences and drawn capacities, so it predicts like
+   * the original would; the caller must not modify the original meanwhile.
+   */
+  public FactoredCustomerService fork ()
+  {
+    FactoredCustomerService result = new FactoredCustomerService();
+    result.timeslotRepo = timeslotRepo;
+    result.timeService = timeService;
+    result.weatherReportRepo = weatherReportRepo;
+    result.weatherForecastRepo = weatherForecastRepo;
+    result.tariffMarketService = tariffMarketService;
+    result.tariffRepo = tariffRepo;
+    result.configResource = configResource;
+    result.capacityDetailsLogging = capacityDetailsLogging;
+    result.usageChargesLogging = usageChargesLogging;
+    result.registerAvailableCustomerCreators();
+    // structures are not modified after loading
+    result.customerStructures = customerStructures;
+    // customers get their seeds, in their current state, from the copy
+    result.randomSeedRepo = randomSeedRepo.copy();
+    result.createCustomers();
+    for (int i = 0; i < customers.size(); ++i) {
+      List<CapacityBundle> bundles = customers.get(i).getCapacityBundles();
+      List<CapacityBundle> forkBundles = result.customers.get(i).getCapacityBundles();
+      for (int j = 0; j < bundles.size(); ++j) {
+        List<CapacityOriginator> originators = bundles.get(j).getCapacityOriginators();
+        List<CapacityOriginator> forkOriginators = forkBundles.get(j).getCapacityOriginators();
+        for (int k = 0; k < originators.size(); ++k) {
+          forkOriginators.get(k).copyStateFrom(originators.get(k));
+        }
+      }
+    }
+    return result;
+  }
+
+  private void createCustomers ()
+  {
+    // customer creation uses static seed ids and counters
+    synchronized (FactoredCustomerService.class) {
+      SeedIdGenerator.reset();
+      log.info("Creating factored customers from configuration structures...");
+      for (CustomerStructure customerStructure: customerStructures) { 
+          FactoredCustomer customer = customerFactory.processStructure(customerStructure);
+          if (customer != null) {
+              customer.initialize(this, customerStructure);
+              customers.add(customer);
+          } else throw new Error("Could not create factored customer for structure: " + customerStructure.name);
+      }
+    }
+    log.info("Successfully initialized " + customers.size() + " factored customers from " + customerStructures.size() + " structures");     
+  }
     
   // mockable component access methods - package visibility
   TimeService getTimeService ()
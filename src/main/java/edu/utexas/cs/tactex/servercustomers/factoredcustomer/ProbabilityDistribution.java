@@ -38,12 +38,10 @@ package edu.utexas.cs.tactex.servercustomers.factoredcustomer;
 import java.util.Random;
 import org.w3c.dom.*;
 
-import edu.utexas.cs.tactex.servercustomers.common.repo.RandomSeedRepo;
 import edu.utexas.cs.tactex.servercustomers.factoredcustomer.utils.SeedIdGenerator;
 
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.*;
-import org.powertac.common.spring.SpringApplicationContext;
 
 /**
  * Container class for one a large set of probability distribution samplers.
@@ -56,7 +54,7 @@ final class ProbabilityDistribution
     enum DistType { DEGENERATE, POINTMASS, UNIFORM, INTERVAL, NORMAL, GAUSSIAN, STDNORMAL, LOGNORMAL, 
                     CAUCHY, BETA, BINOMIAL, POISSON, CHISQUARED, EXPONENTIAL, GAMMA, WEIBULL, STUDENT, SNEDECOR }  
 
-    private RandomSeedRepo randomSeedRepo = null;
+    //private RandomSeedRepo randomSeedRepo = null;
 
     private static long distCounter = 0;
     private final long distId = ++distCounter;
@@ -64,13 +62,15 @@ final class ProbabilityDistribution
     private final DistType type;
     private final Sampler sampler;
     private double param1, param2, param3, param4;
+    // samples drawn since seeding
+    private long numDraws = 0;
         
     
     ProbabilityDistribution(FactoredCustomerService service,
                             Element xml)
     {
-        if (null == randomSeedRepo)
-            randomSeedRepo = (RandomSeedRepo) SpringApplicationContext.getBean("randomSeedRepo");
+        //if (null == randomSeedRepo)
+        //    randomSeedRepo = (RandomSeedRepo) SpringApplicationContext.getBean("randomSeedRepo");
 
         type = Enum.valueOf(DistType.class, xml.getAttribute("distribution"));
         switch (type) {
@@ -163,6 +163,7 @@ final class ProbabilityDistribution
     double drawSample()
     {
         try {
+            ++numDraws;
             return sampler.sample();
         } 
         catch (MathException e) 
@@ -173,6 +174,18 @@ final class ProbabilityDistribution
         }
     }
  
+    // added: for forks of the factored customers
+    /**
+     * Advances the sampler to the position of original's sampler, which
+     * must have been seeded alike.
+     */
+    void skipTo(ProbabilityDistribution original)
+    {
+        while (numDraws < original.numDraws) {
+            drawSample();
+        }
+    }
+
     @Override
     public String toString() 
     {
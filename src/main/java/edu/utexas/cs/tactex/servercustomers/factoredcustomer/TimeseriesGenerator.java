@@ -152,11 +152,12 @@ final class TimeseriesGenerator
         //randomSeedRepo =
         //        (RandomSeedRepo) SpringApplicationContext.getBean("randomSeedRepo");
 
+        // like a new Random(value), with its state in the repo
         arimaNoise =
-                new Random(service.getRandomSeedRepo()
+                service.getRandomSeedRepo()
                            .getRandomSeed("factoredcustomer.TimeseriesGenerator", 
                                           SeedIdGenerator.getId(),
-                                          "ArimaNoise").getValue());
+                                          "ArimaNoise");
     }
     
     private void initArima101x101RefSeries()
@@ -219,6 +220,16 @@ final class TimeseriesGenerator
         return next;
     }
     
+    // added: for forks of the factored customers
+    /**
+     * Continues original's generated series (which starts at the first
+     * timeslot it was asked for).
+     */
+    void copyStateFrom(TimeseriesGenerator original)
+    {
+        genSeries.putAll(original.genSeries);
+    }
+    
     private void initArima101x101GenSeries(int timeslot)
     {
         int start = timeslot;
@@ -76,6 +76,13 @@ public interface CapacityOriginator
         int currentTimeslot) throws Exception;
 
     void clearSubscriptionRelatedData();
+
+    /**
+     * Copies the state that predictions don't reset (drawn capacities,
+     * cached forecasts, samplers' positions) from the corresponding
+     * originator of the customers this one's were forked from.
+     */
+    void copyStateFrom(CapacityOriginator original);
 }
 
 
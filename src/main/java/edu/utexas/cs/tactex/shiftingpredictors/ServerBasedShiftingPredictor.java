@@ -23,8 +23,12 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.commons.math3.linear.RealVector;
@@ -50,56 +54,130 @@ import edu.utexas.cs.tactex.servercustomers.factoredcustomer.interfaces.Factored
 import edu.utexas.cs.tactex.utils.BrokerUtils;
 import edu.utexas.cs.tactex.utils.BrokerUtils.ShiftedEnergyData;
 
+/**
+ * Predicts shifting using the server's factored-customer models.
+ * Predictions may run concurrently: each one runs on a customer-model
+ * instance of its own, taken from a pool of forks of the original
+ * models. A customer is simulated only if its subscriptions differ from
+ * those of previous predictions in the current timeslot; otherwise its
+ * previous predictions are reused.
+ *
+ * @author urieli
+ */
 public class ServerBasedShiftingPredictor implements ShiftingPredictor {
 
   static private Logger log = Logger.getLogger(ServerBasedShiftingPredictor.class);
 
+  // bound on customers' cached predictions
+  private static final int MAX_CACHED_PREDICTIONS = 1000;
+
   private ShiftingPredictorNoShifts shiftingPredictorNoShifts;
   private ConfiguratorFactoryService configuratorFactoryService;
   private TariffRepoMgr tariffRepoMgr;
   
   private FactoredCustomerService factoredCustomerService;
   
-  private HashMap<String, CustomerInfo> bundleCustInfos;
+  // the model that others are forked from, and the customer models that
+  // are not running a prediction (guarded by itself); a model is locked
+  // while it predicts
+  private CustomerModel originalCustomerModel;
+  private LinkedList<CustomerModel> idleCustomerModels;
   private HashMap<String, CustomerInfo> brokerCustInfos;
 
+  // customer's predictions, bundle name => (tariff id => energy), keyed by
+  // the customer's subscriptions (see createShiftingKey()), in
+  // cacheTimeslot (guarded by itself)
+  private LinkedHashMap<String, HashMap<String, HashMap<Long, ShiftedEnergyData>>> predictionsCache;
+  private int cacheTimeslot;
+
 
   public ServerBasedShiftingPredictor(ShiftingPredictorNoShifts shiftingPredictorNoShifts, ConfiguratorFactoryService configuratorFactoryService, TariffRepoMgr tariffRepoMgr, CustomerRepo customerRepo, TimeslotRepo timeslotRepo, TimeService timeService, ServerBasedWeatherReportRepo weatherReportRepo, ServerBasedWeatherForecastRepo weatherForecastRepo) {
+    this(shiftingPredictorNoShifts, configuratorFactoryService, tariffRepoMgr,
+        createFactoredCustomerService(timeslotRepo, timeService, weatherReportRepo, weatherForecastRepo));
+  }
+
+
+  // test-support: predicts with the given (initialized) customers
+  ServerBasedShiftingPredictor(ShiftingPredictorNoShifts shiftingPredictorNoShifts, ConfiguratorFactoryService configuratorFactoryService, TariffRepoMgr tariffRepoMgr, FactoredCustomerService factoredCustomerService) {
     this.shiftingPredictorNoShifts = shiftingPredictorNoShifts;
     this.configuratorFactoryService = configuratorFactoryService;
     this.tariffRepoMgr = tariffRepoMgr;
-    factoredCustomerService = new FactoredCustomerService();
-    factoredCustomerService.initialize(timeslotRepo, timeService, weatherReportRepo, weatherForecastRepo);
-    // customerRepo should be initialized after the previous line
-    this.bundleCustInfos = createCustomerMapping(factoredCustomerService.getCustomerRepo().list());
+    this.factoredCustomerService = factoredCustomerService;
+    // customerRepo should be initialized after the service
+    this.originalCustomerModel = new CustomerModel(factoredCustomerService);
+    this.idleCustomerModels = new LinkedList<CustomerModel>();
+    idleCustomerModels.add(originalCustomerModel);
     // the following is needed since broker and factored-customer are using
     // different customerRepos (it was not possible unify them)
     this.brokerCustInfos = null; 
+    // least recently used predictions are evicted
+    this.predictionsCache = new LinkedHashMap<String, HashMap<String, HashMap<Long, ShiftedEnergyData>>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Entry<String, HashMap<String, HashMap<Long, ShiftedEnergyData>>> eldest) {
+        return size() > MAX_CACHED_PREDICTIONS;
+      }
+    };
+    this.cacheTimeslot = -1;
+  }
+
+
+  private static FactoredCustomerService createFactoredCustomerService(TimeslotRepo timeslotRepo, TimeService timeService, ServerBasedWeatherReportRepo weatherReportRepo, ServerBasedWeatherForecastRepo weatherForecastRepo) {
+    FactoredCustomerService result = new FactoredCustomerService();
+    result.initialize(timeslotRepo, timeService, weatherReportRepo, weatherForecastRepo);
+    return result;
   }
 
 
+  /**
+   * Concurrent predictions may share the repo, since they only look
+   * tariffs up by id; migration predictions, which enumerate it, must not
+   * see the specs that are temporarily added here.
+   */
   @Override
   public HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> 
   updateEstimatedEnergyWithShifting(
       HashMap<CustomerInfo, ArrayRealVector> customer2estimatedEnergy,
       HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictedCustomerSubscriptions,
       int currentTimeslot) {
+    Lock tmpSpecsLock = tariffRepoMgr.getTmpSpecsLock().readLock();
+    tmpSpecsLock.lock();
+    try {
+      return doUpdateEstimatedEnergyWithShifting(customer2estimatedEnergy,
+          predictedCustomerSubscriptions, currentTimeslot);
+    }
+    finally {
+      tmpSpecsLock.unlock();
+    }
+  }
+
+
+  private HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> 
+  doUpdateEstimatedEnergyWithShifting(
+      HashMap<CustomerInfo, ArrayRealVector> customer2estimatedEnergy,
+      HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictedCustomerSubscriptions,
+      int currentTimeslot) {
 
     // first, some preparations and support code
     
     // create cache mapping the first time we are here needed since broker and
     // factored-customer are using different customerRepos (was not possible to
     // unify them)
-    if (null == brokerCustInfos) {
-      brokerCustInfos = createCustomerMapping(customer2estimatedEnergy.keySet());
+    synchronized (this) {
+      if (null == brokerCustInfos) {
+        brokerCustInfos = createCustomerMapping(customer2estimatedEnergy.keySet());
+      }
     }
     
-    // temporarily add missing tariffs to repo
+    // temporarily add missing tariffs to repo (concurrent predictions
+    // are assumed to add different specs)
     HashSet<TariffSpecification> specsToRemove = new HashSet<TariffSpecification>();
-    for (TariffSpecification spec : predictedCustomerSubscriptions.keySet()) {
-      if (null == tariffRepoMgr.findTariffById(spec.getId())) {
-        tariffRepoMgr.addToRepo(spec);
-        specsToRemove.add(spec);
+    synchronized (tariffRepoMgr) {
+      for (TariffSpecification spec : predictedCustomerSubscriptions.keySet()) {
+        if (null == tariffRepoMgr.findTariffById(spec.getId())) {
+          tariffRepoMgr.addToRepo(spec);
+          specsToRemove.add(spec);
+        }
       }
     }
 
@@ -122,18 +200,60 @@ public class ServerBasedShiftingPredictor implements ShiftingPredictor {
       // energy estimations using factored-customers' time-series code, which
       // uses weather, time and so on
       //fillCustomersWithEstimatedEnergy(customer2estimatedEnergy, currentTimeslot);
-      
-      // push subscriptions to customer
-      fillRepoWithPredictedSubscriptions(predictedCustomerSubscriptions);
-          
-      // run shifting prediction
-      factoredCustomerService.predictAndOverwriteWithShiftingAndElasticity(currentTimeslot);
-
-      // override parts of result with shifted predictions
-      try {
-        updateResultWithShiftedEnergyPredictions(result, predictedCustomerSubscriptions, recordLength, currentTimeslot);
-      } catch (Exception e) {
-        log.error("caught exception from updateResultWithShiftedEnergyPredictions(): ", e);
+
+      // revert mappings
+      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> 
+          cust2spec2subs = 
+              BrokerUtils.revertKeyMapping(predictedCustomerSubscriptions);
+
+      // reuse cached predictions, and find customers that need simulation
+      // (customers are indexed the same in all customer models)
+      List<FactoredCustomer> customers = factoredCustomerService.getCustomers();
+      String[] shiftingKeys = new String[customers.size()];
+      List<Integer> customersToSimulate = new ArrayList<Integer>();
+      for (int i = 0; i < customers.size(); ++i) {
+        shiftingKeys[i] = createShiftingKey(customers.get(i), cust2spec2subs, recordLength, currentTimeslot);
+        if (null == shiftingKeys[i]) {
+          // no subscriptions, nothing to predict
+          continue;
+        }
+        HashMap<String, HashMap<Long, ShiftedEnergyData>> predictions = 
+            getCachedPredictions(shiftingKeys[i], currentTimeslot);
+        if (null == predictions) {
+          customersToSimulate.add(i);
+        }
+        else {
+          putPredictions(result, predictions, cust2spec2subs);
+        }
+      }
+      log.debug("simulating " + customersToSimulate.size() + " of " + customers.size() + " customers");
+
+      if ( ! customersToSimulate.isEmpty() ) {
+        CustomerModel customerModel = acquireCustomerModel();
+        try {
+          synchronized (customerModel) {
+            // push subscriptions to customer
+            fillRepoWithPredictedSubscriptions(customerModel, predictedCustomerSubscriptions);
+            
+            for (int i : customersToSimulate) {
+              FactoredCustomer customer = customerModel.service.getCustomers().get(i);
+              // run shifting prediction
+              customer.updateWithShiftingAndElasticity(currentTimeslot);
+              // override parts of result with shifted predictions
+              try {
+                HashMap<String, HashMap<Long, ShiftedEnergyData>> predictions = 
+                    predictShiftedEnergy(customerModel, customer, cust2spec2subs, recordLength, currentTimeslot);
+                cachePredictions(shiftingKeys[i], currentTimeslot, predictions);
+                putPredictions(result, predictions, cust2spec2subs);
+              } catch (Exception e) {
+                log.error("caught exception from predictShiftedEnergy(): ", e);
+              }
+            }
+          }
+        }
+        finally {
+          releaseCustomerModel(customerModel);
+        }
       }
 
     } catch (Throwable e) {
@@ -147,13 +267,38 @@ public class ServerBasedShiftingPredictor implements ShiftingPredictor {
   }
 
 
+  /**
+   * @return idle customer models, or a new fork of them if all are busy;
+   * the original is not copied in the middle of a prediction
+   */
+  private CustomerModel acquireCustomerModel() {
+    synchronized (idleCustomerModels) {
+      if ( ! idleCustomerModels.isEmpty() ) {
+        return idleCustomerModels.removeFirst();
+      }
+    }
+    log.info("forking customer models for a concurrent shifting prediction");
+    synchronized (originalCustomerModel) {
+      return new CustomerModel(factoredCustomerService.fork());
+    }
+  }
+
+
+  private void releaseCustomerModel(CustomerModel customerModel) {
+    synchronized (idleCustomerModels) {
+      idleCustomerModels.addFirst(customerModel);
+    }
+  }
+
+
   private void fillRepoWithPredictedSubscriptions(
+      CustomerModel customerModel,
       HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictedCustomerSubscriptions) {
     
     // clean
-    factoredCustomerService.cleanSubscriptionRelatedData();
+    customerModel.service.cleanSubscriptionRelatedData();
 
-    TariffSubscriptionRepo tariffSubscriptionRepo = factoredCustomerService.getTariffSubscriptionRepo();
+    TariffSubscriptionRepo tariffSubscriptionRepo = customerModel.service.getTariffSubscriptionRepo();
     // record all subscriptions
     for (Entry<TariffSpecification, HashMap<CustomerInfo, Double>> entry : predictedCustomerSubscriptions.entrySet()) {
       TariffSpecification spec = entry.getKey();
@@ -161,7 +306,7 @@ public class ServerBasedShiftingPredictor implements ShiftingPredictor {
       HashMap<CustomerInfo, Double> cust2subs = entry.getValue();
       for (Entry<CustomerInfo, Double> custSub : cust2subs.entrySet()) {
         int count = (int)Math.round((double)custSub.getValue());
-        CustomerInfo custInfo = bundleCustInfos.get(custSub.getKey().getName());
+        CustomerInfo custInfo = customerModel.bundleCustInfos.get(custSub.getKey().getName());
         TariffSubscription subscription = tariffSubscriptionRepo.getSubscription(custInfo, tariff);
         subscription.subscribe(count);
       }    
@@ -184,48 +329,114 @@ public class ServerBasedShiftingPredictor implements ShiftingPredictor {
   }
 
 
-  private void updateResultWithShiftedEnergyPredictions(
-      HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> result, HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictedCustomerSubscriptions, int recordLength, int currentTimeslot) throws Exception {
+  /**
+   * @return a key of a customer's subscriptions in a prediction, or null
+   * if it has none. Its predictions depend only on these (and on the
+   * environment, which changes between timeslots).
+   */
+  private String createShiftingKey(FactoredCustomer customer, 
+      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> cust2spec2subs, 
+      int recordLength, int currentTimeslot) {
+    StringBuilder key = new StringBuilder();
+    key.append(currentTimeslot).append('/').append(recordLength);
+    boolean hasSubscriptions = false;
+    for (CapacityBundle bundle : customer.getCapacityBundles()) {
+      String bundleName = bundle.getCustomerInfo().getName();
+      HashMap<TariffSpecification, Double> spec2subs = cust2spec2subs.get(brokerCustInfos.get(bundleName));
+      if (null == spec2subs || spec2subs.isEmpty()) {
+        continue;
+      }
+      // sorted by tariff id; counts are rounded like in the subscription repo
+      TreeMap<Long, Long> tariff2count = new TreeMap<Long, Long>();
+      for (Entry<TariffSpecification, Double> entry : spec2subs.entrySet()) {
+        tariff2count.put(entry.getKey().getId(), Math.round(entry.getValue()));
+      }
+      key.append('/').append(bundleName).append(tariff2count);
+      hasSubscriptions = true;
+    }
+    return hasSubscriptions ? key.toString() : null;
+  }
+
+
+  private HashMap<String, HashMap<Long, ShiftedEnergyData>> getCachedPredictions(
+      String shiftingKey, int currentTimeslot) {
+    synchronized (predictionsCache) {
+      if (cacheTimeslot != currentTimeslot) {
+        predictionsCache.clear();
+        cacheTimeslot = currentTimeslot;
+      }
+      return predictionsCache.get(shiftingKey);
+    }
+  }
+
+
+  private void cachePredictions(String shiftingKey, int currentTimeslot,
+      HashMap<String, HashMap<Long, ShiftedEnergyData>> predictions) {
+    synchronized (predictionsCache) {
+      if (cacheTimeslot == currentTimeslot) {
+        predictionsCache.put(shiftingKey, predictions);
+      }
+    }
+  }
+
 
-     // revert mappings
-    HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> 
-        cust2spec2subs = 
-            BrokerUtils.revertKeyMapping(predictedCustomerSubscriptions);
+  /**
+   * @return the (simulated) customer's predicted energy, 
+   * bundle name => (tariff id => energy)
+   */
+  private HashMap<String, HashMap<Long, ShiftedEnergyData>> predictShiftedEnergy(
+      CustomerModel customerModel, 
+      FactoredCustomer customer,
+      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> cust2spec2subs, 
+      int recordLength, int currentTimeslot) throws Exception {
 
+    HashMap<String, HashMap<Long, ShiftedEnergyData>> result = 
+        new HashMap<String, HashMap<Long, ShiftedEnergyData>>();
     // get all consumption bundles, extract CustomerInfo, ..., get energy
     // record from bundle's originators 
-    
-    // this just iterates over all CustomerInfo's
-    for (FactoredCustomer customer : factoredCustomerService.getCustomers()) {
-      for (CapacityBundle bundle : customer.getCapacityBundles()) {
-        // convert bundle to CustomerInfo
-        CustomerInfo custInfoBundle = bundle.getCustomerInfo();
-        CustomerInfo custInfoBroker = brokerCustInfos.get(custInfoBundle.getName());
-        // get specs to which customer subscribed
-        HashMap<TariffSpecification, Double> spec2subs = cust2spec2subs.get(custInfoBroker);
-        // sanity test
-        if (null == spec2subs) {
-          //throw new Exception("How come spec2subs is null for customer " + custInfoBundle.getName());
-          
-          // don't need prediction for a customer that is not in cust2spec2subs
-          // since if the top-caller was PorftolioMgr.collectShiftedUsage() we 
-          // only need it for currently subscribed customers, and if the caller
-          // was utility-prediction, than it should already put all the
-          // customers/tariffs for which it needs predictions
-          continue;
-        }
-        
-        // for each spec get predicted energy, which is the sum of all
-        // CapacityOriginator's energy
-        for (TariffSpecification spec : spec2subs.keySet()) {
-          Tariff tariff = tariffRepoMgr.findTariffById(spec.getId());
-          TariffSubscription subscription = 
-              factoredCustomerService.getTariffSubscriptionRepo().getSubscription(custInfoBundle, tariff);
-          ArrayRealVector bundlePredictedEnergy = bundle.getPredictedEnergy(subscription, recordLength, currentTimeslot);
-          Double inconvenience = bundle.getShiftingInconvenienceFactor(subscription, recordLength);
-          ShiftedEnergyData entry = new ShiftedEnergyData(bundlePredictedEnergy, inconvenience);
-          putEnergyProfile(result, custInfoBroker, spec, entry);
-        }
+    for (CapacityBundle bundle : customer.getCapacityBundles()) {
+      // convert bundle to CustomerInfo
+      CustomerInfo custInfoBundle = bundle.getCustomerInfo();
+      CustomerInfo custInfoBroker = brokerCustInfos.get(custInfoBundle.getName());
+      // get specs to which customer subscribed
+      HashMap<TariffSpecification, Double> spec2subs = cust2spec2subs.get(custInfoBroker);
+      if (null == spec2subs) {
+        // don't need prediction for a customer that is not in cust2spec2subs
+        // since if the top-caller was PorftolioMgr.collectShiftedUsage() we 
+        // only need it for currently subscribed customers, and if the caller
+        // was utility-prediction, than it should already put all the
+        // customers/tariffs for which it needs predictions
+        continue;
+      }
+      
+      // for each spec get predicted energy, which is the sum of all
+      // CapacityOriginator's energy
+      HashMap<Long, ShiftedEnergyData> tariff2energy = new HashMap<Long, ShiftedEnergyData>();
+      for (TariffSpecification spec : spec2subs.keySet()) {
+        Tariff tariff = tariffRepoMgr.findTariffById(spec.getId());
+        TariffSubscription subscription = 
+            customerModel.service.getTariffSubscriptionRepo().getSubscription(custInfoBundle, tariff);
+        ArrayRealVector bundlePredictedEnergy = bundle.getPredictedEnergy(subscription, recordLength, currentTimeslot);
+        Double inconvenience = bundle.getShiftingInconvenienceFactor(subscription, recordLength);
+        tariff2energy.put(spec.getId(), new ShiftedEnergyData(bundlePredictedEnergy, inconvenience));
+      }
+      result.put(custInfoBundle.getName(), tariff2energy);
+    }
+    return result;
+  }
+
+
+  /**
+   * puts a customer's predictions (see predictShiftedEnergy()) in result
+   */
+  private void putPredictions(
+      HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> result,
+      HashMap<String, HashMap<Long, ShiftedEnergyData>> predictions,
+      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> cust2spec2subs) {
+    for (Entry<String, HashMap<Long, ShiftedEnergyData>> entry : predictions.entrySet()) {
+      CustomerInfo custInfoBroker = brokerCustInfos.get(entry.getKey());
+      for (TariffSpecification spec : cust2spec2subs.get(custInfoBroker).keySet()) {
+        putEnergyProfile(result, custInfoBroker, spec, entry.getValue().get(spec.getId()));
       }
     }
   }
@@ -259,4 +470,23 @@ public class ServerBasedShiftingPredictor implements ShiftingPredictor {
     return result;
   }
 
+
+
+  /**
+   * A factored-customer service and its customers by name (each fork has
+   * CustomerInfos of its own)
+   */
+  private static class CustomerModel {
+
+    private final FactoredCustomerService service;
+    private final HashMap<String, CustomerInfo> bundleCustInfos;
+
+    CustomerModel(FactoredCustomerService service) {
+      this.service = service;
+      this.bundleCustInfos = new HashMap<String, CustomerInfo>();
+      for (CustomerInfo cust : service.getCustomerRepo().list()) {
+        bundleCustInfos.put(cust.getName(), cust);
+      }
+    }
+  }
 }
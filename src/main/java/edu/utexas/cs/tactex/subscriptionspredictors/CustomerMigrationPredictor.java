@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.log4j.Logger;
 import org.powertac.common.Broker;
@@ -34,6 +35,24 @@ import edu.utexas.cs.tactex.interfaces.OpponentPredictor;
 import edu.utexas.cs.tactex.interfaces.TariffRepoMgr;
 import edu.utexas.cs.tactex.utils.BrokerUtils;
 
+/**
+ * Predicts the subscriptions of all customers, one customer at a time
+ * through the chain of SingleCustomerMigrationPredictors.
+ *
+ * Predictions are serialized here, so callers (e.g. concurrent tariff
+ * optimizers) need no locking of their own. A prediction adds its
+ * candidate (and predicted competitor responses) to the tariff repo for
+ * the time of the prediction, and the server-based evaluators consider
+ * every active tariff in the repo: concurrent predictions would see each
+ * other's candidates as competing tariffs. Forking the chain wouldn't
+ * help, since a Tariff can only be initialized into the shared repo. The
+ * chain's lazily created per-customer evaluators are guarded as well.
+ * Predictions also hold the repo's temporary-specs write lock, so they
+ * don't see the specs that concurrent shifting and charge estimations
+ * add for the time being.
+ *
+ * @author urieli
+ */
 public class CustomerMigrationPredictor {
 
   static private Logger log = Logger.getLogger(CustomerMigrationPredictor.class);
@@ -48,7 +67,26 @@ public class CustomerMigrationPredictor {
     this.tariffRepoMgr = tariffRepoMgr;
   }
 
-  public HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictMigrationForRevoke(
+  public synchronized HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictMigrationForRevoke(
+      TariffSpecification candidateSpec,
+      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2tariffEvaluations,
+      HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> tariff2customerSubscriptions,
+      List<TariffSpecification> competingTariffs,
+      OpponentPredictor opponentPredictor, boolean useOppPred, int currentTimeslot) {
+    Lock tmpSpecsLock = tariffRepoMgr.getTmpSpecsLock().writeLock();
+    tmpSpecsLock.lock();
+    try {
+      return doPredictMigrationForRevoke(candidateSpec, customer2tariffEvaluations,
+          tariff2customerSubscriptions, competingTariffs, opponentPredictor,
+          useOppPred, currentTimeslot);
+    }
+    finally {
+      tmpSpecsLock.unlock();
+    }
+  }
+
+
+  private HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> doPredictMigrationForRevoke(
       TariffSpecification candidateSpec,
       HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2tariffEvaluations,
       HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> tariff2customerSubscriptions,
@@ -109,7 +147,26 @@ public class CustomerMigrationPredictor {
   }
 
 
-  public HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictMigration(
+  public synchronized HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictMigration(
+      TariffSpecification candidateSpec,
+      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2tariffEvaluations,
+      HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> tariff2customerSubscriptions,
+      List<TariffSpecification> competingTariffs,
+      OpponentPredictor opponentPredictor, boolean useOppPred, int currentTimeslot) {
+    Lock tmpSpecsLock = tariffRepoMgr.getTmpSpecsLock().writeLock();
+    tmpSpecsLock.lock();
+    try {
+      return doPredictMigration(candidateSpec, customer2tariffEvaluations,
+          tariff2customerSubscriptions, competingTariffs, opponentPredictor,
+          useOppPred, currentTimeslot);
+    }
+    finally {
+      tmpSpecsLock.unlock();
+    }
+  }
+
+
+  private HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> doPredictMigration(
       TariffSpecification candidateSpec,
       HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2tariffEvaluations,
       HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> tariff2customerSubscriptions,
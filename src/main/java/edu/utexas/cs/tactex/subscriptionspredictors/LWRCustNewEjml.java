@@ -21,9 +21,9 @@
  */
 package edu.utexas.cs.tactex.subscriptionspredictors;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 
@@ -39,6 +39,7 @@ import org.powertac.common.CustomerInfo;
 
 import edu.utexas.cs.tactex.ConfiguratorFactoryService;
 import edu.utexas.cs.tactex.interfaces.CandidateTariffSubsPredictor;
+import edu.utexas.cs.tactex.utils.LocallyWeightedRegression;
 
 /**
  * @author urieli
@@ -52,6 +53,10 @@ implements CandidateTariffSubsPredictor {
   private static final double SQUEEZE = 0.8;
   private static final double OFFSET = 0.1;
 
+  private static final double[] CANDIDATE_TAUS = 
+      //{0.025 * SQUEEZE,
+      {0.05, 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9, 1.0};
+
   private ConfiguratorFactoryService configuratorFactoryService;
 
 
@@ -66,6 +71,20 @@ implements CandidateTariffSubsPredictor {
    */
   @Override
   public Double predictNumSubs(double candidateEval, TreeMap<Double, Double> e2n, CustomerInfo customer, int timeslot) {
+    Double[] predictions = predictNumSubs(new double[] {candidateEval}, e2n, customer, timeslot);
+    return null == predictions ? null : predictions[0];
+  }
+
+
+  /**
+   * Batched version of predictNumSubs(): the bandwidth is cross-validated
+   * once for all candidates.
+   *
+   * @return predictions (null entries where LWR cannot predict), or null
+   * if cross-validation failed
+   */
+  @Override
+  public Double[] predictNumSubs(double[] candidateEvals, TreeMap<Double, Double> e2n, CustomerInfo customer, int timeslot) {
     // tree map guarantees that keys are unique
     // so we are suppose to be able to run LWR
     // if there are at least 3 entries (even 2)
@@ -75,52 +94,58 @@ implements CandidateTariffSubsPredictor {
     
     double min = e2n.firstKey();
     double max = e2n.lastKey();
-    SimpleMatrix xMat = createXMatrix(e2n.keySet(), min, max); 
-    SimpleMatrix yVec = createYVector(e2n.values()); 
+    double[] xVals = new double[e2n.size()];
+    double[] yVals = new double[e2n.size()];
+    int k = 0;
+    for (Entry<Double, Double> entry : e2n.entrySet()) {
+      xVals[k] = normalizeX(entry.getKey(), min, max);
+      yVals[k] = entry.getValue();
+      ++k;
+    }
+    LocallyWeightedRegression lwr = 
+        new LocallyWeightedRegression(xVals, yVals, configuratorFactoryService.isUseIcpt());
     
     double bestTau = Double.MAX_VALUE;
     double bestMSE = Double.MAX_VALUE;
 
-    ArrayList<Double> candidateTaus = new ArrayList<Double>(); 
-    //candidateTaus.add(0.025 * SQUEEZE);
-    candidateTaus.add(0.05);// * SQUEEZE);
-    candidateTaus.add(0.1);// * SQUEEZE);
-    candidateTaus.add(0.2);// * SQUEEZE);
-    candidateTaus.add(0.3);// * SQUEEZE);
-    candidateTaus.add(0.4);// * SQUEEZE);
-    candidateTaus.add(0.5);// * SQUEEZE);
-    candidateTaus.add(0.6);// * SQUEEZE);
-    candidateTaus.add(0.7);// * SQUEEZE);
-    candidateTaus.add(0.8);// * SQUEEZE);
-    candidateTaus.add(0.9);// * SQUEEZE);
-    candidateTaus.add(1.0);// * SQUEEZE);
-    for (Double tau : candidateTaus) {
-      Double mse = CrossValidationError(tau, xMat, yVec);
-      if (null == mse) {
+    double[] mses = lwr.crossValidationErrors(CANDIDATE_TAUS);
+    for (int t = 0; t < CANDIDATE_TAUS.length; ++t) {
+      double mse = mses[t];
+      if (Double.isNaN(mse)) {
         log.error(" cp cross-validation failed, return null");
         return null;
       }
       if (mse < bestMSE) {
         bestMSE = mse;
-        bestTau = tau;
+        bestTau = CANDIDATE_TAUS[t];
       }
     }
     log.info(" cp LWR bestTau " + bestTau);
-    double x0 = candidateEval;
-    Double prediction = LWRPredict(xMat, yVec, normalizeXAndAddIntercept(x0, min, max), bestTau);
-    if (null == prediction) {
-      log.error("LWR passed CV but cannot predict on new point. falling back to interpolateOrNN()");
-      log.error("e2n: " + e2n.toString());
-      log.error("candidateEval " + candidateEval);
-      return null;
+    double[] x0s = new double[candidateEvals.length];
+    for (int i = 0; i < candidateEvals.length; ++i) {
+      x0s[i] = normalizeX(candidateEvals[i], min, max);
+    }
+    double[] predictions = lwr.predict(x0s, bestTau);
+    Double[] result = new Double[candidateEvals.length];
+    for (int i = 0; i < candidateEvals.length; ++i) {
+      if (Double.isNaN(predictions[i])) {
+        log.error("LWR passed CV but cannot predict on new point. falling back to interpolateOrNN()");
+        log.error("e2n: " + e2n.toString());
+        log.error("candidateEval " + candidateEvals[i]);
+        result[i] = null;
+      }
+      else {
+        // cast to int, and cannot be negative
+        result[i] = Math.max(0, (double)(int)predictions[i]);
+      }
     }
-    // cast to int, and cannot be negative
-    return Math.max(0, (double)(int)(double)prediction);
+    return result;
   }
 
 
   /**
    * Compute the n-fold Cross validation error with LWR and a given Tau
+   * (fold-by-fold; predictNumSubs() uses LocallyWeightedRegression)
    * 
    * @param tau
    * @param xMat
@@ -280,7 +305,7 @@ implements CandidateTariffSubsPredictor {
    * NOTE: be careful not to call it with max == min 
    */
   private SimpleMatrix normalizeXAndAddIntercept(double xVal, double min, double max) {
-    double normVal = ((xVal - min) / (max - min) * SQUEEZE) + OFFSET;
+    double normVal = normalizeX(xVal, min, max);
     SimpleMatrix result;
     if ( configuratorFactoryService.isUseIcpt() ) {
       result = new SimpleMatrix(2, 1);
@@ -296,6 +321,14 @@ implements CandidateTariffSubsPredictor {
   }
 
 
+  /**
+   * NOTE: be careful not to call it with max == min 
+   */
+  private double normalizeX(double xVal, double min, double max) {
+    return ((xVal - min) / (max - min) * SQUEEZE) + OFFSET;
+  }
+
+
   /**
    * @param mat
    * @return
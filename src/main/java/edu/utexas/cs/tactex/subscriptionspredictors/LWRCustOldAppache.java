@@ -52,6 +52,20 @@ implements CandidateTariffSubsPredictor {
    */
   @Override
   public Double predictNumSubs(double candidateEval, TreeMap<Double, Double> e2n, CustomerInfo customer, int timeslot) {
+    Double[] predictions = predictNumSubs(new double[] {candidateEval}, e2n, customer, timeslot);
+    return null == predictions ? null : predictions[0];
+  }
+
+
+  /**
+   * Batched version of predictNumSubs(): the bandwidth is cross-validated
+   * once for all candidates.
+   *
+   * @return predictions (null entries where LWR cannot predict), or null
+   * if cross-validation failed
+   */
+  @Override
+  public Double[] predictNumSubs(double[] candidateEvals, TreeMap<Double, Double> e2n, CustomerInfo customer, int timeslot) {
     // tree map guarantees that keys are unique
     // so we are suppose to be able to run LWR
     // if there are at least 3 entries (even 2)
@@ -92,16 +106,22 @@ implements CandidateTariffSubsPredictor {
       }
     }
     log.info(" cp LWR bestTau " + bestTau);
-    double x0 = candidateEval;
-    Double prediction = LWRPredict(xVec, yVec, normalizeX(x0, min, max), bestTau);
-    if (null == prediction) {
-      log.error("LWR passed CV but cannot predict on new point. falling back to interpolateOrNN()");
-      log.error("e2n: " + e2n.toString());
-      log.error("candidateEval " + candidateEval);
-      return null;
+    Double[] result = new Double[candidateEvals.length];
+    for (int i = 0; i < candidateEvals.length; ++i) {
+      double x0 = candidateEvals[i];
+      Double prediction = LWRPredict(xVec, yVec, normalizeX(x0, min, max), bestTau);
+      if (null == prediction) {
+        log.error("LWR passed CV but cannot predict on new point. falling back to interpolateOrNN()");
+        log.error("e2n: " + e2n.toString());
+        log.error("candidateEval " + candidateEvals[i]);
+        result[i] = null;
+      }
+      else {
+        // cast to int, and cannot be negative
+        result[i] = Math.max(0, (double)(int)(double)prediction);
+      }
     }
-    // cast to int, and cannot be negative
-    return Math.max(0, (double)(int)(double)prediction);
+    return result;
   }
 
 
@@ -90,6 +90,21 @@ implements CandidateTariffSubsPredictor {
     // cast to int, and cannot be negative
     return Math.max(0.0, Math.round(prediction));
   }
+
+
+  /**
+   * The regression is fitted once per customer and timeslot anyway, so
+   * candidates are predicted one by one.
+   */
+  @Override
+  public Double[] predictNumSubs(double[] candidateEvals,
+      TreeMap<Double, Double> e2n, CustomerInfo customer, int timeslot) {
+    Double[] result = new Double[candidateEvals.length];
+    for (int i = 0; i < candidateEvals.length; ++i) {
+      result[i] = predictNumSubs(candidateEvals[i], e2n, customer, timeslot);
+    }
+    return result;
+  }
         
 
   private WekaLinRegData retrieveOrCreateWekaData(TreeMap<Double,Double> e2n,
@@ -24,6 +24,7 @@ package edu.utexas.cs.tactex.subscriptionspredictors;
 import java.util.HashMap;
 import java.util.List;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Map.Entry;
 
 import org.apache.log4j.Logger;
@@ -45,9 +46,16 @@ public class RegressionBasedMigrationPredictor extends
   static private Logger log = Logger.getLogger(RegressionBasedMigrationPredictor.class);
 
   private ConfiguratorFactoryService configuratorFactoryService;
+
+  // batched regression predictions of cacheTimeslot, per customer;
+  // cacheTimeslot is guarded by predictionsCache
+  private HashMap<CustomerInfo, CachedPredictions> predictionsCache;
+  private int cacheTimeslot;
   
   public RegressionBasedMigrationPredictor(ConfiguratorFactoryService configuratorFactoryService) {
     this.configuratorFactoryService = configuratorFactoryService;
+    this.predictionsCache = new HashMap<CustomerInfo, CachedPredictions>();
+    this.cacheTimeslot = -1;
   }  
   
   //
@@ -118,9 +126,11 @@ public class RegressionBasedMigrationPredictor extends
     if (null != candidateSpec && customer.getPowerType().canUse(candidateSpec.getPowerType())) {
       Double charge = allTariff2Evaluations.get(candidateSpec);
       double candidateEvaluation = normalizeWithDefaultTariff(allTariff2Evaluations, defaultSpec, charge);      
-      updatePredictionWithCandidateSpec(result, candidateSpec,
-          candidateEvaluation, e2n, customer, 
-          customer.getPopulation(), timeslot);
+      Double hypotheticalNumSubscriptions = 
+          predictNumSubscriptions(candidateEvaluation, e2n, customer, timeslot,
+              tariff2subscriptions, allTariff2Evaluations, defaultSpec);
+      addCandidateAndNormalize(result, candidateSpec,
+          hypotheticalNumSubscriptions, customer, customer.getPopulation());
     }
 
     //filtering out competitors
@@ -317,6 +327,15 @@ public class RegressionBasedMigrationPredictor extends
     // predict fractional value of the new spec and hypotetically add it
     Double hypotheticalNumSubscriptions = 
         predictNumSubscriptions(candidateEvaluation, e2n, customer, timeslot);
+    addCandidateAndNormalize(customerSubscriptions, candidateSpec,
+        hypotheticalNumSubscriptions, customer, customerPopulation);
+  }
+
+
+  private void addCandidateAndNormalize(
+      HashMap<TariffSpecification, Double> customerSubscriptions,
+      TariffSpecification candidateSpec, Double hypotheticalNumSubscriptions,
+      CustomerInfo customer, int customerPopulation) {
     customerSubscriptions.put(candidateSpec, hypotheticalNumSubscriptions);
     // add to 1.0 and find normalization constant
     double normalizeConst = (double)customerPopulation / (customerPopulation + hypotheticalNumSubscriptions);
@@ -354,6 +373,87 @@ public class RegressionBasedMigrationPredictor extends
   }
 
 
+  /**
+   * Like predictNumSubscriptions(), but the regression is run once per
+   * customer (and training data) in a timeslot, for the evaluations of all
+   * the customer's candidates - the tariffs it can use and has no
+   * subscriptions to. Later candidates of the customer are looked up.
+   */
+  private Double predictNumSubscriptions(double candidateEval,
+      TreeMap<Double, Double> e2n, CustomerInfo customer, int timeslot,
+      HashMap<TariffSpecification, Integer> tariff2subscriptions,
+      HashMap<TariffSpecification, Double> allTariff2Evaluations,
+      TariffSpecification defaultSpec) {
+
+    if ( ! (e2n.size() > 2 && configuratorFactoryService.isUseLWR()) ) {
+      return interpolateOrNN(candidateEval, e2n);
+    }
+    HashMap<Double, Double> eval2prediction = getCachedPredictions(customer, e2n, timeslot);
+    if (null == eval2prediction || ! eval2prediction.containsKey(candidateEval)) {
+      TreeSet<Double> evaluations = new TreeSet<Double>();
+      evaluations.add(candidateEval);
+      for (Entry<TariffSpecification, Double> entry : allTariff2Evaluations.entrySet()) {
+        TariffSpecification spec = entry.getKey();
+        if (null != entry.getValue()
+            && ! tariff2subscriptions.containsKey(spec)
+            && customer.getPowerType().canUse(spec.getPowerType())) {
+          evaluations.add(normalizeWithDefaultTariff(allTariff2Evaluations, defaultSpec, entry.getValue()));
+        }
+      }
+      double[] candidateEvals = new double[evaluations.size()];
+      int i = 0;
+      for (Double evaluation : evaluations) {
+        candidateEvals[i++] = evaluation;
+      }
+      Double[] predictions = configuratorFactoryService.getCandidateTariffSubsPredictor().predictNumSubs(candidateEvals, e2n, customer, timeslot);
+      eval2prediction = null == eval2prediction ? new HashMap<Double, Double>() : new HashMap<Double, Double>(eval2prediction);
+      for (i = 0; i < candidateEvals.length; ++i) {
+        eval2prediction.put(candidateEvals[i], null == predictions ? null : predictions[i]);
+      }
+      cachePredictions(customer, e2n, timeslot, eval2prediction);
+    }
+    Double res = eval2prediction.get(candidateEval);
+    if (null == res) {
+      log.error("LWR returned null, falling back to interpolateOrNN()");
+      return interpolateOrNN(candidateEval, e2n);
+    }
+    return res;
+  }
+
+
+  /**
+   * @return evaluation -> prediction (null where the regression cannot
+   * predict), or null if the customer's predictions of this timeslot were
+   * made from different training data
+   */
+  private HashMap<Double, Double> getCachedPredictions(CustomerInfo customer,
+      TreeMap<Double, Double> e2n, int timeslot) {
+    synchronized (predictionsCache) {
+      if (cacheTimeslot != timeslot) {
+        predictionsCache.clear();
+        cacheTimeslot = timeslot;
+      }
+      CachedPredictions cached = predictionsCache.get(customer);
+      if (null == cached || ! cached.e2n.equals(e2n)) {
+        return null;
+      }
+      return cached.eval2prediction;
+    }
+  }
+
+
+  private void cachePredictions(CustomerInfo customer,
+      TreeMap<Double, Double> e2n, int timeslot,
+      HashMap<Double, Double> eval2prediction) {
+    synchronized (predictionsCache) {
+      if (cacheTimeslot == timeslot) {
+        predictionsCache.put(customer, 
+            new CachedPredictions(new TreeMap<Double, Double>(e2n), eval2prediction));
+      }
+    }
+  }
+
+
   /**
    * This was a baseline, quick implementation that is no longer used.
    *
@@ -447,4 +547,17 @@ public class RegressionBasedMigrationPredictor extends
     return bestEval;
   }
 
+
+  private static class CachedPredictions {
+
+    // the training data the predictions were made from
+    private final TreeMap<Double, Double> e2n;
+    private final HashMap<Double, Double> eval2prediction;
+
+    CachedPredictions(TreeMap<Double, Double> e2n,
+        HashMap<Double, Double> eval2prediction) {
+      this.e2n = e2n;
+      this.eval2prediction = eval2prediction;
+    }
+  }
 }
@@ -18,14 +18,13 @@
  */
 package edu.utexas.cs.tactex.subscriptionspredictors;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.PriorityQueue;
-import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 //import org.powertac.common.ConfigServerBroker;
@@ -92,7 +91,7 @@ public class ServerBasedTariffEvaluator
 
   // state
   private int evaluationCounter = 0;
-  private HashMap<Tariff, EvalData> evaluatedTariffs;
+  private HashMap<Long, Double> tariffId2inconvenience;
   private HashMap<Tariff, Integer> allocations;
 
   // algorithm parameters - needed for numerical stablity
@@ -100,6 +99,7 @@ public class ServerBasedTariffEvaluator
   private double maxLinearUtility = 7.0;
   private int stdDuration = 2; // two-day standardized profile length
   private int profileLength = 7 * 24; // length of customer-supplied profile
+  private int maxCachedInconveniences = 1000; // bounds tariffId2inconvenience
 
 
 
@@ -109,7 +109,7 @@ public class ServerBasedTariffEvaluator
     customerInfo = cma.getCustomerInfo();
     this.tariffRepoMgr = tariffRepoMgr;
     helper = new TariffEvaluationHelper();
-    evaluatedTariffs = new HashMap<Tariff, EvalData>();
+    tariffId2inconvenience = new HashMap<Long, Double>();
     allocations = new HashMap<Tariff, Integer>();
     if (autonomous) {
       this.inertia = 0; // 0.8;
@@ -150,6 +150,7 @@ public class ServerBasedTariffEvaluator
     this.tieredRateFactor = tieredRateFactor;
     this.variablePricingFactor = variablePricingFactor;
     this.interruptibilityFactor = interruptibilityFactor;
+    tariffId2inconvenience.clear();
   }
 
 
@@ -364,21 +365,10 @@ public class ServerBasedTariffEvaluator
   {
     //log.info("evaluateTariffs(), candidateSpec " + candidateSpec);
     
-    HashMap<TariffSpecification, Double> result = new HashMap<TariffSpecification, Double>();
-
-    evaluatedTariffs.clear(); 
-    
-    // initialize to Double subscriptions
-    HashMap<TariffSpecification, Double> tariffSubscriptions = new HashMap<TariffSpecification, Double>();
-    for ( Entry<TariffSpecification, Integer> entry : tariffSubscriptions_.entrySet()) {
-      tariffSubscriptions.put(entry.getKey(), entry.getValue().doubleValue());
-    }
-    
     allocations.clear();
-    HashSet<Tariff> newTariffs =
-      new HashSet<Tariff>(tariffRepoMgr
-              .findRecentActiveTariffs(tariffEvalDepth,
-                                       customerInfo.getPowerType()));
+    List<Tariff> newTariffs =
+      tariffRepoMgr.findRecentActiveTariffs(tariffEvalDepth,
+                                            customerInfo.getPowerType());
     
     // make sure all superseding tariffs are in the set
     // Assumption: ignoring superceding tariffs
@@ -394,91 +384,59 @@ public class ServerBasedTariffEvaluator
 
     Tariff defaultTariff = tariffRepoMgr.findTariffById(defaultSpec.getId());
 
-
-    // scale tariffEvaluations according to TariffEvaluator.forecastCost()
-    HashMap<TariffSpecification,Double>  
-        scaledTariffEvaluations = scaleTariffEvaluations(tariffEvaluations);
-    
-    // Get the cost eval for the appropriate default tariff
-    EvalData defaultEval = getDefaultTariffEval(defaultTariff, scaledTariffEvaluations.get(defaultSpec));
-    
-    // ensure we have the cost eval for each of the new tariffs
-    // [it's ok to clear, since it's quick to fill the eval structure since
-    // costs are computed]
-    //evaluatedTariffs.clear(); // TODO: commenting out since now the server doesn't always recompute - is that correct?
-    HashSet<Tariff> consideredTariffs = consideredTariffsSet(tariffSubscriptions, newTariffs);
-    for (Tariff tariff : consideredTariffs) {
-      EvalData eval = evaluatedTariffs.get(tariff);
-      // Should we cache there? maybe not, since we need to always eval since
-      // our estimations may change
-      if (true || evaluateAllTariffs || null == eval) {
-        // using try/catch because long delays (on condor) caused that new
-        // tariff was added to repo after tariff-evaluations were computed, so
-        // we got a null pointer here
-        try {
-          // compute the projected cost for this tariff
-          double cost = scaledTariffEvaluations.get(tariffRepoMgr.findSpecificationById(tariff.getId()));
-          double hassle = computeInconvenience(tariff);
-          //log.info("Evaluated tariff " + tariff.getId()
-          //         + ": cost=" + cost
-          //         + ", inconvenience=" + hassle);
-          eval = new EvalData(cost, hassle);
-          evaluatedTariffs.put(tariff, eval);
-        } catch (Exception e) {
-          log.error("exception-recovery: ignoring " + tariff.getId(), e);
-        }
-      }
+    // index the considered tariffs: new tariffs, then subscribed tariffs, 
+    // then the default tariff (if not considered)
+    IndexedEvalData evals = new IndexedEvalData();
+    for (Tariff tariff : newTariffs) {
+      evals.indexOf(tariff);
+    }
+    int numNewTariffs = evals.tariffs.size();
+    HashMap<Integer, Double> initialSubscriptions = new HashMap<Integer, Double>();
+    for (Entry<TariffSpecification, Integer> entry : tariffSubscriptions_.entrySet()) {
+      int index = evals.indexOf(tariffRepoMgr.findTariffById(entry.getKey().getId()));
+      initialSubscriptions.put(index, entry.getValue().doubleValue());
     }
+    int numConsideredTariffs = evals.tariffs.size();
+    evals.defaultIndex = evals.indexOf(defaultTariff);
     
-    //// JUST FOR PRINTING
-    //TreeMap<Double,Double> e2n = new TreeMap<Double, Double>();
-    //TreeMap<Double, TariffSpecification> e2t = new TreeMap<Double, TariffSpecification>();
-    //for (TariffSpecification spec : tariffSubscriptions.keySet()) {
-    //  if ( ! competingTariffs.contains(spec) ) {
-    //    double eval = evaluatedTariffs.get(tariffRepoMgr.findTariffById(spec.getId())).costEstimate;
-    //    double subs = tariffSubscriptions.get(spec);
-    //    e2n.put(eval, subs);
-    //    e2t.put(eval, spec);
-    //  }
-    //}      
-    //log.debug(" lwr Customer now: " + customer + " " + e2n.toString());
-    //log.debug(" lwr customer tariffevals " + customer + " " + e2t.toString());
-    //e2n = new TreeMap<Double, Double>();  
-    //for (TariffSpecification spec : tariffSubscriptions.keySet()) {
-    //  if ( competingTariffs.contains(spec) ) {
-    //    double eval = evaluatedTariffs.get(tariffRepoMgr.findTariffById(spec.getId())).costEstimate;
-    //    double subs = tariffSubscriptions.get(spec);
-    //    e2n.put(eval, subs);
-    //  }
-    //}      
-    //log.debug(" lwr Customer competing: " + customer + " " + e2n.toString());
+    // Get the cost eval for the appropriate default tariff. Costs are
+    // scaled according to TariffEvaluator.forecastCost()
+    evals.defaultCost = scaledCost(tariffEvaluations.get(defaultSpec));
+
+    // compute the cost eval for each of the considered tariffs
+    // [it's quick to fill the eval structure since costs are computed]
+    evals.evaluate(numConsideredTariffs, tariffEvaluations, competingTariffs);
+    evals.setAlternatives(numNewTariffs);
+
+    double[] tariffSubscriptions = new double[evals.size()];
+    for (Entry<Integer, Double> entry : initialSubscriptions.entrySet()) {
+      tariffSubscriptions[entry.getKey()] = entry.getValue();
+    }
+    boolean[] isInResult = new boolean[evals.size()];
 
     // Assumption: we ignore inertia and predict subscriptions "in the limit". 
     // Here we approximate it by running for 12 iterations (3 days prediction).
     int numIterations = 12; // 3 days
     for (int i = 0; i < numIterations; ++i) {
-      if (i != 0) {
-        tariffSubscriptions = new HashMap<TariffSpecification, Double>(result);
-        result.clear();
-      }
+      double[] result = new double[evals.size()];
+      isInResult = new boolean[evals.size()];
       // Assumption: not using the server's subscription information
       //for (TariffSubscription subscription
       //        : getTariffSubscriptionRepo().
       //        findActiveSubscriptionsForCustomer(customerInfo)) {
-      for (Entry<TariffSpecification, Double> entry : tariffSubscriptions.entrySet()) {
-        TariffSpecification existingSpec = entry.getKey();
-        Double subs = entry.getValue();      
+      for (int existing = 0; existing < tariffSubscriptions.length; ++existing) {
+        double subs = tariffSubscriptions[existing];
 
         // don't process 0 subs, since no migration is going to happen
         if (0 == subs)
           continue;
 
         // find out how many of these customers can withdraw without penalty
-        double withdrawCost = existingSpec.getEarlyWithdrawPayment(); 
+        double withdrawCost = evals.specs[existing].getEarlyWithdrawPayment(); 
         double committedCount;
         double expiredCount;
         // Assumption: we don't know how many are committed, so assume the extreme case
-        if (competingTariffs.contains(existingSpec)) {
+        if (evals.isCompeting[existing]) {
           committedCount = subs;
           expiredCount = subs;
         }
@@ -488,52 +446,32 @@ public class ServerBasedTariffEvaluator
         }
         if (withdrawCost == 0.0 || expiredCount == committedCount) {
           // no need to worry about expiration
-          evaluateAlternativeTariffs(/* not using server's subscription information* subscription,*/existingSpec, 
+          evaluateAlternativeTariffs(/* not using server's subscription information* subscription,*/existing, 
               actualInertia,
               0.0, committedCount,
-              defaultTariff ,
-              defaultEval, newTariffs, result);
+              evals, result, isInResult);
         }
         else {
           // Evaluate expired and unexpired subsets separately
-          evaluateAlternativeTariffs(/* not using server's subscription information*  subscription,*/ existingSpec, 
+          evaluateAlternativeTariffs(/* not using server's subscription information*  subscription,*/ existing, 
               actualInertia,
               0.0, expiredCount,
-              defaultTariff,
-              defaultEval, newTariffs, result);
-          evaluateAlternativeTariffs(/* not using server's subscription information* subscription,*/ existingSpec,
+              evals, result, isInResult);
+          evaluateAlternativeTariffs(/* not using server's subscription information* subscription,*/ existing,
               actualInertia,
               withdrawCost, committedCount - expiredCount,
-              defaultTariff, 
-              defaultEval, newTariffs,
-              result);
+              evals, result, isInResult);
         }
       }
-      for (TariffSpecification spec : result.keySet()) {
-        //log.info("BrokerNames in result: " + spec.getBroker().getUsername());
-      }
-
-      //// JUST FOR PRINTING
-      //e2n = new TreeMap<Double, Double>();  
-      //for (TariffSpecification spec : result.keySet()) {
-      //  double eval = evaluatedTariffs.get(tariffRepoMgr.findTariffById(spec.getId())).costEstimate;
-      //  Double subs = result.get(spec);
-      //  e2n.put(eval, subs);
-      //}      
-      //log.debug(" lwr Customer predicted: " + customer + " " + e2n.toString()); 
-
-      //// just for visualization
-      //if (null != candidateSpec) {
-      //  double candidateEvaluation = evaluatedTariffs.get(tariffRepoMgr.findTariffById(candidateSpec.getId())).costEstimate;
-      //  Double subs = result.get(candidateSpec);
-      //  log.debug(" lwr Customer candidate: " + customer + " {" + candidateEvaluation + "=" + subs + "}" );
-      //}
-
+      tariffSubscriptions = result;
     }
     
     //filtering out competitors
-    for (TariffSpecification spec : competingTariffs) {
-        result.remove(spec);
+    HashMap<TariffSpecification, Double> result = new HashMap<TariffSpecification, Double>();
+    for (int i = 0; i < tariffSubscriptions.length; ++i) {
+      if (isInResult[i] && ! evals.isCompeting[i]) {
+        result.put(evals.specs[i], tariffSubscriptions[i]);
+      }
     }
 
     return result;
@@ -570,87 +508,78 @@ public class ServerBasedTariffEvaluator
 
 
   // evaluate alternatives
-  private void evaluateAlternativeTariffs (/* *Assumption: not using server's subscription information* TariffSubscription current,*/ TariffSpecification existingSpec,
+  // result and isInResult are indexed like evals
+  private void evaluateAlternativeTariffs (/* *Assumption: not using server's subscription information* TariffSubscription current,*/ int existing,
                                            double inertia,
                                            double withdraw0,
                                            double population, // 'double' to have fractional expected values
-                                           Tariff defaultTariff,
-                                           EvalData defaultEval,
-                                           Set<Tariff> initialTariffs, 
-                                           HashMap<TariffSpecification,Double> result)
+                                           IndexedEvalData evals,
+                                           double[] result,
+                                           boolean[] isInResult)
   {
-    //log.info("evaluateAlternativeTariffs(" + existingSpec.getId() + ',' + inertia + ',' + withdraw0 + ',' + population + ',' + defaultTariff.getId() + "...");
-    //log.info("evaluateAlternativeTariffs(" + existingSpec.getId() + ")");
-    
     if (population == 0) 
       return;
 
-    // Associate each alternate tariff with its utility value
-    TreeSet<TariffUtility> evals = new TreeSet<TariffUtility>();
-    HashSet<Tariff> tariffs = new HashSet<Tariff>(initialTariffs);
-    tariffs.add(defaultTariff);
-
     // Check whether the current tariff is revoked, add it if not
-    Tariff currentTariff = tariffRepoMgr.findTariffById(existingSpec.getId());
+    Tariff currentTariff = evals.tariffs.get(existing);
     boolean revoked = false;
     Tariff replacementTariff = null;
     if (currentTariff.getState() == Tariff.State.KILLED) {
       revoked = true;
       replacementTariff = currentTariff.getIsSupersededBy(); 
       if (null == replacementTariff) {
-        replacementTariff = defaultTariff;
+        replacementTariff = evals.tariffs.get(evals.defaultIndex);
       }
 
       // withdraw without penalty
       withdraw0 = 0.0; 
     }
-    else
-      tariffs.add(currentTariff);
-
-    //for (Tariff t : tariffs) {
-      //log.info(t.getId());
-    //}
-
-    //EvalData eval0 = evaluatedTariffs.get(currentTariff);
-    //double inconvenience0 = eval0.inconvenience;
-    //double cost0 = eval0.costEstimate;
-    //double normalizedCostBasedValue0 = computeNormalizedDifference(cost0,
-    //                                             defaultEval.costEstimate);
-    //double currentTariffUtility = normalizedCostBasedValue0 - inconvenienceWeight * inconvenience0;
-
-    // for each tariff, including the current and default tariffs,
-    // compute the utility
-    for (Tariff tariff: tariffs) {
+
+    // Associate each alternate tariff (including the current and default
+    // tariffs) with its utility value
+    int[] alternatives = evals.alternatives;
+    int numAlternatives = alternatives.length;
+    boolean addCurrent = ! revoked && ! evals.isAlternative[existing];
+    int[] candidates = new int[numAlternatives + 1];
+    double[] utilities = new double[numAlternatives + 1];
+    int numCandidates = 0;
+    for (int a = 0; a < numAlternatives + 1; ++a) {
+      int i;
+      if (a < numAlternatives) {
+        i = alternatives[a];
+      }
+      else if (addCurrent) {
+        i = existing;
+      }
+      else {
+        break;
+      }
       try {
-        //log.info("UTILITYFORTARIFF " + tariff.getId());
-        EvalData eval = evaluatedTariffs.get(tariff);
-        if (null == eval) {
+        if ( ! evals.isEvaluated[i] ) {
           // some error happened earlier, ignore tariff (I don't print so log doesn't blow up in the competition)
           continue;
         }
-        double inconvenience = eval.inconvenience;
+        Tariff tariff = evals.tariffs.get(i);
+        double inconvenience = evals.inconveniences[i];
         // TODO: tmp fix, scale cost - I estimate over 1 week, but this
         // might be different than preferredDuration. See all calls to 
         // scaledCost. 
         // Assumption: this scaling is dangerous, sinces it assumes 
         // the current values for my horizon length estimation and the
         // customer's preferred duration 
-        double cost = eval.costEstimate;
-        //log.info("cost=" + cost + " inconvenience=" + inconvenience);
+        double cost = evals.costs[i];
         if (tariff != currentTariff
                 && tariff != replacementTariff) { 
           if (!autonomous) {
             inconvenience += tariffSwitchFactor;
-            //log.info("tariffSwitchFactor " + tariffSwitchFactor);
             if (tariff.getBroker() != currentTariff.getBroker()) {
               inconvenience +=
                   accessor.getBrokerSwitchFactor(revoked);
             }
           }
-          cost += computeSignupCost(tariff);
+          cost += evals.signupCosts[i];
           cost += withdraw0; // withdraw from current tariff
-          cost += computeWithdrawCost(tariff);
-          //log.info("withdraw0=" + withdraw0 + " withdrawFactor=" + withdrawFactor + " withdraw-cost=" + withdrawFactor * tariff.getEarlyWithdrawPayment());
+          cost += evals.withdrawCosts[i];
           if (Double.isNaN(cost)) {
             log.error(getName() + ": cost is NaN for tariff " + tariff.getId());
           }
@@ -658,19 +587,15 @@ public class ServerBasedTariffEvaluator
         // don't consider current tariff if it's revoked
         if (!revoked || tariff != currentTariff) {
           double normalizedCostBasedValue = 
-            computeNormalizedDifference(cost, defaultEval.costEstimate);
-          //if (tariff.isTimeOfUse()) {
-          //  log.warn("tariff " + tariff.getId() + " utility=" + utility + ", inconvenience=" + inconvenience + ", w*inc=" + inconvenienceWeight * inconvenience + ", total=" + (utility - inconvenienceWeight * inconvenience) + " instead of inconvenience=" + (inconvenience - eval.inconvenience) + ", w*inc=" + (inconvenienceWeight * (inconvenience - eval.inconvenience))+ ", total=" + (utility - (inconvenienceWeight * (inconvenience - eval.inconvenience))));
-          //}
+            computeNormalizedDifference(cost, evals.defaultCost);
           double utility = normalizedCostBasedValue - inconvenienceWeight * inconvenience;
-          //log.info("adding TariffUtility(" + tariff.getId() + ", " + constrainUtility(utility) + " (" + utility + ")");
           if (Double.isNaN(utility)) {
             log.error(getName() + ": utility is NaN for tariff "
                       + tariff.getId());
           }
-          //if ( ! ConfigServerBroker.eliminateParetoDominatedTariffs() || 
-          //     (normalizedCostBasedValue > normalizedCostBasedValue0 || inconvenience < inconvenience0) )
-            evals.add(new TariffUtility(tariff, constrainUtility(utility)));
+          candidates[numCandidates] = i;
+          utilities[numCandidates] = constrainUtility(utility);
+          ++numCandidates;
         }
       } catch (Throwable e) {
         log.error("exception-recovery: TariffUtility", e);
@@ -683,70 +608,50 @@ public class ServerBasedTariffEvaluator
     // -- first, compute lambda from rationality
     // -- second, we have to compute the sum of transformed utilities
     
+    double[] probabilities = new double[numCandidates];
     if (autonomous && (rationality > 1 - 1e-6) ) { // enabling perfect rationality
       // find the maximum utility
       double maxUtil = -Double.MAX_VALUE;
-      for (TariffUtility util : evals) {        
-        if (util.utility > maxUtil)
-          maxUtil = util.utility;
+      for (int c = 0; c < numCandidates; ++c) {
+        if (utilities[c] > maxUtil)
+          maxUtil = utilities[c];
       }      
       // in case there are more than max util - divide evenly
       int numMaxUtil = 0; 
-      for (TariffUtility util : evals) {
-        boolean isMaxUtil = util.utility == maxUtil; // > maxUtil - 1e-6;
-        if (isMaxUtil) 
+      for (int c = 0; c < numCandidates; ++c) {
+        if (utilities[c] == maxUtil) 
           numMaxUtil += 1;
       }
       // uniform probabilities to all with maxUtil value
-      for (TariffUtility util : evals) {
-        boolean isMaxUtil = util.utility == maxUtil; // > maxUtil - 1e-6;
-        util.probability = isMaxUtil ? (1.0 / numMaxUtil) : 0;        
+      for (int c = 0; c < numCandidates; ++c) {
+        probabilities[c] = utilities[c] == maxUtil ? (1.0 / numMaxUtil) : 0;        
       } 
     }
     else {
       double logitDenominator = 0.0;
       double lambda = Math.pow(lambdaMax, rationality) - 1.0;
-      for (TariffUtility util : evals) {
-        try {
-          logitDenominator +=
-                  Math.exp(lambda * util.utility);
-        } catch (Throwable e) {
-          log.error("except-recovery", e);
-        }
+      for (int c = 0; c < numCandidates; ++c) {
+        // reuse the numerators below
+        probabilities[c] = Math.exp(lambda * utilities[c]);
+        logitDenominator += probabilities[c];
       }
       // then we can compute the probabilities
-      for (TariffUtility util : evals) {
-        try {
-          util.probability =
-                  Math.exp(lambda * util.utility)
-                  / logitDenominator;
-          //log.info("util " + util.probability + ", " + util.utility);
-          if (Double.isNaN(util.probability)) {
-            log.error(getName() + ": Probability NAN, util=" + util.utility
-                      + ", denom=" + logitDenominator
-                      + ", tariff " + util.tariff);
-            util.probability = 0.0;
-          }
-        } catch (Throwable e) {
-          log.error("except-recovery", e);
+      for (int c = 0; c < numCandidates; ++c) {
+        probabilities[c] /= logitDenominator;
+        if (Double.isNaN(probabilities[c])) {
+          log.error(getName() + ": Probability NAN, util=" + utilities[c]
+                    + ", denom=" + logitDenominator
+                    + ", tariff " + evals.tariffs.get(candidates[c]));
+          probabilities[c] = 0.0;
         }
       }
     }
 
     // Assumption: (1) expected allocation, (2) ignoring inertia
-    for (TariffUtility tu : evals) {
-      try {
-        TariffSpecification newspec = tariffRepoMgr.findSpecificationById(tu.tariff.getId());
-        Double subs = result.get(newspec);
-        if (null == subs) {
-          subs = 0.0;        
-        }
-        double expectedMigration = population * tu.probability;
-        subs += expectedMigration;
-        result.put(newspec, subs);
-      } catch (Throwable e) {
-        log.error("except-recovery", e);
-      }
+    for (int c = 0; c < numCandidates; ++c) {
+      double expectedMigration = population * probabilities[c];
+      result[candidates[c]] += expectedMigration;
+      isInResult[candidates[c]] = true;
     }
     
 
@@ -789,28 +694,6 @@ public class ServerBasedTariffEvaluator
   }
   
 
-  /**
-   * Our evaluations (costs) are for 1 week. TariffEvaluator
-   * scales them to stdDuration, so we scale accordingly
-   * @param tariffEvaluations
-   * @return
-   */
-  private HashMap<TariffSpecification, Double> scaleTariffEvaluations(
-      HashMap<TariffSpecification, Double> tariffEvaluations) {
-    
-    HashMap<TariffSpecification, Double> scaledTariffEvaluations = 
-        new HashMap<TariffSpecification, Double>();
-    
-    for (Entry<TariffSpecification, Double> entry : tariffEvaluations.entrySet()){
-      scaledTariffEvaluations.put(
-          entry.getKey(), 
-          scaledCost(entry.getValue()));
-    }
-    
-    return scaledTariffEvaluations;
-  }
-
-
   /*
    * TODO: tmp fix, scale cost - I estimate over 1 week, and this
    * might be different than preferredDuration
@@ -911,19 +794,6 @@ public class ServerBasedTariffEvaluator
   //  return ...
   //}
 
-  private EvalData getDefaultTariffEval (Tariff defaultTariff, Double defaultTariffCost)
-  {
-    EvalData defaultEval = evaluatedTariffs.get(defaultTariff);
-    if (null == defaultEval) {
-      defaultEval =
-              new EvalData(defaultTariffCost,
-                           0.0);
-      evaluatedTariffs.put(defaultTariff, defaultEval);
-    }
-    return defaultEval;
-  }
-
-  
   // [Commented out, getting this info in evaluateTariffs()]
   // Cost forecaster
   //private double forecastCost (Tariff tariff)
@@ -1073,6 +943,22 @@ public class ServerBasedTariffEvaluator
       result += interruptibilityFactor;
     return result;
   }
+
+
+  // Cached computeInconvenience(), since a tariff's rates don't change
+  private double getInconvenience (Tariff tariff)
+  {
+    Double result = tariffId2inconvenience.get(tariff.getId());
+    if (null == result) {
+      if (tariffId2inconvenience.size() >= maxCachedInconveniences) {
+        // mostly evaluated candidates, which are not seen again
+        tariffId2inconvenience.clear();
+      }
+      result = computeInconvenience(tariff);
+      tariffId2inconvenience.put(tariff.getId(), result);
+    }
+    return result;
+  }
   
   
   // returns the correct chunk size for a given population
@@ -1115,50 +1001,108 @@ public class ServerBasedTariffEvaluator
   //  }
 
 
-  // Container for tariff-utility recording ------------------------------
-  class TariffUtility implements Comparable<TariffUtility>
+  // Container for the evaluation data of the tariffs considered in a single
+  // evaluateTariffs() call; tariffs are indexed densely, in order of
+  // indexOf() calls
+  class IndexedEvalData
   {
-    Tariff tariff;
-    double utility;
-    double probability = 0.0;
-
-    TariffUtility (Tariff tariff, double utility)
+    HashMap<Long, Integer> tariffId2index = new HashMap<Long, Integer>();
+    ArrayList<Tariff> tariffs = new ArrayList<Tariff>();
+    TariffSpecification[] specs;
+    boolean[] isCompeting;
+    boolean[] isEvaluated;
+    double[] costs;
+    double[] inconveniences;
+    double[] signupCosts;
+    double[] withdrawCosts;
+    // tariffs a customer may switch to: new tariffs and the default tariff
+    int[] alternatives;
+    boolean[] isAlternative;
+    int defaultIndex;
+    double defaultCost;
+
+    int indexOf (Tariff tariff)
     {
-      super();
-      this.tariff = tariff;
-      this.utility = utility;
+      Integer index = tariffId2index.get(tariff.getId());
+      if (null == index) {
+        index = tariffs.size();
+        tariffId2index.put(tariff.getId(), index);
+        tariffs.add(tariff);
+      }
+      return index;
     }
 
-    @Override
-    // natural ordering is by decreasing utility values
-      public
-      int compareTo (TariffUtility other)
+    int size ()
     {
-      double result = other.utility - utility;
-      if (result == 0.0)
-        // consistent with equals...
-        return (int) (other.tariff.getId() - tariff.getId());
-      else if (result > 0.0)
-        return 1;
-      else
-        return -1;
+      return tariffs.size();
     }
-  }
-  
 
-  // Container for tariff-evaluation data
-  class EvalData
-  {
-    double costEstimate;
-    double inconvenience;
+    // Evaluates the first numConsidered tariffs. The default tariff gets
+    // defaultCost and no inconvenience if it wasn't evaluated. 
+    void evaluate (int numConsidered,
+                   HashMap<TariffSpecification, Double> tariffEvaluations,
+                   List<TariffSpecification> competingTariffs)
+    {
+      int n = size();
+      specs = new TariffSpecification[n];
+      isCompeting = new boolean[n];
+      isEvaluated = new boolean[n];
+      costs = new double[n];
+      inconveniences = new double[n];
+      signupCosts = new double[n];
+      withdrawCosts = new double[n];
+      HashSet<TariffSpecification> competingSpecs = 
+          new HashSet<TariffSpecification>(competingTariffs);
+      for (int i = 0; i < n; ++i) {
+        Tariff tariff = tariffs.get(i);
+        specs[i] = tariffRepoMgr.findSpecificationById(tariff.getId());
+        if (null == specs[i]) {
+          // removed from the repo after the tariff was found
+          specs[i] = tariff.getTariffSpec();
+        }
+        isCompeting[i] = competingSpecs.contains(specs[i]);
+        signupCosts[i] = computeSignupCost(tariff);
+        withdrawCosts[i] = computeWithdrawCost(tariff);
+        if (i < numConsidered) {
+          // using try/catch because long delays (on condor) caused that new
+          // tariff was added to repo after tariff-evaluations were computed, so
+          // we got a null pointer here
+          try {
+            // compute the projected cost for this tariff
+            costs[i] = scaledCost(tariffEvaluations.get(specs[i]));
+            inconveniences[i] = getInconvenience(tariff);
+            isEvaluated[i] = true;
+          } catch (Exception e) {
+            log.error("exception-recovery: ignoring " + tariff.getId(), e);
+          }
+        }
+      }
+      if ( ! isEvaluated[defaultIndex] ) {
+        costs[defaultIndex] = defaultCost;
+        inconveniences[defaultIndex] = 0.0;
+        isEvaluated[defaultIndex] = true;
+      }
+    }
 
-    EvalData (double cost, double inconvenience)
+    // The first numNewTariffs tariffs are the new tariffs
+    void setAlternatives (int numNewTariffs)
     {
-      super();
-      this.costEstimate = cost;
-      this.inconvenience = inconvenience;
+      isAlternative = new boolean[size()];
+      for (int i = 0; i < numNewTariffs; ++i) {
+        isAlternative[i] = true;
+      }
+      isAlternative[defaultIndex] = true;
+      int numAlternatives = 0;
+      for (int i = 0; i < isAlternative.length; ++i) {
+        if (isAlternative[i])
+          ++numAlternatives;
+      }
+      alternatives = new int[numAlternatives];
+      numAlternatives = 0;
+      for (int i = 0; i < isAlternative.length; ++i) {
+        if (isAlternative[i])
+          alternatives[numAlternatives++] = i;
+      }
     }
   }
 }
-
-
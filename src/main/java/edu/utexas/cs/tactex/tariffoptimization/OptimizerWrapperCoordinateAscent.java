@@ -18,7 +18,9 @@
  */
 package edu.utexas.cs.tactex.tariffoptimization;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
@@ -45,6 +47,18 @@ public class OptimizerWrapperCoordinateAscent implements OptimizerWrapper {
   
   private int evaluations;
 
+  // evaluates the steps along a coordinate concurrently
+  private ParallelPointEvaluator pointEvaluator;
+
+
+  /**
+   * @param pointEvaluator shared with the other optimizers, owned by the
+   * ConfiguratorFactoryService
+   */
+  public OptimizerWrapperCoordinateAscent(ParallelPointEvaluator pointEvaluator) {
+    this.pointEvaluator = pointEvaluator;
+  }
+
 
   @Override
   public TreeMap<Double, TariffSpecification> findOptimum(
@@ -97,31 +111,30 @@ public class OptimizerWrapperCoordinateAscent implements OptimizerWrapper {
     double[] previousBestPoint, 
     double previousBestValue) {
 
-    double[] bestPoint = previousBestPoint; 
-    double bestValue = previousBestValue;
+    List<double[]> testPoints = new ArrayList<double[]>();
     for (int i = -NUM_STEPS/2; i <= NUM_STEPS/2; ++i) {
       double[] testPoint = new double[previousBestPoint.length];
       System.arraycopy(previousBestPoint, 0, testPoint, 0, previousBestPoint.length);
       double rateOffset = i * STEP_SIZE;
       testPoint[currentlyOptimizedRate] += rateOffset;
-      double value = evaluatePoint(tariffUtilityEstimate, testPoint);
-      if ( value > bestValue ) {
-        bestValue = value;
-        bestPoint = testPoint;
+      testPoints.add(testPoint);
+    }
+    double[] values = pointEvaluator.evaluate(tariffUtilityEstimate, testPoints);
+    evaluations += values.length;
+
+    // scanning in step order, like sequential evaluation
+    double[] bestPoint = previousBestPoint; 
+    double bestValue = previousBestValue;
+    for (int k = 0; k < values.length; ++k) {
+      if ( values[k] > bestValue ) {
+        bestValue = values[k];
+        bestPoint = testPoints.get(k);
       }
     }
     return new BestPointData(bestPoint, bestValue);
   }
 
 
-  private double evaluatePoint(TariffUtilityEstimate tariffUtilityEstimate,
-      double[] testPoint) {
-    double value = tariffUtilityEstimate.value(testPoint);
-    evaluations += 1;
-    return value;
-  }
-
-  
   public class BestPointData {
 
     private double[] bestPoint;
@@ -21,7 +21,9 @@
  */
 package edu.utexas.cs.tactex.tariffoptimization;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.TreeMap;
 
 import org.apache.commons.math3.linear.ArrayRealVector;
@@ -56,6 +58,19 @@ public class OptimizerWrapperGradientAscent implements OptimizerWrapper {
   
   private int evaluations;
 
+  // evaluates the probes of the numerical gradient concurrently
+  private ParallelPointEvaluator pointEvaluator;
+
+
+  /**
+   * @param pointEvaluator shared with the other optimizers, owned by the
+   * ConfiguratorFactoryService
+   */
+  public OptimizerWrapperGradientAscent(ParallelPointEvaluator pointEvaluator) {
+    this.pointEvaluator = pointEvaluator;
+  }
+
+
   @Override
   public TreeMap<Double, TariffSpecification> findOptimum(
       TariffUtilityEstimate tariffUtilityEstimate, int NUM_RATES, int numEval) {
@@ -80,10 +95,7 @@ public class OptimizerWrapperGradientAscent implements OptimizerWrapper {
     //  log.info("STARTING A LOOP: STEP_SIZE=" + STEP_SIZE);
     
     // first compute numerical gradient
-    RealVector gradient = new ArrayRealVector(NUM_RATES);
-    for (int i = 0; i < NUM_RATES; ++i) {
-      gradient.setEntry(i, computePartialDerivative(i, tariffUtilityEstimate, NUM_RATES, eval2TOUTariff));
-    }
+    RealVector gradient = computeGradient(tariffUtilityEstimate, NUM_RATES, eval2TOUTariff);
     gradient = gradient.unitVector();
     
     // taking steps in the gradient direction
@@ -113,21 +125,36 @@ public class OptimizerWrapperGradientAscent implements OptimizerWrapper {
   }
 
 
-  private double computePartialDerivative(int i,
+  /**
+   * Computes all partial derivatives (the difference between a +STEP_SIZE 
+   * and a -STEP_SIZE probe of each rate) from concurrently evaluated probes
+   */
+  private RealVector computeGradient(
       TariffUtilityEstimate tariffUtilityEstimate,
       int NUM_RATES,
       TreeMap<Double, TariffSpecification> eval2touTariff) {
-    double[] testPoint = new double[NUM_RATES];
-    
-    testPoint[i] = STEP_SIZE;
-    double pprimePlus = evaluatePoint(tariffUtilityEstimate, testPoint);
-    eval2touTariff.put(pprimePlus, tariffUtilityEstimate.getCorrespondingSpec(testPoint));
-    
-    testPoint[i] = -STEP_SIZE;
-    double pprimeMinus = evaluatePoint(tariffUtilityEstimate, testPoint);
-    eval2touTariff.put(pprimeMinus, tariffUtilityEstimate.getCorrespondingSpec(testPoint));
-    
-    return pprimePlus - pprimeMinus;
+    // probes 2i and 2i+1 are rate i's plus and minus probes
+    List<double[]> testPoints = new ArrayList<double[]>();
+    for (int i = 0; i < NUM_RATES; ++i) {
+      double[] plusPoint = new double[NUM_RATES];
+      plusPoint[i] = STEP_SIZE;
+      testPoints.add(plusPoint);
+      double[] minusPoint = new double[NUM_RATES];
+      minusPoint[i] = -STEP_SIZE;
+      testPoints.add(minusPoint);
+    }
+    double[] values = pointEvaluator.evaluate(tariffUtilityEstimate, testPoints);
+    evaluations += values.length;
+
+    RealVector gradient = new ArrayRealVector(NUM_RATES);
+    for (int i = 0; i < NUM_RATES; ++i) {
+      double pprimePlus = values[2 * i];
+      eval2touTariff.put(pprimePlus, tariffUtilityEstimate.getCorrespondingSpec(testPoints.get(2 * i)));
+      double pprimeMinus = values[2 * i + 1];
+      eval2touTariff.put(pprimeMinus, tariffUtilityEstimate.getCorrespondingSpec(testPoints.get(2 * i + 1)));
+      gradient.setEntry(i, pprimePlus - pprimeMinus);
+    }
+    return gradient;
   }
 
 
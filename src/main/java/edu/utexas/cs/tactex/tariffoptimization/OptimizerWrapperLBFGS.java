@@ -0,0 +1,228 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu               
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.tariffoptimization;
+
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.powertac.common.TariffSpecification;
+
+import edu.utexas.cs.tactex.interfaces.OptimizerWrapper;
+import edu.utexas.cs.tactex.interfaces.TariffUtilityEstimate;
+
+/**
+ * Limited-memory BFGS (quasi-Newton) ascent, using the gradient estimates
+ * of the objective rather than probing each rate separately. Steps are
+ * accepted by a backtracking line search.
+ *
+ * @author urieli
+ */
+public class OptimizerWrapperLBFGS implements OptimizerWrapper {
+
+  static private Logger log = Logger.getLogger(OptimizerWrapperLBFGS.class);
+
+  //////////////////////////////////////////////////////////////////////
+  //
+  // params to tune L-BFGS's behavior
+  //
+  // number of (step, gradient change) pairs approximating the Hessian
+  private static final int HISTORY_LENGTH = 5;
+  // first step, before any curvature is known (as in gradient ascent)
+  private static final double REFERENCE_STEP_SIZE = 0.005;
+  private static final double REFERENCE_RATE = -0.100;
+  // Armijo condition for accepting a step
+  private static final double SUFFICIENT_INCREASE = 1e-4;
+  private static final int MAX_BACKTRACKS = 8;
+  // total bound on evaluations to limit computation time; a gradient
+  // costs about 5 evaluations (probes along the analytic gradient and
+  // along 4 blocks of rates, the point itself is already evaluated)
+  private static final int MAX_EVALUATIONS = 70;
+  private static final int GRADIENT_EVALUATIONS = 5;
+  //
+  //////////////////////////////////////////////////////////////////////
+
+  private int evaluations;
+
+
+  @Override
+  public TreeMap<Double, TariffSpecification> findOptimum(
+      TariffUtilityEstimate tariffUtilityEstimate, int NUM_RATES, int numEval) {
+
+    final int maxEvaluations = Math.min(numEval, MAX_EVALUATIONS);
+    evaluations = 0;
+    TreeMap<Double, TariffSpecification> eval2TOUTariff = new TreeMap<Double, TariffSpecification>();
+
+    double[] point = new double[NUM_RATES]; // start from the fixed-rate tariff's offset
+
+    // scaling the first step proportionally to the fixed rate
+    double fixedRate = tariffUtilityEstimate.getCorrespondingSpec(point).getRates().get(0).getValue();
+    double firstStepSize = Math.max(REFERENCE_STEP_SIZE, Math.abs(fixedRate / REFERENCE_RATE) * REFERENCE_STEP_SIZE);
+
+    double value = evaluatePoint(tariffUtilityEstimate, point, eval2TOUTariff);
+    double[] gradient = evaluateGradient(tariffUtilityEstimate, point);
+
+    // s_k = x_k+1 - x_k, y_k = g_k - g_k+1 (i.e. for minimizing -value)
+    LinkedList<double[]> steps = new LinkedList<double[]>();
+    LinkedList<double[]> gradientChanges = new LinkedList<double[]>();
+
+    while (evaluations < maxEvaluations) {
+
+      double[] direction;
+      if (steps.isEmpty()) {
+        double norm = Math.sqrt(dot(gradient, gradient));
+        if (norm == 0) {
+          break;
+        }
+        direction = scale(gradient, firstStepSize / norm);
+      }
+      else {
+        direction = computeDirection(gradient, steps, gradientChanges);
+      }
+      double slope = dot(gradient, direction);
+      if ( ! (slope > 0) ) {
+        if (steps.isEmpty()) {
+          break;
+        }
+        // not an ascent direction: restart from the gradient
+        log.debug("L-BFGS restarting, slope " + slope);
+        steps.clear();
+        gradientChanges.clear();
+        continue;
+      }
+
+      // backtracking line search
+      double[] nextPoint = null;
+      double nextValue = -Double.MAX_VALUE;
+      boolean accepted = false;
+      double alpha = 1;
+      for (int i = 0; i < MAX_BACKTRACKS && evaluations < maxEvaluations; ++i) {
+        nextPoint = add(point, scale(direction, alpha));
+        nextValue = evaluatePoint(tariffUtilityEstimate, nextPoint, eval2TOUTariff);
+        if (nextValue >= value + SUFFICIENT_INCREASE * alpha * slope) {
+          accepted = true;
+          break;
+        }
+        alpha /= 2;
+      }
+      if ( ! accepted || evaluations + GRADIENT_EVALUATIONS > maxEvaluations) {
+        break;
+      }
+
+      double[] nextGradient = evaluateGradient(tariffUtilityEstimate, nextPoint);
+      double[] step = add(nextPoint, scale(point, -1));
+      double[] gradientChange = add(gradient, scale(nextGradient, -1));
+      // curvature condition, otherwise the update isn't positive definite
+      if (dot(step, gradientChange) > 0) {
+        steps.addLast(step);
+        gradientChanges.addLast(gradientChange);
+        if (steps.size() > HISTORY_LENGTH) {
+          steps.removeFirst();
+          gradientChanges.removeFirst();
+        }
+      }
+      point = nextPoint;
+      value = nextValue;
+      gradient = nextGradient;
+    }
+
+    log.info("L-BFGS finished after " + evaluations + " evaluations");
+
+    return eval2TOUTariff;
+  }
+
+
+  /**
+   * L-BFGS two-loop recursion: the inverse-Hessian approximation times
+   * the gradient, i.e. an ascent direction of the objective
+   */
+  private double[] computeDirection(double[] gradient,
+      LinkedList<double[]> steps, LinkedList<double[]> gradientChanges) {
+    int m = steps.size();
+    double[] rho = new double[m];
+    double[] a = new double[m];
+    double[] q = gradient.clone();
+    for (int i = m - 1; i >= 0; --i) {
+      rho[i] = 1 / dot(gradientChanges.get(i), steps.get(i));
+      a[i] = rho[i] * dot(steps.get(i), q);
+      addInPlace(q, gradientChanges.get(i), -a[i]);
+    }
+    double[] lastStep = steps.getLast();
+    double[] lastGradientChange = gradientChanges.getLast();
+    double gamma = dot(lastStep, lastGradientChange) / dot(lastGradientChange, lastGradientChange);
+    double[] r = scale(q, gamma);
+    for (int i = 0; i < m; ++i) {
+      double b = rho[i] * dot(gradientChanges.get(i), r);
+      addInPlace(r, steps.get(i), a[i] - b);
+    }
+    return r;
+  }
+
+
+  private double evaluatePoint(TariffUtilityEstimate tariffUtilityEstimate,
+      double[] point, TreeMap<Double, TariffSpecification> eval2TOUTariff) {
+    double value = tariffUtilityEstimate.value(point);
+    evaluations += 1;
+    eval2TOUTariff.put(value, tariffUtilityEstimate.getCorrespondingSpec(point));
+    return value;
+  }
+
+
+  private double[] evaluateGradient(TariffUtilityEstimate tariffUtilityEstimate,
+      double[] point) {
+    double[] gradient = tariffUtilityEstimate.gradient(point);
+    evaluations += GRADIENT_EVALUATIONS;
+    return gradient;
+  }
+
+
+  private static double dot(double[] x, double[] y) {
+    double result = 0;
+    for (int i = 0; i < x.length; ++i) {
+      result += x[i] * y[i];
+    }
+    return result;
+  }
+
+
+  private static double[] scale(double[] x, double factor) {
+    double[] result = new double[x.length];
+    for (int i = 0; i < x.length; ++i) {
+      result[i] = x[i] * factor;
+    }
+    return result;
+  }
+
+
+  private static double[] add(double[] x, double[] y) {
+    double[] result = x.clone();
+    addInPlace(result, y, 1);
+    return result;
+  }
+
+
+  /**
+   * x += factor * y
+   */
+  private static void addInPlace(double[] x, double[] y, double factor) {
+    for (int i = 0; i < x.length; ++i) {
+      x[i] += factor * y[i];
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.tariffoptimization;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import edu.utexas.cs.tactex.interfaces.TariffUtilityEstimate;
+
+/**
+ * Evaluates independent points of an objective (e.g. the probes of a
+ * numerical gradient) concurrently. Values are returned in the order
+ * of the points, so callers can process them like sequential
+ * evaluations. One instance (and thread pool) is shared by the
+ * optimizers; its owner shuts it down.
+ *
+ * @author urieli
+ */
+public class ParallelPointEvaluator {
+
+  private final int numThreads;
+  private ExecutorService executor;
+
+
+  /**
+   * @param numThreads 1 => evaluate on the calling thread
+   */
+  public ParallelPointEvaluator(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
+
+  public double[] evaluate(final TariffUtilityEstimate tariffUtilityEstimate,
+      List<double[]> points) {
+    double[] values = new double[points.size()];
+    if (numThreads <= 1 || points.size() <= 1) {
+      for (int i = 0; i < values.length; ++i) {
+        values[i] = tariffUtilityEstimate.value(points.get(i));
+      }
+      return values;
+    }
+
+    List<Future<Double>> futures = new ArrayList<Future<Double>>();
+    for (final double[] point : points) {
+      futures.add(getExecutor().submit(new Callable<Double>() {
+        @Override
+        public Double call () {
+          return tariffUtilityEstimate.value(point);
+        }
+      }));
+    }
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = getValue(futures.get(i));
+    }
+    return values;
+  }
+
+
+  private double getValue(Future<Double> value) {
+    try {
+      return value.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while evaluating points", e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException("point evaluation failed", cause);
+    }
+  }
+
+
+  /**
+   * Stops the pool's threads; a later evaluate() starts a new pool.
+   */
+  public synchronized void shutdown() {
+    if (null != executor) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+
+  private synchronized ExecutorService getExecutor() {
+    if (null == executor) {
+      executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+        private int count = 0;
+        @Override
+        public synchronized Thread newThread (Runnable r)
+        {
+          Thread thread = new Thread(r, "optimizer-" + (count++));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+}
@@ -24,12 +24,12 @@ package edu.utexas.cs.tactex.tariffoptimization;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.log4j.Logger;
 import org.powertac.common.Broker;
@@ -70,6 +70,14 @@ public class TariffOptimizerIncremental extends TariffOptimizerBase {
   
   private static final int NUM_RATES = 24;
   private static final int NUM_EVAL = 1000;
+  // rates closer than this are considered the same point
+  private static final double RATE_QUANTUM = 1e-6;
+  // step of the finite-difference probes of gradient()
+  private static final double GRADIENT_PROBE_STEP = 0.001;
+  // gradient() probes along each block of this many consecutive rates
+  private static final int GRADIENT_BLOCK_HOURS = 6;
+  // bound on registered candidates (i.e. on memoized objective values)
+  private static final int MAX_CANDIDATES = NUM_EVAL;
 
   
   private TariffOptimizer tariffOptimizerOneShot;
@@ -153,6 +161,16 @@ public class TariffOptimizerIncremental extends TariffOptimizerBase {
    * This is the implementation of the objective function, which maps a TOU
    * tariff to it's expected utility value.  The tariff is represented as
    * offsets from the fixedRateSeed tariff
+   * 
+   * value() may be called concurrently: each evaluation works on private
+   * copies of the customer=>tariff maps (and the shifting predictor runs
+   * concurrent predictions on forks of its customer models). Candidates
+   * are in the repo only while their shifting and charges are estimated,
+   * which migration predictions exclude (see TariffRepoMgr's
+   * getTmpSpecsLock()), so they don't compete with each other. Candidates
+   * (spec and value) are registered by their rates, so memory doesn't grow
+   * with the number of evaluations, and each one is evaluated once, since
+   * concurrent evaluations of a spec would add it to the repo twice.
    *  
    * @author urieli
    */
@@ -178,7 +196,9 @@ public class TariffOptimizerIncremental extends TariffOptimizerBase {
     private Broker me;
     
     // fields initialized in constructor 
-    private HashMap<double[], TariffSpecification> point2spec;
+    // (guarded by itself)
+    private LinkedHashMap<RateVector, Candidate> candidates;
+    // existing tariffs only; evaluations add candidates to copies
     private HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> customer2ShiftedEnergy;
     private HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2RelevantTariffCharges;
     private List<TariffSpecification> emptyList;
@@ -210,8 +230,14 @@ public class TariffOptimizerIncremental extends TariffOptimizerBase {
       this.currentTimeslot = currentTimeslot;
       this.me = me;
       
-      // holds a reference (pointer) to array as the key
-      point2spec = new HashMap<double[], TariffSpecification>();
+      // keyed by value; least recently used candidates are evicted
+      candidates = new LinkedHashMap<RateVector, Candidate>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Entry<RateVector, Candidate> eldest) {
+          return size() > MAX_CANDIDATES;
+        }
+      };
       
       // create and save shifted predictions and tariff charges under these
       // predictions running once with existing tariffs and empty suggested
@@ -239,33 +265,30 @@ public class TariffOptimizerIncremental extends TariffOptimizerBase {
         log.error("wrong number of TOU rates");
         return -Double.MAX_VALUE;
       }
-      
-      TariffSpecification candidate = convertPointToSpec(point);
-      List<TariffSpecification> suggestedSpec = new ArrayList<TariffSpecification>();
-      suggestedSpec.add(candidate);
 
-      ///////////////////////////////////////////////////////////////////
-      // This part is similar to TariffOptimizerOneShot (but incremental)
-      //
-      // add shifted predictions under suggestedSpec for all customers to existing container
-      computeAndRecordCustomersShiftedEnergyUnderNewSpec(suggestedSpec);
-      //
-      // add estimated charges under suggestedSpec for all customers to existing container
-      computeAndRecordCustomersShiftBasedChargesUnderNewSpec(suggestedSpec);
-      //
-      // add withdraw fees based on the estimates charges per customer
-      if (configuratorFactoryService.isUseFees()) {
-        withdrawFeesOptimizer.addWithdrawFeeAndMinDuration(suggestedSpec, customer2RelevantTariffCharges);
+      Candidate registered = getOrCreateCandidate(point);
+      synchronized (registered) {
+        if (null == registered.value) {
+          registered.value = evaluate(registered.spec);
+        }
+        return registered.value;
       }
-      //////////////////////////////////////////////////////////
-      
+    }
+
+
+    private double evaluate(TariffSpecification candidate) {
+      return evaluate(candidate, prepareEvaluation(candidate));
+    }
+
+
+    private double evaluate(TariffSpecification candidate, CandidateEvaluation evaluation) {
       // just renaming, should contain only 1, non-null tariff
       TreeMap<Double, TariffSpecification> result = 
-          utilityEstimator.estimateUtilities(suggestedSpec,
+          utilityEstimator.estimateUtilities(evaluation.suggestedSpec,
                                              tariffSubscriptions,
                                              competingTariffs,
-                                             customer2RelevantTariffCharges,
-                                             customer2ShiftedEnergy,
+                                             evaluation.charges,
+                                             evaluation.shiftedEnergy,
                                              customer2estimatedEnergy, 
                                              marketPredictionManager, 
                                              costCurvesPredictor, 
@@ -275,86 +298,276 @@ public class TariffOptimizerIncremental extends TariffOptimizerBase {
         log.error("How come sortedTariffs.size() != 1?");        
       }
       
-      log.info("Daniel TOU Candidate " + candidate + " util " + result.lastKey()); 
-      for (Rate r : candidate.getRates()) {
-        log.info(r);
+      logCandidate(candidate, result.lastKey());
+      return result.lastKey();
+    }
+
+
+    /**
+     * Same as above, for an already predicted migration
+     */
+    private double evaluate(TariffSpecification candidate, CandidateEvaluation evaluation,
+        HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictedSubscriptions) {
+      double utility = 
+          utilityEstimator.estimateUtility(tariffSubscriptions,
+                                           predictedSubscriptions,
+                                           evaluation.charges,
+                                           evaluation.shiftedEnergy,
+                                           customer2estimatedEnergy, 
+                                           marketPredictionManager, 
+                                           costCurvesPredictor, 
+                                           currentTimeslot)
+          + configuratorFactoryService.getContextManager().getPublicationFee();
+      logCandidate(candidate, utility);
+      return utility;
+    }
+
+
+    private void logCandidate(TariffSpecification candidate, double utility) {
+      if (log.isInfoEnabled()) {
+        // a single message, since candidates may be evaluated concurrently
+        StringBuilder sb = new StringBuilder("Daniel TOU Candidate " + candidate + " util " + utility); 
+        for (Rate r : candidate.getRates()) {
+          sb.append("\n").append(r);
+        }
+        log.info(sb.toString());
       }
+    }
 
-      return result.lastKey();
+
+    /**
+     * The part of the utility that changes directly with the rates is the
+     * candidate's income, which, for fixed subscriptions and shifted
+     * energy, is linear in the rates. Its gradient is computed
+     * analytically. Migration and shifting also change with the rates;
+     * their part is estimated as a low-rank correction: finite-difference
+     * probes along the analytic gradient and along each block of
+     * GRADIENT_BLOCK_HOURS rates (orthonormalized) measure the slope that
+     * the analytic gradient misses in these directions. Outside their
+     * span the gradient is the analytic one.
+     */
+    @Override
+    public double[] gradient(double[] point) {
+      double[] result = new double[NUM_RATES];
+      if ( ! verifyNumRates(point) ) {
+        log.error("wrong number of TOU rates");
+        return result;
+      }
+
+      Candidate registered = getOrCreateCandidate(point);
+      TariffSpecification candidate = registered.spec;
+      double pointValue;
+      CandidateEvaluation evaluation;
+      HashMap<CustomerInfo, Double> subscriptions;
+      synchronized (registered) {
+        evaluation = prepareEvaluation(candidate);
+        HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictedSubscriptions = 
+            utilityEstimator.predictCustomerSubscriptions(candidate, 
+                evaluation.charges, tariffSubscriptions, 
+                competingTariffs, currentTimeslot);
+        subscriptions = predictedSubscriptions.get(candidate);
+        if (null == registered.value) {
+          // same inputs and migration as the analytic part, no need to
+          // prepare or predict them again
+          registered.value = evaluate(candidate, evaluation, predictedSubscriptions);
+        }
+        pointValue = registered.value;
+      }
+
+      // income is -charge * subscriptions, and the derivative of a
+      // customer's charge w.r.t. rate h is its usage at hours h
+      if (null != subscriptions) {
+        for (Entry<CustomerInfo, Double> entry : subscriptions.entrySet()) {
+          ShiftedEnergyData shifted = evaluation.candidateShiftedEnergy.get(entry.getKey());
+          if (null == shifted) {
+            continue;
+          }
+          double[] chargeGradient = chargeEstimator.estimateRateGradient(
+              shifted.getShiftedEnergy(), NUM_RATES);
+          for (int h = 0; h < NUM_RATES; ++h) {
+            result[h] -= chargeGradient[h] * entry.getValue();
+          }
+        }
+      }
+
+      // correction for migration and shifting: the measured slope minus
+      // the analytic one, along each probed direction
+      double[] correction = new double[NUM_RATES];
+      for (double[] direction : correctionDirections(result)) {
+        double[] probe = new double[NUM_RATES];
+        double analyticSlope = 0;
+        for (int h = 0; h < NUM_RATES; ++h) {
+          probe[h] = point[h] + GRADIENT_PROBE_STEP * direction[h];
+          analyticSlope += result[h] * direction[h];
+        }
+        double slope = (value(probe) - pointValue) / GRADIENT_PROBE_STEP;
+        for (int h = 0; h < NUM_RATES; ++h) {
+          correction[h] += (slope - analyticSlope) * direction[h];
+        }
+      }
+      for (int h = 0; h < NUM_RATES; ++h) {
+        result[h] += correction[h];
+      }
+      return result;
     }
 
 
-    private void computeAndRecordCustomersShiftBasedChargesUnderNewSpec(
-        List<TariffSpecification> suggestedSpec) {
-      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> 
-          chargeOfNewTariff = 
-              estimateRelevantTariffCharges(
-                  suggestedSpec, emptyHash, emptyList, 
-                  customer2ShiftedEnergy);
-      for ( Entry<CustomerInfo, HashMap<TariffSpecification, Double>> entry  : chargeOfNewTariff.entrySet()) {
-        CustomerInfo customer = entry.getKey();
-        HashMap<TariffSpecification, Double> tariff2eval = entry.getValue();
-        if (tariff2eval.size() != 1) {
-          log.error("How come tariff2eval.size is not 1?");
+    /**
+     * @return orthonormal directions: the analytic gradient's, then the
+     * blocks of rates' (Gram-Schmidt, dependent directions are dropped)
+     */
+    private List<double[]> correctionDirections(double[] analyticGradient) {
+      List<double[]> candidates = new ArrayList<double[]>();
+      candidates.add(analyticGradient.clone());
+      for (int begin = 0; begin < NUM_RATES; begin += GRADIENT_BLOCK_HOURS) {
+        double[] block = new double[NUM_RATES];
+        for (int h = begin; h < Math.min(begin + GRADIENT_BLOCK_HOURS, NUM_RATES); ++h) {
+          block[h] = 1;
+        }
+        candidates.add(block);
+      }
+      List<double[]> result = new ArrayList<double[]>();
+      for (double[] v : candidates) {
+        double originalNorm = norm(v);
+        for (double[] u : result) {
+          double projection = 0;
+          for (int h = 0; h < NUM_RATES; ++h) {
+            projection += v[h] * u[h];
+          }
+          for (int h = 0; h < NUM_RATES; ++h) {
+            v[h] -= projection * u[h];
+          }
+        }
+        double norm = norm(v);
+        if (originalNorm == 0 || norm <= 1e-6 * originalNorm) {
+          continue;
+        }
+        for (int h = 0; h < NUM_RATES; ++h) {
+          v[h] /= norm;
         }
-        customer2RelevantTariffCharges.get(customer).putAll(tariff2eval);
+        result.add(v);
       }
+      return result;
+    }
+
+
+    private double norm(double[] v) {
+      double result = 0;
+      for (int h = 0; h < v.length; ++h) {
+        result += v[h] * v[h];
+      }
+      return Math.sqrt(result);
     }
 
 
-    private void computeAndRecordCustomersShiftedEnergyUnderNewSpec(
-        List<TariffSpecification> suggestedSpec) {
-      HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> shiftedPredOfNewTariff = 
+    /**
+     * Shifted predictions and charges of a candidate, added to (copies of)
+     * the existing tariffs' ones
+     */
+    private CandidateEvaluation prepareEvaluation(TariffSpecification candidate) {
+      List<TariffSpecification> suggestedSpec = new ArrayList<TariffSpecification>();
+      suggestedSpec.add(candidate);
+
+      ///////////////////////////////////////////////////////////////////
+      // This part is similar to TariffOptimizerOneShot (but incremental)
+      //
+      HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> shiftedPredOfNewTariff;
+      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> chargeOfNewTariff;
+      // shifted predictions under suggestedSpec for all customers
+      shiftedPredOfNewTariff = 
           estimateShiftedPredictions(
               customer2estimatedEnergy, 
               suggestedSpec,
               currentTimeslot); 
-      for ( Entry<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> entry : shiftedPredOfNewTariff.entrySet()) {
+      //
+      // estimated charges under suggestedSpec for all customers
+      chargeOfNewTariff = 
+          estimateRelevantTariffCharges(
+              suggestedSpec, emptyHash, emptyList, 
+              shiftedPredOfNewTariff);
+      //
+      // add them to (copies of) existing containers
+      CandidateEvaluation result = new CandidateEvaluation();
+      result.suggestedSpec = suggestedSpec;
+      result.shiftedEnergy = addCandidateEntries(customer2ShiftedEnergy, shiftedPredOfNewTariff);
+      result.charges = addCandidateEntries(customer2RelevantTariffCharges, chargeOfNewTariff);
+      result.candidateShiftedEnergy = new HashMap<CustomerInfo, ShiftedEnergyData>();
+      for (Entry<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> entry : shiftedPredOfNewTariff.entrySet()) {
+        result.candidateShiftedEnergy.put(entry.getKey(), entry.getValue().get(candidate));
+      }
+      //
+      // add withdraw fees based on the estimates charges per customer
+      if (configuratorFactoryService.isUseFees()) {
+        withdrawFeesOptimizer.addWithdrawFeeAndMinDuration(suggestedSpec, result.charges);
+      }
+      //////////////////////////////////////////////////////////
+      return result;
+    }
+
+
+    /**
+     * @return copy of container, with the candidate's entries added (the
+     * inner maps are copied too, the values are shared)
+     */
+    private <T> HashMap<CustomerInfo, HashMap<TariffSpecification, T>> addCandidateEntries(
+        HashMap<CustomerInfo, HashMap<TariffSpecification, T>> container,
+        HashMap<CustomerInfo, HashMap<TariffSpecification, T>> candidateEntries) {
+      HashMap<CustomerInfo, HashMap<TariffSpecification, T>> result = 
+          new HashMap<CustomerInfo, HashMap<TariffSpecification, T>>(); 
+      for (Entry<CustomerInfo, HashMap<TariffSpecification, T>> entry : container.entrySet()) {
+        result.put(entry.getKey(), new HashMap<TariffSpecification, T>(entry.getValue()));
+      }
+      for (Entry<CustomerInfo, HashMap<TariffSpecification, T>> entry : candidateEntries.entrySet()) {
         CustomerInfo customer = entry.getKey();
-        HashMap<TariffSpecification, ShiftedEnergyData> tariff2energy = entry.getValue();
-        if (tariff2energy.size() != 1) {
-          log.error("How come tariff2energy.size is not 1?");
+        HashMap<TariffSpecification, T> tariff2value = entry.getValue();
+        if (tariff2value.size() != 1) {
+          log.error("How come the candidate has " + tariff2value.size() + " entries?");
+        }
+        HashMap<TariffSpecification, T> customerEntries = result.get(customer);
+        if (null == customerEntries) {
+          customerEntries = new HashMap<TariffSpecification, T>();
+          result.put(customer, customerEntries);
         }
-        customer2ShiftedEnergy.get(customer).putAll(tariff2energy);
+        customerEntries.putAll(tariff2value);
       }
+      return result;
     }
 
 
     @Override
     public TariffSpecification getCorrespondingSpec(double[] queryPoint) {
-      
-      TariffSpecification result = point2spec.get(queryPoint);
-      
-      if (null == result) {
-        // try to find key by content rather than by pointer
-        List<Double> bestPointAsList = Arrays.asList(ArrayUtils.toObject(queryPoint));
-        for (double[] point : point2spec.keySet()) {
-          List<Double> pointAsList = Arrays.asList(ArrayUtils.toObject(point));
-          if (bestPointAsList.equals(pointAsList))
-            return point2spec.get(point);
-        }
+      if ( ! verifyNumRates(queryPoint) ) {
+        log.error("How come point length != NUM_RATES, i.e. " + NUM_RATES);
+        return fixedRateSeed;
       }
+      return getOrCreateCandidate(queryPoint).spec;
+    }
 
-      // if here didn't find, try to create
-      result = convertPointToSpec(queryPoint); 
-      
-      return result;
+
+    /**
+     * @return the registered candidate with the same (quantized) rates,
+     * so repeated points map to the same spec
+     */
+    private Candidate getOrCreateCandidate(double[] point) {
+      RateVector rates = new RateVector(point);
+      synchronized (candidates) {
+        Candidate result = candidates.get(rates);
+        if (null == result) {
+          result = new Candidate(convertPointToSpec(point));
+          candidates.put(rates, result);
+        }
+        return result;
+      }
     }
 
 
     private TariffSpecification convertPointToSpec(double[] point) {
       TariffSpecification spec = new TariffSpecification(me, PowerType.CONSUMPTION);
-      if (point.length != NUM_RATES) {
-        log.error("How come point length != NUM_RATES, i.e. " + NUM_RATES);
-        return fixedRateSeed;
-      } 
       double fixedRate = fixedRateSeed.getRates().get(0).getValue(); 
       for (int i=0; i < point.length; ++i){
         Rate rate = new Rate().withValue(fixedRate + point[i]).withDailyBegin(i).withDailyEnd(i);
         spec.addRate(rate);
       } 
-      // add mapping
-      point2spec.put(point, spec); 
       return spec;     
     }
 
@@ -364,5 +577,63 @@ public class TariffOptimizerIncremental extends TariffOptimizerBase {
     }
     
   }
+
+
+  /**
+   * Inputs of a candidate's utility estimation
+   */
+  static class CandidateEvaluation {
+
+    List<TariffSpecification> suggestedSpec;
+    // existing tariffs and the candidate
+    HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> shiftedEnergy;
+    HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> charges;
+    // the candidate only
+    HashMap<CustomerInfo, ShiftedEnergyData> candidateShiftedEnergy;
+  }
+
+
+  /**
+   * A registered point: its spec, and its value once evaluated
+   */
+  static class Candidate {
+
+    final TariffSpecification spec;
+    // null until evaluated (guarded by the candidate)
+    Double value;
+
+    Candidate(TariffSpecification spec) {
+      this.spec = spec;
+    }
+  }
+
+
+  /**
+   * Value-based key of a point (rate offsets), quantized by RATE_QUANTUM
+   */
+  static class RateVector {
+
+    private final long[] quanta;
+    private final int hash;
+
+    RateVector(double[] point) {
+      quanta = new long[point.length];
+      for (int i = 0; i < point.length; ++i) {
+        quanta[i] = Math.round(point[i] / RATE_QUANTUM);
+      }
+      hash = Arrays.hashCode(quanta);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof RateVector 
+             && Arrays.equals(quanta, ((RateVector) obj).quanta);
+    }
+  }
   
 }
@@ -0,0 +1,225 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu               
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.utilityestimation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.enumerations.PowerType;
+
+import edu.utexas.cs.tactex.utils.BrokerUtils;
+import edu.utexas.cs.tactex.utils.BrokerUtils.ShiftedEnergyData;
+
+/**
+ * Dense view of the utility-estimation inputs that are shared by all
+ * candidate tariffs of a decision. Customers and tariffs get consecutive
+ * int ids; energy records are referenced (not copied) and charges and
+ * current subscriptions are kept in [customer][tariff] / [tariff][customer]
+ * matrices. Missing entries are null arrays / NaN.
+ *
+ * The per-evaluation sums go into a Workspace, so evaluating a candidate
+ * does not allocate.
+ *
+ * @author urieli
+ */
+class UtilityEstimationIndex {
+
+  static final byte CONSUMPTION = 1;
+  static final byte PRODUCTION = 2;
+  static final byte OTHER = 0;
+
+  final int recordLength;
+
+  final HashMap<CustomerInfo, Integer> customerIds = new HashMap<CustomerInfo, Integer>();
+  final HashMap<TariffSpecification, Integer> specIds = new HashMap<TariffSpecification, Integer>();
+
+  // per customer
+  final int[] populations;
+  final double[][] nonShiftedEnergy;
+
+  // per tariff
+  final byte[] powerTypes;
+  final double[] earlyWithdrawPayments;
+
+  // [customer][tariff]
+  final double[][][] shiftedEnergy;
+  final double[][] charges;
+
+  // [tariff][customer]
+  final double[][] currentSubscriptions;
+
+
+  UtilityEstimationIndex(
+      HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> tariffSubscriptions,
+      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2estimatedTariffCharges,
+      HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> customerTariff2ShiftedEnergy,
+      HashMap<CustomerInfo, ArrayRealVector> customer2NonShiftedEnergy) {
+
+    recordLength = BrokerUtils.extractPredictionRecordLength(customerTariff2ShiftedEnergy);
+
+    // assign ids
+    for (Entry<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> entry : customerTariff2ShiftedEnergy.entrySet()) {
+      addCustomer(entry.getKey());
+      for (TariffSpecification spec : entry.getValue().keySet()) {
+        addSpec(spec);
+      }
+    }
+    for (Entry<CustomerInfo, HashMap<TariffSpecification, Double>> entry : customer2estimatedTariffCharges.entrySet()) {
+      addCustomer(entry.getKey());
+      for (TariffSpecification spec : entry.getValue().keySet()) {
+        addSpec(spec);
+      }
+    }
+    for (Entry<TariffSpecification, HashMap<CustomerInfo, Integer>> entry : tariffSubscriptions.entrySet()) {
+      addSpec(entry.getKey());
+      for (CustomerInfo customer : entry.getValue().keySet()) {
+        addCustomer(customer);
+      }
+    }
+    for (CustomerInfo customer : customer2NonShiftedEnergy.keySet()) {
+      addCustomer(customer);
+    }
+    int numCustomers = customerIds.size();
+    int numSpecs = specIds.size();
+
+    populations = new int[numCustomers];
+    nonShiftedEnergy = new double[numCustomers][];
+    for (Entry<CustomerInfo, Integer> entry : customerIds.entrySet()) {
+      int c = entry.getValue();
+      CustomerInfo customer = entry.getKey();
+      populations[c] = customer.getPopulation();
+      ArrayRealVector energy = customer2NonShiftedEnergy.get(customer);
+      if (null != energy) {
+        nonShiftedEnergy[c] = energy.getDataRef();
+      }
+    }
+
+    powerTypes = new byte[numSpecs];
+    earlyWithdrawPayments = new double[numSpecs];
+    for (Entry<TariffSpecification, Integer> entry : specIds.entrySet()) {
+      int s = entry.getValue();
+      TariffSpecification spec = entry.getKey();
+      PowerType powerType = spec.getPowerType();
+      powerTypes[s] = powerType.isConsumption() ? CONSUMPTION : 
+                      powerType.isProduction() ? PRODUCTION : OTHER;
+      earlyWithdrawPayments[s] = spec.getEarlyWithdrawPayment();
+    }
+
+    shiftedEnergy = new double[numCustomers][numSpecs][];
+    for (Entry<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> entry : customerTariff2ShiftedEnergy.entrySet()) {
+      int c = customerIds.get(entry.getKey());
+      for (Entry<TariffSpecification, ShiftedEnergyData> e : entry.getValue().entrySet()) {
+        shiftedEnergy[c][specIds.get(e.getKey())] = e.getValue().getShiftedEnergy().getDataRef();
+      }
+    }
+
+    charges = new double[numCustomers][numSpecs];
+    for (double[] row : charges) {
+      Arrays.fill(row, Double.NaN);
+    }
+    for (Entry<CustomerInfo, HashMap<TariffSpecification, Double>> entry : customer2estimatedTariffCharges.entrySet()) {
+      int c = customerIds.get(entry.getKey());
+      for (Entry<TariffSpecification, Double> e : entry.getValue().entrySet()) {
+        if (null != e.getValue()) {
+          charges[c][specIds.get(e.getKey())] = e.getValue();
+        }
+      }
+    }
+
+    currentSubscriptions = new double[numSpecs][numCustomers];
+    for (double[] row : currentSubscriptions) {
+      Arrays.fill(row, Double.NaN);
+    }
+    for (Entry<TariffSpecification, HashMap<CustomerInfo, Integer>> entry : tariffSubscriptions.entrySet()) {
+      int s = specIds.get(entry.getKey());
+      for (Entry<CustomerInfo, Integer> e : entry.getValue().entrySet()) {
+        if (null != e.getValue()) {
+          currentSubscriptions[s][customerIds.get(e.getKey())] = e.getValue();
+        }
+      }
+    }
+  }
+
+
+  int getNumCustomers() {
+    return populations.length;
+  }
+
+
+  Workspace createWorkspace() {
+    return new Workspace(recordLength, getNumCustomers());
+  }
+
+
+  private void addCustomer(CustomerInfo customer) {
+    if (!customerIds.containsKey(customer)) {
+      customerIds.put(customer, customerIds.size());
+    }
+  }
+
+
+  private void addSpec(TariffSpecification spec) {
+    if (!specIds.containsKey(spec)) {
+      specIds.put(spec, specIds.size());
+    }
+  }
+
+
+  /**
+   * Accumulation buffers of a single utility evaluation; reused across
+   * evaluations by a single thread.
+   */
+  static class Workspace {
+
+    final double[] predictedEnergy;
+    final double[] consumptionEnergy;
+    final double[] productionEnergy;
+    final double[] competitorsEnergy;
+    // cost-curve predictions, overwritten (not accumulated) per evaluation
+    final double[] unitCostsKwh;
+    // per customer
+    final double[] subscribedPopulation;
+    final boolean[] isPredicted;
+
+
+    Workspace(int recordLength, int numCustomers) {
+      predictedEnergy = new double[recordLength];
+      consumptionEnergy = new double[recordLength];
+      productionEnergy = new double[recordLength];
+      competitorsEnergy = new double[recordLength];
+      unitCostsKwh = new double[recordLength];
+      subscribedPopulation = new double[numCustomers];
+      isPredicted = new boolean[numCustomers];
+    }
+
+
+    void clear() {
+      Arrays.fill(predictedEnergy, 0);
+      Arrays.fill(consumptionEnergy, 0);
+      Arrays.fill(productionEnergy, 0);
+      Arrays.fill(competitorsEnergy, 0);
+      Arrays.fill(subscribedPopulation, 0);
+      Arrays.fill(isPredicted, false);
+    }
+  }
+}
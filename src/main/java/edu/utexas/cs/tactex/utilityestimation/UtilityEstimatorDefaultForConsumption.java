@@ -28,9 +28,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.RealVector;
 import org.apache.log4j.Logger;
 import org.powertac.common.Broker;
 import org.powertac.common.CustomerInfo;
@@ -44,7 +48,6 @@ import edu.utexas.cs.tactex.interfaces.CustomerPredictionManager;
 import edu.utexas.cs.tactex.interfaces.MarketPredictionManager;
 import edu.utexas.cs.tactex.interfaces.ShiftingPredictor;
 import edu.utexas.cs.tactex.interfaces.UtilityEstimator;
-import edu.utexas.cs.tactex.utils.BrokerUtils;
 import edu.utexas.cs.tactex.utils.BrokerUtils.ShiftedEnergyData;
 
 /**
@@ -61,10 +64,6 @@ public class UtilityEstimatorDefaultForConsumption implements UtilityEstimator {
 
   //@Autowired   - doesn't work
   private ConfiguratorFactoryService configuratorFactoryService;
-  
-  
-  // this is just for printing predicted vs. actual customer subscriptions
-  public HashMap<TariffSpecification, HashMap<TariffSpecification, HashMap<CustomerInfo, Double>>> predictions = new HashMap<TariffSpecification, HashMap<TariffSpecification,HashMap<CustomerInfo,Double>>>();
 
 
 
@@ -102,27 +101,11 @@ public class UtilityEstimatorDefaultForConsumption implements UtilityEstimator {
       CostCurvesPredictor costCurvesPredictor,
       int currentTimeslot,
       Broker me) {
-    
-    // this is just for printing predicted vs. actual customer subscriptions
-    predictions.clear();
 
-    TreeMap<Double, TariffSpecification> 
-        utility2spec = 
-            new TreeMap<Double, TariffSpecification>();
-    
-    // all possible tariff actions: {suggestedSpeces} U {no-op}
-    // a value of null means no-op
-    for (TariffSpecification spec : consideredTariffActions) {
-      double utility = predictUtility(spec, customer2RelevantTariffCharges,
-          tariffSubscriptions, competingTariffs, currentTimeslot,
-          customer2ShiftedEnergy,
-          customer2NonShiftedEnergy,
-          marketPredictionManager,
-          costCurvesPredictor);
-      utility2spec.put(utility + publicationFee(spec), spec); 
-    }
-    
-    return utility2spec;
+    return estimateCandidateUtilities(false, consideredTariffActions,
+        tariffSubscriptions, competingTariffs, customer2RelevantTariffCharges,
+        customer2ShiftedEnergy, customer2NonShiftedEnergy,
+        marketPredictionManager, costCurvesPredictor, currentTimeslot);
   }
 
 
@@ -137,102 +120,161 @@ public class UtilityEstimatorDefaultForConsumption implements UtilityEstimator {
       MarketPredictionManager marketPredictionManager,
       CostCurvesPredictor costCurvesPredictor, int currentTimeslot, Broker me) {
 
-    TreeMap<Double, TariffSpecification> 
-        utility2spec = 
-            new TreeMap<Double, TariffSpecification>();
-    
-    // all possible tariff actions: {suggestedSpeces} U {no-op}
-    // a value of null means no-op
-    for (TariffSpecification spec : consideredTariffActions) {
-      
-      double utility = predictRevokeUtility(spec, customer2RelevantTariffCharges,
-          tariffSubscriptions, competingTariffs, currentTimeslot,
-          customer2ShiftedEnergy,
-          customer2NonShiftedEnergy,
-          marketPredictionManager,
-          costCurvesPredictor);
-      utility2spec.put(utility + revokeFee(spec), spec); 
-    }
-    return utility2spec;
+    return estimateCandidateUtilities(true, consideredTariffActions,
+        tariffSubscriptions, competingTariffs, customer2RelevantTariffCharges,
+        customer2ShiftedEnergy, customer2NonShiftedEnergy,
+        marketPredictionManager, costCurvesPredictor, currentTimeslot);
+  }
+
+
+  @Override
+  public HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictCustomerSubscriptions(
+      TariffSpecification spec,
+      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2RelevantTariffCharges,
+      HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> tariffSubscriptions,
+      List<TariffSpecification> competingTariffs,
+      int currentTimeslot) {
+
+    return predictMigration(false, spec, customer2RelevantTariffCharges, 
+        tariffSubscriptions, competingTariffs, currentTimeslot);
   }
 
 
   /**
-   * use it to compute utility for a candidate tariff:
+   * Estimates the utility of each candidate action (adding/revoking a
+   * spec, null is no-op):
    * 1. compute customer migration
    * 2. compute utility after customer migration
    * 
-   * @param spec
-   * @param customer2estimatedTariffCharges
-   * @param tariffSubscriptions
-   * @param competingTariffs
-   * @param currentTimeslot
-   * @param customer2NonShiftedEnergy 
-   * @param customer2ShiftedEnergy2
-   * @param marketPredictionManager
-   * @param costCurvesPredictor
-   * @return
+   * Migrations are predicted one by one on the calling thread (the
+   * CustomerMigrationPredictor serializes predictions anyway, see there),
+   * and each call keeps its predictions to itself. With more than one
+   * utility thread, the utility of each candidate is estimated on the
+   * pool as soon as its migration is predicted. Results are merged in
+   * candidate order, so that candidates of equal utility resolve like
+   * in sequential evaluation (the later one is kept).
    */
-  private double predictUtility(
-      TariffSpecification spec,
-      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2estimatedTariffCharges,
+  private TreeMap<Double, TariffSpecification> estimateCandidateUtilities(
+      boolean isRevoke,
+      List<TariffSpecification> consideredTariffActions,
       HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> tariffSubscriptions,
       List<TariffSpecification> competingTariffs,
-      int currentTimeslot,
+      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2RelevantTariffCharges,
       HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> customer2ShiftedEnergy,
-      HashMap<CustomerInfo, ArrayRealVector> customer2NonShiftedEnergy, 
-      MarketPredictionManager marketPredictionManager,
-      CostCurvesPredictor costCurvesPredictor) {
-
-    HashMap<TariffSpecification, HashMap<CustomerInfo, Double>>
-        predictedCustomerSubscriptions = customerPredictionManager.predictCustomerMigration(spec, 
-            customer2estimatedTariffCharges, 
-            tariffSubscriptions, 
-            competingTariffs, currentTimeslot);
+      HashMap<CustomerInfo, ArrayRealVector> customer2NonShiftedEnergy,
+      final MarketPredictionManager marketPredictionManager,
+      final CostCurvesPredictor costCurvesPredictor, 
+      final int currentTimeslot) {
 
-    // This is just for printing predicted vs. actual customer subscriptions
-    predictions.put(spec, predictedCustomerSubscriptions);
+    TreeMap<Double, TariffSpecification> 
+        utility2spec = 
+            new TreeMap<Double, TariffSpecification>();
     
-    // estimate utility with predicted migration
-    log.info("estimating utility of adding spec: " + spec);
-    double utility = estimateUtility(tariffSubscriptions, predictedCustomerSubscriptions, 
-        customer2estimatedTariffCharges, 
-        customer2ShiftedEnergy, //customer2estimatedEnergy, 
-        customer2NonShiftedEnergy,
-        marketPredictionManager, 
-        costCurvesPredictor, 
-        currentTimeslot/*, customer2estimatedEnergy*/); // <= for print purposes
-    return utility;
+    // inputs that are shared by all candidates are indexed once
+    final UtilityEstimationIndex index = new UtilityEstimationIndex(tariffSubscriptions, 
+        customer2RelevantTariffCharges, customer2ShiftedEnergy, customer2NonShiftedEnergy);
+
+    // the pool is owned (and shut down) by the ConfiguratorFactoryService
+    int numThreads = null == configuratorFactoryService ? 1 : configuratorFactoryService.getUtilityThreads();
+    ExecutorService executor = numThreads <= 1 ? null : configuratorFactoryService.getUtilityExecutor();
+    if (null == executor || consideredTariffActions.size() <= 1) {
+      UtilityEstimationIndex.Workspace workspace = index.createWorkspace();
+      // all possible tariff actions: {suggestedSpeces} U {no-op}
+      // a value of null means no-op
+      for (TariffSpecification spec : consideredTariffActions) {
+        HashMap<TariffSpecification, HashMap<CustomerInfo, Double>>
+            predictedCustomerSubscriptions = predictMigration(isRevoke, spec, 
+                customer2RelevantTariffCharges, tariffSubscriptions, 
+                competingTariffs, currentTimeslot);
+        double utility = estimateUtility(index, workspace, 
+            predictedCustomerSubscriptions, 
+            marketPredictionManager, 
+            costCurvesPredictor, 
+            currentTimeslot);
+        utility2spec.put(utility + fee(isRevoke, spec), spec); 
+      }
+      return utility2spec;
+    }
+
+    // workspaces are reused by tasks that don't run concurrently
+    final LinkedBlockingQueue<UtilityEstimationIndex.Workspace> workspaces = 
+        new LinkedBlockingQueue<UtilityEstimationIndex.Workspace>();
+    List<Future<Double>> utilities = new ArrayList<Future<Double>>();
+    for (TariffSpecification spec : consideredTariffActions) {
+      final HashMap<TariffSpecification, HashMap<CustomerInfo, Double>>
+          predictedCustomerSubscriptions = predictMigration(isRevoke, spec, 
+              customer2RelevantTariffCharges, tariffSubscriptions, 
+              competingTariffs, currentTimeslot);
+      utilities.add(executor.submit(new Callable<Double>() {
+        @Override
+        public Double call () {
+          UtilityEstimationIndex.Workspace workspace = workspaces.poll();
+          if (null == workspace) {
+            workspace = index.createWorkspace();
+          }
+          try {
+            return estimateUtility(index, workspace, 
+                predictedCustomerSubscriptions, 
+                marketPredictionManager, 
+                costCurvesPredictor, 
+                currentTimeslot);
+          }
+          finally {
+            workspaces.offer(workspace);
+          }
+        }
+      }));
+    }
+    for (int i = 0; i < utilities.size(); ++i) {
+      TariffSpecification spec = consideredTariffActions.get(i);
+      utility2spec.put(getUtility(utilities.get(i)) + fee(isRevoke, spec), spec); 
+    }
+    return utility2spec;
   }
 
 
-  private double predictRevokeUtility(
+  private HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictMigration(
+      boolean isRevoke,
       TariffSpecification spec,
       HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2estimatedTariffCharges,
       HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> tariffSubscriptions,
       List<TariffSpecification> competingTariffs,
-      int currentTimeslot,
-      HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> customer2ShiftedEnergy,
-      HashMap<CustomerInfo, ArrayRealVector> customer2NonShiftedEnergy,
-      MarketPredictionManager marketPredictionManager,
-      CostCurvesPredictor costCurvesPredictor) {
-    
-    HashMap<TariffSpecification, HashMap<CustomerInfo, Double>>
-        predictedCustomerSubscriptions = customerPredictionManager.predictCustomerMigrationForRevoke(spec, 
-            customer2estimatedTariffCharges, 
-            tariffSubscriptions, 
-            competingTariffs, currentTimeslot);
+      int currentTimeslot) {
+
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predictedCustomerSubscriptions;
+    if (isRevoke) {
+      predictedCustomerSubscriptions = customerPredictionManager.predictCustomerMigrationForRevoke(spec, 
+          customer2estimatedTariffCharges, 
+          tariffSubscriptions, 
+          competingTariffs, currentTimeslot);
+    }
+    else {
+      predictedCustomerSubscriptions = customerPredictionManager.predictCustomerMigration(spec, 
+          customer2estimatedTariffCharges, 
+          tariffSubscriptions, 
+          competingTariffs, currentTimeslot);
+    }
     
     log.info("estimating utility of adding spec: " + spec);
-    double utility = estimateUtility(tariffSubscriptions, predictedCustomerSubscriptions, 
-        customer2estimatedTariffCharges, 
-        customer2ShiftedEnergy, //customer2estimatedEnergy, 
-        customer2NonShiftedEnergy,
-        marketPredictionManager, 
-        costCurvesPredictor, 
-        currentTimeslot/*, customer2estimatedEnergy*/); // <= for print purposes
-
-    return utility;
+    return predictedCustomerSubscriptions;
+  }
+
+
+  private double getUtility(Future<Double> utility) {
+    try {
+      return utility.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while estimating utilities", e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException("utility estimation failed", cause);
+    }
   }
 
 
@@ -251,6 +293,7 @@ public class UtilityEstimatorDefaultForConsumption implements UtilityEstimator {
   /**
    * Core method for estimating utility
    */
+  @Override
   public double estimateUtility(
       HashMap<TariffSpecification,HashMap<CustomerInfo,Integer>> tariffSubscriptions,
       HashMap<TariffSpecification,HashMap<CustomerInfo,Double>> predictedCustomerSubscriptions,
@@ -261,74 +304,96 @@ public class UtilityEstimatorDefaultForConsumption implements UtilityEstimator {
       CostCurvesPredictor costCurvesPredictor, 
       int currentTimeslot/*, HashMap<CustomerInfo,ArrayRealVector> customer2estimatedEnergy*/) { // <= for print purposes
 
+    UtilityEstimationIndex index = new UtilityEstimationIndex(tariffSubscriptions, 
+        customer2estimatedTariffCharges, customerTariff2ShiftedEnergy, customer2NonShiftedEnergy);
+    return estimateUtility(index, index.createWorkspace(), predictedCustomerSubscriptions, 
+        marketPredictionManager, costCurvesPredictor, currentTimeslot);
+  }
+
+
+  /**
+   * Same as above, on inputs that were indexed once for all the
+   * candidates of a decision. Sums are accumulated in the workspace's
+   * buffers rather than in (newly allocated) vectors.
+   */
+  double estimateUtility(
+      UtilityEstimationIndex index,
+      UtilityEstimationIndex.Workspace workspace,
+      HashMap<TariffSpecification,HashMap<CustomerInfo,Double>> predictedCustomerSubscriptions,
+      MarketPredictionManager marketPredictionManager,
+      CostCurvesPredictor costCurvesPredictor, 
+      int currentTimeslot) {
+
     log.debug("estimateUtility(): currently assuming competing tariffs are not new and that my subscriptions are not going to change as a result of them");
+    log.debug("Ignoring balancing costs - assuming they are 0");
      
     // accumulate the final results    
-    //int expectedRecordLength = 7 * 24; // TODO use Timeservice here correctly
     double estTariffIncome = 0;
     double estTariffCosts = 0;
     double wholesaleCosts = 0;
     double balancingCosts = 0;
     double distributionCosts = 0;
     double withdrawCosts = 0;
-    //double totalConsumption = 0; 
-    //double totalProduction = 0; 
-    final int predictionRecordLength = BrokerUtils.extractPredictionRecordLength(customerTariff2ShiftedEnergy);
-    RealVector predictedEnergyRecord = new ArrayRealVector(predictionRecordLength);
-    RealVector totalConsumptionEnergyRecord = new ArrayRealVector(predictionRecordLength);
-    RealVector totalProductionEnergyRecord = new ArrayRealVector(predictionRecordLength);
+    final int predictionRecordLength = index.recordLength;
+    workspace.clear();
+    double[] predictedEnergyRecord = workspace.predictedEnergy;
+    double[] totalConsumptionEnergyRecord = workspace.consumptionEnergy;
+    double[] totalProductionEnergyRecord = workspace.productionEnergy;
     // for each customer get his usage prediction
     for (Entry<TariffSpecification, 
             HashMap<CustomerInfo, Double>> entry : predictedCustomerSubscriptions.entrySet()) {
 
       TariffSpecification spec = entry.getKey();
-      HashMap<CustomerInfo,Double> subscriptions = entry.getValue();
+      int s = index.specIds.get(spec);
+      byte powerType = index.powerTypes[s];
+      if (powerType == UtilityEstimationIndex.OTHER) {
+        log.warn("Ignoring unknown powertype when computing tariffs income/costs and distribution costs: " + spec.getPowerType());
+      }
+      double[] currentSubscriptions = index.currentSubscriptions[s];
 
-      for (Entry<CustomerInfo, Double> ce : subscriptions.entrySet()) {
+      for (Entry<CustomerInfo, Double> ce : entry.getValue().entrySet()) {
 
-        CustomerInfo customerInfo = ce.getKey();
-        Double subscribedPopulation = ce.getValue();
+        int c = index.customerIds.get(ce.getKey());
+        double subscribedPopulation = ce.getValue();
+        workspace.subscribedPopulation[c] += subscribedPopulation;
+        workspace.isPredicted[c] = true;
         
         // Predicted total tariff cash flow. Sign is inverted since
         // evaluatedTariffs was computed from customers' perspective
-        if (spec.getPowerType().isConsumption()){
-          estTariffIncome += -customer2estimatedTariffCharges.get(customerInfo).get(spec) * subscribedPopulation; 
+        double charge = index.charges[c][s];
+        if (Double.isNaN(charge)) {
+          throw new NullPointerException("no charge estimate of " + spec + " for " + ce.getKey());
         }
-        else if (spec.getPowerType().isProduction()){
-          estTariffCosts += -customer2estimatedTariffCharges.get(customerInfo).get(spec) * subscribedPopulation; 
+        if (powerType == UtilityEstimationIndex.CONSUMPTION) {
+          estTariffIncome += -charge * subscribedPopulation; 
         }
-        else {
-          log.warn("Ignoring unknown powertype when computing tariffs income/costs: " + spec.getPowerType());
+        else if (powerType == UtilityEstimationIndex.PRODUCTION) {
+          estTariffCosts += -charge * subscribedPopulation; 
         }
          
-        // Predicted total energy
-        RealVector energyPrediction = customerTariff2ShiftedEnergy.get(customerInfo).get(spec).getShiftedEnergy().mapMultiply(subscribedPopulation);
-        predictedEnergyRecord = predictedEnergyRecord.add(energyPrediction);
+        // Predicted total energy, total consumption and total production
+        double[] energy = index.shiftedEnergy[c][s];
+        for (int i = 0; i < predictionRecordLength; ++i) {
+          double energyPrediction = energy[i] * subscribedPopulation;
+          predictedEnergyRecord[i] += energyPrediction;
+          if (powerType == UtilityEstimationIndex.CONSUMPTION) {
+            totalConsumptionEnergyRecord[i] += energyPrediction;
+          }
+          else if (powerType == UtilityEstimationIndex.PRODUCTION) {
+            totalProductionEnergyRecord[i] += energyPrediction;
+          }
+        }
 
         // Predicted balancing cost 
         balancingCosts += 0;
-        log.debug("Ignoring balancing costs - assuming they are 0");
         
         // Predicted withdraw costs (currently assuming everyone will pay).
         // sign is inverted since withdraw payment is from customer's perspective
-        HashMap<CustomerInfo, Integer> cust2subs = tariffSubscriptions.get(spec);
-        if (cust2subs != null) {
-          Integer currentSubs = cust2subs.get(customerInfo);
-          if (currentSubs != null && subscribedPopulation < currentSubs) {
-            double withdraws = currentSubs - subscribedPopulation;            
-            withdrawCosts += -(withdraws * spec.getEarlyWithdrawPayment());
-          }
-        }
-
-        // Predicted total consumption and total production
-        if (spec.getPowerType().isConsumption()){
-          totalConsumptionEnergyRecord = totalConsumptionEnergyRecord.add(energyPrediction);
-        }
-        else if (spec.getPowerType().isProduction()){
-          totalProductionEnergyRecord = totalProductionEnergyRecord.add(energyPrediction);
-        }
-        else {
-          log.warn("Ignoring unknown powertype when computing distribution costs");
+        // (NaN: no current subscriptions)
+        double currentSubs = currentSubscriptions[c];
+        if (subscribedPopulation < currentSubs) {
+          double withdraws = currentSubs - subscribedPopulation;            
+          withdrawCosts += -(withdraws * index.earlyWithdrawPayments[s]);
         }
       }
     }
@@ -337,9 +402,9 @@ public class UtilityEstimatorDefaultForConsumption implements UtilityEstimator {
     log.debug("Ignoring balancing orders and curtailment when computing distribution costs");
     distributionCosts = 0;
     double distributionFee = contextManager.getDistributionFee();
-    for (int i = 0; i < totalConsumptionEnergyRecord.getDimension(); ++i) {
-      double totalTimeslotConsumption = Math.abs(totalConsumptionEnergyRecord.getEntry(i));
-      double totalTimeslotProduction = Math.abs(totalProductionEnergyRecord.getEntry(i));
+    for (int i = 0; i < predictionRecordLength; ++i) {
+      double totalTimeslotConsumption = Math.abs(totalConsumptionEnergyRecord[i]);
+      double totalTimeslotProduction = Math.abs(totalProductionEnergyRecord[i]);
       distributionCosts += Math.max(totalTimeslotConsumption, totalTimeslotProduction) * distributionFee;
     }
 
@@ -351,22 +416,32 @@ public class UtilityEstimatorDefaultForConsumption implements UtilityEstimator {
       // and use these predictions here.
    
       // compute energy of customers I don't have 
-      RealVector predictedCompetitorsEnergyRecord = new ArrayRealVector(predictionRecordLength);
-      HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> map = BrokerUtils.revertKeyMapping(predictedCustomerSubscriptions);
-      for (CustomerInfo cust : map.keySet()) {
-        double subsToOthers = cust.getPopulation() - BrokerUtils.sumMapValues(map.get(cust));
-        RealVector customerNonShiftedEnergy = customer2NonShiftedEnergy.get(cust).mapMultiply(subsToOthers);
-        predictedCompetitorsEnergyRecord = predictedCompetitorsEnergyRecord.add(customerNonShiftedEnergy);
+      double[] predictedCompetitorsEnergyRecord = workspace.competitorsEnergy;
+      for (int c = 0; c < index.getNumCustomers(); ++c) {
+        if (workspace.isPredicted[c]) {
+          double subsToOthers = index.populations[c] - workspace.subscribedPopulation[c];
+          double[] customerNonShiftedEnergy = index.nonShiftedEnergy[c];
+          for (int i = 0; i < predictionRecordLength; ++i) {
+            predictedCompetitorsEnergyRecord[i] += customerNonShiftedEnergy[i] * subsToOthers;
+          }
+        }
       }
     
-      for (int i = 0; i < predictedEnergyRecord.getDimension(); ++i) {
+      double fudgeFactorKwh = costCurvesPredictor.getFudgeFactorKwh(currentTimeslot);
+      // all timeslots in one call (the cost-curve model is retrieved once)
+      double[] unitCosts = workspace.unitCostsKwh;
+      costCurvesPredictor.predictUnitCostKwh(currentTimeslot, currentTimeslot, 
+          predictedEnergyRecord, predictedCompetitorsEnergyRecord, unitCosts);
+      for (int i = 0; i < predictionRecordLength; ++i) {
         int futureTimeslot = currentTimeslot + i;
-        double neededKwh = predictedEnergyRecord.getEntry(i);
-        double competitorKwh = predictedCompetitorsEnergyRecord.getEntry(i);
-        double unitCost = costCurvesPredictor.predictUnitCostKwh(currentTimeslot, futureTimeslot, neededKwh, competitorKwh);
+        double neededKwh = predictedEnergyRecord[i];
+        double competitorKwh = predictedCompetitorsEnergyRecord[i];
+        double unitCost = unitCosts[i];
         // NOTE: unitCost is signed (typically negative)
-        wholesaleCosts += (unitCost + costCurvesPredictor.getFudgeFactorKwh(currentTimeslot)) * neededKwh;
-        log.debug("cost-curve prediction: current " + currentTimeslot + " futureTimeslot " + futureTimeslot + " neededKwh " + neededKwh + " neededKwh + competitorKwh " + (neededKwh + competitorKwh) + " unitCost " + unitCost);
+        wholesaleCosts += (unitCost + fudgeFactorKwh) * neededKwh;
+        if (log.isDebugEnabled()) {
+          log.debug("cost-curve prediction: current " + currentTimeslot + " futureTimeslot " + futureTimeslot + " neededKwh " + neededKwh + " neededKwh + competitorKwh " + (neededKwh + competitorKwh) + " unitCost " + unitCost);
+        }
       }
     } 
     else {
@@ -376,11 +451,14 @@ public class UtilityEstimatorDefaultForConsumption implements UtilityEstimator {
       marketPredictionManager.
       getPricePerKwhPredictionForAbout7Days();
       // sanity check
-      if (predictedEnergyRecord.getDimension() != estimatedMarketPrices.getDimension()) {
+      if (predictionRecordLength != estimatedMarketPrices.getDimension()) {
         log.error("Cannot compute utility - prediction periods of market and energy differ);");
         return 0;
       }
-      wholesaleCosts = -predictedEnergyRecord.dotProduct(estimatedMarketPrices);
+      double[] prices = estimatedMarketPrices.getDataRef();
+      for (int i = 0; i < predictionRecordLength; ++i) {
+        wholesaleCosts -= predictedEnergyRecord[i] * prices[i];
+      }
     }
 
     log.info("estTariffIncome " + estTariffIncome); 
@@ -395,6 +473,11 @@ public class UtilityEstimatorDefaultForConsumption implements UtilityEstimator {
   }
 
 
+  private double fee(boolean isRevoke, TariffSpecification spec) {
+    return isRevoke ? revokeFee(spec) : publicationFee(spec);
+  }
+
+
   private double publicationFee(TariffSpecification spec) {
     // null is no-op => no-fees
     return (spec != null) ? contextManager.getPublicationFee() : 0; 
@@ -0,0 +1,140 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.utils;
+
+import java.util.Arrays;
+
+/**
+ * A group of cleared trades <price-per-mwh, mwh>, stored as parallel
+ * primitive columns sorted by increasing price, with a single entry per
+ * distinct price. A cumulative-energy column is maintained on insertion,
+ * so that the energy cleared at or below a price is a single lookup.
+ *
+ * @author urieli
+ */
+public class BidGroup {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private int size;
+  private double[] prices;
+  private double[] mwh;
+  // cumulativeMwh[k] = total energy of entries 0..k-1
+  private double[] cumulativeMwh;
+
+  // incremented on every modification
+  private int modCount;
+
+
+  public BidGroup() {
+    prices = new double[INITIAL_CAPACITY];
+    mwh = new double[INITIAL_CAPACITY];
+    cumulativeMwh = new double[INITIAL_CAPACITY + 1];
+  }
+
+
+  /**
+   * Adds a trade: merged into the entry with the same price if exists,
+   * otherwise inserted in its sorted position.
+   */
+  public void addTrade(double pricePerMwh, double tradeMwh) {
+    int i = Arrays.binarySearch(prices, 0, size, pricePerMwh);
+    if (i < 0) {
+      i = -(i + 1);
+      ensureCapacity(size + 1);
+      int tail = size - i;
+      System.arraycopy(prices, i, prices, i + 1, tail);
+      System.arraycopy(mwh, i, mwh, i + 1, tail);
+      System.arraycopy(cumulativeMwh, i + 1, cumulativeMwh, i + 2, tail);
+      prices[i] = pricePerMwh;
+      mwh[i] = 0;
+      cumulativeMwh[i + 1] = cumulativeMwh[i];
+      ++size;
+    }
+    mwh[i] += tradeMwh;
+    for (int k = i + 1; k <= size; ++k) {
+      cumulativeMwh[k] += tradeMwh;
+    }
+    ++modCount;
+  }
+
+
+  public int size() {
+    return size;
+  }
+
+
+  public double getPricePerMwh(int i) {
+    return prices[i];
+  }
+
+
+  public double getMwh(int i) {
+    return mwh[i];
+  }
+
+
+  /**
+   * @return total energy of entries 0..i-1 (i.e. 0 for i=0)
+   */
+  public double getCumulativeMwh(int i) {
+    return cumulativeMwh[i];
+  }
+
+
+  public double getTotalMwh() {
+    return cumulativeMwh[size];
+  }
+
+
+  /**
+   * @return index of first entry whose price is not below the given limit
+   * (size() if none)
+   */
+  public int firstIndexNotBelow(double limitPrice) {
+    int lo = 0;
+    int hi = size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (prices[mid] < limitPrice) {
+        lo = mid + 1;
+      }
+      else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+
+  public int getModCount() {
+    return modCount;
+  }
+
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= prices.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, prices.length * 2);
+    prices = Arrays.copyOf(prices, newCapacity);
+    mwh = Arrays.copyOf(mwh, newCapacity);
+    cumulativeMwh = Arrays.copyOf(cumulativeMwh, newCapacity + 1);
+  }
+}
@@ -17,8 +17,12 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 package edu.utexas.cs.tactex.utils; 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.log4j.Logger;
@@ -26,23 +30,58 @@ import org.powertac.common.CustomerInfo;
 import org.powertac.common.Tariff;
 import org.powertac.common.TariffEvaluationHelper;
 import org.powertac.common.TariffSpecification;
+import org.powertac.common.TimeService;
+import org.powertac.common.enumerations.PowerType;
 
 import edu.utexas.cs.tactex.interfaces.ChargeEstimator;
 import edu.utexas.cs.tactex.interfaces.TariffRepoMgr;
 
+/**
+ * Tariffs whose usage charge is linear in the usage are compiled once
+ * into a TariffRateTable, and their charges are dot products. Other
+ * tariffs (tiered, variable-rate) are evaluated by the server's
+ * TariffEvaluationHelper, and their charges are memoized per timeslot.
+ */
 public class ChargeEstimatorDefault implements ChargeEstimator {
 
   static private Logger log = Logger.getLogger(ChargeEstimatorDefault.class);
 
+  // memo is cleared when exceeding this size
+  private static final int MAX_MEMOIZED_CHARGES = 100000;
+
+  // bound on compiled tables: optimizers compile a table for each
+  // temporary candidate spec, so least recently used ones are evicted
+  private static final int MAX_RATE_TABLES = 1000;
+
+  // marks specs that cannot be compiled
+  private static final TariffRateTable NOT_COMPILED = new TariffRateTable(null, 0);
   
   private TariffRepoMgr tariffRepoMgr;
 
+  private TimeService timeService;
+
+  // spec-id => compiled table, or NOT_COMPILED (guarded by itself)
+  private LinkedHashMap<Long, TariffRateTable> rateTables =
+      new LinkedHashMap<Long, TariffRateTable>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, TariffRateTable> eldest) {
+          return size() > MAX_RATE_TABLES;
+        }
+      };
+
+  // (spec-id, energy) => charge, for tariffs that aren't compiled,
+  // valid during memoHour (guarded by itself)
+  private HashMap<ChargeKey, Double> chargeMemo = new HashMap<ChargeKey, Double>();
+  private long memoHour = -1;
 
-  public ChargeEstimatorDefault(TariffRepoMgr tariffRepoMgr) {
+
+  public ChargeEstimatorDefault(TariffRepoMgr tariffRepoMgr, TimeService timeService) {
     super();
     
     // @Autowired replacement
     this.tariffRepoMgr = tariffRepoMgr;
+    this.timeService = timeService;
   }
   
   
@@ -51,32 +90,245 @@ public class ChargeEstimatorDefault implements ChargeEstimator {
    */
   @Override
   public HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> estimateRelevantTariffCharges(List<TariffSpecification> tariffSpecs, HashMap<CustomerInfo, HashMap<TariffSpecification, BrokerUtils.ShiftedEnergyData>> customer2ShiftedEnergy) {
+    return estimateRelevantTariffChargeMatrix(tariffSpecs, customer2ShiftedEnergy).toMap();
+  }
+
+
+  /**
+   * A customer whose energy is the same under all the tariffs it can use
+   * (e.g. when shifting isn't predicted) is a row of the batched product
+   * of estimateCharges(), one batch per power type, since customers of a
+   * power type can use the same tariffs. Customers whose shifted energy
+   * depends on the tariff are evaluated tariff by tariff.
+   */
+  @Override
+  public TariffChargeMatrix estimateRelevantTariffChargeMatrix(List<TariffSpecification> tariffSpecs, HashMap<CustomerInfo, HashMap<TariffSpecification, BrokerUtils.ShiftedEnergyData>> customer2ShiftedEnergy) {
   
+    // look tariffs up once, rather than per customer
+    long firstHour = getFirstHour();
+    int numTariffs = tariffSpecs.size();
+    TariffRateTable[] tables = new TariffRateTable[numTariffs];
+    for (int j = 0; j < numTariffs; ++j) {
+      tables[j] = getRateTable(tariffSpecs.get(j));
+    }
+
     // Assumption: ignoring regulation charges in tariff evaluation helper
-    HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> estimatedCharges = 
-        new HashMap<CustomerInfo, HashMap<TariffSpecification, Double>>();
-    for(CustomerInfo customerInfo : customer2ShiftedEnergy.keySet()) {
-      // create entry for customer
-      HashMap<TariffSpecification, Double> tariffEvaluations = 
-          new HashMap<TariffSpecification, Double>();
-      // scan tariffs and evaluate them 
-      for (TariffSpecification spec : tariffSpecs) {
+    List<CustomerInfo> customers = new ArrayList<CustomerInfo>(customer2ShiftedEnergy.keySet());
+    double[][] charges = new double[customers.size()][numTariffs];
+    boolean[][] relevant = new boolean[customers.size()][numTariffs];
+    // power type => customers (indexes) evaluated in one batch
+    HashMap<PowerType, List<Integer>> batches = new HashMap<PowerType, List<Integer>>();
+    for (int i = 0; i < charges.length; ++i) {
+      CustomerInfo customerInfo = customers.get(i);
+      HashMap<TariffSpecification, BrokerUtils.ShiftedEnergyData> spec2energy = 
+          customer2ShiftedEnergy.get(customerInfo);
+      double[] sharedEnergy = null;
+      boolean isShared = true;
+      for (int j = 0; j < numTariffs; ++j) {
+        TariffSpecification spec = tariffSpecs.get(j);
         if (customerInfo.getPowerType().canUse(spec.getPowerType())) {
-          double charge = estimateCharge(
-              customer2ShiftedEnergy.get(customerInfo).get(spec).getShiftedEnergy(),
-              spec);
-          Double inconvenienceFactor = customer2ShiftedEnergy.get(customerInfo).get(spec).getInconvenienceFactor();
+          relevant[i][j] = true;
+          double[] energy = spec2energy.get(spec).getShiftedEnergy().getDataRef();
+          if (null == sharedEnergy) {
+            sharedEnergy = energy;
+          }
+          else if (energy != sharedEnergy) {
+            isShared = false;
+          }
+        }
+      }
+      if (null == sharedEnergy) {
+        continue; // no relevant tariff
+      }
+      if (isShared) {
+        List<Integer> batch = batches.get(customerInfo.getPowerType());
+        if (null == batch) {
+          batch = new ArrayList<Integer>();
+          batches.put(customerInfo.getPowerType(), batch);
+        }
+        batch.add(i);
+        continue;
+      }
+      for (int j = 0; j < numTariffs; ++j) {
+        if (relevant[i][j]) {
+          charges[i][j] = estimateCharge(
+              spec2energy.get(tariffSpecs.get(j)).getShiftedEnergy().getDataRef(),
+              tariffSpecs.get(j), tables[j], firstHour);
+        }
+      }
+    }
+
+    for (List<Integer> batch : batches.values()) {
+      estimateBatch(batch, customers, customer2ShiftedEnergy, tariffSpecs, tables, 
+                    relevant, firstHour, charges);
+    }
+
+    // add inconvenience
+    for (int i = 0; i < charges.length; ++i) {
+      HashMap<TariffSpecification, BrokerUtils.ShiftedEnergyData> spec2energy = 
+          customer2ShiftedEnergy.get(customers.get(i));
+      for (int j = 0; j < numTariffs; ++j) {
+        if (relevant[i][j]) {
+          double charge = charges[i][j];
+          Double inconvenienceFactor = spec2energy.get(tariffSpecs.get(j)).getInconvenienceFactor();
           double evaluation = charge + inconvenienceFactor;
-          log.debug("inconv charge=" + charge + " inconvenienceFactor=" + inconvenienceFactor + " evaluation=" + evaluation /*+ " ratio=" + evaluation/charge*/);
-          tariffEvaluations.put(spec, evaluation);
+          if (log.isDebugEnabled()) {
+            log.debug("inconv charge=" + charge + " inconvenienceFactor=" + inconvenienceFactor + " evaluation=" + evaluation /*+ " ratio=" + evaluation/charge*/);
+          }
+          charges[i][j] = evaluation;
         }
       }
-  
-      if (tariffEvaluations.size() > 0) {
-        estimatedCharges.put(customerInfo, tariffEvaluations);
+    }
+    return new TariffChargeMatrix(customers, tariffSpecs, charges, relevant);
+  }
+
+
+  /**
+   * Charges of a batch of customers that use the same tariffs, each with
+   * a single energy vector, as one estimateCharges() product. Rows of a
+   * different length than the batch's first are evaluated one by one.
+   */
+  private void estimateBatch(List<Integer> batch, List<CustomerInfo> customers, 
+      HashMap<CustomerInfo, HashMap<TariffSpecification, BrokerUtils.ShiftedEnergyData>> customer2ShiftedEnergy,
+      List<TariffSpecification> tariffSpecs, TariffRateTable[] tables, 
+      boolean[][] relevant, long firstHour, double[][] charges) {
+    // relevant tariffs are the same for the whole batch
+    boolean[] columns = relevant[batch.get(0)];
+    List<TariffSpecification> batchSpecs = new ArrayList<TariffSpecification>();
+    List<TariffRateTable> batchTables = new ArrayList<TariffRateTable>();
+    int[] tariffIndexes = new int[tables.length];
+    for (int j = 0; j < tables.length; ++j) {
+      if (columns[j]) {
+        tariffIndexes[batchSpecs.size()] = j;
+        batchSpecs.add(tariffSpecs.get(j));
+        batchTables.add(tables[j]);
       }
     }
-    return estimatedCharges;
+    TariffSpecification firstSpec = batchSpecs.get(0);
+
+    List<Integer> rows = new ArrayList<Integer>();
+    List<double[]> energies = new ArrayList<double[]>();
+    int numHours = -1;
+    for (int i : batch) {
+      double[] energy = customer2ShiftedEnergy.get(customers.get(i))
+          .get(firstSpec).getShiftedEnergy().getDataRef();
+      if (numHours < 0) {
+        numHours = energy.length;
+      }
+      if (energy.length == numHours) {
+        rows.add(i);
+        energies.add(energy);
+      }
+      else {
+        for (int k = 0; k < batchSpecs.size(); ++k) {
+          charges[i][tariffIndexes[k]] = 
+              estimateCharge(energy, batchSpecs.get(k), batchTables.get(k), firstHour);
+        }
+      }
+    }
+
+    double[][] batchCharges = estimateCharges(
+        energies.toArray(new double[energies.size()][]), batchSpecs, 
+        batchTables.toArray(new TariffRateTable[batchTables.size()]), firstHour);
+    for (int r = 0; r < rows.size(); ++r) {
+      double[] row = charges[rows.get(r)];
+      for (int k = 0; k < batchSpecs.size(); ++k) {
+        row[tariffIndexes[k]] = batchCharges[r][k];
+      }
+    }
+  }
+
+
+  /**
+   * Compiled tariffs are evaluated as one product of the energy matrix 
+   * (customers x hours) by their unit-charge matrix (hours x tariffs).
+   * The product's inner loop runs over tariffs, so both matrices are 
+   * read row by row. The remaining tariffs are evaluated one by one.
+   */
+  @Override
+  public double[][] estimateCharges(double[][] customerEnergy, List<TariffSpecification> tariffSpecs) {
+    TariffRateTable[] tables = new TariffRateTable[tariffSpecs.size()];
+    for (int j = 0; j < tables.length; ++j) {
+      tables[j] = getRateTable(tariffSpecs.get(j));
+    }
+    return estimateCharges(customerEnergy, tariffSpecs, tables, getFirstHour());
+  }
+
+
+  private double[][] estimateCharges(double[][] customerEnergy, 
+      List<TariffSpecification> tariffSpecs, TariffRateTable[] tables, 
+      long firstHour) {
+    int numCustomers = customerEnergy.length;
+    int numTariffs = tariffSpecs.size();
+    double[][] charges = new double[numCustomers][numTariffs];
+    if (numCustomers == 0 || numTariffs == 0) {
+      return charges;
+    }
+    int numHours = customerEnergy[0].length;
+    for (double[] energy : customerEnergy) {
+      if (energy.length != numHours) {
+        throw new IllegalArgumentException("expected " + numHours + " hours, got " + energy.length);
+      }
+    }
+
+    // compiled tariffs are packed into the first numCompiled columns
+    int[] compiledIndexes = new int[numTariffs];
+    TariffRateTable[] compiled = new TariffRateTable[numTariffs];
+    int numCompiled = 0;
+    for (int j = 0; j < numTariffs; ++j) {
+      TariffRateTable table = tables[j];
+      if (null != table) {
+        compiledIndexes[numCompiled] = j;
+        compiled[numCompiled] = table;
+        ++numCompiled;
+      }
+    }
+    double[][] unitCharges = new double[numHours][numCompiled];
+    double[] periodicCharges = new double[numCompiled];
+    double[] tableUnitCharges = new double[numHours];
+    for (int k = 0; k < numCompiled; ++k) {
+      compiled[k].getUnitCharges(firstHour, tableUnitCharges);
+      for (int h = 0; h < numHours; ++h) {
+        unitCharges[h][k] = tableUnitCharges[h];
+      }
+      periodicCharges[k] = numHours * compiled[k].getPeriodicChargePerHour();
+    }
+
+    double[] row = new double[numCompiled];
+    for (int i = 0; i < numCustomers; ++i) {
+      double[] energy = customerEnergy[i];
+      System.arraycopy(periodicCharges, 0, row, 0, numCompiled);
+      for (int h = 0; h < numHours; ++h) {
+        double kwh = energy[h];
+        if (kwh == 0) {
+          continue;
+        }
+        double[] hourUnitCharges = unitCharges[h];
+        for (int k = 0; k < numCompiled; ++k) {
+          row[k] += kwh * hourUnitCharges[k];
+        }
+      }
+      for (int k = 0; k < numCompiled; ++k) {
+        charges[i][compiledIndexes[k]] = row[k];
+      }
+    }
+
+    if (numCompiled < numTariffs) {
+      boolean[] isCompiled = new boolean[numTariffs];
+      for (int k = 0; k < numCompiled; ++k) {
+        isCompiled[compiledIndexes[k]] = true;
+      }
+      for (int j = 0; j < numTariffs; ++j) {
+        if (isCompiled[j]) {
+          continue;
+        }
+        TariffSpecification spec = tariffSpecs.get(j);
+        for (int i = 0; i < numCustomers; ++i) {
+          charges[i][j] = estimateCharge(customerEnergy[i], spec, null, firstHour);
+        }
+      }
+    }
+    return charges;
   }
   
   
@@ -85,9 +337,76 @@ public class ChargeEstimatorDefault implements ChargeEstimator {
    */
   @Override
   public double estimateCharge(ArrayRealVector customerEnergy, TariffSpecification spec) {
+    return estimateCharge(customerEnergy.getDataRef(), spec, 
+                          getRateTable(spec), getFirstHour());
+  }
 
-    TariffEvaluationHelper helper = new TariffEvaluationHelper();
-    helper.init(); // init with no parameters since we don't know the customer's parameters(?)
+
+  @Override
+  public double[] estimateRateGradient(ArrayRealVector customerEnergy, int numRates) {
+    double[] gradient = new double[numRates];
+    double[] energy = customerEnergy.getDataRef();
+    // aligned like the charges, i.e. energy[0] is used at getFirstHour()
+    int hourOfDay = (int) (getFirstHour() % 24);
+    for (int i = 0; i < energy.length; ++i) {
+      gradient[hourOfDay * numRates / 24] += energy[i];
+      if (++hourOfDay == 24) {
+        hourOfDay = 0;
+      }
+    }
+    return gradient;
+  }
+
+
+  /**
+   * @return the compiled table of a spec, or null if it cannot be 
+   * compiled (or is not in the repo)
+   */
+  public TariffRateTable getRateTable(TariffSpecification spec) {
+    TariffRateTable table;
+    synchronized (rateTables) {
+      table = rateTables.get(spec.getId());
+    }
+    if (null == table) {
+      Tariff tariff = tariffRepoMgr.findTariffById(spec.getId());
+      if (null == tariff) {
+        // reported when evaluating
+        return null;
+      }
+      // compiled outside the lock; a concurrent compile gives the same table
+      table = compile(tariff);
+      synchronized (rateTables) {
+        rateTables.put(spec.getId(), table);
+      }
+    }
+    return NOT_COMPILED == table ? null : table;
+  }
+
+  /**
+   * @return the hour at which TariffEvaluationHelper starts evaluating
+   */
+  public long getFirstHour() {
+    return TariffRateTable.hourIndex(timeService.getCurrentTime()) + 1;
+  }
+
+
+  private double estimateCharge(double[] customerEnergy,
+      TariffSpecification spec, TariffRateTable table, long firstHour) {
+    if (null != table) {
+      return table.estimateCharge(customerEnergy, firstHour);
+    }
+
+    ChargeKey key = new ChargeKey(spec.getId(), customerEnergy);
+    synchronized (chargeMemo) {
+      if (memoHour != firstHour || chargeMemo.size() >= MAX_MEMOIZED_CHARGES) {
+        chargeMemo.clear();
+        memoHour = firstHour;
+      }
+      Double charge = chargeMemo.get(key);
+      if (null != charge) {
+        return charge;
+      }
+    }
 
     Tariff tariff = tariffRepoMgr.findTariffById(spec.getId());
     if (null == tariff) {
@@ -96,11 +415,74 @@ public class ChargeEstimatorDefault implements ChargeEstimator {
     }
     
     // evaluate
-    double evaluation = helper.estimateCost(tariff, 
-                                            customerEnergy.toArray(), 
-                                            true);
-    
+    double evaluation = createHelper().estimateCost(tariff, 
+                                                    customerEnergy, 
+                                                    true);
+
+    synchronized (chargeMemo) {
+      if (memoHour == firstHour) {
+        chargeMemo.put(key, evaluation);
+      }
+    }
     return evaluation;
   }
 
+
+  /**
+   * Compiles a tariff, and checks the table against the helper.
+   */
+  private TariffRateTable compile(Tariff tariff) {
+    TariffRateTable table = TariffRateTable.create(tariff);
+    if (null == table) {
+      return NOT_COMPILED;
+    }
+    double[] probe = new double[TariffRateTable.HOURS_PER_WEEK];
+    for (int i = 0; i < probe.length; ++i) {
+      probe[i] = i + 1;
+    }
+    double expected = createHelper().estimateCost(tariff, probe, true);
+    double actual = table.estimateCharge(probe, getFirstHour());
+    if (Math.abs(expected - actual) > 1e-9 * Math.max(1, Math.abs(expected))) {
+      log.warn("compiled tariff " + tariff.getId() + " disagrees with helper ("
+               + actual + " vs. " + expected + "), not compiling it");
+      return NOT_COMPILED;
+    }
+    return table;
+  }
+
+
+  private TariffEvaluationHelper createHelper() {
+    TariffEvaluationHelper helper = new TariffEvaluationHelper();
+    helper.init(); // init with no parameters since we don't know the customer's parameters(?)
+    return helper;
+  }
+
+
+  private static class ChargeKey {
+
+    private final long specId;
+    private final double[] energy;
+    private final int hash;
+
+    ChargeKey(long specId, double[] energy) {
+      this.specId = specId;
+      // copied, since callers may reuse their vectors
+      this.energy = energy.clone();
+      this.hash = 31 * (int) (specId ^ (specId >>> 32)) + Arrays.hashCode(energy);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ChargeKey)) {
+        return false;
+      }
+      ChargeKey other = (ChargeKey) obj;
+      return specId == other.specId && Arrays.equals(energy, other.energy);
+    }
+  }
 }
@@ -0,0 +1,68 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.utils;
+
+/**
+ * A trained linear regression (as fit by SlidingWindowLinReg), as a single
+ * affine function of the raw (non-standardized) features:
+ * prediction = intercept + weights . features
+ *
+ * Immutable, so it can be shared between threads. Predicting allocates
+ * nothing.
+ *
+ * @author urieli
+ */
+public class CompiledLinRegModel {
+
+  private final double[] weights;
+  private final double intercept;
+
+
+  public CompiledLinRegModel(double[] weights, double intercept) {
+    this.weights = weights.clone();
+    this.intercept = intercept;
+  }
+
+
+  /**
+   * @param features raw features, at least getNumFeatures() long
+   */
+  public double predict(double[] features) {
+    double result = intercept;
+    for (int i = 0; i < weights.length; ++i) {
+      result += weights[i] * features[i];
+    }
+    return result;
+  }
+
+
+  public int getNumFeatures() {
+    return weights.length;
+  }
+
+
+  public double getWeight(int i) {
+    return weights[i];
+  }
+
+
+  public double getIntercept() {
+    return intercept;
+  }
+}
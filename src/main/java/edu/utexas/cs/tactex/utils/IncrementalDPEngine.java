@@ -0,0 +1,202 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.utils;
+
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Incremental solver for the stages of the bidding DP (LATTE's back sweep).
+ *
+ * A stage (bid-group index) value depends only on the cleared trades in its
+ * bid group, the lowest outstanding ask of the target timeslot, and the
+ * value of the next state. Success probabilities are read from the
+ * cumulative-energy column of the BidGroup, and the stage results are
+ * memoized for the (lowest-ask, next-state-value) inputs the stage was
+ * already solved with, until the group is modified. Sweeps that share
+ * these inputs (e.g. the 24 target timeslots of runDP2014 when there are
+ * no orderbooks) are therefore computed once, and unchanged stages are
+ * not re-solved.
+ *
+ * Not thread safe - callers (MarketManagerService) are synchronized.
+ *
+ * @author urieli
+ */
+public class IncrementalDPEngine {
+
+  static private Logger log = Logger.getLogger(IncrementalDPEngine.class);
+
+  // max number of (ask, next-value) inputs remembered per stage;
+  // at most 24 different inputs are expected in one timeslot
+  private static final int MEMO_SIZE = 32;
+
+  private HashMap<Integer, Stage> stages;
+
+  // result of the last solveStage() call
+  private double stageValue;
+  private double stageAction;
+
+  // statistics
+  private long numSolved;
+  private long numReused;
+
+
+  public IncrementalDPEngine() {
+    stages = new HashMap<Integer, Stage>();
+  }
+
+
+  public void clear() {
+    stages.clear();
+  }
+
+
+  /**
+   * Solves a single DP stage: scans the candidate bid prices of the group
+   * (sorted by increasing price) and chooses the best action given
+   * the value of the next state. Results are available through
+   * getStageValue() and getStageAction().
+   *
+   * @param bidGroupIndex
+   * @param group cleared trades of this stage
+   * @param lowestAskPrice trades priced below it are ignored
+   * @param nextStateValue
+   */
+  public void solveStage(int bidGroupIndex, BidGroup group,
+      double lowestAskPrice, double nextStateValue) {
+
+    Stage stage = stages.get(bidGroupIndex);
+    if (null == stage) {
+      stage = new Stage();
+      stages.put(bidGroupIndex, stage);
+    }
+    if (stage.modCount != group.getModCount()) {
+      stage.reset(group.getModCount());
+    }
+
+    int memoIndex = stage.lookup(lowestAskPrice, nextStateValue);
+    if (memoIndex >= 0) {
+      stageValue = stage.memoValue[memoIndex];
+      stageAction = stage.memoAction[memoIndex];
+      ++numReused;
+      return;
+    }
+
+    solve(group, lowestAskPrice, nextStateValue);
+    stage.remember(lowestAskPrice, nextStateValue, stageValue, stageAction);
+    ++numSolved;
+  }
+
+
+  public double getStageValue() {
+    return stageValue;
+  }
+
+
+  public double getStageAction() {
+    return stageAction;
+  }
+
+
+  public long getNumSolvedStages() {
+    return numSolved;
+  }
+
+
+  public long getNumReusedStages() {
+    return numReused;
+  }
+
+
+  public void logStatistics() {
+    log.debug("dp stages solved " + numSolved + " reused " + numReused);
+  }
+
+
+  private void solve(BidGroup group, double lowestAskPrice, double nextStateValue) {
+    // trades priced below the lowest ask are skipped (prices are sorted)
+    int first = group.firstIndexNotBelow(lowestAskPrice);
+    int size = group.size();
+    double skippedEnergy = group.getCumulativeMwh(first);
+    double totalEnergy = group.getTotalMwh() - skippedEnergy;
+
+    // seed with no-op (bid 0) => value of next state
+    double bestActionValue = nextStateValue;
+    double bestPrice = -0.0;
+    for (int i = first; i < size; ++i) {
+      double Psuccess = (group.getCumulativeMwh(i + 1) - skippedEnergy) / totalEnergy;
+      double Pfail = 1 - Psuccess;
+      double bidPrice = -group.getPricePerMwh(i); // trades are positive, bids are negative
+      double actionValue = Psuccess * bidPrice + Pfail * nextStateValue;
+      if (actionValue > bestActionValue) {
+        bestActionValue = actionValue;
+        bestPrice = bidPrice;
+      }
+    }
+    stageValue = bestActionValue;
+    stageAction = bestPrice;
+  }
+
+
+  /**
+   * per bid-group memoized stage results
+   */
+  private class Stage {
+
+    // modCount of the group when the memo was filled
+    int modCount = -1;
+
+    int memoSize;
+    int memoNext;
+    double[] memoAsk = new double[MEMO_SIZE];
+    double[] memoNextValue = new double[MEMO_SIZE];
+    double[] memoValue = new double[MEMO_SIZE];
+    double[] memoAction = new double[MEMO_SIZE];
+
+
+    void reset(int groupModCount) {
+      modCount = groupModCount;
+      memoSize = 0;
+      memoNext = 0;
+    }
+
+
+    int lookup(double lowestAskPrice, double nextStateValue) {
+      for (int i = 0; i < memoSize; ++i) {
+        if (memoAsk[i] == lowestAskPrice && memoNextValue[i] == nextStateValue) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+
+    void remember(double lowestAskPrice, double nextStateValue,
+        double value, double action) {
+      int i = memoNext;
+      memoAsk[i] = lowestAskPrice;
+      memoNextValue[i] = nextStateValue;
+      memoValue[i] = value;
+      memoAction[i] = action;
+      memoNext = (memoNext + 1) % MEMO_SIZE;
+      memoSize = Math.min(memoSize + 1, MEMO_SIZE);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.utils;
+
+/**
+ * Locally weighted linear regression on a single (normalized) feature,
+ * with or without an intercept, and Gaussian weights
+ * w(j) = exp(-(x(j) - x0)^2 / (2 tau)), as in LWRCustNewEjml.LWRPredict().
+ *
+ * The model has at most 2 parameters, so a query is answered from its
+ * weighted sufficient statistics (sums of w, w x, w x^2, w y, w x y) in
+ * O(n), without a dense n x n weight matrix.
+ *
+ * Leave-one-out cross-validation is NOT linear: it costs O(n^2 * #taus).
+ * With the original fold semantics, the fold of point i is a query at
+ * x(i) with point i left out, and its weights are centered at x(i), so
+ * every fold needs its own sums over the other n - 1 points - they
+ * cannot be shared between folds. What is saved is the dense matrices
+ * and the solver per fold, not the quadratic number of weights.
+ *
+ * A query whose weighted normal equations are (nearly) singular - by the
+ * same QR quality measure as the EJML least-squares solver - has no
+ * prediction (NaN).
+ *
+ * @author urieli
+ */
+public class LocallyWeightedRegression {
+
+  // like the EJML solver's quality threshold in LWRCustNewEjml
+  private static final double MIN_QUALITY = 1e-8;
+
+  private final double[] x;
+  private final double[] y;
+  private final boolean useIntercept;
+
+
+  /**
+   * @param x normalized feature values
+   * @param y targets
+   * @param useIntercept whether the model has an intercept
+   */
+  public LocallyWeightedRegression(double[] x, double[] y, boolean useIntercept) {
+    this.x = x;
+    this.y = y;
+    this.useIntercept = useIntercept;
+  }
+
+
+  /**
+   * O(n^2 * #taus), see the class comment.
+   *
+   * @return for each tau, the sum of squared leave-one-out errors, or NaN
+   * if some fold cannot predict
+   */
+  public double[] crossValidationErrors(double[] taus) {
+    int n = x.length;
+    int numTaus = taus.length;
+    double[] result = new double[numTaus];
+    // per-tau sufficient statistics of the current fold
+    double[] sw = new double[numTaus];
+    double[] swx = new double[numTaus];
+    double[] swxx = new double[numTaus];
+    double[] swy = new double[numTaus];
+    double[] swxy = new double[numTaus];
+    double[] minusHalfInvTaus = new double[numTaus];
+    for (int t = 0; t < numTaus; ++t) {
+      minusHalfInvTaus[t] = -1.0 / (2 * taus[t]);
+    }
+    for (int i = 0; i < n; ++i) {
+      double x0 = x[i];
+      for (int t = 0; t < numTaus; ++t) {
+        sw[t] = swx[t] = swxx[t] = swy[t] = swxy[t] = 0;
+      }
+      for (int j = 0; j < n; ++j) {
+        if (j == i) {
+          continue; // left out
+        }
+        double xj = x[j];
+        double yj = y[j];
+        double delta = xj - x0;
+        double sqDist = delta * delta;
+        for (int t = 0; t < numTaus; ++t) {
+          double w = Math.exp(sqDist * minusHalfInvTaus[t]);
+          double wx = w * xj;
+          sw[t] += w;
+          swx[t] += wx;
+          swxx[t] += wx * xj;
+          swy[t] += w * yj;
+          swxy[t] += wx * yj;
+        }
+      }
+      for (int t = 0; t < numTaus; ++t) {
+        double predicted = solve(sw[t], swx[t], swxx[t], swy[t], swxy[t], x0);
+        double error = predicted - y[i];
+        result[t] += error * error; // NaN propagates
+      }
+    }
+    return result;
+  }
+
+
+  /**
+   * @return the prediction at x0, or NaN if it cannot predict
+   */
+  public double predict(double x0, double tau) {
+    return predict(new double[] {x0}, tau)[0];
+  }
+
+
+  /**
+   * Batched queries: one sweep over the data for all query points.
+   *
+   * @return predictions at x0s, NaN where it cannot predict
+   */
+  public double[] predict(double[] x0s, double tau) {
+    int numQueries = x0s.length;
+    double[] sw = new double[numQueries];
+    double[] swx = new double[numQueries];
+    double[] swxx = new double[numQueries];
+    double[] swy = new double[numQueries];
+    double[] swxy = new double[numQueries];
+    double minusHalfInvTau = -1.0 / (2 * tau);
+    for (int j = 0; j < x.length; ++j) {
+      double xj = x[j];
+      double yj = y[j];
+      for (int q = 0; q < numQueries; ++q) {
+        double delta = xj - x0s[q];
+        double w = Math.exp(delta * delta * minusHalfInvTau);
+        double wx = w * xj;
+        sw[q] += w;
+        swx[q] += wx;
+        swxx[q] += wx * xj;
+        swy[q] += w * yj;
+        swxy[q] += wx * yj;
+      }
+    }
+    double[] result = new double[numQueries];
+    for (int q = 0; q < numQueries; ++q) {
+      result[q] = solve(sw[q], swx[q], swxx[q], swy[q], swxy[q], x0s[q]);
+    }
+    return result;
+  }
+
+
+  /**
+   * Solves the weighted normal equations and predicts at x0.
+   *
+   * @return prediction, or NaN if (nearly) singular
+   */
+  private double solve(double sw, double swx, double swxx, double swy,
+      double swxy, double x0) {
+    if ( ! useIntercept ) {
+      // 1 x 1 system: swxx * theta = swxy
+      if (swxx == 0.0 || Double.isNaN(swxx)) {
+        return Double.NaN;
+      }
+      return swxy / swxx * x0;
+    }
+    // 2 x 2 system [sw swx; swx swxx] theta = [swy; swxy]; the QR
+    // diagonal of [a b; b c] is |r11| = ||(a, b)||, |r22| = |det| / |r11|
+    double det = sw * swxx - swx * swx;
+    double r11 = Math.sqrt(sw * sw + swx * swx);
+    if (r11 == 0.0 || Double.isNaN(r11)) {
+      return Double.NaN;
+    }
+    double r22 = Math.abs(det) / r11;
+    double maxDiag = Math.max(r11, r22);
+    double quality = Math.abs(det) / (maxDiag * maxDiag);
+    if ( ! (quality > MIN_QUALITY) ) {
+      return Double.NaN;
+    }
+    double theta0 = (swxx * swy - swx * swxy) / det;
+    double theta1 = (sw * swxy - swx * swy) / det;
+    return theta0 + theta1 * x0;
+  }
+}
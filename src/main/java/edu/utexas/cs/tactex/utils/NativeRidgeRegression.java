@@ -0,0 +1,308 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.utils;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Ridge regression solved natively from a single spectral decomposition.
+ *
+ * The model is the one Weka's LinearRegression fits (as created by
+ * RegressionUtils.createLinearRegression()): features are centered and
+ * scaled to unit (sample) standard deviation, the ridge penalty is applied
+ * to the scaled coefficients, and the intercept is not penalized. Features
+ * with zero variance are ignored.
+ *
+ * The scaled design matrix is decomposed once (eigen-decomposition of
+ * Z'Z = V diag(d) V', equivalent to the SVD of Z), after which, for every
+ * lambda, the fit and the diagonal of the hat matrix cost O(n * p).
+ * Leave-one-out errors are then computed exactly with the PRESS identity
+ * e_loo(i) = e(i) / (1 - H(i,i)), without refitting n models.
+ *
+ * Note: Weka re-standardizes inside every cross-validation fold, while
+ * here the scaling is fixed by the full data, so with lambda > 0 the
+ * errors may slightly differ from the Weka fold-by-fold loop (they are
+ * identical for lambda = 0).
+ *
+ * @author urieli
+ */
+public class NativeRidgeRegression {
+
+  static private Logger log = Logger.getLogger(NativeRidgeRegression.class);
+
+  // eigenvalues below this (relative to the largest) are treated as 0
+  private static final double EIGENVALUE_TOLERANCE = 1e-12;
+
+  // 1 - H(i,i) below this means point i cannot be left out
+  private static final double LEVERAGE_TOLERANCE = 1e-10;
+
+  private static final int MAX_JACOBI_SWEEPS = 100;
+
+  private int n;
+  private int p;
+
+  private double[] means;
+  private double[] stdDevs;
+  private double yMean;
+
+  // projections of the scaled, centered rows on the eigenvectors: n x p
+  private double[][] projections;
+  // eigenvectors (columns) of Z'Z: p x p
+  private double[][] eigenvectors;
+  private double[] eigenvalues;
+  // projection of the centered y on the eigenvectors, i.e. V'Z'y
+  private double[] projectedY;
+  private double[] centeredY;
+
+
+  /**
+   * @param X n x p feature matrix (without intercept column)
+   * @param y n targets
+   */
+  public NativeRidgeRegression(double[][] X, double[] y) {
+    n = X.length;
+    p = n > 0 ? X[0].length : 0;
+    if (n == 0 || y.length != n) {
+      throw new IllegalArgumentException("invalid regression data: " + n + " rows, " + y.length + " targets");
+    }
+
+    // centering and scaling, as Weka does
+    means = new double[p];
+    stdDevs = new double[p];
+    for (int j = 0; j < p; ++j) {
+      double sum = 0;
+      for (int i = 0; i < n; ++i) {
+        sum += X[i][j];
+      }
+      means[j] = sum / n;
+      double ss = 0;
+      for (int i = 0; i < n; ++i) {
+        double d = X[i][j] - means[j];
+        ss += d * d;
+      }
+      stdDevs[j] = n > 1 ? Math.sqrt(ss / (n - 1)) : 0;
+    }
+    double[][] Z = new double[n][p];
+    for (int i = 0; i < n; ++i) {
+      for (int j = 0; j < p; ++j) {
+        // zero-variance features are ignored
+        Z[i][j] = stdDevs[j] > 0 ? (X[i][j] - means[j]) / stdDevs[j] : 0;
+      }
+    }
+    double sumY = 0;
+    for (int i = 0; i < n; ++i) {
+      sumY += y[i];
+    }
+    yMean = sumY / n;
+    centeredY = new double[n];
+    for (int i = 0; i < n; ++i) {
+      centeredY[i] = y[i] - yMean;
+    }
+
+    // Z'Z and its eigen-decomposition
+    double[][] ZtZ = new double[p][p];
+    for (int i = 0; i < n; ++i) {
+      double[] z = Z[i];
+      for (int j = 0; j < p; ++j) {
+        double zj = z[j];
+        if (zj == 0) continue;
+        for (int k = j; k < p; ++k) {
+          ZtZ[j][k] += zj * z[k];
+        }
+      }
+    }
+    for (int j = 0; j < p; ++j) {
+      for (int k = 0; k < j; ++k) {
+        ZtZ[j][k] = ZtZ[k][j];
+      }
+    }
+    eigenvectors = new double[p][p];
+    eigenvalues = new double[p];
+    symmetricEigen(ZtZ, eigenvalues, eigenvectors);
+
+    // zero-out numerically null directions
+    double maxEigenvalue = 0;
+    for (int k = 0; k < p; ++k) {
+      maxEigenvalue = Math.max(maxEigenvalue, eigenvalues[k]);
+    }
+    for (int k = 0; k < p; ++k) {
+      if (eigenvalues[k] <= EIGENVALUE_TOLERANCE * maxEigenvalue) {
+        eigenvalues[k] = 0;
+      }
+    }
+
+    // rows projected on the eigenvectors (Z V = U diag(s))
+    projections = new double[n][p];
+    projectedY = new double[p];
+    for (int i = 0; i < n; ++i) {
+      double[] z = Z[i];
+      for (int k = 0; k < p; ++k) {
+        double dot = 0;
+        for (int j = 0; j < p; ++j) {
+          dot += z[j] * eigenvectors[j][k];
+        }
+        projections[i][k] = dot;
+        projectedY[k] += dot * centeredY[i];
+      }
+    }
+  }
+
+
+  /**
+   * @return leave-one-out mean squared error for the given ridge
+   * parameter, or null if some point has leverage 1 (cannot be left out)
+   */
+  public Double leaveOneOutError(double lambda) {
+    double[] shrink = shrinkage(lambda);
+    double mse = 0;
+    for (int i = 0; i < n; ++i) {
+      double[] proj = projections[i];
+      double fitted = 0;
+      double leverage = 1.0 / n; // the unpenalized intercept
+      for (int k = 0; k < p; ++k) {
+        double s = shrink[k];
+        if (s == 0) continue;
+        fitted += proj[k] * s * projectedY[k];
+        leverage += proj[k] * proj[k] * s;
+      }
+      double oneMinusLeverage = 1 - leverage;
+      if (oneMinusLeverage < LEVERAGE_TOLERANCE) {
+        log.debug("leave-one-out undefined for lambda " + lambda + ", leverage " + leverage);
+        return null;
+      }
+      double error = (centeredY[i] - fitted) / oneMinusLeverage;
+      mse += error * error;
+    }
+    return mse / n;
+  }
+
+
+  /**
+   * @return leave-one-out errors for all candidate lambdas, from the same
+   * decomposition; entries are null where undefined
+   */
+  public Double[] leaveOneOutErrors(List<Double> lambdas) {
+    Double[] result = new Double[lambdas.size()];
+    for (int l = 0; l < result.length; ++l) {
+      result[l] = leaveOneOutError(lambdas.get(l));
+    }
+    return result;
+  }
+
+
+  /**
+   * @return coefficients in the original feature scale, in Weka's layout:
+   * p feature coefficients followed by the intercept
+   */
+  public double[] coefficients(double lambda) {
+    double[] shrink = shrinkage(lambda);
+    double[] result = new double[p + 1];
+    // scaled coefficients: V diag(shrink) V'Z'y
+    for (int j = 0; j < p; ++j) {
+      double b = 0;
+      for (int k = 0; k < p; ++k) {
+        b += eigenvectors[j][k] * shrink[k] * projectedY[k];
+      }
+      result[j] = stdDevs[j] > 0 ? b / stdDevs[j] : 0;
+    }
+    double intercept = yMean;
+    for (int j = 0; j < p; ++j) {
+      intercept -= result[j] * means[j];
+    }
+    result[p] = intercept;
+    return result;
+  }
+
+
+  public int getNumInstances() {
+    return n;
+  }
+
+
+  /**
+   * 1 / (d_k + lambda) per eigen-direction, 0 for null directions
+   */
+  private double[] shrinkage(double lambda) {
+    double[] shrink = new double[p];
+    for (int k = 0; k < p; ++k) {
+      double denominator = eigenvalues[k] + lambda;
+      shrink[k] = (eigenvalues[k] > 0 && denominator > 0) ? 1.0 / denominator : 0;
+    }
+    return shrink;
+  }
+
+
+  /**
+   * Cyclic Jacobi eigen-decomposition of a symmetric matrix (destroys A).
+   * Feature dimensions are small, so this is both simple and accurate.
+   */
+  static void symmetricEigen(double[][] A, double[] eigenvalues, double[][] V) {
+    int p = A.length;
+    for (int i = 0; i < p; ++i) {
+      for (int j = 0; j < p; ++j) {
+        V[i][j] = (i == j) ? 1 : 0;
+      }
+    }
+    for (int sweep = 0; sweep < MAX_JACOBI_SWEEPS; ++sweep) {
+      double offDiagonal = 0;
+      for (int i = 0; i < p; ++i) {
+        for (int j = i + 1; j < p; ++j) {
+          offDiagonal += A[i][j] * A[i][j];
+        }
+      }
+      if (offDiagonal < 1e-30) {
+        break;
+      }
+      for (int k = 0; k < p; ++k) {
+        for (int l = k + 1; l < p; ++l) {
+          double akl = A[k][l];
+          if (akl == 0) continue;
+          double theta = (A[l][l] - A[k][k]) / (2 * akl);
+          double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+          if (theta == 0) t = 1;
+          double c = 1 / Math.sqrt(t * t + 1);
+          double s = t * c;
+          for (int i = 0; i < p; ++i) {
+            double aik = A[i][k];
+            double ail = A[i][l];
+            A[i][k] = c * aik - s * ail;
+            A[i][l] = s * aik + c * ail;
+          }
+          for (int i = 0; i < p; ++i) {
+            double aki = A[k][i];
+            double ali = A[l][i];
+            A[k][i] = c * aki - s * ali;
+            A[l][i] = s * aki + c * ali;
+          }
+          for (int i = 0; i < p; ++i) {
+            double vik = V[i][k];
+            double vil = V[i][l];
+            V[i][k] = c * vik - s * vil;
+            V[i][l] = s * vik + c * vil;
+          }
+        }
+      }
+    }
+    for (int i = 0; i < p; ++i) {
+      eigenvalues[i] = A[i][i];
+    }
+  }
+}
@@ -0,0 +1,443 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.enumerations.PowerType;
+
+/**
+ * Struct-of-arrays store of the portfolio's customer records: a general
+ * record per customer, a record per (power type, customer) and a record
+ * per (tariff, customer). Customers, power types and tariffs are interned
+ * to dense ids, and each record is a row: its subscribed population, and
+ * its per-customer usage and fixed-rate usage (exponentially smoothed
+ * over a usage record of recordLength timeslots) in contiguous
+ * row-major matrices. Portfolio-wide aggregations sweep the rows.
+ *
+ * Rows of removed tariffs are reused by new records, and removed tariffs'
+ * ids by the remaining tariffs. A row's generation changes when it is
+ * freed, so views of a row (PortfolioManagerService.CustomerRecord) can
+ * tell that their record was removed (see checkGeneration()).
+ *
+ * Not thread safe - callers (PortfolioManagerService) are synchronized.
+ *
+ * @author urieli
+ */
+public class PortfolioRecordStore {
+
+  static private Logger log = Logger.getLogger(PortfolioRecordStore.class);
+
+  private static final int INITIAL_ROWS = 64;
+
+  private final int recordLength;
+  private final double alpha;
+
+  // interned ids
+  private HashMap<CustomerInfo, Integer> customerIds;
+  private ArrayList<CustomerInfo> customers;
+  private HashMap<PowerType, Integer> powerTypeIds;
+  private HashMap<TariffSpecification, Integer> tariffIds;
+  private ArrayList<TariffSpecification> tariffs;
+
+  // rows, by ids: [customer], [power type][customer], [tariff][customer],
+  // -1 => no record
+  private int[] generalRows;
+  private ArrayList<int[]> powerTypeRows;
+  private ArrayList<int[]> tariffRows;
+
+  // row data
+  private int numRows;
+  private int[] rowCustomers;
+  private int[] rowTariffs; // -1 => not a tariff record
+  private int[] rowGenerations; // incremented when the row is freed
+  private int[] subscribedPopulations;
+  private double[] usage;      // [row * recordLength + index]
+  private double[] fixedUsage; // [row * recordLength + index]
+
+  // rows of removed tariffs
+  private int[] freeRows;
+  private int numFreeRows;
+
+
+  public PortfolioRecordStore(int recordLength, double alpha) {
+    this.recordLength = recordLength;
+    this.alpha = alpha;
+    customerIds = new HashMap<CustomerInfo, Integer>();
+    customers = new ArrayList<CustomerInfo>();
+    powerTypeIds = new HashMap<PowerType, Integer>();
+    tariffIds = new HashMap<TariffSpecification, Integer>();
+    tariffs = new ArrayList<TariffSpecification>();
+    generalRows = new int[0];
+    powerTypeRows = new ArrayList<int[]>();
+    tariffRows = new ArrayList<int[]>();
+    numRows = 0;
+    rowCustomers = new int[INITIAL_ROWS];
+    rowTariffs = new int[INITIAL_ROWS];
+    rowGenerations = new int[INITIAL_ROWS];
+    subscribedPopulations = new int[INITIAL_ROWS];
+    usage = new double[INITIAL_ROWS * recordLength];
+    fixedUsage = new double[INITIAL_ROWS * recordLength];
+    freeRows = new int[INITIAL_ROWS];
+    numFreeRows = 0;
+  }
+
+
+  // ----------------- record lookup -------------------
+
+  /**
+   * @return the customer's general record, creating an empty one if needed
+   */
+  public int getGeneralRow(CustomerInfo customer) {
+    int customerId = internCustomer(customer);
+    generalRows = ensureLength(generalRows, customerId + 1);
+    if (generalRows[customerId] < 0) {
+      generalRows[customerId] = createRow(customerId, -1, -1);
+    }
+    return generalRows[customerId];
+  }
+
+
+  /**
+   * @return the record, -1 if missing
+   */
+  public int findPowerTypeRow(PowerType type, CustomerInfo customer) {
+    Integer typeId = powerTypeIds.get(type);
+    Integer customerId = customerIds.get(customer);
+    if (null == typeId || null == customerId) {
+      return -1;
+    }
+    return lookup(powerTypeRows.get(typeId), customerId);
+  }
+
+
+  /**
+   * @return the record, creating it as a copy of seedRow's usage if needed
+   */
+  public int getPowerTypeRow(PowerType type, CustomerInfo customer, int seedRow) {
+    Integer typeId = powerTypeIds.get(type);
+    if (null == typeId) {
+      typeId = powerTypeIds.size();
+      powerTypeIds.put(type, typeId);
+      powerTypeRows.add(new int[0]);
+    }
+    int customerId = internCustomer(customer);
+    int[] rows = ensureLength(powerTypeRows.get(typeId), customerId + 1);
+    powerTypeRows.set(typeId, rows);
+    if (rows[customerId] < 0) {
+      rows[customerId] = createRow(customerId, -1, seedRow);
+    }
+    return rows[customerId];
+  }
+
+
+  /**
+   * @return the record, creating it as a copy of seedRow's usage if needed
+   */
+  public int getTariffRow(TariffSpecification spec, CustomerInfo customer, int seedRow) {
+    Integer tariffId = tariffIds.get(spec);
+    if (null == tariffId) {
+      tariffId = tariffs.size();
+      tariffIds.put(spec, tariffId);
+      tariffs.add(spec);
+      tariffRows.add(new int[0]);
+    }
+    int customerId = internCustomer(customer);
+    int[] rows = ensureLength(tariffRows.get(tariffId), customerId + 1);
+    tariffRows.set(tariffId, rows);
+    if (rows[customerId] < 0) {
+      rows[customerId] = createRow(customerId, tariffId, seedRow);
+    }
+    return rows[customerId];
+  }
+
+
+  /**
+   * @return the record, -1 if missing
+   */
+  public int findTariffRow(TariffSpecification spec, CustomerInfo customer) {
+    Integer tariffId = tariffIds.get(spec);
+    Integer customerId = customerIds.get(customer);
+    if (null == tariffId || null == customerId) {
+      return -1;
+    }
+    return lookup(tariffRows.get(tariffId), customerId);
+  }
+
+
+  /**
+   * Removes the tariff's records; their rows are reused, and the last
+   * tariff takes over its id
+   */
+  public void removeTariff(TariffSpecification spec) {
+    Integer tariffId = tariffIds.remove(spec);
+    if (null == tariffId) {
+      return;
+    }
+    for (int row : tariffRows.get(tariffId)) {
+      if (row >= 0) {
+        rowTariffs[row] = -1;
+        ++rowGenerations[row];
+        freeRows = ensureLength(freeRows, numFreeRows + 1);
+        freeRows[numFreeRows++] = row;
+      }
+    }
+    int lastId = tariffs.size() - 1;
+    if (tariffId != lastId) {
+      TariffSpecification lastSpec = tariffs.get(lastId);
+      int[] lastRows = tariffRows.get(lastId);
+      for (int row : lastRows) {
+        if (row >= 0) {
+          rowTariffs[row] = tariffId;
+        }
+      }
+      tariffs.set(tariffId, lastSpec);
+      tariffRows.set(tariffId, lastRows);
+      tariffIds.put(lastSpec, tariffId);
+    }
+    tariffs.remove(lastId);
+    tariffRows.remove(lastId);
+  }
+
+
+  public Set<PowerType> getPowerTypes() {
+    return powerTypeIds.keySet();
+  }
+
+
+  public int getNumRows() {
+    return numRows - numFreeRows;
+  }
+
+
+  public int getNumTariffs() {
+    return tariffIds.size();
+  }
+
+
+  // ----------------- record access -------------------
+
+  /**
+   * @return the row's generation, which changes when its record is removed
+   */
+  public int getGeneration(int row) {
+    return rowGenerations[row];
+  }
+
+
+  /**
+   * @throws IllegalStateException if the row's record was removed since
+   * the generation was read
+   */
+  public void checkGeneration(int row, int generation) {
+    if (rowGenerations[row] != generation) {
+      throw new IllegalStateException("record of row " + row + " was removed");
+    }
+  }
+
+
+  public CustomerInfo getCustomer(int row) {
+    return customers.get(rowCustomers[row]);
+  }
+
+
+  public int getSubscribedPopulation(int row) {
+    return subscribedPopulations[row];
+  }
+
+
+  // Adds new individuals to the count
+  public void signup(int row, int population) {
+    subscribedPopulations[row] =
+        Math.min(getCustomer(row).getPopulation(),
+                 subscribedPopulations[row] + population);
+  }
+
+
+  // Removes individuals from the count
+  public void withdraw(int row, int population) {
+    subscribedPopulations[row] -= population;
+    if (subscribedPopulations[row] < 0) {
+      log.error("subscribed population < 0: " + subscribedPopulations[row] + ", resetting to 0");
+      subscribedPopulations[row] = 0;
+    }
+  }
+
+
+  /**
+   * Customer produces or consumes power. We assume the kwh value is negative
+   * for production, positive for consumption. The usage record is one
+   * week long, so the second week enters into similar slots as the
+   * first week, and a slot is updated using an exponential smoothing
+   */
+  public void produceConsume(int row, double kwh, int population, int rawIndex, boolean fixed) {
+    int offset = row * recordLength + rawIndex % recordLength;
+    double kwhPerCustomer = kwh / (double)population;
+    usage[offset] = smooth(usage[offset], kwhPerCustomer);
+    if (fixed) {
+      fixedUsage[offset] = smooth(fixedUsage[offset], kwhPerCustomer);
+    }
+  }
+
+
+  /**
+   * @return per-customer usage times the subscribed population
+   */
+  public double getUsage(int row, int index, boolean fixed) {
+    int offset = row * recordLength + index % recordLength;
+    double perCustomer = fixed ? fixedUsage[offset] : usage[offset];
+    return perCustomer * (double)subscribedPopulations[row];
+  }
+
+
+  /**
+   * @return a copy of the per-customer usage record
+   */
+  public double[] getUsageArray(int row, boolean fixed) {
+    int offset = row * recordLength;
+    return Arrays.copyOfRange(fixed ? fixedUsage : usage, offset, offset + recordLength);
+  }
+
+
+  // ----------------- aggregations -------------------
+
+  /**
+   * @return total usage of all tariff records at the given index
+   */
+  public double collectUsage(int index) {
+    int column = index % recordLength;
+    double result = 0.0;
+    for (int row = 0, offset = column; row < numRows; ++row, offset += recordLength) {
+      if (rowTariffs[row] >= 0) {
+        result += usage[offset] * (double)subscribedPopulations[row];
+      }
+    }
+    return result;
+  }
+
+
+  /**
+   * @param powerType null => all tariffs
+   * @return tariff => (customer => subscribed population)
+   */
+  public HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> getSubscriptions(PowerType powerType) {
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> result =
+        new HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>>();
+    for (int tariffId = 0; tariffId < tariffs.size(); ++tariffId) {
+      TariffSpecification spec = tariffs.get(tariffId);
+      if (null != powerType && spec.getPowerType() != powerType) {
+        continue;
+      }
+      HashMap<CustomerInfo, Integer> customer2subs = new HashMap<CustomerInfo, Integer>();
+      int[] rows = tariffRows.get(tariffId);
+      for (int customerId = 0; customerId < rows.length; ++customerId) {
+        if (rows[customerId] >= 0) {
+          customer2subs.put(customers.get(customerId), subscribedPopulations[rows[customerId]]);
+        }
+      }
+      result.put(spec, customer2subs);
+    }
+    return result;
+  }
+
+
+  // ----------------- internals -------------------
+
+  private double smooth(double oldUsage, double kwhPerCustomer) {
+    if (oldUsage == 0.0) {
+      // assume this is the first time
+      return kwhPerCustomer;
+    }
+    // exponential smoothing
+    return alpha * kwhPerCustomer + (1.0 - alpha) * oldUsage;
+  }
+
+
+  private int internCustomer(CustomerInfo customer) {
+    Integer customerId = customerIds.get(customer);
+    if (null == customerId) {
+      customerId = customers.size();
+      customerIds.put(customer, customerId);
+      customers.add(customer);
+    }
+    return customerId;
+  }
+
+
+  /**
+   * @param seedRow row to copy usage from, -1 => empty
+   */
+  private int createRow(int customerId, int tariffId, int seedRow) {
+    int row;
+    if (numFreeRows > 0) {
+      row = freeRows[--numFreeRows];
+    }
+    else {
+      row = numRows++;
+      if (numRows > rowCustomers.length) {
+        int capacity = 2 * rowCustomers.length;
+        rowCustomers = Arrays.copyOf(rowCustomers, capacity);
+        rowTariffs = Arrays.copyOf(rowTariffs, capacity);
+        rowGenerations = Arrays.copyOf(rowGenerations, capacity);
+        subscribedPopulations = Arrays.copyOf(subscribedPopulations, capacity);
+        usage = Arrays.copyOf(usage, capacity * recordLength);
+        fixedUsage = Arrays.copyOf(fixedUsage, capacity * recordLength);
+      }
+    }
+    rowCustomers[row] = customerId;
+    rowTariffs[row] = tariffId;
+    subscribedPopulations[row] = 0;
+    int offset = row * recordLength;
+    if (seedRow >= 0) {
+      int seedOffset = seedRow * recordLength;
+      System.arraycopy(usage, seedOffset, usage, offset, recordLength);
+      System.arraycopy(fixedUsage, seedOffset, fixedUsage, offset, recordLength);
+    }
+    else {
+      Arrays.fill(usage, offset, offset + recordLength, 0.0);
+      Arrays.fill(fixedUsage, offset, offset + recordLength, 0.0);
+    }
+    return row;
+  }
+
+
+  private static int lookup(int[] rows, int customerId) {
+    return customerId < rows.length ? rows[customerId] : -1;
+  }
+
+
+  /**
+   * @return rows, or a copy of it extended with -1's to at least length
+   */
+  private static int[] ensureLength(int[] rows, int length) {
+    if (rows.length >= length) {
+      return rows;
+    }
+    int oldLength = rows.length;
+    int[] result = Arrays.copyOf(rows, Math.max(length, 2 * oldLength));
+    Arrays.fill(result, oldLength, result.length, -1);
+    return result;
+  }
+}
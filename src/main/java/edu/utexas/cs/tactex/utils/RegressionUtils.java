@@ -130,16 +130,16 @@ public class RegressionUtils {
 
     double mse = 0;
     for (int i = 0; i < data.numInstances(); ++i) {
-      log.info("fold " + i);
+      log.debug("fold " + i);
       Instances train = data.trainCV(data.numInstances(), i);
-      log.info("train");
+      log.debug("train");
       Instances test = data.testCV(data.numInstances(), i);
-      log.info("test");
+      log.debug("test");
       double actualY = data.instance(i).classValue();
-      log.info("actualY");
+      log.debug("actualY");
       try {
         linreg.buildClassifier(train);
-        log.info("buildClassifier");
+        log.debug("buildClassifier");
       } catch (Exception e) {
         log.error("failed to build classifier in cross validation", e);
         return null;
@@ -148,22 +148,22 @@ public class RegressionUtils {
       double predictedY = 0;
       try {
         predictedY = linreg.classifyInstance(test.instance(0));
-        log.info("predictedY");
+        log.debug("predictedY");
       } catch (Exception e) {
         log.error("failed to classify in cross validation", e);
         return null;
       }
       double error = predictedY - actualY;
-      log.info("error " + error);
+      log.debug("error " + error);
       mse += error * error; 
-      log.info("mse " + mse);
+      log.debug("mse " + mse);
     }
     if (data.numInstances() == 0) {
       log.error("no instances in leave-one-out data");
       return null;
     }
     mse /= data.numInstances();
-    log.info("mse " + mse);
+    log.debug("mse " + mse);
     return mse;
 
     //     // USING WEKA 
@@ -218,6 +218,18 @@ public class RegressionUtils {
   }
 
 
+  /**
+   * allocation-free version of create1DPolyFeatures()
+   */
+  public static void create1DPolyFeatures(double x, int maxDegree, double[] result) {
+    double f_i = x;
+    for (int i = 0; i < maxDegree; ++i) {
+      result[i] = f_i;
+      f_i *= x;
+    }
+  }
+
+
   public static ArrayList<Double> createRawFeatures(double[] x) {
     ArrayList<Double> result = new ArrayList<Double>();
     for (double d : x) {
@@ -330,12 +342,28 @@ public class RegressionUtils {
   }
 
 
+  /**
+   * Leave-one-out errors for all candidate lambdas are computed in
+   * closed form from a single decomposition (NativeRidgeRegression);
+   * lambdas for which the closed form is undefined fall back to the
+   * fold-by-fold Weka loop.
+   */
   public static Double findBestRegularizationParameter(Instances Xy, ArrayList<Double> candidateLambdas) {
     log.info("added lambdas");
+    Double[] nativeMSEs = null;
+    try {
+      nativeMSEs = createNativeRidgeRegression(Xy).leaveOneOutErrors(candidateLambdas);
+    } catch (Exception e) {
+      log.error("native leave-one-out failed, falling back to weka", e);
+    }
     double bestLambda = Double.MAX_VALUE;
     double bestMSE = Double.MAX_VALUE;
-    for (Double lambda : candidateLambdas) {
-      Double mse = RegressionUtils.leaveOneOutErrorLinRegLambda(lambda, Xy);
+    for (int i = 0; i < candidateLambdas.size(); ++i) {
+      Double lambda = candidateLambdas.get(i);
+      Double mse = null != nativeMSEs ? nativeMSEs[i] : null;
+      if (null == mse) {
+        mse = RegressionUtils.leaveOneOutErrorLinRegLambda(lambda, Xy);
+      }
       log.info("mse(" + lambda + ")=" + mse);
       if (null == mse) {
         log.error(" poly cross-validation failed, return null");
@@ -351,6 +379,25 @@ public class RegressionUtils {
   }
 
 
+  /**
+   * @param Xy weka instances whose class attribute is the last one
+   */
+  public static NativeRidgeRegression createNativeRidgeRegression(Instances Xy) {
+    int numInst = Xy.numInstances();
+    int numFeatures = Xy.numAttributes() - 1;
+    double[][] X = new double[numInst][numFeatures];
+    double[] y = new double[numInst];
+    for (int i = 0; i < numInst; ++i) {
+      Instance inst = Xy.instance(i);
+      for (int j = 0; j < numFeatures; ++j) {
+        X[i][j] = inst.value(j);
+      }
+      y[i] = inst.classValue();
+    }
+    return new NativeRidgeRegression(X, y);
+  }
+
+
   public static class WekaLinRegData {
   
     private Standardize standardize;
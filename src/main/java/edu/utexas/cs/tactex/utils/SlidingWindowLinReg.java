@@ -0,0 +1,359 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.utils;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Ridge regression over a sliding window of timeslots, kept as sufficient
+ * statistics (n, sum(x), sum(y), X'X, X'y, y'y) that are updated with
+ * O(features^2) rank-1 updates as examples enter and leave the window.
+ *
+ * Window examples live in a primitive ring buffer indexed by
+ * timeslot % windowLength, so memory is bounded regardless of game length.
+ * Permanent examples (e.g. bootstrap data) only enter the statistics.
+ *
+ * Fitting uses the statistics alone and fits the same model as
+ * RegressionUtils.createWekaLinRegData(): features are standardized, the
+ * ridge penalty applies to the standardized coefficients and the
+ * intercept is unpenalized. The ridge parameter is chosen by generalized
+ * cross-validation, the rotation-invariant approximation of leave-one-out
+ * which only needs the statistics.
+ *
+ * Features are accumulated relative to the first example seen, which
+ * keeps the centered statistics accurate (and exactly 0 for constant
+ * features).
+ *
+ * @author urieli
+ */
+public class SlidingWindowLinReg {
+
+  static private Logger log = Logger.getLogger(SlidingWindowLinReg.class);
+
+  private static final int EMPTY_SLOT = Integer.MIN_VALUE;
+
+  // eigenvalues below this (relative to the largest) are treated as 0
+  private static final double EIGENVALUE_TOLERANCE = 1e-12;
+
+  private final int windowLength;
+
+  // set by the first example
+  private int numFeatures = -1;
+  private double[] shift;
+
+  // ring buffer: slot = timeslot % windowLength
+  private int[] slotTimeslots;
+  private double[][] slotFeatures;
+  private double[] slotY;
+  private int numWindowExamples;
+
+  // sufficient statistics of all (permanent + window) examples
+  private int n;
+  private double[] sumX;
+  private double[][] sumXX;
+  private double[] sumXY;
+  private double sumY;
+  private double sumYY;
+
+
+  public SlidingWindowLinReg(int windowLength) {
+    this.windowLength = windowLength;
+    slotTimeslots = new int[windowLength];
+    for (int i = 0; i < windowLength; ++i) {
+      slotTimeslots[i] = EMPTY_SLOT;
+    }
+    slotY = new double[windowLength];
+  }
+
+
+  /**
+   * adds an example that never leaves the statistics
+   */
+  public void addPermanentExample(double[] features, double y) {
+    ensureDimension(features.length);
+    accumulate(features, y, +1);
+  }
+
+
+  /**
+   * adds (or replaces) the example of a timeslot; an older timeslot
+   * that occupies the same slot is evicted
+   */
+  public void addExample(int timeslot, double[] features, double y) {
+    ensureDimension(features.length);
+    int slot = slotOf(timeslot);
+    if (slotTimeslots[slot] != EMPTY_SLOT) {
+      removeSlot(slot);
+    }
+    System.arraycopy(features, 0, slotFeatures[slot], 0, numFeatures);
+    slotY[slot] = y;
+    slotTimeslots[slot] = timeslot;
+    ++numWindowExamples;
+    accumulate(features, y, +1);
+  }
+
+
+  public boolean containsExample(int timeslot) {
+    return slotTimeslots[slotOf(timeslot)] == timeslot;
+  }
+
+
+  /**
+   * removes window examples of timeslots older than oldestTimeslot
+   */
+  public void forgetBefore(int oldestTimeslot) {
+    for (int slot = 0; slot < windowLength; ++slot) {
+      int timeslot = slotTimeslots[slot];
+      if (timeslot != EMPTY_SLOT && timeslot < oldestTimeslot) {
+        removeSlot(slot);
+      }
+    }
+  }
+
+
+  public int getNumExamples() {
+    return n;
+  }
+
+
+  public int getNumWindowExamples() {
+    return numWindowExamples;
+  }
+
+
+  /**
+   * @return generalized cross-validation error of a ridge parameter, or
+   * null if undefined
+   */
+  public Double generalizedCrossValidationError(double lambda) {
+    Solver solver = createSolver();
+    return null == solver ? null : solver.gcvError(lambda);
+  }
+
+
+  /**
+   * Fits with the candidate lambda of lowest generalized cross-validation
+   * error.
+   *
+   * @return fitted model, or null if there is not enough data
+   */
+  public CompiledLinRegModel fit(List<Double> candidateLambdas) {
+    Solver solver = createSolver();
+    if (null == solver) {
+      return null;
+    }
+    Double bestLambda = null;
+    double bestError = Double.MAX_VALUE;
+    for (Double lambda : candidateLambdas) {
+      Double error = solver.gcvError(lambda);
+      log.debug("gcv(" + lambda + ")=" + error);
+      if (null != error && error < bestError) {
+        bestError = error;
+        bestLambda = lambda;
+      }
+    }
+    if (null == bestLambda) {
+      log.error("no valid regularization parameter, cannot fit");
+      return null;
+    }
+    log.debug("bestLambda is " + bestLambda);
+    return solver.model(bestLambda);
+  }
+
+
+  /**
+   * @return fitted model for the given ridge parameter, or null if there
+   * is not enough data
+   */
+  public CompiledLinRegModel fit(double lambda) {
+    Solver solver = createSolver();
+    return null == solver ? null : solver.model(lambda);
+  }
+
+
+  private int slotOf(int timeslot) {
+    int slot = timeslot % windowLength;
+    return slot < 0 ? slot + windowLength : slot;
+  }
+
+
+  private void removeSlot(int slot) {
+    accumulate(slotFeatures[slot], slotY[slot], -1);
+    slotTimeslots[slot] = EMPTY_SLOT;
+    --numWindowExamples;
+  }
+
+
+  private void ensureDimension(int length) {
+    if (numFeatures == -1) {
+      numFeatures = length;
+      slotFeatures = new double[windowLength][numFeatures];
+      sumX = new double[numFeatures];
+      sumXX = new double[numFeatures][numFeatures];
+      sumXY = new double[numFeatures];
+    }
+    else if (length != numFeatures) {
+      throw new IllegalArgumentException("expected " + numFeatures + " features, got " + length);
+    }
+  }
+
+
+  /**
+   * rank-1 update of the statistics, sign is +1 (add) or -1 (remove)
+   */
+  private void accumulate(double[] features, double y, int sign) {
+    if (null == shift) {
+      shift = features.clone();
+    }
+    n += sign;
+    sumY += sign * y;
+    sumYY += sign * y * y;
+    for (int j = 0; j < numFeatures; ++j) {
+      double xj = features[j] - shift[j];
+      if (xj == 0) continue;
+      sumX[j] += sign * xj;
+      sumXY[j] += sign * xj * y;
+      for (int k = j; k < numFeatures; ++k) {
+        sumXX[j][k] += sign * xj * (features[k] - shift[k]);
+      }
+    }
+  }
+
+
+  private Solver createSolver() {
+    if (n < 2) {
+      log.debug("not enough examples to fit: " + n);
+      return null;
+    }
+    return new Solver();
+  }
+
+
+  /**
+   * Standardized problem of the current statistics, decomposed once
+   * and solved for any lambda.
+   */
+  private class Solver {
+
+    double[] means;
+    double[] stdDevs;
+    double yMean;
+    double centeredYY;
+    // eigen-decomposition of Z'Z
+    double[][] eigenvectors;
+    double[] eigenvalues;
+    // V'Z'y
+    double[] projectedY;
+
+
+    Solver() {
+      int p = numFeatures;
+      means = new double[p];
+      stdDevs = new double[p];
+      for (int j = 0; j < p; ++j) {
+        means[j] = sumX[j] / n;
+      }
+      yMean = sumY / n;
+      centeredYY = Math.max(0, sumYY - n * yMean * yMean);
+      for (int j = 0; j < p; ++j) {
+        double variance = (sumXX[j][j] - n * means[j] * means[j]) / (n - 1);
+        // zero-variance features are ignored
+        stdDevs[j] = variance > 0 ? Math.sqrt(variance) : 0;
+      }
+
+      // Z'Z and Z'y of the standardized data
+      double[][] ZtZ = new double[p][p];
+      double[] Zty = new double[p];
+      for (int j = 0; j < p; ++j) {
+        if (stdDevs[j] == 0) continue;
+        Zty[j] = (sumXY[j] - n * means[j] * yMean) / stdDevs[j];
+        for (int k = j; k < p; ++k) {
+          if (stdDevs[k] == 0) continue;
+          double c = (sumXX[j][k] - n * means[j] * means[k]) / (stdDevs[j] * stdDevs[k]);
+          ZtZ[j][k] = c;
+          ZtZ[k][j] = c;
+        }
+      }
+
+      eigenvectors = new double[p][p];
+      eigenvalues = new double[p];
+      NativeRidgeRegression.symmetricEigen(ZtZ, eigenvalues, eigenvectors);
+      double maxEigenvalue = 0;
+      for (int k = 0; k < p; ++k) {
+        maxEigenvalue = Math.max(maxEigenvalue, eigenvalues[k]);
+      }
+      projectedY = new double[p];
+      for (int k = 0; k < p; ++k) {
+        if (eigenvalues[k] <= EIGENVALUE_TOLERANCE * maxEigenvalue) {
+          eigenvalues[k] = 0;
+        }
+        for (int j = 0; j < p; ++j) {
+          projectedY[k] += eigenvectors[j][k] * Zty[j];
+        }
+      }
+    }
+
+
+    /**
+     * GCV(lambda) = (RSS / n) / (1 - df / n)^2,
+     * df = 1 (intercept) + sum d / (d + lambda)
+     */
+    Double gcvError(double lambda) {
+      double rss = centeredYY;
+      double df = 1;
+      for (int k = 0; k < eigenvalues.length; ++k) {
+        double d = eigenvalues[k];
+        if (d == 0 || d + lambda <= 0) continue;
+        double s = 1.0 / (d + lambda);
+        double h = projectedY[k];
+        rss -= h * h * s * (2 - d * s);
+        df += d * s;
+      }
+      double dofLeft = 1 - df / n;
+      if (dofLeft <= 0) {
+        return null;
+      }
+      return Math.max(0, rss) / n / (dofLeft * dofLeft);
+    }
+
+
+    CompiledLinRegModel model(double lambda) {
+      int p = numFeatures;
+      double[] weights = new double[p];
+      for (int j = 0; j < p; ++j) {
+        if (stdDevs[j] == 0) continue;
+        double b = 0;
+        for (int k = 0; k < p; ++k) {
+          double d = eigenvalues[k];
+          if (d == 0 || d + lambda <= 0) continue;
+          b += eigenvectors[j][k] * projectedY[k] / (d + lambda);
+        }
+        weights[j] = b / stdDevs[j];
+      }
+      // means are of the shifted features
+      double intercept = yMean;
+      for (int j = 0; j < p; ++j) {
+        intercept -= weights[j] * (means[j] + shift[j]);
+      }
+      return new CompiledLinRegModel(weights, intercept);
+    }
+  }
+}
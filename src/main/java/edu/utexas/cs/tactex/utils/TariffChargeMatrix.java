@@ -0,0 +1,115 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.utils;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.TariffSpecification;
+
+/**
+ * Customers x tariffs matrix of estimated charges (including
+ * inconvenience), the indexed form of the customer=>(tariff=>charge)
+ * map. Whether a customer can use a tariff is kept in a separate mask,
+ * so that any charge value (including NaN) is an estimate.
+ *
+ * @author urieli
+ */
+public class TariffChargeMatrix {
+
+  private final List<CustomerInfo> customers;
+  private final List<TariffSpecification> specs;
+  // [customer][tariff]
+  private final double[][] charges;
+  // [customer][tariff], whether the customer can use the tariff
+  private final boolean[][] relevant;
+
+
+  public TariffChargeMatrix(List<CustomerInfo> customers,
+      List<TariffSpecification> specs, double[][] charges, 
+      boolean[][] relevant) {
+    this.customers = customers;
+    this.specs = specs;
+    this.charges = charges;
+    this.relevant = relevant;
+  }
+
+
+  public int getNumCustomers() {
+    return customers.size();
+  }
+
+
+  public int getNumTariffs() {
+    return specs.size();
+  }
+
+
+  public CustomerInfo getCustomer(int customerIndex) {
+    return customers.get(customerIndex);
+  }
+
+
+  public TariffSpecification getSpec(int tariffIndex) {
+    return specs.get(tariffIndex);
+  }
+
+
+  public boolean isRelevant(int customerIndex, int tariffIndex) {
+    return relevant[customerIndex][tariffIndex];
+  }
+
+
+  public double getCharge(int customerIndex, int tariffIndex) {
+    return charges[customerIndex][tariffIndex];
+  }
+
+
+  /**
+   * @return the charges of a customer, indexed by tariff (not a copy);
+   * entries of tariffs that aren't relevant are meaningless
+   */
+  public double[] getChargesRef(int customerIndex) {
+    return charges[customerIndex];
+  }
+
+
+  /**
+   * @return the legacy customer=>(tariff=>charge) form; customers that
+   * can't use any tariff are omitted
+   */
+  public HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> toMap() {
+    HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> result =
+        new HashMap<CustomerInfo, HashMap<TariffSpecification, Double>>();
+    for (int i = 0; i < customers.size(); ++i) {
+      HashMap<TariffSpecification, Double> tariffEvaluations =
+          new HashMap<TariffSpecification, Double>();
+      for (int j = 0; j < specs.size(); ++j) {
+        if (isRelevant(i, j)) {
+          tariffEvaluations.put(specs.get(j), charges[i][j]);
+        }
+      }
+      if (tariffEvaluations.size() > 0) {
+        result.put(customers.get(i), tariffEvaluations);
+      }
+    }
+    return result;
+  }
+}
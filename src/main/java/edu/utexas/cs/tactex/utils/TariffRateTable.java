@@ -0,0 +1,119 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.utils;
+
+import org.joda.time.Instant;
+import org.powertac.common.Tariff;
+import org.powertac.common.TimeService;
+
+/**
+ * A tariff compiled into a weekly table of per-kWh usage charges, so
+ * that the charge of an energy profile is a single dot product.
+ *
+ * Only tariffs whose usage charge is linear in the usage can be
+ * compiled, i.e. not tiered and not variable-rate. Fixed rates (TOU or
+ * not) repeat weekly, so the table is indexed by absolute hour modulo
+ * a week and serves any start time.
+ *
+ * @author urieli
+ */
+public class TariffRateTable {
+
+  public static final int HOURS_PER_WEEK = 7 * 24;
+
+  // usage charge of 1 kWh, indexed by hourOfWeek()
+  private final double[] weeklyUnitCharges;
+  private final double periodicChargePerHour;
+
+
+  TariffRateTable(double[] weeklyUnitCharges, double periodicChargePerHour) {
+    this.weeklyUnitCharges = weeklyUnitCharges;
+    this.periodicChargePerHour = periodicChargePerHour;
+  }
+
+
+  /**
+   * @return the compiled table, or null if the tariff's usage charge is
+   * not linear in the usage
+   */
+  public static TariffRateTable create(Tariff tariff) {
+    if (tariff.isTiered() || tariff.isVariableRate()) {
+      return null;
+    }
+    double[] weeklyUnitCharges = new double[HOURS_PER_WEEK];
+    // any week would do, since the rates repeat weekly
+    Instant time = new Instant(0);
+    for (int i = 0; i < HOURS_PER_WEEK; ++i) {
+      weeklyUnitCharges[hourOfWeek(hourIndex(time))] =
+          tariff.getUsageCharge(time, 1.0, 0.0);
+      time = time.plus(TimeService.HOUR);
+    }
+    return new TariffRateTable(weeklyUnitCharges, tariff.getPeriodicPayment() / 24.0);
+  }
+
+
+  /**
+   * @return absolute hour index of a time (hours since the epoch)
+   */
+  public static long hourIndex(Instant time) {
+    return time.getMillis() / TimeService.HOUR;
+  }
+
+
+  /**
+   * Same as TariffEvaluationHelper.estimateCost(tariff, energy, true),
+   * where energy[0] is used at hour firstHour.
+   */
+  public double estimateCharge(double[] energy, long firstHour) {
+    int hour = hourOfWeek(firstHour);
+    double charge = 0;
+    for (int i = 0; i < energy.length; ++i) {
+      charge += energy[i] * weeklyUnitCharges[hour];
+      if (++hour == HOURS_PER_WEEK) {
+        hour = 0;
+      }
+    }
+    return charge + energy.length * periodicChargePerHour;
+  }
+
+
+  /**
+   * fills unitCharges[i] with the usage charge of 1 kWh at hour
+   * firstHour + i
+   */
+  public void getUnitCharges(long firstHour, double[] unitCharges) {
+    int hour = hourOfWeek(firstHour);
+    for (int i = 0; i < unitCharges.length; ++i) {
+      unitCharges[i] = weeklyUnitCharges[hour];
+      if (++hour == HOURS_PER_WEEK) {
+        hour = 0;
+      }
+    }
+  }
+
+
+  public double getPeriodicChargePerHour() {
+    return periodicChargePerHour;
+  }
+
+
+  private static int hourOfWeek(long hourIndex) {
+    return (int) (hourIndex % HOURS_PER_WEEK);
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.utils;
+
+import java.util.Arrays;
+import java.util.SortedSet;
+
+import org.powertac.common.OrderbookOrder;
+
+/**
+ * Per-timeslot wholesale history: usage predictions (by prediction
+ * index, i.e. distance-1 from the timeslot in which they were made),
+ * actual usage, orderbook quotes and cleared trades.
+ *
+ * Records are kept in ring buffers of primitive arrays, holding the last
+ * 'capacity' timeslots, so memory doesn't grow with the game length. A
+ * slot is reset when a newer timeslot claims it; records of timeslots that
+ * are older than the ones held are ignored, and read as empty (zero usage,
+ * no orderbook).
+ *
+ * Not thread safe - callers (MarketManagerService) are synchronized.
+ *
+ * @author urieli
+ */
+public class WholesaleHistoryStore {
+
+  // initial number of quotes per orderbook side; grows when needed
+  private static final int INITIAL_QUOTES = 16;
+
+  private final int capacity;
+
+  // timeslot held in each slot, -1 => empty
+  private int[] slotTimeslots;
+
+  // [predictionsIndex][slot]
+  private double[][] predictedUsage;
+  private double[] actualUsage;
+
+  // orderbook quotes [slot][quote], sorted like the orderbook (best first)
+  private boolean[] hasOrderbook;
+  private int[] numAsks;
+  private double[][] askPrices;
+  private double[][] askMwh;
+  private int[] numBids;
+  private double[][] bidPrices;
+  private double[][] bidMwh;
+  // orderbooks of earlier timeslots are pruned
+  private int firstOrderbookTimeslot;
+
+  // cleared trades
+  private double[] clearedMwh;
+  private double[] clearedPayments;
+
+
+  /**
+   * @param capacity number of timeslots to hold
+   * @param numPredictionIndices number of usage predictions per timeslot
+   */
+  public WholesaleHistoryStore(int capacity, int numPredictionIndices) {
+    this.capacity = capacity;
+    slotTimeslots = new int[capacity];
+    Arrays.fill(slotTimeslots, -1);
+    predictedUsage = new double[numPredictionIndices][capacity];
+    actualUsage = new double[capacity];
+    hasOrderbook = new boolean[capacity];
+    numAsks = new int[capacity];
+    askPrices = new double[capacity][INITIAL_QUOTES];
+    askMwh = new double[capacity][INITIAL_QUOTES];
+    numBids = new int[capacity];
+    bidPrices = new double[capacity][INITIAL_QUOTES];
+    bidMwh = new double[capacity][INITIAL_QUOTES];
+    firstOrderbookTimeslot = 0;
+    clearedMwh = new double[capacity];
+    clearedPayments = new double[capacity];
+  }
+
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+
+  // ----------------- usage -------------------
+
+  public void recordPredictedUsage(int timeslot, int predictionsIndex, double kwh) {
+    int slot = claimSlot(timeslot);
+    if (slot >= 0) {
+      predictedUsage[predictionsIndex][slot] = kwh;
+    }
+  }
+
+
+  public double getPredictedUsage(int timeslot, int predictionsIndex) {
+    int slot = findSlot(timeslot);
+    return slot >= 0 ? predictedUsage[predictionsIndex][slot] : 0;
+  }
+
+
+  public int getNumPredictionIndices() {
+    return predictedUsage.length;
+  }
+
+
+  public void addActualUsage(int timeslot, double kwh) {
+    int slot = claimSlot(timeslot);
+    if (slot >= 0) {
+      actualUsage[slot] += kwh;
+    }
+  }
+
+
+  public double getActualUsage(int timeslot) {
+    int slot = findSlot(timeslot);
+    return slot >= 0 ? actualUsage[slot] : 0;
+  }
+
+
+  // ----------------- orderbooks -------------------
+
+  /**
+   * Replaces the timeslot's orderbook quotes. Quotes without a limit price
+   * (market orders) are not recorded.
+   */
+  public void recordOrderbook(int timeslot, SortedSet<OrderbookOrder> asks,
+      SortedSet<OrderbookOrder> bids) {
+    int slot = claimSlot(timeslot);
+    if (slot < 0) {
+      return;
+    }
+    numAsks[slot] = 0;
+    for (OrderbookOrder ask : asks) {
+      if (null != ask && null != ask.getLimitPrice()) {
+        addAsk(slot, ask.getLimitPrice(), ask.getMWh());
+      }
+    }
+    numBids[slot] = 0;
+    for (OrderbookOrder bid : bids) {
+      if (null != bid && null != bid.getLimitPrice()) {
+        addBid(slot, bid.getLimitPrice(), bid.getMWh());
+      }
+    }
+    hasOrderbook[slot] = true;
+  }
+
+
+  /**
+   * Drops the orderbooks of timeslots before firstTimeslot
+   */
+  public void pruneOrderbooks(int firstTimeslot) {
+    firstOrderbookTimeslot = Math.max(firstOrderbookTimeslot, firstTimeslot);
+  }
+
+
+  public boolean hasOrderbook(int timeslot) {
+    if (timeslot < firstOrderbookTimeslot) {
+      return false;
+    }
+    int slot = findSlot(timeslot);
+    return slot >= 0 && hasOrderbook[slot];
+  }
+
+
+  /**
+   * @param asks true => asks, false => bids
+   * @return number of quotes, 0 if no orderbook
+   */
+  public int getNumQuotes(int timeslot, boolean asks) {
+    if ( ! hasOrderbook(timeslot) ) {
+      return 0;
+    }
+    int slot = findSlot(timeslot);
+    return asks ? numAsks[slot] : numBids[slot];
+  }
+
+
+  public double getQuotePrice(int timeslot, boolean asks, int quote) {
+    int slot = findSlot(timeslot);
+    return asks ? askPrices[slot][quote] : bidPrices[slot][quote];
+  }
+
+
+  public double getQuoteMwh(int timeslot, boolean asks, int quote) {
+    int slot = findSlot(timeslot);
+    return asks ? askMwh[slot][quote] : bidMwh[slot][quote];
+  }
+
+
+  // ----------------- cleared trades -------------------
+
+  public void addClearedTrade(int timeslot, double price, double mwh) {
+    int slot = claimSlot(timeslot);
+    if (slot >= 0) {
+      clearedMwh[slot] += mwh;
+      clearedPayments[slot] += price * mwh;
+    }
+  }
+
+
+  public double getClearedMwh(int timeslot) {
+    int slot = findSlot(timeslot);
+    return slot >= 0 ? clearedMwh[slot] : 0;
+  }
+
+
+  /**
+   * @return mean price of the timeslot's cleared trades, NaN if none
+   */
+  public double getMeanClearingPrice(int timeslot) {
+    int slot = findSlot(timeslot);
+    if (slot < 0 || 0 == clearedMwh[slot]) {
+      return Double.NaN;
+    }
+    return clearedPayments[slot] / clearedMwh[slot];
+  }
+
+
+  // ----------------- slots -------------------
+
+  /**
+   * @return the timeslot's slot, or -1 if it is not held
+   */
+  private int findSlot(int timeslot) {
+    if (timeslot < 0) {
+      return -1;
+    }
+    int slot = timeslot % capacity;
+    return slotTimeslots[slot] == timeslot ? slot : -1;
+  }
+
+
+  /**
+   * @return the timeslot's slot, reset if it held an older timeslot, or -1
+   * if it holds a newer one
+   */
+  private int claimSlot(int timeslot) {
+    if (timeslot < 0) {
+      return -1;
+    }
+    int slot = timeslot % capacity;
+    if (slotTimeslots[slot] == timeslot) {
+      return slot;
+    }
+    if (slotTimeslots[slot] > timeslot) {
+      return -1;
+    }
+    slotTimeslots[slot] = timeslot;
+    for (double[] p : predictedUsage) {
+      p[slot] = 0;
+    }
+    actualUsage[slot] = 0;
+    hasOrderbook[slot] = false;
+    numAsks[slot] = 0;
+    numBids[slot] = 0;
+    clearedMwh[slot] = 0;
+    clearedPayments[slot] = 0;
+    return slot;
+  }
+
+
+  private void addAsk(int slot, double price, double mwh) {
+    if (numAsks[slot] == askPrices[slot].length) {
+      askPrices[slot] = Arrays.copyOf(askPrices[slot], 2 * numAsks[slot]);
+      askMwh[slot] = Arrays.copyOf(askMwh[slot], 2 * numAsks[slot]);
+    }
+    askPrices[slot][numAsks[slot]] = price;
+    askMwh[slot][numAsks[slot]] = mwh;
+    ++numAsks[slot];
+  }
+
+
+  private void addBid(int slot, double price, double mwh) {
+    if (numBids[slot] == bidPrices[slot].length) {
+      bidPrices[slot] = Arrays.copyOf(bidPrices[slot], 2 * numBids[slot]);
+      bidMwh[slot] = Arrays.copyOf(bidMwh[slot], 2 * numBids[slot]);
+    }
+    bidPrices[slot][numBids[slot]] = price;
+    bidMwh[slot][numBids[slot]] = mwh;
+    ++numBids[slot];
+  }
+}
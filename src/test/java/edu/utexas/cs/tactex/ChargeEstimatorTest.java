@@ -19,12 +19,18 @@
 package edu.utexas.cs.tactex;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.math3.linear.ArrayRealVector;
 import org.joda.time.DateTime;
@@ -36,6 +42,8 @@ import org.junit.runner.RunWith;
 import org.powertac.common.Broker;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.Rate;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffEvaluationHelper;
 import org.powertac.common.TariffSpecification;
 import org.powertac.common.TimeService;
 import org.powertac.common.enumerations.PowerType;
@@ -49,6 +57,7 @@ import edu.utexas.cs.tactex.ConfiguratorFactoryService;
 import edu.utexas.cs.tactex.TariffRepoMgrService;
 import edu.utexas.cs.tactex.core.PowerTacBroker;
 import edu.utexas.cs.tactex.utils.ChargeEstimatorDefault;
+import edu.utexas.cs.tactex.utils.TariffChargeMatrix;
 import edu.utexas.cs.tactex.utils.BrokerUtils.ShiftedEnergyData;
 
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
@@ -87,7 +96,7 @@ public class ChargeEstimatorTest {
                                  "tariffRepo", 
                                  tariffRepo);
     
-    chargeEstimatorDefault = new ChargeEstimatorDefault(tariffRepoMgrService);
+    chargeEstimatorDefault = new ChargeEstimatorDefault(tariffRepoMgrService, timeService);
     
     brokerContext = mock(PowerTacBroker.class);
     Broker thebroker = new Broker("testBroker");
@@ -186,4 +195,290 @@ public class ChargeEstimatorTest {
     
   }
 
+
+  @Test
+  public void testEstimateChargeTimeOfUse () {
+
+    // time-of-use rates with a periodic payment: compiled
+    TariffSpecification spec = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION)
+        .withPeriodicPayment(-2.4);
+    spec.addRate(new Rate().withValue(-1.0).withDailyBegin(7).withDailyEnd(18));
+    spec.addRate(new Rate().withValue(-0.5).withDailyBegin(19).withDailyEnd(6));
+    TestHelperUtils.addToRepo(spec, tariffRepo, timeService);    
+    Tariff tariff = tariffRepo.findTariffById(spec.getId());
+    assertNotNull("compiled", chargeEstimatorDefault.getRateTable(spec));
+
+    double[] energy = new double[7*24];
+    for (int i = 0; i < energy.length; ++i) {
+      energy[i] = 1 + (i * 7) % 5;
+    }
+    ArrayRealVector customerEnergy = new ArrayRealVector(energy);
+    for (int hours = 0; hours < 30; hours += 5) {
+      timeService.setCurrentTime(baseTime.plus(hours * TimeService.HOUR));
+      double expected = createHelper().estimateCost(tariff, energy, true);
+      double actual = chargeEstimatorDefault.estimateCharge(customerEnergy, spec);
+      assertEquals("tou, " + hours + " hours later", expected, actual, 1e-6);
+    }
+  }
+
+
+  @Test
+  public void testEstimateChargeTiered () {
+
+    // tiered rates: not compiled, evaluated by the helper
+    TariffSpecification spec = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+    spec.addRate(new Rate().withValue(-1.0));
+    spec.addRate(new Rate().withValue(-2.0).withTierThreshold(100.0));
+    TestHelperUtils.addToRepo(spec, tariffRepo, timeService);    
+    Tariff tariff = tariffRepo.findTariffById(spec.getId());
+    assertNull("not compiled", chargeEstimatorDefault.getRateTable(spec));
+
+    double[] energy = new double[7*24];
+    for (int i = 0; i < energy.length; ++i) {
+      energy[i] = 1 + i % 3;
+    }
+    ArrayRealVector customerEnergy = new ArrayRealVector(energy);
+    double expected = createHelper().estimateCost(tariff, energy, true);
+    assertEquals("tiered", expected, 
+                 chargeEstimatorDefault.estimateCharge(customerEnergy, spec), 1e-6);
+    // memoized charge is of the energy at the time of the call
+    assertEquals("tiered, memoized", expected, 
+                 chargeEstimatorDefault.estimateCharge(customerEnergy, spec), 1e-6);
+    customerEnergy.setEntry(0, 100.0);
+    energy = customerEnergy.toArray();
+    expected = createHelper().estimateCost(tariff, energy, true);
+    assertEquals("tiered, modified energy", expected, 
+                 chargeEstimatorDefault.estimateCharge(customerEnergy, spec), 1e-6);
+  }
+
+
+  @Test
+  public void testEstimateChargesBatch () {
+
+    // compiled and non-compiled tariffs, in one batch
+    TariffSpecification spec1 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION)
+        .withPeriodicPayment(-1.2);
+    spec1.addRate(new Rate().withValue(-1.0).withDailyBegin(7).withDailyEnd(18));
+    spec1.addRate(new Rate().withValue(-0.5).withDailyBegin(19).withDailyEnd(6));
+    TestHelperUtils.addToRepo(spec1, tariffRepo, timeService);    
+    TariffSpecification spec2 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+    spec2.addRate(new Rate().withValue(-1.0));
+    spec2.addRate(new Rate().withValue(-2.0).withTierThreshold(100.0));
+    TestHelperUtils.addToRepo(spec2, tariffRepo, timeService);    
+    TariffSpecification spec3 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+    spec3.addRate(new Rate().withValue(-2.0));
+    TestHelperUtils.addToRepo(spec3, tariffRepo, timeService);    
+    List<TariffSpecification> tariffSpecs = new ArrayList<TariffSpecification>();
+    tariffSpecs.add(spec1);
+    tariffSpecs.add(spec2);
+    tariffSpecs.add(spec3);
+
+    double[][] customerEnergy = new double[5][7*24];
+    for (int i = 0; i < customerEnergy.length; ++i) {
+      for (int h = 0; h < 7*24; ++h) {
+        customerEnergy[i][h] = (i * 3 + h * 7) % 11 - 1;
+      }
+    }
+    timeService.setCurrentTime(baseTime.plus(3 * TimeService.HOUR));
+    double[][] charges = chargeEstimatorDefault.estimateCharges(customerEnergy, tariffSpecs);
+    for (int i = 0; i < customerEnergy.length; ++i) {
+      for (int j = 0; j < tariffSpecs.size(); ++j) {
+        double expected = chargeEstimatorDefault.estimateCharge(
+            new ArrayRealVector(customerEnergy[i]), tariffSpecs.get(j));
+        assertEquals("customer " + i + ", spec " + j, expected, charges[i][j], 1e-6);
+      }
+    }
+  }
+
+
+  @Test
+  public void testRateTablesBounded () {
+
+    // e.g. an optimizer's temporary candidates, each compiled once
+    int maxRateTables = (Integer) ReflectionTestUtils.getField(chargeEstimatorDefault, "MAX_RATE_TABLES");
+    ArrayRealVector customerEnergy = new ArrayRealVector(7*24, 1.0);
+    TariffSpecification first = null;
+    for (int i = 0; i < maxRateTables + 10; ++i) {
+      TariffSpecification spec = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+      spec.addRate(new Rate().withValue(-1.0 - i));
+      TestHelperUtils.addToRepo(spec, tariffRepo, timeService);
+      assertEquals("spec " + i, 7*24 * (-1.0 - i), chargeEstimatorDefault.estimateCharge(customerEnergy, spec), 1e-6);
+      if (null == first) {
+        first = spec;
+      }
+    }
+    Map<?, ?> rateTables = (Map<?, ?>) ReflectionTestUtils.getField(chargeEstimatorDefault, "rateTables");
+    assertEquals("bounded", maxRateTables, rateTables.size());
+    assertFalse("least recently used evicted", rateTables.containsKey(first.getId()));
+    // an evicted table is compiled again
+    assertEquals("first spec", 7*24 * -1.0, chargeEstimatorDefault.estimateCharge(customerEnergy, first), 1e-6);
+    assertTrue("compiled again", rateTables.containsKey(first.getId()));
+  }
+
+
+  @Test
+  public void testEstimateRelevantTariffChargeMatrix () {
+
+    TariffSpecification spec1 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+    spec1.addRate(new Rate().withValue(-1.0));
+    TestHelperUtils.addToRepo(spec1, tariffRepo, timeService);    
+    TariffSpecification spec2 = new TariffSpecification(brokerContext.getBroker(), PowerType.PRODUCTION);
+    spec2.addRate(new Rate().withValue(0.5));
+    TestHelperUtils.addToRepo(spec2, tariffRepo, timeService);    
+    List<TariffSpecification> tariffSpecs = new ArrayList<TariffSpecification>();
+    tariffSpecs.add(spec1);
+    tariffSpecs.add(spec2);
+
+    CustomerInfo customer1 = new CustomerInfo("Austin", 1);
+    HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> customer2energy = new HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>>();
+    customer2energy.put(customer1, new HashMap<TariffSpecification, ShiftedEnergyData>());
+    customer2energy.get(customer1).put(spec1, new ShiftedEnergyData(new ArrayRealVector(7*24, 2.0), 3.0));
+
+    TariffChargeMatrix charges = 
+        chargeEstimatorDefault.estimateRelevantTariffChargeMatrix(tariffSpecs, customer2energy);
+    assertEquals("customers", 1, charges.getNumCustomers());
+    assertEquals("tariffs", 2, charges.getNumTariffs());
+    assertSame("customer", customer1, charges.getCustomer(0));
+    assertTrue("consumption tariff", charges.isRelevant(0, 0));
+    assertFalse("production tariff", charges.isRelevant(0, 1));
+    // charge + inconvenience
+    assertEquals("charge", 7*24 * 2.0 * -1.0 + 3.0, charges.getCharge(0, 0), 1e-6);
+
+    HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> estimatedCharges = charges.toMap();
+    assertEquals("one customer", 1, estimatedCharges.size());
+    assertEquals("one relevant tariff", 1, estimatedCharges.get(customer1).size());
+    assertEquals("map charge", charges.getCharge(0, 0), estimatedCharges.get(customer1).get(spec1), 1e-10);
+  }
+
+
+  @Test
+  public void testEstimateRelevantTariffChargeMatrixBatched () {
+
+    // compiled, TOU and tiered (not compiled) tariffs
+    TariffSpecification spec1 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+    spec1.addRate(new Rate().withValue(-1.0));
+    TestHelperUtils.addToRepo(spec1, tariffRepo, timeService);    
+    TariffSpecification spec2 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION)
+        .withPeriodicPayment(-1.2);
+    spec2.addRate(new Rate().withValue(-1.0).withDailyBegin(7).withDailyEnd(18));
+    spec2.addRate(new Rate().withValue(-0.5).withDailyBegin(19).withDailyEnd(6));
+    TestHelperUtils.addToRepo(spec2, tariffRepo, timeService);    
+    TariffSpecification spec3 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+    spec3.addRate(new Rate().withValue(-1.0));
+    spec3.addRate(new Rate().withValue(-2.0).withTierThreshold(100.0));
+    TestHelperUtils.addToRepo(spec3, tariffRepo, timeService);    
+    TariffSpecification spec4 = new TariffSpecification(brokerContext.getBroker(), PowerType.PRODUCTION);
+    spec4.addRate(new Rate().withValue(0.5));
+    TestHelperUtils.addToRepo(spec4, tariffRepo, timeService);    
+    List<TariffSpecification> tariffSpecs = new ArrayList<TariffSpecification>();
+    tariffSpecs.add(spec1);
+    tariffSpecs.add(spec2);
+    tariffSpecs.add(spec3);
+    tariffSpecs.add(spec4);
+
+    // customers with the same energy under all tariffs are batched, the
+    // others are evaluated tariff by tariff
+    CustomerInfo unshifted1 = new CustomerInfo("Austin", 1);
+    CustomerInfo unshifted2 = new CustomerInfo("Dallas", 1);
+    CustomerInfo shifted = new CustomerInfo("Houston", 1);
+    CustomerInfo producer = new CustomerInfo("Solar", 1).withPowerType(PowerType.PRODUCTION);
+    HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> customer2energy = new HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>>();
+    int n = 0;
+    for (CustomerInfo customer : new CustomerInfo[] {unshifted1, unshifted2, shifted, producer}) {
+      HashMap<TariffSpecification, ShiftedEnergyData> spec2energy = new HashMap<TariffSpecification, ShiftedEnergyData>();
+      ArrayRealVector energy = createEnergy(++n);
+      for (TariffSpecification spec : tariffSpecs) {
+        if (customer.getPowerType().canUse(spec.getPowerType())) {
+          if (customer == shifted) {
+            energy = createEnergy(++n);
+          }
+          spec2energy.put(spec, new ShiftedEnergyData(energy, 0.1 * n));
+        }
+      }
+      customer2energy.put(customer, spec2energy);
+    }
+    // an estimate may be NaN, and is still relevant
+    customer2energy.get(unshifted2).put(spec2, 
+        new ShiftedEnergyData(customer2energy.get(unshifted2).get(spec2).getShiftedEnergy(), Double.NaN));
+
+    timeService.setCurrentTime(baseTime.plus(3 * TimeService.HOUR));
+    TariffChargeMatrix charges = 
+        chargeEstimatorDefault.estimateRelevantTariffChargeMatrix(tariffSpecs, customer2energy);
+    assertEquals("customers", 4, charges.getNumCustomers());
+    for (int i = 0; i < charges.getNumCustomers(); ++i) {
+      CustomerInfo customer = charges.getCustomer(i);
+      for (int j = 0; j < tariffSpecs.size(); ++j) {
+        TariffSpecification spec = tariffSpecs.get(j);
+        boolean canUse = customer.getPowerType().canUse(spec.getPowerType());
+        assertEquals("relevant " + customer + " " + j, canUse, charges.isRelevant(i, j));
+        if (canUse) {
+          ShiftedEnergyData data = customer2energy.get(customer).get(spec);
+          double expected = chargeEstimatorDefault.estimateCharge(data.getShiftedEnergy(), spec) 
+                            + data.getInconvenienceFactor();
+          assertEquals("charge " + customer + " " + j, expected, charges.getCharge(i, j), 1e-6);
+        }
+      }
+    }
+    HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> estimatedCharges = charges.toMap();
+    assertTrue("NaN estimate kept", Double.isNaN(estimatedCharges.get(unshifted2).get(spec2)));
+    assertEquals("producer's tariff only", 1, estimatedCharges.get(producer).size());
+  }
+
+
+  private ArrayRealVector createEnergy(int seed) {
+    double[] energy = new double[7*24];
+    for (int h = 0; h < energy.length; ++h) {
+      energy[h] = (seed * 3 + h * 7) % 11 - 1;
+    }
+    return new ArrayRealVector(energy);
+  }
+
+
+  @Test
+  public void testEstimateRateGradient () {
+
+    // hourly rates, like the ones of the TOU optimizers; the charge
+    // difference of a rate change is the gradient times the change
+    double[] rates = new double[24];
+    for (int h = 0; h < 24; ++h) {
+      rates[h] = -0.1 - 0.01 * (h % 5);
+    }
+    TariffSpecification spec = createHourlySpec(rates);
+    rates[5] += 0.02;
+    rates[17] -= 0.01;
+    TariffSpecification modifiedSpec = createHourlySpec(rates);
+
+    double[] energy = new double[7*24];
+    for (int i = 0; i < energy.length; ++i) {
+      energy[i] = 1 + (i * 7) % 5;
+    }
+    ArrayRealVector customerEnergy = new ArrayRealVector(energy);
+    for (int hours = 0; hours < 30; hours += 7) {
+      timeService.setCurrentTime(baseTime.plus(hours * TimeService.HOUR));
+      double[] gradient = chargeEstimatorDefault.estimateRateGradient(customerEnergy, 24);
+      assertEquals("rates", 24, gradient.length);
+      double expected = 
+          chargeEstimatorDefault.estimateCharge(customerEnergy, modifiedSpec) -
+          chargeEstimatorDefault.estimateCharge(customerEnergy, spec);
+      assertEquals(hours + " hours later", expected, 
+                   0.02 * gradient[5] - 0.01 * gradient[17], 1e-6);
+    }
+  }
+
+
+  private TariffSpecification createHourlySpec (double[] rates) {
+    TariffSpecification spec = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+    for (int h = 0; h < rates.length; ++h) {
+      spec.addRate(new Rate().withValue(rates[h]).withDailyBegin(h).withDailyEnd(h));
+    }
+    TestHelperUtils.addToRepo(spec, tariffRepo, timeService);    
+    return spec;
+  }
+
+
+  private TariffEvaluationHelper createHelper () {
+    TariffEvaluationHelper helper = new TariffEvaluationHelper();
+    helper.init();
+    return helper;
+  }
 }
@@ -41,6 +41,7 @@ import edu.utexas.cs.tactex.CostCurvesPredictorService;
 import edu.utexas.cs.tactex.core.PowerTacBroker;
 import edu.utexas.cs.tactex.interfaces.BrokerContext;
 import edu.utexas.cs.tactex.interfaces.CostCurvesPredictor;
+import edu.utexas.cs.tactex.utils.SlidingWindowLinReg;
 import edu.utexas.cs.tactex.utils.BrokerUtils.PriceMwhPair;
 
 
@@ -110,6 +111,8 @@ public class CostCurvesTest {
     ReflectionTestUtils.setField(costCurves,"ts2wholesaleBasedCostPrediction", null);
     ReflectionTestUtils.setField(costCurves,"ts2consumptionBasedCostPrediction", null);
     ReflectionTestUtils.setField(costCurves,"ts2actualCost", null);
+    ReflectionTestUtils.setField(costCurves,"costCurveRegression", null);
+    ReflectionTestUtils.setField(costCurves,"bootExamplesAdded", true);
     
 
     costCurves.initialize(brokerContext);
@@ -177,6 +180,15 @@ public class CostCurvesTest {
         (HashMap<Integer, Double>) 
             ReflectionTestUtils.getField(costCurves, "ts2actualCost");
     assertNotNull("ts2actualCost", ts2actualCost);
+
+    SlidingWindowLinReg costCurveRegression = (SlidingWindowLinReg) 
+        ReflectionTestUtils.getField(costCurves, "costCurveRegression");
+    assertNotNull("costCurveRegression", costCurveRegression);
+    assertEquals("costCurveRegression is empty", 0, costCurveRegression.getNumExamples());
+
+    Boolean bootExamplesAdded = (Boolean) 
+        ReflectionTestUtils.getField(costCurves, "bootExamplesAdded");
+    assertFalse("bootExamplesAdded", bootExamplesAdded);
   }
   
   @Test
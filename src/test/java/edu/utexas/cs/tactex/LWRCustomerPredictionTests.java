@@ -33,6 +33,7 @@ import org.junit.Test;
 import edu.utexas.cs.tactex.ConfiguratorFactoryService;
 import edu.utexas.cs.tactex.subscriptionspredictors.LWRCustNewEjml;
 import edu.utexas.cs.tactex.subscriptionspredictors.LWRCustOldAppache;
+import edu.utexas.cs.tactex.utils.LocallyWeightedRegression;
 
 public class LWRCustomerPredictionTests {
 
@@ -311,4 +312,46 @@ public class LWRCustomerPredictionTests {
     double expected = 0.0;
     assertEquals("Cross Validation on linear data", expected, actual, 1e-6);    
   }
+
+
+  /**
+   * LocallyWeightedRegression should match the matrix-based LWR
+   */
+  @Test
+  public void testLocallyWeightedRegression () {
+    // same data as testLWR(), batched queries
+    LocallyWeightedRegression lwr = new LocallyWeightedRegression(
+        new double[] {-1, 0, 1}, new double[] {3, 2, 4}, true);
+    double[] actual = lwr.predict(new double[] {-1.5, -0.5, 0, 0.5, 1.5}, 0.5);
+    assertEquals("Matlab based expected value 1", 3.43855279053977, actual[0], 1e-6);
+    assertEquals("Matlab based expected value 2", 2.62107459906727, actual[1], 1e-6);
+    assertEquals("Matlab based expected value 3", 2.63582467285126, actual[2], 1e-6);
+    assertEquals("Matlab based expected value 4", 3.12107459906727, actual[3], 1e-6);
+    assertEquals("Matlab based expected value 5", 4.93855279053977, actual[4], 1e-6);
+    assertEquals("single query", actual[0], lwr.predict(-1.5, 0.5), 1e-12);
+
+    // cross validation errors of all taus, vs. fold-by-fold
+    double[] xVals = {0.1, 0.2, 0.35, 0.5, 0.6, 0.9};
+    double[] yVals = {120, 80, 95, 40, 60, 10};
+    SimpleMatrix X = new SimpleMatrix(xVals.length, 2);
+    SimpleMatrix y = new SimpleMatrix(xVals.length, 1);
+    for (int i = 0; i < xVals.length; ++i) {
+      X.set(i, 0, 1);
+      X.set(i, 1, xVals[i]);
+      y.set(i, 0, yVals[i]);
+    }
+    double[] taus = {0.05, 0.1, 0.5, 1.0};
+    double[] errors = new LocallyWeightedRegression(xVals, yVals, true).crossValidationErrors(taus);
+    for (int t = 0; t < taus.length; ++t) {
+      double expected = lwrCustNewEjml.CrossValidationError(taus[t], X, y);
+      assertEquals("CV error, tau " + taus[t], expected, errors[t], 1e-6 * expected);
+    }
+
+    // linear data, no intercept: CV error should be 0 for any tau
+    errors = new LocallyWeightedRegression(new double[] {1, 2, 3}, 
+        new double[] {2, 4, 6}, false).crossValidationErrors(taus);
+    for (int t = 0; t < taus.length; ++t) {
+      assertEquals("CV on linear data, tau " + taus[t], 0.0, errors[t], 1e-6);
+    }
+  }
 }
@@ -34,6 +34,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.TreeMap;
@@ -42,6 +43,8 @@ import org.apache.commons.math3.linear.ArrayRealVector;
 import org.joda.time.Instant;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powertac.common.Competition;
 import org.powertac.common.BalancingTransaction;
 import org.powertac.common.Broker;
@@ -65,6 +68,9 @@ import edu.utexas.cs.tactex.MarketManagerService;
 import edu.utexas.cs.tactex.PortfolioManagerService;
 import edu.utexas.cs.tactex.MarketManagerService.DPResult;
 import edu.utexas.cs.tactex.core.PowerTacBroker;
+import edu.utexas.cs.tactex.utils.BidGroup;
+import edu.utexas.cs.tactex.utils.IncrementalDPEngine;
+import edu.utexas.cs.tactex.utils.WholesaleHistoryStore;
 import edu.utexas.cs.tactex.utils.BrokerUtils.PriceMwhPair;
 
 /**
@@ -167,13 +173,12 @@ public class MarketManagerTest {
     ReflectionTestUtils.setField(marketManagerService,"lastOrder", null);
     ReflectionTestUtils.setField(marketManagerService,"marketMWh", null);
     ReflectionTestUtils.setField(marketManagerService,"marketPayments", null);
-    ReflectionTestUtils.setField(marketManagerService,"predictedUsage", null);
-    ReflectionTestUtils.setField(marketManagerService,"actualUsage", null);
-    ReflectionTestUtils.setField(marketManagerService,"orderbooks", null);
+    ReflectionTestUtils.setField(marketManagerService,"wholesaleHistory", null);
     ReflectionTestUtils.setField(marketManagerService,"maxTradePrice", 1234);
     ReflectionTestUtils.setField(marketManagerService,"minTradePrice", 1234);
     ReflectionTestUtils.setField(marketManagerService,"supportingBidGroups", null);
     ReflectionTestUtils.setField(marketManagerService,"dpCache2013", null);    
+    ReflectionTestUtils.setField(marketManagerService,"dpEngine", null);    
     ReflectionTestUtils.setField(marketManagerService,"shortBalanceTransactionsData", null);    
     ReflectionTestUtils.setField(marketManagerService,"surplusBalanceTransactionsData", null);    
 
@@ -217,28 +222,17 @@ public class MarketManagerTest {
         usageRecordLength, marketPayments.length);
     assertArrayEquals(new double[usageRecordLength], marketPayments, 1e-6);
 
-    double[][] predictedUsage = 
-        (double[][]) 
-            ReflectionTestUtils.getField(marketManagerService, "predictedUsage");
-    assertNotNull("predictedUsage", predictedUsage);
-    assertEquals("predictedUsage.size", 24, predictedUsage.length);
-    for(double[] p : predictedUsage) {
-    	assertNotNull("predictedUsage[i]", p);
-    	assertEquals("p.size", 2500, p.length);
-    	assertEquals("p[i]", (Integer)0, p[0], 1e-6);
+    WholesaleHistoryStore wholesaleHistory = (WholesaleHistoryStore) 
+        ReflectionTestUtils.getField(marketManagerService, "wholesaleHistory");
+    assertNotNull("wholesaleHistory", wholesaleHistory);
+    assertEquals("wholesaleHistory.capacity", 
+        usageRecordLength, wholesaleHistory.getCapacity());
+    assertEquals("predictedUsage.size", 24, wholesaleHistory.getNumPredictionIndices());
+    for (int i = 0; i < wholesaleHistory.getNumPredictionIndices(); ++i) {
+    	assertEquals("p[i]", 0, wholesaleHistory.getPredictedUsage(0, i), 1e-6);
     }
-    
-    double[] actualUsage = (double[])
-    	ReflectionTestUtils.getField(marketManagerService, "actualUsage");
-    assertNotNull("actualUsage", actualUsage);
-    assertEquals("actualUsage.size", 2500, actualUsage.length);
-    assertEquals("actualUsage[i]", 0, actualUsage[0], 1e-6);
-
-    @SuppressWarnings("unchecked")
-    HashMap<Integer, Orderbook> orderbooks = (HashMap<Integer, Orderbook>) 
-        ReflectionTestUtils.getField(marketManagerService, "orderbooks");
-    assertNotNull("orderbooks", orderbooks);
-    assertEquals("orderbooks.length", 0, orderbooks.size());
+    assertEquals("actualUsage[i]", 0, wholesaleHistory.getActualUsage(0), 1e-6);
+    assertFalse("orderbooks", wholesaleHistory.hasOrderbook(0));
 
     double maxTradePrice = (Double) 
         ReflectionTestUtils.getField(marketManagerService, 
@@ -251,8 +245,8 @@ public class MarketManagerTest {
     assertEquals("minTradePrice", Double.MAX_VALUE, minTradePrice, 1e-6);
 
     @SuppressWarnings("unchecked")
-    TreeMap<Integer ,TreeMap<Double, Double>> supportingBidGroups = 
-        (TreeMap<Integer ,TreeMap<Double, Double>>)
+    TreeMap<Integer, BidGroup> supportingBidGroups = 
+        (TreeMap<Integer, BidGroup>)
             ReflectionTestUtils.getField(marketManagerService, "supportingBidGroups");
     assertNotNull("supportingBidGroups", supportingBidGroups);
     assertEquals("supportingBidGroups.length", 0, supportingBidGroups.size());
@@ -279,6 +273,11 @@ public class MarketManagerTest {
     assertEquals("dpCache2013.bestActions", 0, dpCache2013.getBestActions().size());
     assertEquals("dpCache2013.stateValues", 0, dpCache2013.getStateValues().size());
     assertEquals("dpCache2013.valid(ts)", false, dpCache2013.isValid(currentTimeslot.getSerialNumber()));
+
+    IncrementalDPEngine dpEngine = 
+        (IncrementalDPEngine)
+            ReflectionTestUtils.getField(marketManagerService, "dpEngine");
+    assertNotNull("dpEngine", dpEngine);
      
     // map should be initialized to empty
     @SuppressWarnings("unchecked")
@@ -319,9 +318,9 @@ public class MarketManagerTest {
         -10, 
         1);
     marketManagerService.handleMessage(ttx1);
-    double[] actualUsage = (double[])
-    	ReflectionTestUtils.getField(marketManagerService, "actualUsage");
-    assertEquals("actualUsage[ts]", -10, actualUsage[ts], 1e-6);
+    WholesaleHistoryStore wholesaleHistory = (WholesaleHistoryStore)
+    	ReflectionTestUtils.getField(marketManagerService, "wholesaleHistory");
+    assertEquals("actualUsage[ts]", -10, wholesaleHistory.getActualUsage(ts), 1e-6);
     
     TariffTransaction ttx2 = new TariffTransaction(brokerContext.getBroker(), 
         ts, 
@@ -332,21 +331,86 @@ public class MarketManagerTest {
         -5, 
         1);
     marketManagerService.handleMessage(ttx2);
-    actualUsage = (double[])
-        ReflectionTestUtils.getField(marketManagerService, "actualUsage");
-    assertEquals("actualUsage[ts]", -15, actualUsage[ts], 1e-6);
+    assertEquals("actualUsage[ts]", -15, wholesaleHistory.getActualUsage(ts), 1e-6);
     
 
     // test: recording predicted usage
     when(portfolioManagerService.collectUsage(any(int.class))).thenReturn(20.0);
     when(portfolioManagerService.collectShiftedUsage(any(int.class), any(int.class))).thenReturn(20.0);
+    when(portfolioManagerService.collectShiftedUsage(any(int.class), any(int.class), any(int.class))).thenAnswer(new Answer<double[]>() {
+      @Override
+      public double[] answer (InvocationOnMock invocation)
+      {
+        double[] result = new double[(Integer)invocation.getArguments()[1]];
+        Arrays.fill(result, 20.0);
+        return result;
+      }
+    });
     marketManagerService.activate(ts);
     int firstEnabled = enabledTimeslots.get(0).getSerialNumber();
     int lastEnabled = enabledTimeslots.get(enabledTimeslots.size() - 1).getSerialNumber();    
-    double[][] predictedUsage = (double[][])
-    	ReflectionTestUtils.getField(marketManagerService, "predictedUsage");
-    assertEquals("predictedUsage[1][next]", -20, predictedUsage[0][firstEnabled], 1e-6);
-    assertEquals("predictedUsage[1][next]", -20, predictedUsage[1][lastEnabled], 1e-6);
+    assertEquals("predictedUsage[1][next]", -20, wholesaleHistory.getPredictedUsage(firstEnabled, 0), 1e-6);
+    assertEquals("predictedUsage[1][next]", -20, wholesaleHistory.getPredictedUsage(lastEnabled, 1), 1e-6);
+  }
+
+  /**
+   * when the batched shifted-usage prediction fails, timeslots are
+   * predicted one by one, falling back to unshifted usage
+   */
+  @Test
+  public void testShiftedUsageFallback () {
+    marketManagerService.initialize(brokerContext);
+    WholesaleHistoryStore wholesaleHistory = (WholesaleHistoryStore)
+        ReflectionTestUtils.getField(marketManagerService, "wholesaleHistory");
+    int ts = currentTimeslot.getSerialNumber();
+    final int firstEnabled = enabledTimeslots.get(0).getSerialNumber();
+    int lastEnabled = enabledTimeslots.get(enabledTimeslots.size() - 1).getSerialNumber();
+
+    when(portfolioManagerService.collectShiftedUsage(any(int.class), any(int.class), any(int.class)))
+        .thenThrow(new RuntimeException("batched prediction failed"));
+    when(portfolioManagerService.collectShiftedUsage(any(int.class), any(int.class))).thenAnswer(new Answer<Double>() {
+      @Override
+      public Double answer (InvocationOnMock invocation)
+      {
+        if (firstEnabled != (Integer)invocation.getArguments()[0]) {
+          throw new RuntimeException("prediction failed");
+        }
+        return 30.0;
+      }
+    });
+    when(portfolioManagerService.collectUsage(any(int.class))).thenReturn(20.0);
+    marketManagerService.activate(ts);
+    assertEquals("shifted usage of the first timeslot", -30, wholesaleHistory.getPredictedUsage(firstEnabled, 0), 1e-6);
+    assertEquals("unshifted usage of the last timeslot", -20, wholesaleHistory.getPredictedUsage(lastEnabled, 1), 1e-6);
+  }
+
+  /**
+   * usage history is bounded, and keeps working in long games
+   */
+  @Test
+  public void testUsageHistoryInLongGames () {
+    marketManagerService.initialize(brokerContext);
+    WholesaleHistoryStore wholesaleHistory = (WholesaleHistoryStore)
+        ReflectionTestUtils.getField(marketManagerService, "wholesaleHistory");
+    int capacity = wholesaleHistory.getCapacity();
+
+    TariffSpecification spec1 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+    CustomerInfo austin = new CustomerInfo("Austin", 3);
+    int ts = 3000; // beyond the previous fixed-size record
+    marketManagerService.handleMessage(new TariffTransaction(brokerContext.getBroker(), 
+        ts, TariffTransaction.Type.CONSUME, spec1, austin, 3, -10, 1));
+    assertEquals("actualUsage[ts]", -10, wholesaleHistory.getActualUsage(ts), 1e-6);
+
+    // a newer timeslot reuses the slot
+    marketManagerService.handleMessage(new TariffTransaction(brokerContext.getBroker(), 
+        ts + capacity, TariffTransaction.Type.CONSUME, spec1, austin, 3, -7, 1));
+    assertEquals("actualUsage[ts + capacity]", -7, wholesaleHistory.getActualUsage(ts + capacity), 1e-6);
+    assertEquals("actualUsage[ts] dropped", 0, wholesaleHistory.getActualUsage(ts), 1e-6);
+
+    // records of dropped timeslots are ignored
+    marketManagerService.handleMessage(new TariffTransaction(brokerContext.getBroker(), 
+        ts, TariffTransaction.Type.CONSUME, spec1, austin, 3, -5, 1));
+    assertEquals("actualUsage[ts + capacity] unchanged", -7, wholesaleHistory.getActualUsage(ts + capacity), 1e-6);
   }
 
   /**
@@ -467,8 +531,8 @@ public class MarketManagerTest {
 
     // test: trades are recorded
     @SuppressWarnings("unchecked")
-    TreeMap<Integer,ArrayList<PriceMwhPair>> supportingBidGroups = 
-        (TreeMap<Integer, ArrayList<PriceMwhPair>>)
+    TreeMap<Integer,BidGroup> supportingBidGroups = 
+        (TreeMap<Integer,BidGroup>)
             ReflectionTestUtils.getField(marketManagerService,
                 "supportingBidGroups");
     assertEquals("supportingBidGroups.size", 4, supportingBidGroups.size());
@@ -476,16 +540,18 @@ public class MarketManagerTest {
     assertEquals("supportingBidGroups.get(5).size", 1, supportingBidGroups.get(5).size());
     assertEquals("supportingBidGroups.get(6).size", 1, supportingBidGroups.get(6).size());
     assertEquals("supportingBidGroups.get(10).size", 2, supportingBidGroups.get(10).size());
-    assertEquals("supportingBidGroups(4,0).price", executionPrice, supportingBidGroups.get(4).get(0).getPricePerMwh(), 1e-6);
-    assertEquals("supportingBidGroups(5,0).price", executionPrice, supportingBidGroups.get(5).get(0).getPricePerMwh(), 1e-6);
-    assertEquals("supportingBidGroups(6,0).price", executionPrice, supportingBidGroups.get(6).get(0).getPricePerMwh(), 1e-6);
-    assertEquals("supportingBidGroups(10,0).price is lowest", executionPrice - 1, supportingBidGroups.get(10).get(0).getPricePerMwh(), 1e-6);
-    assertEquals("supportingBidGroups(10,1).price is higher", executionPrice + 1, supportingBidGroups.get(10).get(1).getPricePerMwh(), 1e-6);
-    assertEquals("supportingBidGroups(4,0).mwh", executionMWh, supportingBidGroups.get(4).get(0).getMwh(), 1e-6);
-    assertEquals("supportingBidGroups(5,0).mwh", executionMWh, supportingBidGroups.get(5).get(0).getMwh(), 1e-6);
-    assertEquals("supportingBidGroups(6,0).mwh", executionMWh, supportingBidGroups.get(6).get(0).getMwh(), 1e-6);
-    assertEquals("supportingBidGroups(10,0).mwh", executionMWh, supportingBidGroups.get(10).get(0).getMwh(), 1e-6);
-    assertEquals("supportingBidGroups(10,1).mwh", executionMWh, supportingBidGroups.get(10).get(1).getMwh(), 1e-6);
+    assertEquals("supportingBidGroups(4,0).price", executionPrice, supportingBidGroups.get(4).getPricePerMwh(0), 1e-6);
+    assertEquals("supportingBidGroups(5,0).price", executionPrice, supportingBidGroups.get(5).getPricePerMwh(0), 1e-6);
+    assertEquals("supportingBidGroups(6,0).price", executionPrice, supportingBidGroups.get(6).getPricePerMwh(0), 1e-6);
+    assertEquals("supportingBidGroups(10,0).price is lowest", executionPrice - 1, supportingBidGroups.get(10).getPricePerMwh(0), 1e-6);
+    assertEquals("supportingBidGroups(10,1).price is higher", executionPrice + 1, supportingBidGroups.get(10).getPricePerMwh(1), 1e-6);
+    assertEquals("supportingBidGroups(4,0).mwh", executionMWh, supportingBidGroups.get(4).getMwh(0), 1e-6);
+    assertEquals("supportingBidGroups(5,0).mwh", executionMWh, supportingBidGroups.get(5).getMwh(0), 1e-6);
+    assertEquals("supportingBidGroups(6,0).mwh", executionMWh, supportingBidGroups.get(6).getMwh(0), 1e-6);
+    assertEquals("supportingBidGroups(10,0).mwh", executionMWh, supportingBidGroups.get(10).getMwh(0), 1e-6);
+    assertEquals("supportingBidGroups(10,1).mwh", executionMWh, supportingBidGroups.get(10).getMwh(1), 1e-6);
+    assertEquals("supportingBidGroups(10).cumulative(1)", executionMWh, supportingBidGroups.get(10).getCumulativeMwh(1), 1e-6);
+    assertEquals("supportingBidGroups(10).total", 2 * executionMWh, supportingBidGroups.get(10).getTotalMwh(), 1e-6);
   }
 
   /**
@@ -1099,6 +1165,63 @@ public class MarketManagerTest {
 
   }
 
+  /**
+   * Test
+   */
+  @Test
+  public void test_RunDP2014IncrementalStages() {
+    marketManagerService.initialize(brokerContext);
+
+    ClearedTrade trade;
+    BalancingTransaction balanceTx;
+    Instant now = new Instant(null); 
+    Instant tradeCreationTime = now.plus(364 * TimeService.HOUR);
+    when(timeslotRepo.getTimeslotIndex(tradeCreationTime)).thenReturn(364);
+    // group 1: (10, 1), (20, 1)
+    trade = new ClearedTrade(364, 1, 10, tradeCreationTime); 
+    marketManagerService.handleMessage(trade);
+    trade = new ClearedTrade(364, 1, 20, tradeCreationTime); 
+    marketManagerService.handleMessage(trade);
+    // group 2: (10, 1), (20, 1)
+    trade = new ClearedTrade(365, 1, 10, tradeCreationTime); 
+    marketManagerService.handleMessage(trade);
+    trade = new ClearedTrade(365, 1, 20, tradeCreationTime); 
+    marketManagerService.handleMessage(trade);
+    // -20/Mwh for balancing
+    balanceTx  = new BalancingTransaction(thebroker, 364, -1000, -20); 
+    marketManagerService.handleMessage(balanceTx);
+
+    IncrementalDPEngine dpEngine = 
+        (IncrementalDPEngine)
+            ReflectionTestUtils.getField(marketManagerService, "dpEngine");
+
+    double neededMwh = 10; // not used
+    int currentTimeslotIndex = 369;
+    DPResult dpResult = marketManagerService.runDP2014(371, neededMwh, currentTimeslotIndex);
+    // V(1) = 1/2 x -10 + 1/2 x -20 = -15
+    // V(2) = 1/2 x -10 + 1/2 x -15 = -12.5
+    assertEquals("V(1)", -15, dpResult.getStateValues().get(1), 1e-6);
+    assertEquals("V(2)", -12.5, dpResult.getStateValues().get(2), 1e-6);
+    assertEquals("solved stages", 2, dpEngine.getNumSolvedStages());
+
+    // same inputs for another target timeslot => stage 1 is reused
+    dpResult = marketManagerService.runDP2014(370, neededMwh, currentTimeslotIndex);
+    assertEquals("V(1) reused", -15, dpResult.getStateValues().get(1), 1e-6);
+    assertEquals("solved stages after reuse", 2, dpEngine.getNumSolvedStages());
+    assertEquals("reused stages", 1, dpEngine.getNumReusedStages());
+
+    // a new trade in group 1 invalidates stage 1 (and therefore 2)
+    // group 1: (10, 1), (20, 2)
+    trade = new ClearedTrade(364, 1, 20, tradeCreationTime); 
+    marketManagerService.handleMessage(trade);
+    dpResult = marketManagerService.runDP2014(371, neededMwh, currentTimeslotIndex);
+    // V(1) = 1/3 x -10 + 2/3 x -20 = -16.666666
+    // V(2) = 1/2 x -10 + 1/2 x -16.666666 = -13.333333
+    assertEquals("V(1) after trade", -16.666666, dpResult.getStateValues().get(1), 1e-6);
+    assertEquals("V(2) after trade", -13.333333, dpResult.getStateValues().get(2), 1e-6);
+    assertEquals("solved stages after trade", 4, dpEngine.getNumSolvedStages());
+  }
+
   /**
    * Test
    */
@@ -0,0 +1,136 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.Rate;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.enumerations.PowerType;
+
+import edu.utexas.cs.tactex.interfaces.TariffUtilityEstimate;
+import edu.utexas.cs.tactex.tariffoptimization.OptimizerWrapperLBFGS;
+
+
+public class OptimizerWrapperLBFGSTest {
+
+  private static final int NUM_RATES = 24;
+  private static final double OPTIMUM = 1000;
+
+  private Broker broker;
+  // a concave quadratic, with different curvatures per rate
+  private double[] center;
+  private double[] curvature;
+  private int numValues;
+
+
+  @Before
+  public void setUp () {
+    broker = new Broker("mybroker");
+    center = new double[NUM_RATES];
+    curvature = new double[NUM_RATES];
+    for (int h = 0; h < NUM_RATES; ++h) {
+      center[h] = 0.02 * Math.sin(h);
+      curvature[h] = 1e5 * (1 + h % 4);
+    }
+    numValues = 0;
+  }
+
+
+  private TariffUtilityEstimate createQuadratic() {
+    return new TariffUtilityEstimate() {
+      @Override
+      public double value(double[] point) {
+        ++numValues;
+        double result = OPTIMUM;
+        for (int h = 0; h < NUM_RATES; ++h) {
+          double d = point[h] - center[h];
+          result -= curvature[h] * d * d;
+        }
+        return result;
+      }
+
+      @Override
+      public double[] gradient(double[] point) {
+        double[] result = new double[NUM_RATES];
+        for (int h = 0; h < NUM_RATES; ++h) {
+          result[h] = -2 * curvature[h] * (point[h] - center[h]);
+        }
+        return result;
+      }
+
+      @Override
+      public TariffSpecification getCorrespondingSpec(double[] point) {
+        TariffSpecification spec = new TariffSpecification(broker, PowerType.CONSUMPTION);
+        for (int h = 0; h < NUM_RATES; ++h) {
+          spec.addRate(new Rate().withValue(-0.1 + point[h]).withDailyBegin(h).withDailyEnd(h));
+        }
+        return spec;
+      }
+    };
+  }
+
+
+  @Test
+  public void testFindOptimum () {
+    TariffUtilityEstimate quadratic = createQuadratic();
+    double start = quadratic.value(new double[NUM_RATES]);
+    numValues = 0;
+
+    TreeMap<Double, TariffSpecification> result =
+        new OptimizerWrapperLBFGS().findOptimum(quadratic, NUM_RATES, 1000);
+
+    assertFalse("evaluated tariffs", result.isEmpty());
+    assertTrue("improved", result.lastKey() > start);
+    assertEquals("optimum", OPTIMUM, result.lastKey(), 1e-3 * (OPTIMUM - start));
+    assertEquals("TOU tariff", NUM_RATES, result.lastEntry().getValue().getRates().size());
+    assertTrue("evaluations bounded", numValues <= 70);
+  }
+
+
+  @Test
+  public void testEvaluationBudget () {
+    TariffUtilityEstimate quadratic = createQuadratic();
+    new OptimizerWrapperLBFGS().findOptimum(quadratic, NUM_RATES, 10);
+    assertTrue("evaluations bounded by numEval", numValues <= 10);
+  }
+
+
+  /**
+   * At the optimum there is no ascent direction, only the starting point
+   * is evaluated
+   */
+  @Test
+  public void testStartAtOptimum () {
+    for (int h = 0; h < NUM_RATES; ++h) {
+      center[h] = 0;
+    }
+    TreeMap<Double, TariffSpecification> result =
+        new OptimizerWrapperLBFGS().findOptimum(createQuadratic(), NUM_RATES, 1000);
+    assertEquals("one evaluation", 1, numValues);
+    assertEquals("starting point", OPTIMUM, result.lastKey(), 0);
+  }
+}
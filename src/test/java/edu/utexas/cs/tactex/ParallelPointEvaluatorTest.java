@@ -0,0 +1,206 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.Rate;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.enumerations.PowerType;
+
+import edu.utexas.cs.tactex.interfaces.OptimizerWrapper;
+import edu.utexas.cs.tactex.interfaces.TariffUtilityEstimate;
+import edu.utexas.cs.tactex.tariffoptimization.OptimizerWrapperCoordinateAscent;
+import edu.utexas.cs.tactex.tariffoptimization.OptimizerWrapperGradientAscent;
+import edu.utexas.cs.tactex.tariffoptimization.ParallelPointEvaluator;
+
+
+public class ParallelPointEvaluatorTest {
+
+  private static final int NUM_RATES = 24;
+  private static final int NUM_EVAL = 1000;
+  private static final double OPTIMUM = 1000;
+
+  private Broker broker;
+  // a concave quadratic, with different centers and curvatures per rate
+  private double[] center;
+  private double[] curvature;
+  private ParallelPointEvaluator sequential;
+  private ParallelPointEvaluator parallel;
+
+
+  @Before
+  public void setUp () {
+    broker = new Broker("mybroker");
+    center = new double[NUM_RATES];
+    curvature = new double[NUM_RATES];
+    for (int h = 0; h < NUM_RATES; ++h) {
+      center[h] = 0.02 * Math.sin(h);
+      curvature[h] = 1e5 * (1 + h % 4);
+    }
+    sequential = new ParallelPointEvaluator(1);
+    parallel = new ParallelPointEvaluator(4);
+  }
+
+
+  @After
+  public void tearDown () {
+    sequential.shutdown();
+    parallel.shutdown();
+  }
+
+
+  private TariffUtilityEstimate createQuadratic() {
+    return new TariffUtilityEstimate() {
+      @Override
+      public double value(double[] point) {
+        double result = OPTIMUM;
+        for (int h = 0; h < NUM_RATES; ++h) {
+          double d = point[h] - center[h];
+          result -= curvature[h] * d * d;
+        }
+        return result;
+      }
+
+      @Override
+      public double[] gradient(double[] point) {
+        double[] result = new double[NUM_RATES];
+        for (int h = 0; h < NUM_RATES; ++h) {
+          result[h] = -2 * curvature[h] * (point[h] - center[h]);
+        }
+        return result;
+      }
+
+      @Override
+      public TariffSpecification getCorrespondingSpec(double[] point) {
+        TariffSpecification spec = new TariffSpecification(broker, PowerType.CONSUMPTION);
+        for (int h = 0; h < NUM_RATES; ++h) {
+          spec.addRate(new Rate().withValue(-0.1 + point[h]).withDailyBegin(h).withDailyEnd(h));
+        }
+        return spec;
+      }
+    };
+  }
+
+
+  @Test
+  public void testValuesInPointOrder () {
+    TariffUtilityEstimate quadratic = createQuadratic();
+    List<double[]> points = new ArrayList<double[]>();
+    double[] expected = new double[50];
+    for (int i = 0; i < expected.length; ++i) {
+      double[] point = new double[NUM_RATES];
+      point[i % NUM_RATES] = 0.001 * i;
+      points.add(point);
+      expected[i] = quadratic.value(point);
+    }
+    assertArrayEquals("sequential", expected, sequential.evaluate(quadratic, points), 0);
+    assertArrayEquals("parallel", expected, parallel.evaluate(quadratic, points), 0);
+  }
+
+
+  @Test
+  public void testGradientAscentSearchUnchanged () {
+    assertSameSearch(new OptimizerWrapperGradientAscent(sequential),
+                     new OptimizerWrapperGradientAscent(parallel));
+  }
+
+
+  @Test
+  public void testCoordinateAscentSearchUnchanged () {
+    assertSameSearch(new OptimizerWrapperCoordinateAscent(sequential),
+                     new OptimizerWrapperCoordinateAscent(parallel));
+  }
+
+
+  /**
+   * A failing evaluation on a worker fails the caller with its exception
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testWorkerExceptionReachesCaller () {
+    final TariffUtilityEstimate quadratic = createQuadratic();
+    TariffUtilityEstimate failing = new TariffUtilityEstimate() {
+      @Override
+      public double value(double[] point) {
+        if (point[0] > 0) {
+          throw new IllegalArgumentException("failing point");
+        }
+        return quadratic.value(point);
+      }
+
+      @Override
+      public double[] gradient(double[] point) {
+        return quadratic.gradient(point);
+      }
+
+      @Override
+      public TariffSpecification getCorrespondingSpec(double[] point) {
+        return quadratic.getCorrespondingSpec(point);
+      }
+    };
+    List<double[]> points = new ArrayList<double[]>();
+    for (int i = 0; i < 8; ++i) {
+      double[] point = new double[NUM_RATES];
+      point[0] = i == 5 ? 0.01 : 0;
+      point[1] = 0.001 * i;
+      points.add(point);
+    }
+    parallel.evaluate(failing, points);
+  }
+
+
+  /**
+   * the same evaluated values, and the same optimum, with 1 or more threads
+   */
+  private void assertSameSearch(OptimizerWrapper withOneThread, OptimizerWrapper withThreads) {
+    TreeMap<Double, TariffSpecification> expected =
+        withOneThread.findOptimum(createQuadratic(), NUM_RATES, NUM_EVAL);
+    TreeMap<Double, TariffSpecification> actual =
+        withThreads.findOptimum(createQuadratic(), NUM_RATES, NUM_EVAL);
+
+    assertTrue("evaluated tariffs", expected.size() > 0);
+    assertEquals("evaluated values", expected.keySet(), actual.keySet());
+    Entry<Double, TariffSpecification> expectedOptimum = expected.lastEntry();
+    Entry<Double, TariffSpecification> actualOptimum = actual.lastEntry();
+    assertEquals("optimum", expectedOptimum.getKey(), actualOptimum.getKey());
+    assertArrayEquals("optimum rates",
+        rateValues(expectedOptimum.getValue()), rateValues(actualOptimum.getValue()), 0);
+  }
+
+
+  private double[] rateValues(TariffSpecification spec) {
+    List<Rate> rates = spec.getRates();
+    double[] result = new double[rates.size()];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = rates.get(i).getValue();
+    }
+    return result;
+  }
+}
@@ -69,8 +69,8 @@ import org.springframework.test.util.ReflectionTestUtils;
 import edu.utexas.cs.tactex.ConfiguratorFactoryService;
 import edu.utexas.cs.tactex.PortfolioManagerService;
 import edu.utexas.cs.tactex.TariffRepoMgrService;
-import edu.utexas.cs.tactex.PortfolioManagerService.CustomerRecord;
 import edu.utexas.cs.tactex.core.PowerTacBroker;
+import edu.utexas.cs.tactex.utils.PortfolioRecordStore;
 
 /**
  * @author jcollins
@@ -185,9 +185,8 @@ public class PortfolioManagerTest
      
     // initialize with arbitrary values
     
-    ReflectionTestUtils.setField(portfolioManagerService,"customerProfiles", null);
-    ReflectionTestUtils.setField(portfolioManagerService,"customerProfilesByPowerType", null);
-    ReflectionTestUtils.setField(portfolioManagerService,"customerSubscriptions", null);
+    ReflectionTestUtils.setField(portfolioManagerService,"customerRecords", null);
+    ReflectionTestUtils.setField(portfolioManagerService,"subscriptionsSnapshot", null);
     ReflectionTestUtils.setField(portfolioManagerService,"competingTariffs", null);
     ReflectionTestUtils.setField(portfolioManagerService,"bootstrapTimeSlotNum", 1234);
     ReflectionTestUtils.setField(portfolioManagerService,"gameStart", false);
@@ -198,23 +197,18 @@ public class PortfolioManagerTest
 
     // maps should be initialized to empty
     //
-    HashMap<CustomerInfo, CustomerRecord> customerProfiles = 
-        (HashMap<CustomerInfo, CustomerRecord>) 
-            ReflectionTestUtils.getField(portfolioManagerService, "customerProfiles");
-    assertNotNull("customerProfiles", customerProfiles);
-    assertEquals("customerProfiles.length", 0, customerProfiles.size());
-    
-    HashMap<PowerType, HashMap<CustomerInfo, CustomerRecord>> customerProfilesByPowerType = 
-        (HashMap<PowerType, HashMap<CustomerInfo, CustomerRecord>>) 
-            ReflectionTestUtils.getField(portfolioManagerService, "customerProfilesByPowerType");
-    assertNotNull("customerProfilesByPowerType", customerProfilesByPowerType);
-    assertEquals("customerProfilesByPowerType.length", 0, customerProfilesByPowerType.size());
-
-    HashMap<TariffSpecification, HashMap<CustomerInfo, CustomerRecord>> customerSubscriptions = 
-      (HashMap<TariffSpecification, HashMap<CustomerInfo, CustomerRecord>>)
-          ReflectionTestUtils.getField(portfolioManagerService, "customerSubscriptions");
-    assertNotNull("customerSubscriptions", customerSubscriptions);
-    assertEquals("customerSubscriptions.length", 0, customerSubscriptions.size());
+    PortfolioRecordStore customerRecords = 
+        (PortfolioRecordStore) 
+            ReflectionTestUtils.getField(portfolioManagerService, "customerRecords");
+    assertNotNull("customerRecords", customerRecords);
+    assertEquals("customerRecords.getNumRows()", 0, customerRecords.getNumRows());
+    assertEquals("customerRecords.getNumTariffs()", 0, customerRecords.getNumTariffs());
+
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> subscriptionsSnapshot = 
+        (HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>>) 
+            ReflectionTestUtils.getField(portfolioManagerService, "subscriptionsSnapshot");
+    assertNotNull("subscriptionsSnapshot", subscriptionsSnapshot);
+    assertEquals("subscriptionsSnapshot.size()", 0, subscriptionsSnapshot.size());
 
     HashMap<PowerType, List<TariffSpecification>> competingTariffs = 
       (HashMap<PowerType, List<TariffSpecification>>)
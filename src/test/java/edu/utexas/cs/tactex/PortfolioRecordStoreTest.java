@@ -0,0 +1,199 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.enumerations.PowerType;
+
+import edu.utexas.cs.tactex.utils.PortfolioRecordStore;
+
+
+public class PortfolioRecordStoreTest {
+
+  private static final int RECORD_LENGTH = 24;
+  private static final double ALPHA = 0.3;
+
+  private PortfolioRecordStore store;
+  private CustomerInfo austin;
+  private CustomerInfo dallas;
+  private TariffSpecification spec1;
+  private TariffSpecification spec2;
+  private TariffSpecification spec3;
+
+
+  @Before
+  public void setUp () {
+    store = new PortfolioRecordStore(RECORD_LENGTH, ALPHA);
+    Broker broker = new Broker("mybroker");
+    austin = new CustomerInfo("Austin", 10).withPowerType(PowerType.CONSUMPTION);
+    dallas = new CustomerInfo("Dallas", 20).withPowerType(PowerType.CONSUMPTION);
+    spec1 = new TariffSpecification(broker, PowerType.CONSUMPTION);
+    spec2 = new TariffSpecification(broker, PowerType.CONSUMPTION);
+    spec3 = new TariffSpecification(broker, PowerType.CONSUMPTION);
+  }
+
+
+  private int getTariffRow(TariffSpecification spec, CustomerInfo customer) {
+    int general = store.getGeneralRow(customer);
+    int powerType = store.getPowerTypeRow(spec.getPowerType(), customer, general);
+    return store.getTariffRow(spec, customer, powerType);
+  }
+
+
+  @Test
+  public void testAdd () {
+    assertEquals("no rows", 0, store.getNumRows());
+    int general = store.getGeneralRow(austin);
+    assertEquals("same general row", general, store.getGeneralRow(austin));
+    store.produceConsume(general, 20, 2, 5, false);
+    assertEquals("per customer usage", 10, store.getUsageArray(general, false)[5], 1e-9);
+
+    assertEquals("no power type row", -1, store.findPowerTypeRow(PowerType.CONSUMPTION, austin));
+    int powerType = store.getPowerTypeRow(PowerType.CONSUMPTION, austin, general);
+    assertEquals("found", powerType, store.findPowerTypeRow(PowerType.CONSUMPTION, austin));
+    assertEquals("seeded by the general row", 10, store.getUsageArray(powerType, false)[5], 1e-9);
+    assertTrue("power types", store.getPowerTypes().contains(PowerType.CONSUMPTION));
+
+    int row1 = store.getTariffRow(spec1, austin, powerType);
+    assertEquals("found", row1, store.findTariffRow(spec1, austin));
+    assertEquals("not found", -1, store.findTariffRow(spec1, dallas));
+    assertEquals("tariffs", 1, store.getNumTariffs());
+    assertEquals("rows", 3, store.getNumRows());
+    assertEquals("customer", austin, store.getCustomer(row1));
+
+    store.signup(row1, 4);
+    assertEquals("subscribed", 4, store.getSubscribedPopulation(row1));
+    store.signup(row1, 100);
+    assertEquals("bounded by the population", 10, store.getSubscribedPopulation(row1));
+    store.withdraw(row1, 3);
+    assertEquals("withdrawn", 7, store.getSubscribedPopulation(row1));
+
+    store.produceConsume(row1, 14, 7, 5, true);
+    assertEquals("smoothed usage", ALPHA * 2 + (1 - ALPHA) * 10, store.getUsageArray(row1, false)[5], 1e-9);
+    assertEquals("fixed usage", 2, store.getUsageArray(row1, true)[5], 1e-9);
+    assertEquals("usage of the subscribed", 7 * (ALPHA * 2 + (1 - ALPHA) * 10), store.getUsage(row1, 5, false), 1e-9);
+    assertEquals("next week, same slot", store.getUsage(row1, 5, false), store.getUsage(row1, 5 + RECORD_LENGTH, false), 0);
+    assertEquals("only tariff records are collected", store.getUsage(row1, 5, false), store.collectUsage(5), 1e-9);
+  }
+
+
+  @Test
+  public void testRemove () {
+    int row1 = getTariffRow(spec1, austin);
+    int row2 = getTariffRow(spec2, austin);
+    store.signup(row1, 2);
+    store.signup(row2, 3);
+    store.produceConsume(row1, 2, 2, 0, false);
+    store.produceConsume(row2, 6, 3, 0, false);
+    int numRows = store.getNumRows();
+    int generation1 = store.getGeneration(row1);
+
+    store.removeTariff(spec1);
+    assertEquals("tariffs", 1, store.getNumTariffs());
+    assertEquals("rows", numRows - 1, store.getNumRows());
+    assertEquals("removed", -1, store.findTariffRow(spec1, austin));
+    assertEquals("other tariff kept", row2, store.findTariffRow(spec2, austin));
+    assertEquals("removed usage not collected", 3 * 2, store.collectUsage(0), 1e-9);
+    assertFalse("subscriptions", store.getSubscriptions(null).containsKey(spec1));
+    try {
+      store.checkGeneration(row1, generation1);
+      fail("a view of a removed record is invalid");
+    }
+    catch (IllegalStateException e) {
+      // expected
+    }
+    store.checkGeneration(row2, store.getGeneration(row2));
+
+    // removing again does nothing
+    store.removeTariff(spec1);
+    assertEquals("tariffs", 1, store.getNumTariffs());
+  }
+
+
+  @Test
+  public void testReuse () {
+    int row1 = getTariffRow(spec1, austin);
+    int row2 = getTariffRow(spec2, dallas);
+    store.signup(row1, 2);
+    store.signup(row2, 5);
+    int generation1 = store.getGeneration(row1);
+    int numRows = store.getNumRows();
+
+    // the first tariff's id is taken over by the last one
+    store.removeTariff(spec1);
+    assertEquals("moved tariff found", row2, store.findTariffRow(spec2, dallas));
+    assertEquals("moved tariff's subscriptions", 5,
+        (int) store.getSubscriptions(PowerType.CONSUMPTION).get(spec2).get(dallas));
+
+    // a new record reuses the freed row, as a fresh record
+    int row3 = getTariffRow(spec3, dallas);
+    assertEquals("row reused", row1, row3);
+    assertEquals("no new rows", numRows, store.getNumRows());
+    assertEquals("customer", dallas, store.getCustomer(row3));
+    assertEquals("not subscribed", 0, store.getSubscribedPopulation(row3));
+    try {
+      store.checkGeneration(row1, generation1);
+      fail("an old view does not alias the new record");
+    }
+    catch (IllegalStateException e) {
+      // expected
+    }
+    store.checkGeneration(row3, store.getGeneration(row3));
+
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> subscriptions =
+        store.getSubscriptions(null);
+    assertEquals("tariffs", 2, subscriptions.size());
+    assertEquals("spec2", 5, (int) subscriptions.get(spec2).get(dallas));
+    assertEquals("spec3", 0, (int) subscriptions.get(spec3).get(dallas));
+  }
+
+
+  @Test
+  public void testSnapshots () {
+    int row1 = getTariffRow(spec1, austin);
+    store.signup(row1, 2);
+    store.produceConsume(row1, 4, 2, 3, false);
+
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> snapshot =
+        store.getSubscriptions(null);
+    double[] usage = store.getUsageArray(row1, false);
+    assertNotSame("usage copied", usage, store.getUsageArray(row1, false));
+
+    store.signup(row1, 3);
+    store.produceConsume(row1, 50, 5, 3, false);
+    getTariffRow(spec2, austin);
+    store.removeTariff(spec1);
+
+    assertEquals("snapshot tariffs unchanged", 1, snapshot.size());
+    assertEquals("snapshot subscriptions unchanged", 2, (int) snapshot.get(spec1).get(austin));
+    assertEquals("usage copy unchanged", 2, usage[3], 1e-9);
+  }
+}
@@ -21,7 +21,14 @@ package edu.utexas.cs.tactex;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
@@ -34,6 +41,9 @@ import java.util.TreeSet;
 import org.ejml.simple.SimpleMatrix;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powertac.common.Broker;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.Rate;
@@ -43,6 +53,7 @@ import org.springframework.test.util.ReflectionTestUtils;
 
 import edu.utexas.cs.tactex.ConfiguratorFactoryService;
 import edu.utexas.cs.tactex.core.PowerTacBroker;
+import edu.utexas.cs.tactex.interfaces.CandidateTariffSubsPredictor;
 import edu.utexas.cs.tactex.subscriptionspredictors.RegressionBasedMigrationPredictor;
 
 public class RegressionBasedMigrationPredictorTest {
@@ -285,6 +296,75 @@ public class RegressionBasedMigrationPredictorTest {
     assertEquals("original customers for each spec are multiplied by 18/(18+17) + accumulatedFraction", 9.257142857142856, predictedSubscriptions.get(customer).get(myspec2), 1e-6);
     assertEquals("number of customers for candidate is extrapolated by -1 and multiplied by 18/(18+17)", 8.742857142857142, predictedSubscriptions.get(customer).get(candidateSpec), 1e-6);
   }
-  
 
+
+  /**
+   * testing that evaluateTariffs() runs the regression once per customer
+   * and timeslot, for all of the customer's candidates
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void test_evaluateTariffsBatchesCandidates() {
+    CustomerInfo customer = new CustomerInfo("Austin", 100).withPowerType(PowerType.CONSUMPTION);
+    CandidateTariffSubsPredictor subsPredictor = mock(CandidateTariffSubsPredictor.class);
+    when(configuratorFactoryService.isUseLWR()).thenReturn(true);
+    when(configuratorFactoryService.getCandidateTariffSubsPredictor()).thenReturn(subsPredictor);
+    // predicts 10 * evaluation
+    when(subsPredictor.predictNumSubs(any(double[].class), any(TreeMap.class), eq(customer), anyInt())).thenAnswer(
+        new Answer<Double[]>() {
+      @Override
+      public Double[] answer(InvocationOnMock invocation) {
+        double[] evals = (double[]) invocation.getArguments()[0];
+        Double[] result = new Double[evals.length];
+        for (int i = 0; i < evals.length; ++i) {
+          result[i] = 10 * evals[i];
+        }
+        return result;
+      }
+    });
+
+    // subscriptions at normalized evaluations 0, 0.2, 0.4
+    TariffSpecification spec1 = new TariffSpecification(thebroker, PowerType.CONSUMPTION);
+    TariffSpecification spec2 = new TariffSpecification(thebroker, PowerType.CONSUMPTION);
+    HashMap<TariffSpecification, Integer> tariff2subscriptions = new HashMap<TariffSpecification, Integer>();
+    tariff2subscriptions.put(defaultConsumptionSpec, 50);
+    tariff2subscriptions.put(spec1, 30);
+    tariff2subscriptions.put(spec2, 20);
+    HashMap<TariffSpecification, Double> allTariff2Evaluations = new HashMap<TariffSpecification, Double>();
+    allTariff2Evaluations.put(defaultConsumptionSpec, -50.0);
+    allTariff2Evaluations.put(spec1, -40.0);
+    allTariff2Evaluations.put(spec2, -30.0);
+    // candidates at normalized evaluations 0.5, 0.6, 0.8
+    TariffSpecification[] candidates = new TariffSpecification[3];
+    double[] charges = {-25.0, -20.0, -10.0};
+    for (int i = 0; i < candidates.length; ++i) {
+      candidates[i] = new TariffSpecification(thebroker, PowerType.CONSUMPTION);
+      allTariff2Evaluations.put(candidates[i], charges[i]);
+    }
+    // not a candidate of a consumption customer
+    allTariff2Evaluations.put(defaultProductionSpec, 0.0);
+
+    int timeslot = 400;
+    for (int i = 0; i < candidates.length; ++i) {
+      HashMap<TariffSpecification, Double> result = regressionBasedMigrationPredictor.evaluateTariffs(
+          tariff2subscriptions, defaultConsumptionSpec, allTariff2Evaluations,
+          new ArrayList<TariffSpecification>(), customer, candidates[i], timeslot);
+      // predicted 10 * evaluation, normalized by 100 / (100 + predicted)
+      double predicted = 10 * (50 + charges[i]) / 50;
+      assertEquals("candidate " + i, predicted * 100 / (100 + predicted), result.get(candidates[i]), 1.0);
+    }
+    ArgumentCaptor<double[]> evals = ArgumentCaptor.forClass(double[].class);
+    verify(subsPredictor, times(1)).predictNumSubs(evals.capture(), any(TreeMap.class), eq(customer), eq(timeslot));
+    verify(subsPredictor, never()).predictNumSubs(anyDouble(), any(TreeMap.class), any(CustomerInfo.class), anyInt());
+    assertEquals("all candidates", 3, evals.getValue().length);
+    assertEquals("candidate 0", 0.5, evals.getValue()[0], 1e-6);
+    assertEquals("candidate 1", 0.6, evals.getValue()[1], 1e-6);
+    assertEquals("candidate 2", 0.8, evals.getValue()[2], 1e-6);
+
+    // predicted again in the next timeslot
+    regressionBasedMigrationPredictor.evaluateTariffs(
+        tariff2subscriptions, defaultConsumptionSpec, allTariff2Evaluations,
+        new ArrayList<TariffSpecification>(), customer, candidates[0], timeslot + 1);
+    verify(subsPredictor, times(1)).predictNumSubs(any(double[].class), any(TreeMap.class), eq(customer), eq(timeslot + 1));
+  }
 }
@@ -28,7 +28,10 @@ import org.ejml.simple.SimpleMatrix;
 import org.junit.Before;
 import org.junit.Test;
 
+import edu.utexas.cs.tactex.utils.CompiledLinRegModel;
+import edu.utexas.cs.tactex.utils.NativeRidgeRegression;
 import edu.utexas.cs.tactex.utils.RegressionUtils;
+import edu.utexas.cs.tactex.utils.SlidingWindowLinReg;
 import weka.classifiers.functions.LinearRegression;
 import weka.core.Attribute;
 import weka.core.DenseInstance;
@@ -528,6 +531,111 @@ public class RegressionUtilsTest {
 
   }
 
+  /**
+   * test closed-form leave-one-out and coefficients of the native ridge
+   * regression against weka's (same data as the tests above)
+   */
+  @Test
+  public void testNativeRidgeRegression() {
+    double[][] triangleX = new double[][] {{0}, {0.7071067811865476}, {1.4142135623730951}};
+    double[] triangleY = new double[] {1, 1.7071067811865476, 1};
+    NativeRidgeRegression triangle = new NativeRidgeRegression(triangleX, triangleY);
+    assertEquals("mse triangle", (2 + 0.5 + 2) / 3, triangle.leaveOneOutError(0), 1e-6);
+
+    NativeRidgeRegression ridge = RegressionUtils.createNativeRidgeRegression(Xy_polynorm);
+    assertEquals("numInstances", Xy_polynorm.numInstances(), ridge.getNumInstances());
+    // lambda = 0 is identical to the weka fold-by-fold loop
+    assertEquals("mse lambda = 0", 5.054484932007508, ridge.leaveOneOutError(0), 1e-6);
+    Double[] mses = ridge.leaveOneOutErrors(Arrays.asList(0.0, 1.0));
+    assertEquals("mses.length", 2, mses.length);
+    assertEquals("mses[0]", 5.054484932007508, mses[0], 1e-6);
+    assertEquals("mses[1]", ridge.leaveOneOutError(1), mses[1], 1e-12);
+
+    // features (without y) + icpt
+    double[] theta = ridge.coefficients(0);
+    assertEquals("theta.length", 8 + 1, theta.length);
+    assertEquals("lambda=0, theta[0]",  9.5373, theta[0], 1e-4);
+    assertEquals("lambda=0, theta[1]",  18.9855, theta[1], 1e-4);
+    assertEquals("lambda=0, theta[2]",  30.2161, theta[2], 1e-3);
+    assertEquals("lambda=0, theta[3]", -28.4494, theta[3], 1e-4);
+    assertEquals("lambda=0, theta[4]", -77.7818, theta[4], 1e-3);
+    assertEquals("lambda=0, theta[5]",  7.0729, theta[5], 1e-4);
+    assertEquals("lambda=0, theta[6]",  63.3852, theta[6], 1e-3);
+    assertEquals("lambda=0, theta[7]",  21.5565, theta[7], 1e-3);
+    assertEquals("lambda=0, intercept", 11.2176, theta[8], 1e-4);
+
+    double[] theta100 = ridge.coefficients(100);
+    assertEquals("lambda=100, theta[0]", 0.964209, theta100[0], 1e-4);
+    assertEquals("lambda=100, theta[1]", 0.322966, theta100[1], 1e-4);
+    assertEquals("lambda=100, theta[2]", 0.747428, theta100[2], 1e-4);
+    assertEquals("lambda=100, theta[3]", 0.144230, theta100[3], 1e-4);
+    assertEquals("lambda=100, theta[4]", 0.555808, theta100[4], 1e-4);
+    assertEquals("lambda=100, theta[5]", 0.020283, theta100[5], 1e-4);
+    assertEquals("lambda=100, theta[6]", 0.418693, theta100[6], 1e-4);
+    assertEquals("lambda=100, theta[7]", -0.058004, theta100[7], 1e-4);
+    assertEquals("lambda=100, intercept", 11.217589, theta100[8], 1e-4);
+  }
+
+
+  /**
+   * test the sliding-window statistics fit the same model as a 
+   * regression on the examples currently in the window
+   */
+  @Test
+  public void testSlidingWindowLinReg() {
+    int windowLength = 5;
+    SlidingWindowLinReg window = new SlidingWindowLinReg(windowLength);
+    assertNull("no data, no model", window.fit(0));
+
+    // one permanent example, and timeslots 0..9 through the window
+    window.addPermanentExample(new double[] {3, 1}, 4);
+    double[][] X = new double[10][];
+    double[] y = new double[10];
+    for (int ts = 0; ts < 10; ++ts) {
+      X[ts] = new double[] {ts, (ts * 7) % 4};
+      y[ts] = 1 + 2 * X[ts][0] - X[ts][1] + ((ts % 3) - 1) * 0.5;
+      window.forgetBefore(ts - windowLength + 1);
+      window.addExample(ts, X[ts], y[ts]);
+    }
+    assertEquals("numWindowExamples", windowLength, window.getNumWindowExamples());
+    assertEquals("numExamples", windowLength + 1, window.getNumExamples());
+    assertTrue("contains 9", window.containsExample(9));
+    assertFalse("evicted 4", window.containsExample(4));
+
+    // replacing a timeslot's example doesn't add one
+    window.addExample(9, X[9], y[9]);
+    assertEquals("numExamples after replace", windowLength + 1, window.getNumExamples());
+
+    // same data, fit in batch
+    double[][] Xbatch = new double[windowLength + 1][];
+    double[] ybatch = new double[windowLength + 1];
+    Xbatch[0] = new double[] {3, 1};
+    ybatch[0] = 4;
+    for (int i = 1; i <= windowLength; ++i) {
+      Xbatch[i] = X[4 + i];
+      ybatch[i] = y[4 + i];
+    }
+    NativeRidgeRegression batch = new NativeRidgeRegression(Xbatch, ybatch);
+    for (double lambda : new double[] {0, 0.1, 10}) {
+      double[] theta = batch.coefficients(lambda);
+      CompiledLinRegModel model = window.fit(lambda);
+      assertEquals("lambda " + lambda + " weight 0", theta[0], model.getWeight(0), 1e-6);
+      assertEquals("lambda " + lambda + " weight 1", theta[1], model.getWeight(1), 1e-6);
+      assertEquals("lambda " + lambda + " intercept", theta[2], model.getIntercept(), 1e-6);
+    }
+
+    // fitting with candidates chooses one of them
+    CompiledLinRegModel best = window.fit(Arrays.asList(0.0, 0.1, 10.0));
+    assertNotNull("best model", best);
+    assertNotNull("gcv", window.generalizedCrossValidationError(0.1));
+
+    // everything left the window
+    window.forgetBefore(100);
+    assertEquals("only permanent left", 1, window.getNumExamples());
+    assertNull("cannot fit one example", window.fit(0));
+  }
+
+
   // ------------- initialization methods ---------------
   private void init_Xy() {
     ArrayList<Attribute> attributes = new ArrayList<Attribute>();
@@ -0,0 +1,556 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powertac.common.Broker;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.Rate;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.enumerations.PowerType;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import edu.utexas.cs.tactex.interfaces.ChargeEstimator;
+import edu.utexas.cs.tactex.interfaces.ContextManager;
+import edu.utexas.cs.tactex.interfaces.CostCurvesPredictor;
+import edu.utexas.cs.tactex.interfaces.MarketPredictionManager;
+import edu.utexas.cs.tactex.interfaces.OptimizerWrapper;
+import edu.utexas.cs.tactex.interfaces.TariffOptimizer;
+import edu.utexas.cs.tactex.interfaces.TariffRepoMgr;
+import edu.utexas.cs.tactex.interfaces.UtilityEstimator;
+import edu.utexas.cs.tactex.interfaces.WithdrawFeesOptimizer;
+import edu.utexas.cs.tactex.shiftingpredictors.ShiftingPredictorNoShifts;
+import edu.utexas.cs.tactex.subscriptionspredictors.CustomerMigrationPredictor;
+import edu.utexas.cs.tactex.subscriptionspredictors.SingleCustomerMigrationPredictor;
+import edu.utexas.cs.tactex.tariffoptimization.TariffOptimizerIncremental;
+import edu.utexas.cs.tactex.tariffoptimization.TariffOptimizerIncremental.TariffUtilityEstimateImpl;
+import edu.utexas.cs.tactex.utils.BrokerUtils.ShiftedEnergyData;
+
+
+public class TariffOptimizerIncrementalTest {
+
+  private static final int NUM_RATES = 24;
+  private static final double FIXED_RATE = -0.1;
+  private static final double SUBSCRIPTIONS = 10;
+  // TariffOptimizerIncremental's bound on registered candidates
+  private static final int NUM_EVAL = 1000;
+
+  private Broker broker;
+  private CustomerInfo customer;
+  private UtilityEstimator utilityEstimator;
+  private ChargeEstimator chargeEstimator;
+  private TariffRepoMgr tariffRepoMgr;
+  // the specs currently in the repo
+  private Set<TariffSpecification> inRepo;
+  private TariffOptimizerIncremental optimizer;
+  private WithdrawFeesOptimizer withdrawFeesOptimizer;
+  private MarketPredictionManager marketPredictionManager;
+  private ConfiguratorFactoryService configuratorFactoryService;
+  private HashMap<CustomerInfo, ArrayRealVector> customer2estimatedEnergy;
+  private TariffUtilityEstimateImpl tariffUtilityEstimate;
+
+  // the charge's derivative w.r.t. each rate
+  private double[] usage;
+  // the objective is linear in the rates, with these coefficients
+  private double[] utilityCoefficients;
+  private boolean customerSubscribes;
+  private int numEvaluations;
+  // estimateUtilities() predicts migration too
+  private int numMigrationPredictions;
+
+
+  @Before
+  public void setUp () {
+    broker = new Broker("mybroker");
+    customer = new CustomerInfo("Austin", 1000).withPowerType(PowerType.CONSUMPTION);
+    customer2estimatedEnergy = new HashMap<CustomerInfo, ArrayRealVector>();
+    customer2estimatedEnergy.put(customer, new ArrayRealVector(7 * 24, 1.0));
+
+    usage = new double[NUM_RATES];
+    for (int h = 0; h < NUM_RATES; ++h) {
+      usage[h] = 1 + h % 3;
+    }
+    utilityCoefficients = new double[NUM_RATES];
+    customerSubscribes = true;
+    numEvaluations = 0;
+    numMigrationPredictions = 0;
+
+    chargeEstimator = mock(ChargeEstimator.class);
+    when(chargeEstimator.estimateRateGradient(any(ArrayRealVector.class), anyInt())).thenReturn(usage);
+    stubTariffRepoMgr();
+    configuratorFactoryService = mock(ConfiguratorFactoryService.class);
+    // no publication fee, like the estimateUtilities() stub
+    when(configuratorFactoryService.getContextManager()).thenReturn(mock(ContextManager.class));
+    withdrawFeesOptimizer = mock(WithdrawFeesOptimizer.class);
+    marketPredictionManager = mock(MarketPredictionManager.class);
+
+    utilityEstimator = mock(UtilityEstimator.class);
+    stubUtilityEstimator();
+
+    optimizer = new TariffOptimizerIncremental(
+        withdrawFeesOptimizer, tariffRepoMgr, chargeEstimator,
+        new ShiftingPredictorNoShifts(), mock(TariffOptimizer.class),
+        mock(OptimizerWrapper.class), utilityEstimator,
+        marketPredictionManager, configuratorFactoryService);
+
+    tariffUtilityEstimate = createTariffUtilityEstimate();
+  }
+
+
+  private TariffUtilityEstimateImpl createTariffUtilityEstimate() {
+    TariffSpecification fixedRateSeed = new TariffSpecification(broker, PowerType.CONSUMPTION);
+    fixedRateSeed.addRate(new Rate().withValue(FIXED_RATE));
+    return optimizer.new TariffUtilityEstimateImpl(
+        utilityEstimator, NUM_RATES, fixedRateSeed, withdrawFeesOptimizer,
+        new HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>>(),
+        new ArrayList<TariffSpecification>(), customer2estimatedEnergy,
+        marketPredictionManager, mock(CostCurvesPredictor.class),
+        configuratorFactoryService, 360, broker);
+  }
+
+
+  /**
+   * A repo that keeps track of its temporary specs
+   */
+  @SuppressWarnings("unchecked")
+  private void stubTariffRepoMgr() {
+    inRepo = Collections.synchronizedSet(new HashSet<TariffSpecification>());
+    tariffRepoMgr = mock(TariffRepoMgr.class);
+    when(tariffRepoMgr.getTmpSpecsLock()).thenReturn(new ReentrantReadWriteLock(true));
+    when(tariffRepoMgr.addToRepo(any(TariffSpecification.class))).thenAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) {
+        return inRepo.add((TariffSpecification) invocation.getArguments()[0]);
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        inRepo.remove((TariffSpecification) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(tariffRepoMgr).removeTmpSpecFromRepo(any(TariffSpecification.class));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        inRepo.removeAll((HashSet<TariffSpecification>) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(tariffRepoMgr).removeTmpSpecsFromRepo(any(HashSet.class));
+  }
+
+
+  @SuppressWarnings("unchecked")
+  private void stubUtilityEstimator() {
+    when(utilityEstimator.predictCustomerSubscriptions(any(TariffSpecification.class),
+        any(HashMap.class), any(HashMap.class), any(List.class), anyInt())).thenAnswer(
+            new Answer<HashMap<TariffSpecification, HashMap<CustomerInfo, Double>>>() {
+      @Override
+      public HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> answer(
+          InvocationOnMock invocation) {
+        ++numMigrationPredictions;
+        TariffSpecification spec = (TariffSpecification) invocation.getArguments()[0];
+        HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> result =
+            new HashMap<TariffSpecification, HashMap<CustomerInfo, Double>>();
+        if (customerSubscribes) {
+          HashMap<CustomerInfo, Double> subscriptions = new HashMap<CustomerInfo, Double>();
+          subscriptions.put(customer, SUBSCRIPTIONS);
+          result.put(spec, subscriptions);
+        }
+        return result;
+      }
+    });
+    when(utilityEstimator.estimateUtilities(any(List.class), any(HashMap.class),
+        any(List.class), any(HashMap.class), any(HashMap.class), any(HashMap.class),
+        any(MarketPredictionManager.class), any(CostCurvesPredictor.class),
+        anyInt(), any(Broker.class))).thenAnswer(
+            new Answer<TreeMap<Double, TariffSpecification>>() {
+      @Override
+      public TreeMap<Double, TariffSpecification> answer(InvocationOnMock invocation) {
+        ++numEvaluations;
+        ++numMigrationPredictions;
+        TariffSpecification spec =
+            ((List<TariffSpecification>) invocation.getArguments()[0]).get(0);
+        TreeMap<Double, TariffSpecification> result = new TreeMap<Double, TariffSpecification>();
+        result.put(utilityOf(spec), spec);
+        return result;
+      }
+    });
+    when(utilityEstimator.estimateUtility(any(HashMap.class), any(HashMap.class),
+        any(HashMap.class), any(HashMap.class), any(HashMap.class),
+        any(MarketPredictionManager.class), any(CostCurvesPredictor.class),
+        anyInt())).thenAnswer(new Answer<Double>() {
+      @Override
+      public Double answer(InvocationOnMock invocation) {
+        ++numEvaluations;
+        // there are no existing tariffs, the candidate is the only one
+        // with shifted energy
+        HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>> shiftedEnergy =
+            (HashMap<CustomerInfo, HashMap<TariffSpecification, ShiftedEnergyData>>) invocation.getArguments()[3];
+        return utilityOf(shiftedEnergy.get(customer).keySet().iterator().next());
+      }
+    });
+  }
+
+
+  private double utilityOf(TariffSpecification spec) {
+    double utility = 0;
+    for (Rate rate : spec.getRates()) {
+      utility += utilityCoefficients[rate.getDailyBegin()] * rate.getValue();
+    }
+    return utility;
+  }
+
+
+  /**
+   * Migration that changes differently with each block of rates is
+   * measured, on top of the analytic income gradient
+   */
+  @Test
+  public void testGradientCorrectsAnalyticIncome () {
+    double[] migration = {2.0, -1.0, 0.5, 3.0};
+    for (int h = 0; h < NUM_RATES; ++h) {
+      // income is -charge * subscriptions
+      utilityCoefficients[h] = -usage[h] * SUBSCRIPTIONS + migration[h / 6];
+    }
+    double[] point = new double[NUM_RATES];
+    point[3] = 0.01;
+    double[] gradient = tariffUtilityEstimate.gradient(point);
+    for (int h = 0; h < NUM_RATES; ++h) {
+      assertEquals("rate " + h, utilityCoefficients[h], gradient[h], 1e-6);
+    }
+  }
+
+
+  @Test
+  public void testGradientWithoutSubscriptions () {
+    customerSubscribes = false;
+    double[] migration = {-3.0, 1.0, 0.0, 2.5};
+    for (int h = 0; h < NUM_RATES; ++h) {
+      utilityCoefficients[h] = migration[h / 6];
+    }
+    double[] gradient = tariffUtilityEstimate.gradient(new double[NUM_RATES]);
+    for (int h = 0; h < NUM_RATES; ++h) {
+      assertEquals("rate " + h, utilityCoefficients[h], gradient[h], 1e-6);
+    }
+  }
+
+
+  /**
+   * The point is evaluated once, whether by value() or by gradient(), and
+   * each probe once
+   */
+  @Test
+  public void testGradientEvaluations () {
+    for (int h = 0; h < NUM_RATES; ++h) {
+      utilityCoefficients[h] = -usage[h] * SUBSCRIPTIONS;
+    }
+    double[] point = new double[NUM_RATES];
+    double value = tariffUtilityEstimate.value(point);
+    assertEquals("point evaluated", 1, numEvaluations);
+    tariffUtilityEstimate.gradient(point);
+    // a probe along the analytic gradient and one per 6-hour block
+    assertEquals("probes", 1 + 5, numEvaluations);
+    assertEquals("memoized", value, tariffUtilityEstimate.value(point), 0);
+    tariffUtilityEstimate.gradient(point);
+    assertEquals("probes memoized", 1 + 5, numEvaluations);
+
+    double[] other = new double[NUM_RATES];
+    other[0] = 0.02;
+    tariffUtilityEstimate.gradient(other);
+    assertEquals("evaluated by gradient()", 1 + 5 + 1 + 5, numEvaluations);
+    tariffUtilityEstimate.value(other);
+    assertEquals("not evaluated again", 1 + 5 + 1 + 5, numEvaluations);
+  }
+
+
+  /**
+   * gradient() predicts an unevaluated point's migration once, and
+   * evaluates the point from that prediction, to the value that value()
+   * gets
+   */
+  @Test
+  public void testGradientPredictsMigrationOnce () {
+    double[] migration = {2.0, -1.0, 0.5, 3.0};
+    for (int h = 0; h < NUM_RATES; ++h) {
+      utilityCoefficients[h] = -usage[h] * SUBSCRIPTIONS + migration[h / 6];
+    }
+    double[] point = new double[NUM_RATES];
+    point[11] = 0.01;
+    tariffUtilityEstimate.gradient(point);
+    // the point, then a probe along the analytic gradient and one per
+    // 6-hour block
+    assertEquals("migration predictions", 1 + 5, numMigrationPredictions);
+    assertEquals("evaluations", 1 + 5, numEvaluations);
+    assertEquals("value from the prediction", utilityOf(tariffUtilityEstimate.getCorrespondingSpec(point)),
+        tariffUtilityEstimate.value(point), 0);
+    assertEquals("memoized", 1 + 5, numEvaluations);
+  }
+
+
+  /**
+   * Points with the same rates (up to the quantum) map to the same spec
+   */
+  @Test
+  public void testSpecsRegisteredByRates () {
+    double[] point = new double[NUM_RATES];
+    for (int h = 0; h < NUM_RATES; ++h) {
+      point[h] = 0.001 * h;
+    }
+    TariffSpecification spec = tariffUtilityEstimate.getCorrespondingSpec(point);
+    assertSame("same array", spec, tariffUtilityEstimate.getCorrespondingSpec(point));
+    assertSame("equal array", spec, tariffUtilityEstimate.getCorrespondingSpec(point.clone()));
+
+    double[] close = point.clone();
+    close[5] += 1e-9;
+    assertSame("within the quantum", spec, tariffUtilityEstimate.getCorrespondingSpec(close));
+
+    double[] other = point.clone();
+    other[5] += 1e-3;
+    assertNotSame("different rates", spec, tariffUtilityEstimate.getCorrespondingSpec(other));
+  }
+
+
+  /**
+   * value() runs the estimator once per registered point
+   */
+  @Test
+  public void testValueMemoized () {
+    for (int h = 0; h < NUM_RATES; ++h) {
+      utilityCoefficients[h] = -usage[h] * SUBSCRIPTIONS;
+    }
+    double[] point = new double[NUM_RATES];
+    point[7] = 0.01;
+    double value = tariffUtilityEstimate.value(point);
+    assertEquals("evaluated", 1, numEvaluations);
+    assertEquals("same array", value, tariffUtilityEstimate.value(point), 0);
+    assertEquals("equal array", value, tariffUtilityEstimate.value(point.clone()), 0);
+    tariffUtilityEstimate.getCorrespondingSpec(point.clone());
+    assertEquals("not evaluated again", 1, numEvaluations);
+
+    double[] other = point.clone();
+    other[7] = 0.02;
+    tariffUtilityEstimate.value(other);
+    assertEquals("other point evaluated", 2, numEvaluations);
+  }
+
+
+  /**
+   * The registry stays bounded by NUM_EVAL over more evaluations, and
+   * evicts the least recently used points
+   */
+  @Test
+  public void testRegistryBounded () {
+    Map<?, ?> candidates = (Map<?, ?>) ReflectionTestUtils.getField(tariffUtilityEstimate, "candidates");
+    double[] first = distinctPoint(0);
+    double[] second = distinctPoint(1);
+    tariffUtilityEstimate.value(first);
+    tariffUtilityEstimate.value(second);
+    for (int i = 2; i < NUM_EVAL; ++i) {
+      tariffUtilityEstimate.value(distinctPoint(i));
+      // keep the first point recently used
+      tariffUtilityEstimate.value(first);
+    }
+    assertEquals("full", NUM_EVAL, candidates.size());
+    assertEquals("each point evaluated once", NUM_EVAL, numEvaluations);
+
+    for (int i = NUM_EVAL; i < 2 * NUM_EVAL + 500; ++i) {
+      tariffUtilityEstimate.value(distinctPoint(i));
+      tariffUtilityEstimate.value(first);
+      assertTrue("bounded after " + (i + 1) + " points", candidates.size() <= NUM_EVAL);
+    }
+    assertEquals("first point kept", 2 * NUM_EVAL + 500, numEvaluations);
+    tariffUtilityEstimate.value(second);
+    assertEquals("second point evicted", 2 * NUM_EVAL + 501, numEvaluations);
+  }
+
+
+  /**
+   * Concurrent value() calls predict the same migration as sequential
+   * ones: a prediction doesn't see the candidates that other evaluations
+   * temporarily add to the repo
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testConcurrentValuesPredictSameMigration () throws Exception {
+    final TariffSpecification defaultSpec = new TariffSpecification(new Broker("default broker"), PowerType.CONSUMPTION);
+    defaultSpec.addRate(new Rate().withValue(-0.5));
+    // the server-based evaluators consider every active tariff in the
+    // repo; here the customer is split between them
+    SingleCustomerMigrationPredictor chain = mock(SingleCustomerMigrationPredictor.class);
+    when(chain.predictMigrationForSingleCustomer(any(TariffSpecification.class), any(HashMap.class),
+        any(List.class), anyInt(), any(HashMap.class), any(CustomerInfo.class),
+        any(TariffSpecification.class))).thenAnswer(new Answer<HashMap<TariffSpecification, Double>>() {
+      @Override
+      public HashMap<TariffSpecification, Double> answer(InvocationOnMock invocation) throws InterruptedException {
+        // give other evaluations the time to add their candidates
+        Thread.sleep(2);
+        List<TariffSpecification> active;
+        synchronized (inRepo) {
+          active = new ArrayList<TariffSpecification>(inRepo);
+        }
+        HashMap<TariffSpecification, Double> result = new HashMap<TariffSpecification, Double>();
+        for (TariffSpecification spec : active) {
+          result.put(spec, SUBSCRIPTIONS / active.size());
+        }
+        return result;
+      }
+    });
+    // candidates are in the repo while their charges are estimated
+    when(chargeEstimator.estimateRelevantTariffCharges(any(List.class), any(HashMap.class))).thenAnswer(
+        new Answer<HashMap<CustomerInfo, HashMap<TariffSpecification, Double>>>() {
+      @Override
+      public HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> answer(
+          InvocationOnMock invocation) throws InterruptedException {
+        Thread.sleep(2);
+        return new HashMap<CustomerInfo, HashMap<TariffSpecification, Double>>();
+      }
+    });
+
+    // value() predicts migration through a CustomerMigrationPredictor,
+    // recording the predictions by rates
+    final CustomerMigrationPredictor migrationPredictor = new CustomerMigrationPredictor(chain, tariffRepoMgr);
+    final Map<List<Double>, HashMap<CustomerInfo, Double>> predictedSubscriptions =
+        Collections.synchronizedMap(new HashMap<List<Double>, HashMap<CustomerInfo, Double>>());
+    final Map<List<Double>, Integer> numPredictedTariffs =
+        Collections.synchronizedMap(new HashMap<List<Double>, Integer>());
+    doAnswer(new Answer<TreeMap<Double, TariffSpecification>>() {
+      @Override
+      public TreeMap<Double, TariffSpecification> answer(InvocationOnMock invocation) {
+        TariffSpecification spec =
+            ((List<TariffSpecification>) invocation.getArguments()[0]).get(0);
+        HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> evaluations =
+            new HashMap<CustomerInfo, HashMap<TariffSpecification, Double>>();
+        evaluations.put(customer, new HashMap<TariffSpecification, Double>());
+        evaluations.get(customer).put(defaultSpec, 1.0);
+        HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> subscriptions =
+            new HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>>();
+        subscriptions.put(defaultSpec, new HashMap<CustomerInfo, Integer>());
+        subscriptions.get(defaultSpec).put(customer, customer.getPopulation());
+        List<TariffSpecification> competingTariffs = new ArrayList<TariffSpecification>();
+        competingTariffs.add(defaultSpec);
+
+        HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> predicted =
+            migrationPredictor.predictMigration(spec, evaluations, subscriptions,
+                competingTariffs, null, false, 360);
+        predictedSubscriptions.put(rateValues(spec), predicted.get(spec));
+        numPredictedTariffs.put(rateValues(spec), predicted.size());
+        TreeMap<Double, TariffSpecification> result = new TreeMap<Double, TariffSpecification>();
+        result.put(utilityOf(spec), spec);
+        return result;
+      }
+    }).when(utilityEstimator).estimateUtilities(any(List.class), any(HashMap.class),
+        any(List.class), any(HashMap.class), any(HashMap.class), any(HashMap.class),
+        any(MarketPredictionManager.class), any(CostCurvesPredictor.class),
+        anyInt(), any(Broker.class));
+
+    final List<double[]> points = new ArrayList<double[]>();
+    for (int i = 0; i < 40; ++i) {
+      points.add(distinctPoint(i));
+    }
+
+    // sequential
+    for (double[] point : points) {
+      tariffUtilityEstimate.value(point);
+    }
+    Map<List<Double>, HashMap<CustomerInfo, Double>> expectedSubscriptions =
+        new HashMap<List<Double>, HashMap<CustomerInfo, Double>>(predictedSubscriptions);
+    Map<List<Double>, Integer> expectedNumTariffs = new HashMap<List<Double>, Integer>(numPredictedTariffs);
+    assertEquals("predicted", points.size(), expectedSubscriptions.size());
+    HashMap<CustomerInfo, Double> alone = new HashMap<CustomerInfo, Double>();
+    alone.put(customer, SUBSCRIPTIONS);
+    for (List<Double> rates : expectedSubscriptions.keySet()) {
+      assertEquals("sequential subscriptions", alone, expectedSubscriptions.get(rates));
+      assertEquals("sequential tariffs", 1, expectedNumTariffs.get(rates).intValue());
+    }
+    predictedSubscriptions.clear();
+    numPredictedTariffs.clear();
+
+    // two threads, on a new estimate (nothing is memoized)
+    final TariffUtilityEstimateImpl concurrentEstimate = createTariffUtilityEstimate();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int t = 0; t < 2; ++t) {
+        final int first = t;
+        futures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            for (int i = first; i < points.size(); i += 2) {
+              concurrentEstimate.value(points.get(i));
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertEquals("concurrent subscriptions", expectedSubscriptions, predictedSubscriptions);
+    assertEquals("concurrent tariffs", expectedNumTariffs, numPredictedTariffs);
+    assertTrue("temporary specs removed", inRepo.isEmpty());
+  }
+
+
+  private List<Double> rateValues(TariffSpecification spec) {
+    List<Double> result = new ArrayList<Double>();
+    for (Rate rate : spec.getRates()) {
+      result.add(rate.getValue());
+    }
+    return result;
+  }
+
+
+  private double[] distinctPoint(int i) {
+    double[] point = new double[NUM_RATES];
+    point[i % NUM_RATES] = 0.001 * (i / NUM_RATES + 1);
+    point[(i + 1) % NUM_RATES] = -0.001 * (i + 1);
+    return point;
+  }
+}
@@ -22,17 +22,29 @@
 package edu.utexas.cs.tactex;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.math3.linear.ArrayRealVector;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powertac.common.Broker;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.TariffSpecification;
@@ -100,7 +112,7 @@ public class UtilityEstimatorTest {
     marketPredictionManager = mock(MarketPredictionManager.class);
     when(marketPredictionManager.getPricePerKwhPredictionForAbout7Days()).thenReturn(estimatedMarketPrices);
     costCurvesPredictor = mock(CostCurvesPredictor.class);
-    when(costCurvesPredictor.predictUnitCostKwh(any(Integer.class), any(Integer.class), any(Double.class), any(Double.class))).thenReturn(100.0); //assume always same price
+    stubUnitCostKwh(100.0); //assume always same price
     //
     // some timeslot, used in "predictUnitCostMwh()" but since it is mocked, it
     // doesn't matter what timeslot we use
@@ -131,6 +143,22 @@ public class UtilityEstimatorTest {
     utilityEstimatorDefault = new UtilityEstimatorDefaultForConsumption(contextManager, customerPredictionManager, configuratorFactoryService);
   }
   
+  /**
+   * the same cost-curve prediction for every timeslot, whether predicted
+   * one at a time or in a batch
+   */
+  private void stubUnitCostKwh(final double unitCost) {
+    when(costCurvesPredictor.predictUnitCostKwh(any(Integer.class), any(Integer.class), any(Double.class), any(Double.class))).thenReturn(unitCost);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        Arrays.fill((double[]) invocation.getArguments()[4], unitCost);
+        return null;
+      }
+    }).when(costCurvesPredictor).predictUnitCostKwh(anyInt(), anyInt(), any(double[].class), any(double[].class), any(double[].class));
+  }
+
+
   @Test
   public void testUtilityEstimation () { 
     CustomerInfo customer1 = new CustomerInfo("Austin", 2);
@@ -319,8 +347,7 @@ public class UtilityEstimatorTest {
 
     // test: changing prediction method works market prediction decreased by
     // half for costCurvesPredictor only
-    when(costCurvesPredictor.predictUnitCostKwh(any(Integer.class), any(Integer.class), any(Double.class), any(Double.class))).
-        thenReturn(-50.0); 
+    stubUnitCostKwh(-50.0); 
     when(configuratorFactoryService.isUseCostCurves()).thenReturn(true);
     u = utilityEstimatorDefault.estimateUtility(currentCustomerSubscriptions,
         predictedCustomerSubscriptions, 
@@ -436,6 +463,181 @@ public class UtilityEstimatorTest {
     
   }
   
+  /**
+   * candidates evaluated together (sharing indexed inputs) get the
+   * utilities they get when evaluated one by one
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testEstimateUtilitiesOfCandidates () {
+    CustomerInfo customer1 = new CustomerInfo("Austin", 2);
+    CustomerInfo customer2 = new CustomerInfo("Dallas", 4);
+    TariffSpecification spec1 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+    TariffSpecification spec2 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+
+    HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2estimatedTariffCharges = 
+        new HashMap<CustomerInfo, HashMap<TariffSpecification,Double>>();
+    customer2estimatedTariffCharges.put(customer1, new HashMap<TariffSpecification,Double>());
+    customer2estimatedTariffCharges.put(customer2, new HashMap<TariffSpecification,Double>());
+    customer2estimatedTariffCharges.get(customer1).put(spec1, -10.0);
+    customer2estimatedTariffCharges.get(customer1).put(spec2, -20.0);
+    customer2estimatedTariffCharges.get(customer2).put(spec1, -30.0); 
+    customer2estimatedTariffCharges.get(customer2).put(spec2, -40.0);
+
+    HashMap<CustomerInfo, ArrayRealVector> customer2energy = new HashMap<CustomerInfo, ArrayRealVector>();
+    customer2energy.put(customer1, new ArrayRealVector(7*24, 6.0));
+    customer2energy.put(customer2, new ArrayRealVector(7*24, 8.0));
+
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> currentCustomerSubscriptions = 
+        new HashMap<TariffSpecification, HashMap<CustomerInfo,Integer>>();
+    currentCustomerSubscriptions.put(spec1, new HashMap<CustomerInfo,Integer>());
+    currentCustomerSubscriptions.get(spec1).put(customer1, 2);
+    currentCustomerSubscriptions.get(spec1).put(customer2, 4);
+
+    // adding spec2 moves customer1 (prediction1) or everyone (prediction2)
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> prediction1 = 
+        new HashMap<TariffSpecification, HashMap<CustomerInfo,Double>>(); 
+    prediction1.put(spec1, new HashMap<CustomerInfo,Double>());
+    prediction1.put(spec2, new HashMap<CustomerInfo,Double>());
+    prediction1.get(spec1).put(customer2, 4.0);
+    prediction1.get(spec2).put(customer1, 2.0);
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> prediction2 = 
+        new HashMap<TariffSpecification, HashMap<CustomerInfo,Double>>(); 
+    prediction2.put(spec2, new HashMap<CustomerInfo,Double>());
+    prediction2.get(spec2).put(customer1, 2.0);
+    prediction2.get(spec2).put(customer2, 3.0);
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> noop = 
+        new HashMap<TariffSpecification, HashMap<CustomerInfo,Double>>(); 
+    noop.put(spec1, new HashMap<CustomerInfo,Double>());
+    noop.get(spec1).put(customer1, 2.0);
+    noop.get(spec1).put(customer2, 4.0);
+
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> allSpecs = 
+        new HashMap<TariffSpecification, HashMap<CustomerInfo,Double>>(); 
+    allSpecs.put(spec1, noop.get(spec1));
+    allSpecs.put(spec2, prediction2.get(spec2));
+    HashMap<CustomerInfo,HashMap<TariffSpecification,ShiftedEnergyData>> customerTariff2ShiftedEnergy = 
+        shiftingPredictor.updateEstimatedEnergyWithShifting(customer2energy, allSpecs, 0);
+
+    TariffSpecification candidate1 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+    TariffSpecification candidate2 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+    when(customerPredictionManager.predictCustomerMigration(eq(candidate1), any(HashMap.class), any(HashMap.class), anyListOf(TariffSpecification.class), anyInt())).thenReturn(prediction1);
+    when(customerPredictionManager.predictCustomerMigration(eq(candidate2), any(HashMap.class), any(HashMap.class), anyListOf(TariffSpecification.class), anyInt())).thenReturn(prediction2);
+    when(customerPredictionManager.predictCustomerMigration(eq((TariffSpecification)null), any(HashMap.class), any(HashMap.class), anyListOf(TariffSpecification.class), anyInt())).thenReturn(noop);
+
+    ArrayList<TariffSpecification> candidates = new ArrayList<TariffSpecification>();
+    candidates.add(candidate1);
+    candidates.add(null);
+    candidates.add(candidate2);
+    TreeMap<Double, TariffSpecification> utility2spec = utilityEstimatorDefault.estimateUtilities(
+        candidates, currentCustomerSubscriptions, new ArrayList<TariffSpecification>(),
+        customer2estimatedTariffCharges, customerTariff2ShiftedEnergy, customer2energy,
+        marketPredictionManager, costCurvesPredictor, 0, thebroker);
+
+    assertEquals("all candidates", 3, utility2spec.size());
+    double u1 = utilityEstimatorDefault.estimateUtility(currentCustomerSubscriptions, prediction1,
+        customer2estimatedTariffCharges, customerTariff2ShiftedEnergy, customer2energy,
+        marketPredictionManager, costCurvesPredictor, 0) + publicationFee;
+    double u2 = utilityEstimatorDefault.estimateUtility(currentCustomerSubscriptions, prediction2,
+        customer2estimatedTariffCharges, customerTariff2ShiftedEnergy, customer2energy,
+        marketPredictionManager, costCurvesPredictor, 0) + publicationFee;
+    double u3 = utilityEstimatorDefault.estimateUtility(currentCustomerSubscriptions, noop,
+        customer2estimatedTariffCharges, customerTariff2ShiftedEnergy, customer2energy,
+        marketPredictionManager, costCurvesPredictor, 0);
+    assertEquals("candidate1", candidate1, utility2spec.get(u1));
+    assertEquals("candidate2", candidate2, utility2spec.get(u2));
+    assertTrue("no-op", utility2spec.containsKey(u3));
+    assertNull("no-op spec", utility2spec.get(u3));
+  }
+
+
+  /**
+   * candidates evaluated on a pool get the utilities they get on the
+   * calling thread, each with its own predictions, and candidates of
+   * equal utility resolve the same way (the later one is kept)
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testEstimateUtilitiesConcurrently () {
+    CustomerInfo customer1 = new CustomerInfo("Austin", 2);
+    CustomerInfo customer2 = new CustomerInfo("Dallas", 4);
+    TariffSpecification spec1 = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+
+    HashMap<CustomerInfo, ArrayRealVector> customer2energy = new HashMap<CustomerInfo, ArrayRealVector>();
+    customer2energy.put(customer1, new ArrayRealVector(7*24, 6.0));
+    customer2energy.put(customer2, new ArrayRealVector(7*24, 8.0));
+
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Integer>> currentCustomerSubscriptions = 
+        new HashMap<TariffSpecification, HashMap<CustomerInfo,Integer>>();
+    currentCustomerSubscriptions.put(spec1, new HashMap<CustomerInfo,Integer>());
+    currentCustomerSubscriptions.get(spec1).put(customer1, 2);
+    currentCustomerSubscriptions.get(spec1).put(customer2, 4);
+
+    HashMap<CustomerInfo, HashMap<TariffSpecification, Double>> customer2estimatedTariffCharges = 
+        new HashMap<CustomerInfo, HashMap<TariffSpecification,Double>>();
+    customer2estimatedTariffCharges.put(customer1, new HashMap<TariffSpecification,Double>());
+    customer2estimatedTariffCharges.put(customer2, new HashMap<TariffSpecification,Double>());
+    customer2estimatedTariffCharges.get(customer1).put(spec1, -10.0);
+    customer2estimatedTariffCharges.get(customer2).put(spec1, -30.0);
+
+    // 8 candidates, each moving a different number of customer2's
+    // population to it; candidates i and i + 4 are predicted the same
+    // migration, so they tie
+    ArrayList<TariffSpecification> candidates = new ArrayList<TariffSpecification>();
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> allSpecs = 
+        new HashMap<TariffSpecification, HashMap<CustomerInfo,Double>>(); 
+    allSpecs.put(spec1, new HashMap<CustomerInfo,Double>());
+    allSpecs.get(spec1).put(customer1, 2.0);
+    allSpecs.get(spec1).put(customer2, 4.0);
+    for (int i = 0; i < 8; ++i) {
+      TariffSpecification candidate = new TariffSpecification(brokerContext.getBroker(), PowerType.CONSUMPTION);
+      candidates.add(candidate);
+      customer2estimatedTariffCharges.get(customer1).put(candidate, -15.0);
+      customer2estimatedTariffCharges.get(customer2).put(candidate, -25.0);
+      allSpecs.put(candidate, new HashMap<CustomerInfo,Double>());
+      allSpecs.get(candidate).put(customer2, 1.0);
+
+      double moved = i % 4;
+      HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> prediction = 
+          new HashMap<TariffSpecification, HashMap<CustomerInfo,Double>>(); 
+      prediction.put(spec1, new HashMap<CustomerInfo,Double>());
+      prediction.get(spec1).put(customer1, 2.0);
+      prediction.get(spec1).put(customer2, 4.0 - moved);
+      prediction.put(candidate, new HashMap<CustomerInfo,Double>());
+      prediction.get(candidate).put(customer2, moved);
+      when(customerPredictionManager.predictCustomerMigration(eq(candidate), any(HashMap.class), any(HashMap.class), anyListOf(TariffSpecification.class), anyInt())).thenReturn(prediction);
+    }
+    HashMap<CustomerInfo,HashMap<TariffSpecification,ShiftedEnergyData>> customerTariff2ShiftedEnergy = 
+        shiftingPredictor.updateEstimatedEnergyWithShifting(customer2energy, allSpecs, 0);
+
+    when(configuratorFactoryService.getUtilityThreads()).thenReturn(1);
+    TreeMap<Double, TariffSpecification> sequential = utilityEstimatorDefault.estimateUtilities(
+        candidates, currentCustomerSubscriptions, new ArrayList<TariffSpecification>(),
+        customer2estimatedTariffCharges, customerTariff2ShiftedEnergy, customer2energy,
+        marketPredictionManager, costCurvesPredictor, 0, thebroker);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      when(configuratorFactoryService.getUtilityThreads()).thenReturn(4);
+      when(configuratorFactoryService.getUtilityExecutor()).thenReturn(executor);
+      TreeMap<Double, TariffSpecification> concurrent = utilityEstimatorDefault.estimateUtilities(
+          candidates, currentCustomerSubscriptions, new ArrayList<TariffSpecification>(),
+          customer2estimatedTariffCharges, customerTariff2ShiftedEnergy, customer2energy,
+          marketPredictionManager, costCurvesPredictor, 0, thebroker);
+
+      assertEquals("distinct utilities", 4, sequential.size());
+      assertEquals("same as sequential", sequential, concurrent);
+      for (int i = 4; i < 8; ++i) {
+        assertTrue("later candidate " + i + " wins the tie", concurrent.containsValue(candidates.get(i)));
+        assertFalse("earlier candidate " + (i - 4) + " loses the tie", concurrent.containsValue(candidates.get(i - 4)));
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+
   @Test
   public void testAddAndRemoveTariffEvaluation() {
     CustomerInfo customer1 = new CustomerInfo("Austin", 2);
@@ -0,0 +1,192 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.utexas.cs.tactex.interfaces.ActivateAfter;
+import edu.utexas.cs.tactex.interfaces.Activatable;
+
+public class ActivationSchedulerTest
+{
+  private List<String> log;
+  private ActivationScheduler scheduler;
+
+  private ActivationScheduler.TimeslotClock onTime =
+      new ActivationScheduler.TimeslotClock() {
+    @Override
+    public boolean isTimeslotOver (int timeslotIndex)
+    {
+      return false;
+    }
+  };
+
+  @Before
+  public void setUp () throws Exception
+  {
+    log = Collections.synchronizedList(new ArrayList<String>());
+  }
+
+  @After
+  public void tearDown () throws Exception
+  {
+    if (null != scheduler) {
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  public void testDependencyOrder ()
+  {
+    Last last = new Last();
+    First first = new First();
+    Independent independent = new Independent(null);
+    // given order violates the dependency
+    scheduler = new ActivationScheduler(Arrays.<Activatable>asList(last, independent, first));
+    List<Activatable> order = scheduler.getActivationOrder();
+    assertTrue("first before last", order.indexOf(first) < order.indexOf(last));
+
+    scheduler.activate(360, Long.MAX_VALUE, onTime);
+    assertEquals("all activated", 3, log.size());
+    assertTrue("first activated before last",
+               log.indexOf("First 360") < log.indexOf("Last 360"));
+    assertEquals("one activation", 1, scheduler.getStats(last).count);
+  }
+
+  @Test
+  public void testIndependentServicesRunConcurrently ()
+  {
+    // each waits for the other to start, which would time out if
+    // they were activated one after the other
+    CountDownLatch started = new CountDownLatch(2);
+    Independent a = new Independent(started);
+    Independent b = new Independent(started);
+    scheduler = new ActivationScheduler(Arrays.<Activatable>asList(a, b));
+    scheduler.activate(360, Long.MAX_VALUE, onTime);
+    assertTrue("a saw b running", a.sawOther);
+    assertTrue("b saw a running", b.sawOther);
+  }
+
+  @Test
+  public void testSkipWhenLate ()
+  {
+    First first = new First();
+    scheduler = new ActivationScheduler(Arrays.<Activatable>asList(first));
+    scheduler.activate(360, Long.MAX_VALUE,
+                       new ActivationScheduler.TimeslotClock() {
+      @Override
+      public boolean isTimeslotOver (int timeslotIndex)
+      {
+        return true;
+      }
+    });
+    assertEquals("nothing activated", 0, log.size());
+    assertEquals("skipped", 1, scheduler.getStats(first).skipped);
+  }
+
+  @Test
+  public void testDeadlineMiss ()
+  {
+    Slow slow = new Slow();
+    scheduler = new ActivationScheduler(Arrays.<Activatable>asList(slow));
+    scheduler.activate(360, System.currentTimeMillis(), onTime);
+    assertEquals("still completed", 1, log.size());
+    assertEquals("deadline missed", 1, scheduler.getStats(slow).deadlineMisses);
+  }
+
+  // ---------------- test services ---------------------
+
+  class First implements Activatable
+  {
+    @Override
+    public void activate (int timeslot)
+    {
+      sleep(20);
+      log.add("First " + timeslot);
+    }
+  }
+
+  @ActivateAfter(First.class)
+  class Last implements Activatable
+  {
+    @Override
+    public void activate (int timeslot)
+    {
+      log.add("Last " + timeslot);
+    }
+  }
+
+  class Independent implements Activatable
+  {
+    CountDownLatch started;
+    boolean sawOther = false;
+
+    Independent (CountDownLatch started)
+    {
+      this.started = started;
+    }
+
+    @Override
+    public void activate (int timeslot)
+    {
+      if (null != started) {
+        started.countDown();
+        try {
+          sawOther = started.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+          sawOther = false;
+        }
+      }
+      log.add("Independent " + timeslot);
+    }
+  }
+
+  class Slow implements Activatable
+  {
+    @Override
+    public void activate (int timeslot)
+    {
+      sleep(50);
+      log.add("Slow " + timeslot);
+    }
+  }
+
+  private static void sleep (long millis)
+  {
+    try {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e) {
+      // ignore
+    }
+  }
+}
@@ -22,14 +22,43 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powertac.common.XMLMessageConverter;
 import org.powertac.common.msg.BrokerAccept;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.core.SessionCallback;
+import org.springframework.jms.support.JmsUtils;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import edu.utexas.cs.tactex.core.MessageDispatcher;
+import edu.utexas.cs.tactex.interfaces.QueuedMessageHandler;
 
 public class MessageDispatcherTest
 {
@@ -69,6 +98,245 @@ public class MessageDispatcherTest
   }
 
 
+  @Test
+  public void testRouteMessageToSupertypes ()
+  {
+    LocalHandler handler = new LocalHandler();
+    SuperHandler superHandler = new SuperHandler();
+    router.registerMessageHandler(handler, BrokerAccept.class);
+    router.registerMessageHandler(superHandler, Object.class);
+    router.registerMessageHandler(superHandler, BrokerAccept.class);
+    
+    BrokerAccept accept = new BrokerAccept(1);
+    router.routeMessage(accept);
+    assertEquals("exact type", accept, handler.result);
+    assertEquals("most specific method", accept, superHandler.acceptResult);
+    assertNull("not routed twice", superHandler.objectResult);
+
+    String other = "other";
+    router.routeMessage(other);
+    assertEquals("routed to supertype", other, superHandler.objectResult);
+  }
+
+
+  @Test
+  public void testDispatchStats ()
+  {
+    LocalHandler handler = new LocalHandler();
+    router.registerMessageHandler(handler, BrokerAccept.class);
+    assertNull("no stats before routing", router.getDispatchStats(BrokerAccept.class));
+    router.routeMessage(new BrokerAccept(1));
+    router.routeMessage(new BrokerAccept(2));
+    MessageDispatcher.DispatchStats stats = router.getDispatchStats(BrokerAccept.class);
+    assertNotNull("stats", stats);
+    assertEquals("count", 2, stats.getCount());
+    long histogramTotal = 0;
+    for (int i = 0; i < MessageDispatcher.DispatchStats.NUM_BUCKETS; ++i) {
+      histogramTotal += stats.getHistogramBucket(i);
+    }
+    assertEquals("histogram total", 2, histogramTotal);
+  }
+
+
+  @Test
+  public void testQueuedIngestion ()
+  {
+    LocalHandler handler = new LocalHandler();
+    QueuedHandler queuedHandler = new QueuedHandler();
+    router.registerMessageHandler(handler, BrokerAccept.class);
+    router.registerMessageHandler(queuedHandler, BrokerAccept.class);
+
+    // queued handlers are invoked directly unless queueing is on
+    BrokerAccept first = new BrokerAccept(1);
+    router.routeMessage(first);
+    assertEquals("direct", Arrays.asList(first), queuedHandler.results);
+    assertEquals("nothing queued", 0, router.getNumQueuedMessages());
+
+    router.setQueuedIngestion(true);
+    BrokerAccept second = new BrokerAccept(2);
+    BrokerAccept third = new BrokerAccept(3);
+    router.routeMessage(second);
+    router.routeMessage(third);
+    assertEquals("other handlers not queued", third, handler.result);
+    assertEquals("not handled before drain", 1, queuedHandler.results.size());
+    assertEquals("queued", 2, router.getNumQueuedMessages());
+
+    assertEquals("drained", 2, router.drainQueuedMessages());
+    assertEquals("handled in order",
+                 Arrays.asList(first, second, third), queuedHandler.results);
+    assertEquals("nothing queued", 0, router.getNumQueuedMessages());
+    assertEquals("nothing to drain", 0, router.drainQueuedMessages());
+  }
+
+
+  @Test
+  public void testSendMessagesInOrder () throws Exception
+  {
+    XMLMessageConverter converter = mock(XMLMessageConverter.class);
+    when(converter.toXML(any())).thenAnswer(new Answer<String>() {
+      @Override
+      public String answer (InvocationOnMock invocation)
+      {
+        return "<" + invocation.getArguments()[0] + "/>";
+      }
+    });
+    JmsManagementService jmsManagementService = mock(JmsManagementService.class);
+    when(jmsManagementService.getServerQueueName()).thenReturn("serverInput");
+    final Session session = mock(Session.class);
+    MessageProducer producer = mock(MessageProducer.class);
+    when(session.createProducer(any(Destination.class))).thenReturn(producer);
+    JmsTemplate template = mock(JmsTemplate.class);
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer (InvocationOnMock invocation) throws Throwable
+      {
+        SessionCallback<?> callback =
+            (SessionCallback<?>) invocation.getArguments()[0];
+        return callback.doInJms(session);
+      }
+    }).when(template).execute(any(SessionCallback.class), eq(true));
+    ReflectionTestUtils.setField(router, "converter", converter);
+    ReflectionTestUtils.setField(router, "template", template);
+    ReflectionTestUtils.setField(router, "jmsManagementService", jmsManagementService);
+
+    router.sendMessages(Arrays.asList("a", "b", "c"));
+    router.sendMessage("d");
+    router.shutdown();
+
+    assertEquals("all sent", 4, router.getNumSentMessages());
+    assertEquals("none pending", 0, router.getNumPendingMessages());
+    // a single session and producer
+    verify(session, times(1)).createProducer(any(Destination.class));
+    verify(producer, times(4)).send(any(Message.class));
+    InOrder inOrder = inOrder(session);
+    inOrder.verify(session).createTextMessage("<a/>");
+    inOrder.verify(session).createTextMessage("<b/>");
+    inOrder.verify(session).createTextMessage("<c/>");
+    inOrder.verify(session).createTextMessage("<d/>");
+  }
+
+
+  @Test
+  public void testSendFailureKeepsRestOfBatch () throws Exception
+  {
+    XMLMessageConverter converter = mock(XMLMessageConverter.class);
+    when(converter.toXML(any())).thenAnswer(new Answer<String>() {
+      @Override
+      public String answer (InvocationOnMock invocation)
+      {
+        return "<" + invocation.getArguments()[0] + "/>";
+      }
+    });
+    JmsManagementService jmsManagementService = mock(JmsManagementService.class);
+    when(jmsManagementService.getServerQueueName()).thenReturn("serverInput");
+    final Session session = mock(Session.class);
+    when(session.createTextMessage(any(String.class))).thenAnswer(new Answer<TextMessage>() {
+      @Override
+      public TextMessage answer (InvocationOnMock invocation) throws Throwable
+      {
+        TextMessage message = mock(TextMessage.class);
+        when(message.getText()).thenReturn((String) invocation.getArguments()[0]);
+        return message;
+      }
+    });
+    final List<String> sent = new ArrayList<String>();
+    MessageProducer producer = mock(MessageProducer.class);
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer (InvocationOnMock invocation) throws Throwable
+      {
+        String text = ((TextMessage) invocation.getArguments()[0]).getText();
+        if (text.equals("<b/>")) {
+          throw new JMSException("connection lost");
+        }
+        sent.add(text);
+        return null;
+      }
+    }).when(producer).send(any(Message.class));
+    when(session.createProducer(any(Destination.class))).thenReturn(producer);
+    JmsTemplate template = mock(JmsTemplate.class);
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer (InvocationOnMock invocation) throws Throwable
+      {
+        SessionCallback<?> callback =
+            (SessionCallback<?>) invocation.getArguments()[0];
+        try {
+          return callback.doInJms(session);
+        }
+        catch (JMSException e) {
+          throw JmsUtils.convertJmsAccessException(e);
+        }
+      }
+    }).when(template).execute(any(SessionCallback.class), eq(true));
+    ReflectionTestUtils.setField(router, "converter", converter);
+    ReflectionTestUtils.setField(router, "template", template);
+    ReflectionTestUtils.setField(router, "jmsManagementService", jmsManagementService);
+
+    router.sendMessages(Arrays.asList("a", "b", "c"));
+    router.sendMessage("d");
+    router.shutdown();
+
+    // the failed message is dropped, the rest go out in order on a new
+    // session
+    assertEquals("sent", Arrays.asList("<a/>", "<c/>", "<d/>"), sent);
+    assertEquals("all but one sent", 3, router.getNumSentMessages());
+    assertEquals("none pending", 0, router.getNumPendingMessages());
+    verify(session, times(2)).createProducer(any(Destination.class));
+  }
+
+
+  @Test
+  public void testUnexpectedFailureKeepsSender () throws Exception
+  {
+    XMLMessageConverter converter = mock(XMLMessageConverter.class);
+    when(converter.toXML(any())).thenAnswer(new Answer<String>() {
+      @Override
+      public String answer (InvocationOnMock invocation)
+      {
+        return "<" + invocation.getArguments()[0] + "/>";
+      }
+    });
+    JmsManagementService jmsManagementService = mock(JmsManagementService.class);
+    when(jmsManagementService.getServerQueueName()).thenReturn("serverInput");
+    final Session session = mock(Session.class);
+    MessageProducer producer = mock(MessageProducer.class);
+    when(session.createProducer(any(Destination.class))).thenReturn(producer);
+    // the first session fails with a non-JMS exception
+    final CountDownLatch failed = new CountDownLatch(1);
+    JmsTemplate template = mock(JmsTemplate.class);
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer (InvocationOnMock invocation) throws Throwable
+      {
+        if (failed.getCount() > 0) {
+          failed.countDown();
+          throw new IllegalStateException("unexpected");
+        }
+        SessionCallback<?> callback =
+            (SessionCallback<?>) invocation.getArguments()[0];
+        return callback.doInJms(session);
+      }
+    }).when(template).execute(any(SessionCallback.class), eq(true));
+    ReflectionTestUtils.setField(router, "converter", converter);
+    ReflectionTestUtils.setField(router, "template", template);
+    ReflectionTestUtils.setField(router, "jmsManagementService", jmsManagementService);
+
+    router.sendMessage("a");
+    assertTrue("failed", failed.await(5, TimeUnit.SECONDS));
+    router.sendMessages(Arrays.asList("b", "c"));
+    router.shutdown();
+
+    assertEquals("all sent", 3, router.getNumSentMessages());
+    assertEquals("none pending", 0, router.getNumPendingMessages());
+    verify(template, times(2)).execute(any(SessionCallback.class), eq(true));
+    InOrder inOrder = inOrder(session);
+    inOrder.verify(session).createTextMessage("<a/>");
+    inOrder.verify(session).createTextMessage("<b/>");
+    inOrder.verify(session).createTextMessage("<c/>");
+  }
+
+
   public class LocalHandler
   {
     Object result = null;
@@ -78,4 +346,37 @@ public class MessageDispatcherTest
       result = msg;
     }
   }
+
+
+  public class QueuedHandler implements QueuedMessageHandler
+  {
+    List<Object> results = new ArrayList<Object>();
+
+    public void handleMessage (BrokerAccept msg)
+    {
+      results.add(msg);
+    }
+
+    @Override
+    public void messagesApplied (int timeslot)
+    {
+    }
+  }
+
+
+  public class SuperHandler
+  {
+    Object acceptResult = null;
+    Object objectResult = null;
+
+    public void handleMessage (BrokerAccept msg)
+    {
+      acceptResult = msg;
+    }
+
+    public void handleMessage (Object msg)
+    {
+      objectResult = msg;
+    }
+  }
 }
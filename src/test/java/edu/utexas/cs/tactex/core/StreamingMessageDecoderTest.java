@@ -0,0 +1,280 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.joda.time.Instant;
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.BalancingTransaction;
+import org.powertac.common.Broker;
+import org.powertac.common.ClearedTrade;
+import org.powertac.common.Orderbook;
+import org.powertac.common.OrderbookOrder;
+import org.powertac.common.XMLMessageConverter;
+import org.powertac.common.msg.MarketBootstrapData;
+import org.powertac.common.repo.BrokerRepo;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class StreamingMessageDecoderTest
+{
+  private StreamingMessageDecoder decoder;
+  private XMLMessageConverter converter;
+  private BrokerRepo brokerRepo;
+
+
+  @Before
+  public void setUp () throws Exception
+  {
+    converter = mock(XMLMessageConverter.class);
+    brokerRepo = mock(BrokerRepo.class);
+    decoder = new StreamingMessageDecoder();
+    ReflectionTestUtils.setField(decoder, "converter", converter);
+    ReflectionTestUtils.setField(decoder, "brokerRepo", brokerRepo);
+  }
+
+
+  @Test
+  public void testClearedTrade ()
+  {
+    String xml = "<trade id=\"7\" timeslot=\"364\" executionMWh=\"1.5\" executionPrice=\"20.0\"/>";
+
+    ClearedTrade streamed = (ClearedTrade) decoder.decode(xml);
+    assertEquals("one streamed", 1, decoder.getNumStreamed());
+    assertEquals("id", 7L, streamed.getId());
+    assertEquals("mwh", 1.5, streamed.getExecutionMWh(), 1e-10);
+    assertEquals("price", 20.0, streamed.getExecutionPrice(), 1e-10);
+    verify(converter, never()).fromXML(xml);
+  }
+
+
+  @Test
+  public void testFieldsAsChildElements ()
+  {
+    String xml = "<trade id=\"7\" executionMWh=\"1.5\" executionPrice=\"20.0\">"
+                 + "<timeslot>364</timeslot>"
+                 + "<dateExecuted><iMillis>1388534400000</iMillis></dateExecuted>"
+                 + "</trade>";
+
+    ClearedTrade expected =
+        new ClearedTrade(364, 1.5, 20.0, new Instant(1388534400000L));
+    ReflectionTestUtils.setField(expected, "id", 7L);
+
+    ClearedTrade streamed = (ClearedTrade) decoder.decode(xml);
+    assertEquals("one streamed", 1, decoder.getNumStreamed());
+    assertTrue("same state", sameState(expected, streamed, 0));
+  }
+
+
+  @Test
+  public void testUnknownContentUsesConverter ()
+  {
+    String xml = "<trade id=\"7\" timeslot=\"364\" executionMWh=\"1.5\" executionPrice=\"20.0\" unknown=\"1\"/>";
+    ClearedTrade expected = new ClearedTrade(364, 1.5, 20.0, null);
+    when(converter.fromXML(xml)).thenReturn(expected);
+    String other = "<sim-pause/>";
+    when(converter.fromXML(other)).thenReturn("pause");
+    String known = "<trade id=\"8\" timeslot=\"364\" executionMWh=\"1.5\" executionPrice=\"20.0\"/>";
+    when(converter.fromXML(known)).thenReturn(expected);
+
+    assertSame("converter result", expected, decoder.decode(xml));
+    assertEquals("converter result", "pause", decoder.decode(other));
+    // the element's reader is disabled
+    assertSame("converter result", expected, decoder.decode(known));
+    assertEquals("nothing streamed", 0, decoder.getNumStreamed());
+    assertEquals("all converted", 3, decoder.getNumConverted());
+  }
+
+
+  @Test
+  public void testUnknownBrokerUsesConverter ()
+  {
+    String xml = "<balance-tx id=\"5\" postedTimeslot=\"400\" kWh=\"-3.0\" charge=\"2.0\">"
+                 + "<broker>Sample</broker></balance-tx>";
+    BalancingTransaction expected = mock(BalancingTransaction.class);
+    when(converter.fromXML(xml)).thenReturn(expected);
+
+    assertSame("converter result", expected, decoder.decode(xml));
+
+    // once the broker is known, the message streams
+    Broker broker = new Broker("Sample");
+    when(brokerRepo.findByUsername("Sample")).thenReturn(broker);
+    BalancingTransaction streamed = (BalancingTransaction) decoder.decode(xml);
+    assertNotSame("streamed", expected, streamed);
+    assertSame("broker", broker, streamed.getBroker());
+    assertEquals("id", 5L, streamed.getId());
+    assertEquals("kWh", -3.0, streamed.getKWh(), 1e-10);
+    assertEquals("charge", 2.0, streamed.getCharge(), 1e-10);
+    verify(converter, times(1)).fromXML(xml);
+  }
+
+
+  @Test
+  public void testOrderbook ()
+  {
+    String xml = "<orderbook id=\"9\" timeslot=\"370\">"
+                 + "<bids class=\"tree-set\"><no-comparator/>"
+                 + "<orderbook-order mWh=\"2.0\" limitPrice=\"-30.0\"/></bids>"
+                 + "<asks class=\"tree-set\"><no-comparator/>"
+                 + "<orderbook-order mWh=\"-1.0\" limitPrice=\"19.0\"/>"
+                 + "<orderbook-order mWh=\"-1.0\" limitPrice=\"14.0\"/></asks>"
+                 + "</orderbook>";
+
+    Orderbook streamed = (Orderbook) decoder.decode(xml);
+    assertEquals("one streamed", 1, decoder.getNumStreamed());
+    assertEquals("id", 9L, streamed.getId());
+    assertEquals("one bid", 1, streamed.getBids().size());
+    assertEquals("two asks", 2, streamed.getAsks().size());
+    assertEquals("best ask", 14.0,
+                 streamed.getAsks().first().getLimitPrice(), 1e-10);
+  }
+
+
+  @Test
+  public void testMarketBootstrapData ()
+  {
+    String xml = "<market-bootstrap-data id=\"3\">"
+                 + "<mwh>1.0,2.5,3.0</mwh>"
+                 + "<marketPrice><double>-10.0</double><double>-20.0</double><double>-30.0</double></marketPrice>"
+                 + "</market-bootstrap-data>";
+
+    MarketBootstrapData streamed = (MarketBootstrapData) decoder.decode(xml);
+    assertEquals("one streamed", 1, decoder.getNumStreamed());
+    assertArrayEquals("mwh", new double[] {1.0, 2.5, 3.0},
+                      streamed.getMwh(), 1e-10);
+    assertArrayEquals("prices", new double[] {-10.0, -20.0, -30.0},
+                      streamed.getMarketPrice(), 1e-10);
+  }
+
+
+  /**
+   * The readers against the XStream converter: messages serialized by the
+   * converter are streamed to the same state the converter decodes.
+   */
+  @Test
+  public void testSameAsConverter ()
+  {
+    XMLMessageConverter xstream = new XMLMessageConverter();
+    xstream.afterPropertiesSet();
+    ReflectionTestUtils.setField(decoder, "converter", xstream);
+
+    ClearedTrade trade = new ClearedTrade(364, 1.5, 20.0, new Instant(1388534400000L));
+    Orderbook orderbook = new Orderbook(370, 21.5, new Instant(1388534400000L));
+    orderbook.addBid(new OrderbookOrder(2.0, -30.0));
+    orderbook.addBid(new OrderbookOrder(1.0, null));
+    orderbook.addAsk(new OrderbookOrder(-1.0, 19.0));
+    orderbook.addAsk(new OrderbookOrder(-1.0, 14.0));
+    MarketBootstrapData bootstrap =
+        new MarketBootstrapData(new double[] {1.0, 2.5, 3.0},
+                                new double[] {-10.0, -20.0, -30.0});
+
+    Object[] messages = {trade, orderbook, bootstrap};
+    for (Object message : messages) {
+      String xml = xstream.toXML(message);
+      Object streamed = decoder.decode(xml);
+      Object expected = xstream.fromXML(xml);
+      assertTrue(message.getClass().getSimpleName() + " same state as converter",
+                 sameState(expected, streamed, 0));
+    }
+    assertEquals("all streamed", messages.length, decoder.getNumStreamed());
+    assertEquals("none converted", 0, decoder.getNumConverted());
+  }
+
+
+  /**
+   * Field-by-field comparison of two decoded objects.
+   */
+  private static boolean sameState (Object a, Object b, int depth)
+  {
+    if (a == b) {
+      return true;
+    }
+    if (null == a || null == b || a.getClass() != b.getClass()) {
+      return false;
+    }
+    Class<?> clazz = a.getClass();
+    if (clazz.isArray()) {
+      int length = Array.getLength(a);
+      if (length != Array.getLength(b)) {
+        return false;
+      }
+      for (int i = 0; i < length; ++i) {
+        if (!sameState(Array.get(a, i), Array.get(b, i), depth)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (a instanceof Number || a instanceof String || a instanceof Boolean
+        || a instanceof Enum || a instanceof Instant) {
+      return a.equals(b);
+    }
+    if (a instanceof Collection) {
+      Collection<?> ca = (Collection<?>) a;
+      Collection<?> cb = (Collection<?>) b;
+      if (ca.size() != cb.size()) {
+        return false;
+      }
+      Iterator<?> ib = cb.iterator();
+      for (Object item : ca) {
+        if (!sameState(item, ib.next(), depth)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (depth >= 3) {
+      return a.equals(b);
+    }
+    for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        int modifiers = field.getModifiers();
+        if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+          continue;
+        }
+        try {
+          field.setAccessible(true);
+          if (!sameState(field.get(a), field.get(b), depth + 1)) {
+            return false;
+          }
+        }
+        catch (IllegalAccessException e) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.servercustomers.factoredcustomer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.Instant;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powertac.common.TimeService;
+import org.powertac.common.repo.TimeslotRepo;
+
+import edu.utexas.cs.tactex.servercustomers.common.RandomSeed;
+import edu.utexas.cs.tactex.servercustomers.common.repo.RandomSeedRepo;
+import edu.utexas.cs.tactex.servercustomers.common.repo.ServerBasedWeatherForecastRepo;
+import edu.utexas.cs.tactex.servercustomers.common.repo.ServerBasedWeatherReportRepo;
+import edu.utexas.cs.tactex.servercustomers.factoredcustomer.interfaces.CapacityBundle;
+import edu.utexas.cs.tactex.servercustomers.factoredcustomer.interfaces.CapacityOriginator;
+import edu.utexas.cs.tactex.servercustomers.factoredcustomer.interfaces.FactoredCustomer;
+
+
+public class FactoredCustomerServiceTest {
+
+  private static final int FIRST_TIMESLOT = 360;
+  private static final int NUM_TIMESLOTS = 48;
+
+  private FactoredCustomerService service;
+
+
+  @Before
+  public void setUp () {
+    final Instant base = new Instant(1262304000000L); // 2010-01-01 UTC
+    TimeslotRepo timeslotRepo = mock(TimeslotRepo.class);
+    when(timeslotRepo.getTimeForIndex(anyInt())).thenAnswer(new Answer<Instant>() {
+      @Override
+      public Instant answer(InvocationOnMock invocation) {
+        int index = (Integer) invocation.getArguments()[0];
+        return base.plus(index * TimeService.HOUR);
+      }
+    });
+    service = new FactoredCustomerService();
+    service.initialize(timeslotRepo, new TimeService(),
+        new ServerBasedWeatherReportRepo(), new ServerBasedWeatherForecastRepo());
+  }
+
+
+  private List<DefaultCapacityOriginator> getOriginators(FactoredCustomerService service) {
+    List<DefaultCapacityOriginator> result = new ArrayList<DefaultCapacityOriginator>();
+    for (FactoredCustomer customer : service.getCustomers()) {
+      for (CapacityBundle bundle : customer.getCapacityBundles()) {
+        for (CapacityOriginator originator : bundle.getCapacityOriginators()) {
+          result.add((DefaultCapacityOriginator) originator);
+        }
+      }
+    }
+    return result;
+  }
+
+
+  private double[] drawBaseCapacities(List<DefaultCapacityOriginator> originators, int firstTimeslot) {
+    double[] result = new double[originators.size() * NUM_TIMESLOTS];
+    int i = 0;
+    for (DefaultCapacityOriginator originator : originators) {
+      for (int t = firstTimeslot; t < firstTimeslot + NUM_TIMESLOTS; ++t) {
+        result[i++] = originator.getBaseCapacityForTimeslot(t);
+      }
+    }
+    return result;
+  }
+
+
+  @Test
+  public void testRandomSeedRepoCopy () {
+    RandomSeedRepo repo = new RandomSeedRepo();
+    RandomSeed seed = repo.getRandomSeed("FactoredCustomerServiceTest", 1, "test");
+    seed.nextDouble();
+    seed.nextGaussian();
+
+    RandomSeedRepo copy = repo.copy();
+    assertEquals("seeds copied", repo.size(), copy.size());
+    RandomSeed copiedSeed = copy.getRandomSeed("FactoredCustomerServiceTest", 1, "test");
+    assertNotSame("own seed", seed, copiedSeed);
+    assertEquals("same id", seed.getId(), copiedSeed.getId());
+    assertEquals("same value", seed.getValue(), copiedSeed.getValue());
+    for (int i = 0; i < 10; ++i) {
+      assertEquals("same sequence", seed.nextLong(), copiedSeed.nextLong());
+    }
+  }
+
+
+  /**
+   * A fork of customers that already drew capacities continues like the
+   * original, rather than starting its random sequences over
+   */
+  @Test
+  public void testForkPredictsLikeOriginal () {
+    List<DefaultCapacityOriginator> originators = getOriginators(service);
+    assertFalse("customers created", originators.isEmpty());
+    double[] history = drawBaseCapacities(originators, FIRST_TIMESLOT);
+
+    FactoredCustomerService fork = service.fork();
+    List<DefaultCapacityOriginator> forkOriginators = getOriginators(fork);
+    assertEquals("same customers", originators.size(), forkOriginators.size());
+    double[] forkHistory = drawBaseCapacities(forkOriginators, FIRST_TIMESLOT);
+    for (int i = 0; i < history.length; ++i) {
+      assertEquals("drawn capacity " + i, history[i], forkHistory[i], 0);
+    }
+
+    int next = FIRST_TIMESLOT + NUM_TIMESLOTS;
+    double[] forked = drawBaseCapacities(forkOriginators, next);
+    double[] serial = drawBaseCapacities(originators, next);
+    for (int i = 0; i < serial.length; ++i) {
+      assertEquals("capacity " + i, serial[i], forked[i], 0);
+    }
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.shiftingpredictors;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powertac.common.Broker;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.enumerations.PowerType;
+import org.powertac.common.repo.CustomerRepo;
+
+import edu.utexas.cs.tactex.ConfiguratorFactoryService;
+import edu.utexas.cs.tactex.interfaces.TariffRepoMgr;
+import edu.utexas.cs.tactex.servercustomers.common.TariffSubscription;
+import edu.utexas.cs.tactex.servercustomers.common.repo.TariffSubscriptionRepo;
+import edu.utexas.cs.tactex.servercustomers.factoredcustomer.FactoredCustomerService;
+import edu.utexas.cs.tactex.servercustomers.factoredcustomer.interfaces.CapacityBundle;
+import edu.utexas.cs.tactex.servercustomers.factoredcustomer.interfaces.FactoredCustomer;
+import edu.utexas.cs.tactex.utils.BrokerUtils.ShiftedEnergyData;
+
+
+public class ServerBasedShiftingPredictorTest {
+
+  private static final int RECORD_LENGTH = 24;
+  private static final int TIMESLOT = 360;
+
+  private Broker broker;
+  private CustomerInfo customer;
+  private TariffSpecification spec1;
+  private TariffSpecification spec2;
+  private HashMap<CustomerInfo, ArrayRealVector> customer2estimatedEnergy;
+  private TariffRepoMgr tariffRepoMgr;
+  private FactoredCustomerService factoredCustomerService;
+
+  // the simulated customers' subscribed counts, by subscription
+  private HashMap<TariffSubscription, Integer> subscribedCounts;
+  private int numSimulations;
+
+
+  @Before
+  public void setUp () throws Exception {
+    broker = new Broker("mybroker");
+    customer = new CustomerInfo("Austin", 10).withPowerType(PowerType.CONSUMPTION);
+    spec1 = new TariffSpecification(broker, PowerType.CONSUMPTION);
+    spec2 = new TariffSpecification(broker, PowerType.CONSUMPTION);
+    customer2estimatedEnergy = new HashMap<CustomerInfo, ArrayRealVector>();
+    customer2estimatedEnergy.put(customer, new ArrayRealVector(RECORD_LENGTH, 1.0));
+    subscribedCounts = new HashMap<TariffSubscription, Integer>();
+    numSimulations = 0;
+
+    // every tariff is in the repo
+    final HashMap<Long, Tariff> tariffs = new HashMap<Long, Tariff>();
+    tariffRepoMgr = mock(TariffRepoMgr.class);
+    when(tariffRepoMgr.getTmpSpecsLock()).thenReturn(new ReentrantReadWriteLock());
+    when(tariffRepoMgr.findTariffById(anyLong())).thenAnswer(new Answer<Tariff>() {
+      @Override
+      public Tariff answer(InvocationOnMock invocation) {
+        Long id = (Long) invocation.getArguments()[0];
+        if ( ! tariffs.containsKey(id) ) {
+          tariffs.put(id, mock(Tariff.class));
+        }
+        return tariffs.get(id);
+      }
+    });
+
+    // the customers' model: its own CustomerInfo, one subscription per tariff
+    CustomerInfo bundleCustomer = new CustomerInfo("Austin", 10).withPowerType(PowerType.CONSUMPTION);
+    CustomerRepo customerRepo = mock(CustomerRepo.class);
+    when(customerRepo.list()).thenReturn(Arrays.asList(bundleCustomer));
+    final HashMap<Tariff, TariffSubscription> subscriptions = new HashMap<Tariff, TariffSubscription>();
+    TariffSubscriptionRepo tariffSubscriptionRepo = mock(TariffSubscriptionRepo.class);
+    when(tariffSubscriptionRepo.getSubscription(any(CustomerInfo.class), any(Tariff.class))).thenAnswer(
+        new Answer<TariffSubscription>() {
+      @Override
+      public TariffSubscription answer(InvocationOnMock invocation) {
+        Tariff tariff = (Tariff) invocation.getArguments()[1];
+        if ( ! subscriptions.containsKey(tariff) ) {
+          subscriptions.put(tariff, createSubscription());
+        }
+        return subscriptions.get(tariff);
+      }
+    });
+
+    // a simulation's energy depends on the subscribed count and the timeslot
+    CapacityBundle bundle = mock(CapacityBundle.class);
+    when(bundle.getCustomerInfo()).thenReturn(bundleCustomer);
+    when(bundle.getPredictedEnergy(any(TariffSubscription.class), anyInt(), anyInt())).thenAnswer(
+        new Answer<ArrayRealVector>() {
+      @Override
+      public ArrayRealVector answer(InvocationOnMock invocation) {
+        ++numSimulations;
+        Object[] args = invocation.getArguments();
+        int count = subscribedCounts.get(args[0]);
+        int recordLength = (Integer) args[1];
+        int currentTimeslot = (Integer) args[2];
+        ArrayRealVector result = new ArrayRealVector(recordLength);
+        for (int i = 0; i < recordLength; ++i) {
+          result.setEntry(i, count * (1 + (currentTimeslot + i) % 5));
+        }
+        return result;
+      }
+    });
+    when(bundle.getShiftingInconvenienceFactor(any(TariffSubscription.class), anyInt())).thenAnswer(
+        new Answer<Double>() {
+      @Override
+      public Double answer(InvocationOnMock invocation) {
+        return 0.1 * subscribedCounts.get(invocation.getArguments()[0]);
+      }
+    });
+    FactoredCustomer factoredCustomer = mock(FactoredCustomer.class);
+    when(factoredCustomer.getCapacityBundles()).thenReturn(Arrays.asList(bundle));
+
+    factoredCustomerService = mock(FactoredCustomerService.class);
+    when(factoredCustomerService.getCustomers()).thenReturn(Arrays.asList(factoredCustomer));
+    when(factoredCustomerService.getCustomerRepo()).thenReturn(customerRepo);
+    when(factoredCustomerService.getTariffSubscriptionRepo()).thenReturn(tariffSubscriptionRepo);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        subscribedCounts.clear();
+        return null;
+      }
+    }).when(factoredCustomerService).cleanSubscriptionRelatedData();
+  }
+
+
+  private TariffSubscription createSubscription() {
+    final TariffSubscription result = mock(TariffSubscription.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        Integer count = subscribedCounts.get(result);
+        int added = (Integer) invocation.getArguments()[0];
+        subscribedCounts.put(result, (null == count ? 0 : count) + added);
+        return null;
+      }
+    }).when(result).subscribe(anyInt());
+    return result;
+  }
+
+
+  private ServerBasedShiftingPredictor createPredictor() {
+    return new ServerBasedShiftingPredictor(new ShiftingPredictorNoShifts(),
+        mock(ConfiguratorFactoryService.class), tariffRepoMgr, factoredCustomerService);
+  }
+
+
+  private HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> createSubscriptions(
+      double subs1, double subs2) {
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> result =
+        new HashMap<TariffSpecification, HashMap<CustomerInfo, Double>>();
+    result.put(spec1, new HashMap<CustomerInfo, Double>());
+    result.get(spec1).put(customer, subs1);
+    result.put(spec2, new HashMap<CustomerInfo, Double>());
+    result.get(spec2).put(customer, subs2);
+    return result;
+  }
+
+
+  private HashMap<TariffSpecification, ShiftedEnergyData> predict(
+      ServerBasedShiftingPredictor predictor, double subs1, double subs2, int timeslot) {
+    return predictor.updateEstimatedEnergyWithShifting(
+        customer2estimatedEnergy, createSubscriptions(subs1, subs2), timeslot).get(customer);
+  }
+
+
+  private void assertSamePrediction(HashMap<TariffSpecification, ShiftedEnergyData> expected,
+      HashMap<TariffSpecification, ShiftedEnergyData> actual) {
+    assertEquals("same tariffs", expected.keySet(), actual.keySet());
+    for (TariffSpecification spec : expected.keySet()) {
+      assertEquals("energy", expected.get(spec).getShiftedEnergy(), actual.get(spec).getShiftedEnergy());
+      assertEquals("inconvenience", expected.get(spec).getInconvenienceFactor(),
+          actual.get(spec).getInconvenienceFactor(), 0);
+    }
+  }
+
+
+  @Test
+  public void testSimulated () {
+    HashMap<TariffSpecification, ShiftedEnergyData> prediction =
+        predict(createPredictor(), 2.2, 5.0, TIMESLOT);
+    assertEquals("simulated each tariff", 2, numSimulations);
+    assertEquals("energy of 2 customers", 2.0 * (1 + TIMESLOT % 5),
+        prediction.get(spec1).getShiftedEnergy().getEntry(0), 1e-9);
+    assertEquals("energy of 5 customers", 5.0 * (1 + TIMESLOT % 5),
+        prediction.get(spec2).getShiftedEnergy().getEntry(0), 1e-9);
+  }
+
+
+  /**
+   * Subscriptions that round to the same counts hit the cache, and get
+   * what a re-simulation would predict
+   */
+  @Test
+  public void testKeyHit () {
+    ServerBasedShiftingPredictor predictor = createPredictor();
+    predict(predictor, 2.2, 5.0, TIMESLOT);
+    assertEquals("simulated", 2, numSimulations);
+    HashMap<TariffSpecification, ShiftedEnergyData> cached = predict(predictor, 1.8, 4.6, TIMESLOT);
+    assertEquals("not simulated again", 2, numSimulations);
+
+    HashMap<TariffSpecification, ShiftedEnergyData> simulated =
+        predict(createPredictor(), 1.8, 4.6, TIMESLOT);
+    assertEquals("re-simulated", 4, numSimulations);
+    assertSamePrediction(simulated, cached);
+  }
+
+
+  @Test
+  public void testKeyMiss () {
+    ServerBasedShiftingPredictor predictor = createPredictor();
+    predict(predictor, 2.2, 5.0, TIMESLOT);
+    HashMap<TariffSpecification, ShiftedEnergyData> prediction = predict(predictor, 2.6, 5.0, TIMESLOT);
+    assertEquals("simulated again", 4, numSimulations);
+    assertEquals("energy of 3 customers", 3.0 * (1 + TIMESLOT % 5),
+        prediction.get(spec1).getShiftedEnergy().getEntry(0), 1e-9);
+
+    // other tariffs, same counts
+    TariffSpecification spec3 = new TariffSpecification(broker, PowerType.CONSUMPTION);
+    HashMap<TariffSpecification, HashMap<CustomerInfo, Double>> subscriptions = createSubscriptions(2.2, 5.0);
+    subscriptions.put(spec3, subscriptions.remove(spec2));
+    predictor.updateEstimatedEnergyWithShifting(customer2estimatedEnergy, subscriptions, TIMESLOT);
+    assertEquals("simulated other tariffs", 6, numSimulations);
+  }
+
+
+  /**
+   * Predictions are cached only within their timeslot, since the
+   * environment changes between timeslots
+   */
+  @Test
+  public void testInvalidatedPerTimeslot () {
+    ServerBasedShiftingPredictor predictor = createPredictor();
+    predict(predictor, 2.2, 5.0, TIMESLOT);
+    HashMap<TariffSpecification, ShiftedEnergyData> next = predict(predictor, 2.2, 5.0, TIMESLOT + 1);
+    assertEquals("simulated in the next timeslot", 4, numSimulations);
+    assertEquals("next timeslot's energy", 2.0 * (1 + (TIMESLOT + 1) % 5),
+        next.get(spec1).getShiftedEnergy().getEntry(0), 1e-9);
+
+    predict(predictor, 2.2, 5.0, TIMESLOT + 1);
+    assertEquals("cached in the next timeslot", 4, numSimulations);
+    predict(predictor, 2.2, 5.0, TIMESLOT);
+    assertEquals("previous timeslot was dropped", 6, numSimulations);
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * TacTex - a power trading agent that competed in the Power Trading Agent Competition (Power TAC) www.powertac.org
+ * Copyright (c) 2013-2016 Daniel Urieli and Peter Stone {urieli,pstone}@cs.utexas.edu
+ *
+ *
+ * This file is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This file is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.utexas.cs.tactex.subscriptionspredictors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powertac.common.Broker;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.Rate;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.TimeService;
+import org.powertac.common.enumerations.PowerType;
+import org.powertac.common.repo.TariffRepo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import edu.utexas.cs.tactex.interfaces.TariffRepoMgr;
+
+
+/**
+ * Checks ServerBasedTariffEvaluator against values captured once from the
+ * implementation it replaced, on revoked, unevaluated, competing and
+ * unconsidered tariffs.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"classpath:test-config.xml"})
+public class ServerBasedTariffEvaluatorTest {
+
+  private static final int NUM_TARIFFS = 9;
+
+  // predicted subscriptions of the replaced implementation, by tariff
+  // (specs[i] at i), null where it predicted none
+  private static final Double[] EXPECTED_WITH_REVOKED = {
+      4.8965323687685922, null, 31.276545703700506, 5.5185748786403988,
+      null, null, 0.054091687235844434, 1.2500980495298934e-43,
+      0.0054596748497146678};
+  // same, with a tiered-rate factor of 0.5
+  private static final Double[] EXPECTED_WITH_REVOKED_TIERED = {
+      5.2907989971498672, null, 31.721969662475992, 0.40614339920142828,
+      null, null, 0.055537227703372598, 1.8300693458036502e-43,
+      0.0056190894418526845};
+  // same, without revoked and competing tariffs, default factors
+  private static final Double[] EXPECTED_WITHOUT_REVOKED = {
+      4.8965323687685922, 123.73237118810283, 44.822390857294707, 4.9964983738341298,
+      1.4965565563373169, null, 0.050913403343471317, 1.2500980495298934e-43,
+      0.0047372523191742946};
+
+  @Autowired
+  private TimeService timeService; // dependency injection
+
+  private TariffRepo tariffRepo;
+  private TariffRepoMgr tariffRepoMgr;
+  private CustomerInfo customer;
+  // specs[i] is tariff i + 1
+  private TariffSpecification[] specs;
+
+  private HashMap<TariffSpecification, Integer> subscriptions;
+  private HashMap<TariffSpecification, Double> evaluations;
+  private List<TariffSpecification> competingTariffs;
+
+
+  @Before
+  public void setUp () {
+    timeService.setCurrentTime(new DateTime(2011, 2, 1, 0, 0, 0, 0, DateTimeZone.UTC).toInstant());
+    tariffRepo = new TariffRepo();
+    customer = new CustomerInfo("Austin", 1000).withPowerType(PowerType.CONSUMPTION);
+
+    Broker me = new Broker("mybroker");
+    Broker competitor = new Broker("competitor");
+    specs = new TariffSpecification[NUM_TARIFFS];
+    for (int i = 0; i < NUM_TARIFFS; ++i) {
+      specs[i] = new TariffSpecification(i % 2 == 0 ? me : competitor, PowerType.CONSUMPTION);
+    }
+    // 1: fixed rate, with an early-withdraw payment
+    specs[0].addRate(new Rate().withValue(-0.10));
+    specs[0].withMinDuration(TimeService.WEEK).withEarlyWithdrawPayment(-5.0);
+    // 2: time of use
+    specs[1].addRate(new Rate().withValue(-0.08).withDailyBegin(0).withDailyEnd(11));
+    specs[1].addRate(new Rate().withValue(-0.14).withDailyBegin(12).withDailyEnd(23));
+    // 3: revoked below
+    specs[2].addRate(new Rate().withValue(-0.09));
+    // 4: tiered
+    specs[3].addRate(new Rate().withValue(-0.09));
+    specs[3].addRate(new Rate().withValue(-0.15).withTierThreshold(20));
+    // 5: with a signup payment
+    specs[4].addRate(new Rate().withValue(-0.12));
+    specs[4].withSignupPayment(2.0);
+    // 6: not evaluated; 7: candidate; 8: subscribed, not recent; 9: default
+    for (int i = 5; i < NUM_TARIFFS; ++i) {
+      specs[i].addRate(new Rate().withValue(-0.1 - 0.01 * i));
+    }
+    for (TariffSpecification spec : specs) {
+      addToRepo(spec);
+    }
+    tariffRepo.findTariffById(specs[2].getId()).setState(Tariff.State.KILLED);
+
+    tariffRepoMgr = mock(TariffRepoMgr.class);
+    when(tariffRepoMgr.findRecentActiveTariffs(anyInt(), any(PowerType.class))).thenAnswer(
+        new Answer<List<Tariff>>() {
+      @Override
+      public List<Tariff> answer(InvocationOnMock invocation) {
+        List<Tariff> result = new ArrayList<Tariff>();
+        for (int i = 1; i < 7; ++i) {
+          result.add(tariffRepo.findTariffById(specs[i].getId()));
+        }
+        return result;
+      }
+    });
+    when(tariffRepoMgr.findTariffById(anyLong())).thenAnswer(new Answer<Tariff>() {
+      @Override
+      public Tariff answer(InvocationOnMock invocation) {
+        return tariffRepo.findTariffById((Long) invocation.getArguments()[0]);
+      }
+    });
+    when(tariffRepoMgr.findSpecificationById(anyLong())).thenAnswer(new Answer<TariffSpecification>() {
+      @Override
+      public TariffSpecification answer(InvocationOnMock invocation) {
+        return tariffRepo.findSpecificationById((Long) invocation.getArguments()[0]);
+      }
+    });
+
+    subscriptions = new HashMap<TariffSpecification, Integer>();
+    subscriptions.put(specs[0], 100);
+    subscriptions.put(specs[2], 50);
+    subscriptions.put(specs[3], 0);
+    subscriptions.put(specs[7], 30);
+    evaluations = new HashMap<TariffSpecification, Double>();
+    for (int i = 0; i < NUM_TARIFFS; ++i) {
+      evaluations.put(specs[i], -100.0 - 7 * i + (i * i % 5));
+    }
+    evaluations.remove(specs[5]);
+    competingTariffs = new ArrayList<TariffSpecification>();
+    competingTariffs.add(specs[1]);
+    competingTariffs.add(specs[4]);
+  }
+
+
+  private void addToRepo(TariffSpecification spec) {
+    tariffRepo.addSpecification(spec);
+    Tariff tariff = new Tariff(spec);
+    ReflectionTestUtils.setField(tariff, "timeService", timeService);
+    ReflectionTestUtils.setField(tariff, "tariffRepo", tariffRepo);
+    // init() adds the tariff to the repo
+    tariff.init();
+  }
+
+
+  private HashMap<TariffSpecification, Double> evaluate(ServerBasedTariffEvaluator evaluator) {
+    return evaluator.evaluateTariffs(subscriptions, specs[8], evaluations,
+        competingTariffs, customer, specs[6]);
+  }
+
+
+  private void assertEvaluation(Double[] expected,
+      HashMap<TariffSpecification, Double> actual) {
+    int numExpected = 0;
+    for (int i = 0; i < NUM_TARIFFS; ++i) {
+      Double value = actual.get(specs[i]);
+      if (null == expected[i]) {
+        assertNull("tariff " + (i + 1), value);
+        continue;
+      }
+      ++numExpected;
+      assertNotNull("tariff " + (i + 1), value);
+      // up to summation order
+      assertEquals("tariff " + (i + 1), expected[i], value,
+          1e-9 * Math.max(1, Math.abs(expected[i])));
+    }
+    assertEquals("predicted tariffs", numExpected, actual.size());
+  }
+
+
+  @Test
+  public void testEvaluation () {
+    ServerBasedTariffEvaluator evaluator =
+        new ServerBasedTariffEvaluator(new ServerCustomerModelAccessor(customer), tariffRepoMgr)
+            .withRationality(0.9).withInconvenienceWeight(0.2);
+    evaluator.initializeInconvenienceFactors(0.2, 0.1, 0.1, 0.2);
+
+    // the second call uses cached inconveniences, and more inertia
+    for (int call = 0; call < 2; ++call) {
+      assertEvaluation(EXPECTED_WITH_REVOKED, evaluate(evaluator));
+    }
+
+    // cached inconveniences are dropped when the factors change
+    evaluator.initializeInconvenienceFactors(0.2, 0.5, 0.1, 0.2);
+    assertEvaluation(EXPECTED_WITH_REVOKED_TIERED, evaluate(evaluator));
+  }
+
+
+  @Test
+  public void testEvaluationWithoutRevoked () {
+    tariffRepo.findTariffById(specs[2].getId()).setState(Tariff.State.ACTIVE);
+    competingTariffs.clear();
+    ServerBasedTariffEvaluator evaluator =
+        new ServerBasedTariffEvaluator(new ServerCustomerModelAccessor(customer), tariffRepoMgr);
+    assertEvaluation(EXPECTED_WITHOUT_REVOKED, evaluate(evaluator));
+  }
+}